@@ -0,0 +1,91 @@
+package dev.vgerasimov.schema_migration.benchmarks;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.defaultconfig.ApiRootBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import dev.vgerasimov.schema_migration.commercetools.CommerceToolsHistorySource;
+import io.vrap.rmf.base.client.AuthenticationToken;
+import io.vrap.rmf.base.client.utils.json.JsonUtils;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CommerceToolsHistorySource} against a {@link ProjectApiRoot} backed by {@link
+ * StubHttpClient}, i.e. the full SDK request pipeline with a configurable network latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommerceToolsHistorySourceBenchmark {
+
+  @Param({"1000", "10000"})
+  int recordCount;
+
+  @Param({"100", "500"})
+  int pageSize;
+
+  @Param({"0", "20"})
+  int latencyMillis;
+
+  private ProjectApiRoot apiRoot;
+  private CommerceToolsHistorySource historySource;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    ObjectMapper objectMapper = JsonUtils.createObjectMapper();
+    StubHttpClient httpClient =
+        new StubHttpClient(objectMapper, Duration.ofMillis(latencyMillis));
+    LocalDateTime executedAt = LocalDateTime.now();
+    for (int i = 0; i < recordCount; i++) {
+      String id = String.format("%08d", i);
+      httpClient.put(
+          id,
+          objectMapper.valueToTree(
+              new HistoryRecord(id, executedAt, HistoryRecord.Status.SUCCESS, "checksum-" + id)));
+    }
+    AuthenticationToken token = new AuthenticationToken();
+    token.setAccessToken("benchmark");
+    apiRoot =
+        ApiRootBuilder.of(httpClient)
+            .withApiBaseUrl("http://localhost")
+            .withStaticTokenFlow(token)
+            .build("benchmark");
+    historySource =
+        new CommerceToolsHistorySource(apiRoot, objectMapper, "schema-migration", pageSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    apiRoot.close();
+  }
+
+  @Benchmark
+  public List<HistoryRecord> getHistory() {
+    return historySource.getHistory();
+  }
+
+  @Benchmark
+  public Optional<HistoryRecord> getHead() {
+    return historySource.getHead();
+  }
+}
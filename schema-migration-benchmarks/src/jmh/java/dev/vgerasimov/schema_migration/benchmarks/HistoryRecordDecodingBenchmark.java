@@ -0,0 +1,78 @@
+package dev.vgerasimov.schema_migration.benchmarks;
+
+import com.commercetools.api.models.custom_object.CustomObject;
+import com.commercetools.api.models.custom_object.CustomObjectPagedQueryResponse;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import dev.vgerasimov.schema_migration.commercetools.CommerceToolsHistorySource.CommonGraphResponse;
+import io.vrap.rmf.base.client.utils.json.JsonUtils;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding of a single page of history records the way {@code
+ * CommerceToolsHistorySource} does it: the GraphQL response is bound to the SDK model, and then
+ * every custom object value is converted to {@link HistoryRecord}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryRecordDecodingBenchmark {
+
+  @Param({"100", "500"})
+  int pageSize;
+
+  private final ObjectMapper objectMapper = JsonUtils.createObjectMapper();
+  private byte[] response;
+
+  @Setup
+  public void setUp() throws IOException {
+    ObjectNode body = objectMapper.createObjectNode();
+    ArrayNode results = body.putObject("data").putObject("customObjects").putArray("results");
+    LocalDateTime executedAt = LocalDateTime.now();
+    for (int i = 0; i < pageSize; i++) {
+      String id = String.format("%08d", i);
+      results
+          .addObject()
+          .put("key", id)
+          .set(
+              "value",
+              objectMapper.valueToTree(
+                  new HistoryRecord(id, executedAt, HistoryRecord.Status.SUCCESS, "c-" + id)));
+    }
+    response = objectMapper.writeValueAsBytes(body);
+  }
+
+  @Benchmark
+  public List<HistoryRecord> decodePage() throws IOException {
+    CommonGraphResponse<CustomObjectPagedQueryResponse> graphResponse =
+        objectMapper.readValue(
+            response,
+            new TypeReference<CommonGraphResponse<CustomObjectPagedQueryResponse>>() {});
+    List<HistoryRecord> records = new ArrayList<>(pageSize);
+    for (CustomObject customObject : graphResponse.getData().getResults()) {
+      records.add(objectMapper.convertValue(customObject.getValue(), HistoryRecord.class));
+    }
+    return records;
+  }
+}
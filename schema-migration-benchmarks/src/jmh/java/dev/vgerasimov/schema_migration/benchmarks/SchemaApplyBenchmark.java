@@ -0,0 +1,119 @@
+package dev.vgerasimov.schema_migration.benchmarks;
+
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.Context;
+import dev.vgerasimov.schema_migration.HistoryChain;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import dev.vgerasimov.schema_migration.InMemoryHistorySource;
+import dev.vgerasimov.schema_migration.MigrationResult;
+import dev.vgerasimov.schema_migration.Schema;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Schema#apply} against {@link InMemoryHistorySource}, i.e. the overhead of the
+ * migration tool itself: history verification, bookkeeping of results and saving of records.
+ * Change sets do nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaApplyBenchmark {
+
+  /** State of the history before the migration. */
+  public enum HistoryState {
+    /** All change sets are applied, the head record carries the chain value. */
+    FULLY_APPLIED,
+    /** All change sets are applied, but records have no chain values, as in older histories. */
+    FULLY_APPLIED_UNCHAINED,
+    /** The first half of change sets is applied. */
+    PARTIALLY_APPLIED,
+    /** All change sets are applied, but the last one has failed. */
+    FAILED_TAIL
+  }
+
+  @Param({"1000", "10000", "100000"})
+  int changeSetCount;
+
+  @Param({"FULLY_APPLIED", "FULLY_APPLIED_UNCHAINED", "PARTIALLY_APPLIED", "FAILED_TAIL"})
+  HistoryState historyState;
+
+  private final Context context = Context.basic(Clock.systemUTC());
+  private List<ChangeSet<Context>> changeSets;
+  private List<HistoryRecord> history;
+  private Schema<Context> schema;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    changeSets = new ArrayList<>(changeSetCount);
+    for (int i = 0; i < changeSetCount; i++) {
+      changeSets.add(new NoOpChangeSet(String.format("%08d", i)));
+    }
+    String[] chain = HistoryChain.of(changeSets);
+    LocalDateTime executedAt = LocalDateTime.now();
+
+    int applied =
+        historyState == HistoryState.PARTIALLY_APPLIED ? changeSetCount / 2 : changeSetCount;
+    history = new ArrayList<>(applied);
+    for (int i = 0; i < applied; i++) {
+      boolean last = i == changeSetCount - 1;
+      HistoryRecord.Status status =
+          last && historyState == HistoryState.FAILED_TAIL
+              ? HistoryRecord.Status.FAILED
+              : HistoryRecord.Status.SUCCESS;
+      boolean chained =
+          historyState != HistoryState.FULLY_APPLIED_UNCHAINED
+              && status == HistoryRecord.Status.SUCCESS;
+      ChangeSet<Context> changeSet = changeSets.get(i);
+      history.add(
+          new HistoryRecord(
+              changeSet.getId(),
+              executedAt,
+              status,
+              changeSet.getChecksum(),
+              chained ? chain[i] : null));
+    }
+  }
+
+  /** Every invocation starts with the same history, as {@link Schema#apply} modifies it. */
+  @Setup(Level.Invocation)
+  public void setUpInvocation() {
+    InMemoryHistorySource historySource = new InMemoryHistorySource();
+    history.forEach(historySource::saveRecord);
+    schema = new Schema<>(historySource);
+  }
+
+  @Benchmark
+  public MigrationResult apply() {
+    return schema.apply(context, changeSets);
+  }
+
+  private static final class NoOpChangeSet extends ChangeSet<Context> {
+    private NoOpChangeSet(String id) {
+      super(id, "checksum-" + id, false);
+    }
+
+    @Override
+    public Status mutate(Context context) {
+      return Status.APPLIED;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package dev.vgerasimov.schema_migration.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.vrap.rmf.base.client.ApiHttpHeaders;
+import io.vrap.rmf.base.client.ApiHttpRequest;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import io.vrap.rmf.base.client.VrapHttpClient;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client answering the GraphQL requests of {@code CommerceToolsHistorySource} from memory
+ * after the configured latency. Only a single custom object container is supported: {@code
+ * customObjects} queries sorted by key in either direction with an optional {@code key > "..."}
+ * predicate, and {@code createOrUpdateCustomObject} mutations.
+ */
+final class StubHttpClient implements VrapHttpClient {
+  private final ObjectMapper objectMapper;
+  private final Executor responder;
+  private final ConcurrentSkipListMap<String, JsonNode> customObjects =
+      new ConcurrentSkipListMap<>();
+
+  StubHttpClient(ObjectMapper objectMapper, Duration latency) {
+    this.objectMapper = objectMapper;
+    this.responder =
+        latency.isZero()
+            ? Runnable::run
+            : CompletableFuture.delayedExecutor(latency.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  void put(String key, JsonNode value) {
+    customObjects.put(key, value);
+  }
+
+  @Override
+  public CompletableFuture<ApiHttpResponse<byte[]>> execute(ApiHttpRequest request) {
+    return CompletableFuture.supplyAsync(() -> respond(request), responder);
+  }
+
+  @Override
+  public void close() {}
+
+  private ApiHttpResponse<byte[]> respond(ApiHttpRequest request) {
+    try {
+      JsonNode graphQl = objectMapper.readTree(request.getBody());
+      String query = graphQl.path("query").asText();
+      JsonNode variables = graphQl.path("variables");
+      ObjectNode data =
+          query.startsWith("mutation") ? mutate(query, variables) : query(query, variables);
+      ObjectNode body = objectMapper.createObjectNode();
+      body.set("data", data);
+      return new ApiHttpResponse<>(200, new ApiHttpHeaders(), objectMapper.writeValueAsBytes(body));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private ObjectNode query(String query, JsonNode variables) {
+    boolean descending =
+        query.contains("lastModifiedAt desc") || variables.path("sort").toString().contains("desc");
+    NavigableMap<String, JsonNode> objects =
+        descending ? customObjects.descendingMap() : customObjects;
+    String where = variables.path("where").asText(null);
+    if (where != null) {
+      String after = where.substring(where.indexOf('"') + 1, where.lastIndexOf('"'));
+      objects = customObjects.tailMap(after, false);
+    }
+    int limit = variables.path("limit").asInt(query.contains("limit: 1") ? 1 : 20);
+
+    ObjectNode result = objectMapper.createObjectNode();
+    result.put("total", customObjects.size());
+    ArrayNode results = result.putArray("results");
+    Iterator<Map.Entry<String, JsonNode>> entries = objects.entrySet().iterator();
+    for (int i = 0; i < limit && entries.hasNext(); i++) {
+      Map.Entry<String, JsonNode> entry = entries.next();
+      ObjectNode customObject = results.addObject();
+      customObject.put("key", entry.getKey()).put("version", 1);
+      customObject.set("value", entry.getValue());
+    }
+    ObjectNode data = objectMapper.createObjectNode();
+    data.set("customObjects", result);
+    return data;
+  }
+
+  private ObjectNode mutate(String query, JsonNode variables) throws IOException {
+    ObjectNode data = objectMapper.createObjectNode();
+    Iterator<Map.Entry<String, JsonNode>> drafts = variables.fields();
+    while (drafts.hasNext()) {
+      Map.Entry<String, JsonNode> draft = drafts.next();
+      String key = draft.getValue().path("key").asText();
+      customObjects.put(key, objectMapper.readTree(draft.getValue().path("value").asText()));
+      data.putObject("r" + draft.getKey().substring(1)).put("key", key);
+    }
+    return data;
+  }
+}
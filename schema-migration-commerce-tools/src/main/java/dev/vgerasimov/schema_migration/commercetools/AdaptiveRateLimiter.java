@@ -0,0 +1,320 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import io.vrap.rmf.base.client.ApiHttpException;
+import io.vrap.rmf.base.client.ApiHttpHeaders;
+import io.vrap.rmf.base.client.ApiHttpRequest;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import io.vrap.rmf.base.client.http.Middleware;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.Builder;
+
+/**
+ * SDK middleware which paces all requests sent through a {@code ProjectApiRoot}. Add it to the
+ * builder of the api root ({@code ApiRootBuilder.addMiddleware}) and pass the same api root to
+ * {@link CommerceToolsContext} and {@link CommerceToolsHistorySource}, so change sets and the
+ * history source share one limit.
+ *
+ * <p>Requests are paced by two limits:
+ *
+ * <ul>
+ *   <li>a token bucket, refilled with {@code requestsPerSecond} tokens per second and holding up
+ *       to {@code burst} tokens, which keeps the request rate within the project quota;
+ *   <li>an adaptive concurrency limit (AIMD): it grows by one per round trip while responses are
+ *       fast, and is multiplied by {@code decreaseFactor} when the API responds with 429 or 503 or
+ *       when a response takes longer than {@code latencyThreshold}, at most once per round trip.
+ * </ul>
+ *
+ * <p>Throttled requests (429 and 503) are retried up to {@code maxRetries} times after a backoff
+ * with full jitter, or after the {@code Retry-After} delay if the API sends one, so change sets do
+ * not fail on throttling. Requests waiting for a permit or a retry do not block any thread.
+ */
+public class AdaptiveRateLimiter implements Middleware, AutoCloseable {
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVICE_UNAVAILABLE = 503;
+
+  private final double tokensPerNano;
+  private final int burst;
+  private final int minConcurrency;
+  private final int maxConcurrency;
+  private final double decreaseFactor;
+  private final long latencyThresholdNanos;
+  private final int maxRetries;
+  private final long baseBackoffNanos;
+  private final long maxBackoffNanos;
+  private final ScheduledExecutorService scheduler;
+
+  private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+  private double tokens;
+  private long refilledAt;
+  private double concurrencyLimit;
+  private int inFlight;
+  private long decreasedAt;
+  private boolean drainScheduled;
+
+  @Builder
+  private AdaptiveRateLimiter(
+      Double requestsPerSecond,
+      Integer burst,
+      Integer initialConcurrency,
+      Integer minConcurrency,
+      Integer maxConcurrency,
+      Double decreaseFactor,
+      Duration latencyThreshold,
+      Integer maxRetries,
+      Duration baseBackoff,
+      Duration maxBackoff) {
+    double rate = requestsPerSecond == null ? 200 : requestsPerSecond;
+    this.burst = burst == null ? 50 : burst;
+    this.minConcurrency = minConcurrency == null ? 1 : minConcurrency;
+    this.maxConcurrency = maxConcurrency == null ? 64 : maxConcurrency;
+    this.decreaseFactor = decreaseFactor == null ? 0.5 : decreaseFactor;
+    this.latencyThresholdNanos =
+        (latencyThreshold == null ? Duration.ofSeconds(2) : latencyThreshold).toNanos();
+    this.maxRetries = maxRetries == null ? 5 : maxRetries;
+    this.baseBackoffNanos =
+        (baseBackoff == null ? Duration.ofMillis(100) : baseBackoff).toNanos();
+    this.maxBackoffNanos = (maxBackoff == null ? Duration.ofSeconds(10) : maxBackoff).toNanos();
+    int initial = initialConcurrency == null ? 8 : initialConcurrency;
+    if (rate <= 0 || this.burst <= 0) {
+      throw new IllegalArgumentException("Requests per second and burst must be positive");
+    }
+    if (this.minConcurrency <= 0
+        || this.maxConcurrency < this.minConcurrency
+        || initial < this.minConcurrency
+        || initial > this.maxConcurrency) {
+      throw new IllegalArgumentException(
+          "Concurrency limits must satisfy 0 < min <= initial <= max");
+    }
+    if (this.decreaseFactor <= 0 || this.decreaseFactor >= 1) {
+      throw new IllegalArgumentException("Decrease factor must be between 0 and 1");
+    }
+    this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+    this.tokens = this.burst;
+    this.refilledAt = System.nanoTime();
+    // far enough in the past for the first decrease to happen, without overflowing
+    this.decreasedAt = refilledAt - Long.MAX_VALUE / 4;
+    this.concurrencyLimit = initial;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "commercetools-rate-limiter");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public CompletableFuture<ApiHttpResponse<byte[]>> invoke(
+      ApiHttpRequest request,
+      Function<ApiHttpRequest, CompletableFuture<ApiHttpResponse<byte[]>>> next) {
+    return send(request, next, 0);
+  }
+
+  /** Returns the current adaptive concurrency limit. */
+  public synchronized int getConcurrencyLimit() {
+    return (int) concurrencyLimit;
+  }
+
+  /** Returns the number of requests sent and not yet responded. */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /** Returns the number of requests waiting for a permit. */
+  public synchronized int getQueued() {
+    return waiting.size();
+  }
+
+  /** Stops the scheduler, requests waiting for a permit or a retry are never sent. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  private CompletableFuture<ApiHttpResponse<byte[]>> send(
+      ApiHttpRequest request,
+      Function<ApiHttpRequest, CompletableFuture<ApiHttpResponse<byte[]>>> next,
+      int attempt) {
+    CompletableFuture<Void> acquired = acquire();
+    CompletableFuture<ApiHttpResponse<byte[]>> sent =
+        acquired.thenCompose(
+            permit -> {
+              long start = System.nanoTime();
+              CompletableFuture<ApiHttpResponse<byte[]>> response;
+              try {
+                response = next.apply(request);
+              } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+              }
+              return response
+                  .handle(
+                      (result, e) -> {
+                        Throwable error = unwrap(e);
+                        int status = statusCode(result, error);
+                        boolean throttled =
+                            status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE;
+                        release(throttled, System.nanoTime() - start);
+                        if (throttled && attempt < maxRetries) {
+                          return delay(backoffNanos(attempt, headers(result, error)))
+                              .thenCompose(__ -> send(request, next, attempt + 1));
+                        }
+                        return error == null
+                            ? CompletableFuture.completedFuture(result)
+                            : CompletableFuture.<ApiHttpResponse<byte[]>>failedFuture(error);
+                      })
+                  .thenCompose(Function.identity());
+            });
+    // a request cancelled while waiting gives up its place in the queue
+    sent.whenComplete(
+        (result, e) -> {
+          if (acquired.cancel(false)) {
+            synchronized (this) {
+              waiting.remove(acquired);
+            }
+          }
+        });
+    return sent;
+  }
+
+  private CompletableFuture<Void> acquire() {
+    CompletableFuture<Void> permit = new CompletableFuture<>();
+    synchronized (this) {
+      waiting.add(permit);
+    }
+    drain();
+    return permit;
+  }
+
+  /**
+   * Adapts the concurrency limit to the response and hands the permit over to the waiting
+   * requests.
+   */
+  private void release(boolean throttled, long latencyNanos) {
+    synchronized (this) {
+      inFlight--;
+      long now = System.nanoTime();
+      if (throttled || latencyNanos > latencyThresholdNanos) {
+        // requests sent before the decrease are answered within a round trip, their responses
+        // must not decrease the limit again
+        if (now - decreasedAt > latencyNanos) {
+          concurrencyLimit = Math.max(minConcurrency, concurrencyLimit * decreaseFactor);
+          decreasedAt = now;
+        }
+      } else {
+        concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+      }
+    }
+    drain();
+  }
+
+  /**
+   * Grants permits to waiting requests while both limits allow. If the bucket is empty, the next
+   * drain is scheduled for the moment the next token is available. Permits are completed outside
+   * of the lock, as completing them sends the requests; a permit of a request cancelled meanwhile
+   * is given back.
+   */
+  private void drain() {
+    List<CompletableFuture<Void>> granted = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+      refilledAt = now;
+      while (!waiting.isEmpty() && inFlight < (int) concurrencyLimit) {
+        if (waiting.peek().isDone()) {
+          // cancelled while waiting, not yet removed
+          waiting.poll();
+          continue;
+        }
+        if (tokens < 1) {
+          if (!drainScheduled) {
+            drainScheduled = true;
+            long nanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            scheduler.schedule(
+                () -> {
+                  synchronized (this) {
+                    drainScheduled = false;
+                  }
+                  drain();
+                },
+                nanos,
+                TimeUnit.NANOSECONDS);
+          }
+          break;
+        }
+        tokens--;
+        inFlight++;
+        granted.add(waiting.poll());
+      }
+    }
+    boolean givenBack = false;
+    for (CompletableFuture<Void> permit : granted) {
+      if (!permit.complete(null)) {
+        synchronized (this) {
+          inFlight--;
+          tokens = Math.min(burst, tokens + 1);
+        }
+        givenBack = true;
+      }
+    }
+    if (givenBack) {
+      drain();
+    }
+  }
+
+  private CompletableFuture<Void> delay(long nanos) {
+    CompletableFuture<Void> delayed = new CompletableFuture<>();
+    scheduler.schedule(() -> delayed.complete(null), nanos, TimeUnit.NANOSECONDS);
+    return delayed;
+  }
+
+  /**
+   * Returns the {@code Retry-After} delay if present, otherwise a random delay between zero and
+   * the exponential backoff for the attempt ("full jitter").
+   */
+  private long backoffNanos(int attempt, ApiHttpHeaders headers) {
+    String retryAfter = headers == null ? null : headers.getFirst("Retry-After");
+    if (retryAfter != null) {
+      try {
+        return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim()))
+            + ThreadLocalRandom.current().nextLong(baseBackoffNanos + 1);
+      } catch (NumberFormatException e) {
+        // an HTTP date, fall back to the exponential backoff
+      }
+    }
+    // saturates at the maximum instead of overflowing for long backoffs and many attempts
+    long factor = 1L << Math.min(attempt, 62);
+    long cap =
+        baseBackoffNanos > maxBackoffNanos / factor
+            ? maxBackoffNanos
+            : Math.min(maxBackoffNanos, baseBackoffNanos * factor);
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  private static int statusCode(ApiHttpResponse<byte[]> response, Throwable error) {
+    if (error instanceof ApiHttpException) {
+      return ((ApiHttpException) error).getStatusCode();
+    }
+    return response == null ? 0 : response.getStatusCode();
+  }
+
+  private static ApiHttpHeaders headers(ApiHttpResponse<byte[]> response, Throwable error) {
+    if (error instanceof ApiHttpException) {
+      return ((ApiHttpException) error).getHeaders();
+    }
+    return response == null ? null : response.getHeaders();
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
+}
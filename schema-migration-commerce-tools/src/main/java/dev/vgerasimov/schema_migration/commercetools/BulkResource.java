@@ -0,0 +1,154 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ByProjectKeyCustomersGet;
+import com.commercetools.api.client.ByProjectKeyOrdersGet;
+import com.commercetools.api.client.ByProjectKeyProductsGet;
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.customer.Customer;
+import com.commercetools.api.models.customer.CustomerPagedQueryResponse;
+import com.commercetools.api.models.customer.CustomerUpdate;
+import com.commercetools.api.models.customer.CustomerUpdateAction;
+import com.commercetools.api.models.order.Order;
+import com.commercetools.api.models.order.OrderPagedQueryResponse;
+import com.commercetools.api.models.order.OrderUpdate;
+import com.commercetools.api.models.order.OrderUpdateAction;
+import com.commercetools.api.models.product.Product;
+import com.commercetools.api.models.product.ProductPagedQueryResponse;
+import com.commercetools.api.models.product.ProductUpdate;
+import com.commercetools.api.models.product.ProductUpdateAction;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Access to a CommerceTools resource type for {@link BulkUpdateChangeSet}. All methods are
+ * non-blocking and return the SDK's {@code execute()} futures.
+ *
+ * @param <R> the type of the resource, e.g. {@link Product}
+ * @param <A> the type of the update actions of the resource, e.g. {@link ProductUpdateAction}
+ */
+public interface BulkResource<R, A> {
+
+  /**
+   * Requests up to {@code limit} resources matching the given predicate ({@code null} means all
+   * resources), sorted by id ascending.
+   */
+  CompletableFuture<List<R>> fetchPage(ProjectApiRoot apiRoot, String where, int limit);
+
+  /** Requests the current state of the resource, used to retry after a version conflict. */
+  CompletableFuture<R> fetch(ProjectApiRoot apiRoot, String id);
+
+  /** Updates the given version of the resource with the given actions. */
+  CompletableFuture<R> update(ProjectApiRoot apiRoot, R resource, List<A> actions);
+
+  String getId(R resource);
+
+  static BulkResource<Product, ProductUpdateAction> products() {
+    return new BulkResource<>() {
+      @Override
+      public CompletableFuture<List<Product>> fetchPage(
+          ProjectApiRoot apiRoot, String where, int limit) {
+        ByProjectKeyProductsGet request =
+            apiRoot.products().get().withSort("id asc").withLimit(limit).withWithTotal(false);
+        return (where == null ? request : request.withWhere(where))
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(ProductPagedQueryResponse::getResults);
+      }
+
+      @Override
+      public CompletableFuture<Product> fetch(ProjectApiRoot apiRoot, String id) {
+        return apiRoot.products().withId(id).get().execute().thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public CompletableFuture<Product> update(
+          ProjectApiRoot apiRoot, Product product, List<ProductUpdateAction> actions) {
+        return apiRoot
+            .products()
+            .withId(product.getId())
+            .post(ProductUpdate.builder().version(product.getVersion()).actions(actions).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public String getId(Product product) {
+        return product.getId();
+      }
+    };
+  }
+
+  static BulkResource<Customer, CustomerUpdateAction> customers() {
+    return new BulkResource<>() {
+      @Override
+      public CompletableFuture<List<Customer>> fetchPage(
+          ProjectApiRoot apiRoot, String where, int limit) {
+        ByProjectKeyCustomersGet request =
+            apiRoot.customers().get().withSort("id asc").withLimit(limit).withWithTotal(false);
+        return (where == null ? request : request.withWhere(where))
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(CustomerPagedQueryResponse::getResults);
+      }
+
+      @Override
+      public CompletableFuture<Customer> fetch(ProjectApiRoot apiRoot, String id) {
+        return apiRoot.customers().withId(id).get().execute().thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public CompletableFuture<Customer> update(
+          ProjectApiRoot apiRoot, Customer customer, List<CustomerUpdateAction> actions) {
+        return apiRoot
+            .customers()
+            .withId(customer.getId())
+            .post(
+                CustomerUpdate.builder().version(customer.getVersion()).actions(actions).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public String getId(Customer customer) {
+        return customer.getId();
+      }
+    };
+  }
+
+  static BulkResource<Order, OrderUpdateAction> orders() {
+    return new BulkResource<>() {
+      @Override
+      public CompletableFuture<List<Order>> fetchPage(
+          ProjectApiRoot apiRoot, String where, int limit) {
+        ByProjectKeyOrdersGet request =
+            apiRoot.orders().get().withSort("id asc").withLimit(limit).withWithTotal(false);
+        return (where == null ? request : request.withWhere(where))
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(OrderPagedQueryResponse::getResults);
+      }
+
+      @Override
+      public CompletableFuture<Order> fetch(ProjectApiRoot apiRoot, String id) {
+        return apiRoot.orders().withId(id).get().execute().thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public CompletableFuture<Order> update(
+          ProjectApiRoot apiRoot, Order order, List<OrderUpdateAction> actions) {
+        return apiRoot
+            .orders()
+            .withId(order.getId())
+            .post(OrderUpdate.builder().version(order.getVersion()).actions(actions).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+
+      @Override
+      public String getId(Order order) {
+        return order.getId();
+      }
+    };
+  }
+}
@@ -0,0 +1,296 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.Checkpoint;
+import io.vrap.rmf.base.client.ApiHttpException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Change set which updates every resource of a type, e.g. backfills a custom field on all
+ * products. Resources are loaded page by page with id-cursor pagination ({@code id > lastSeenId}),
+ * the next page is requested as soon as the current one arrives. For every resource the update
+ * actions are built by the given function, resources without actions are left untouched, so the
+ * function should return no actions for already migrated resources and the change set can be
+ * safely re-applied.
+ *
+ * <p>Updates are sent with at most {@code concurrency} requests in flight. An update rejected with
+ * a version conflict (HTTP 409) is retried with the current version of the resource, and the
+ * actions are built again from it. The change set fails if any resource could not be updated; the
+ * numbers of processed, updated and failed resources are reported in {@link Result}.
+ *
+ * <p>Once all resources of a page are updated, the id of its last resource is saved as the {@link
+ * Checkpoint}, so a change set which failed or was interrupted continues after the last completed
+ * page and only reports the resources of the resumed run. After the first failed resource the
+ * checkpoint is not advanced anymore, so the failed resource is processed again. Once the
+ * checkpoint is {@link Checkpoint#isCancelled() cancelled}, e.g. because the timeout of the change
+ * set passed, no further request is sent and the change set fails when the requests in flight
+ * complete.
+ *
+ * <p>The change set never blocks while requests are in flight, so it is best applied with {@link
+ * dev.vgerasimov.schema_migration.Schema#applyAsync}.
+ *
+ * @param <R> the type of the resource
+ * @param <A> the type of the update actions of the resource
+ */
+public final class BulkUpdateChangeSet<R, A> extends CommerceToolChangeSet {
+  public static final int DEFAULT_PAGE_SIZE = 500;
+  public static final int DEFAULT_CONCURRENCY = 16;
+  public static final int DEFAULT_MAX_RETRIES = 5;
+
+  private static final int CONFLICT = 409;
+
+  private final transient BulkResource<R, A> resource;
+  private final transient String where;
+  private final transient Function<R, List<A>> actions;
+  private final int pageSize;
+  private final int concurrency;
+  private final int maxRetries;
+
+  /**
+   * @param resource the resource type, e.g. {@link BulkResource#products()}
+   * @param where optional predicate limiting the updated resources
+   * @param actions builds update actions for the given resource, an empty list means no update
+   */
+  @Builder
+  private BulkUpdateChangeSet(
+      String id,
+      String checksum,
+      BulkResource<R, A> resource,
+      String where,
+      Function<R, List<A>> actions,
+      Integer pageSize,
+      Integer concurrency,
+      Integer maxRetries) {
+    super(id, checksum);
+    if (resource == null || actions == null) {
+      throw new IllegalArgumentException("Resource and actions must not be null");
+    }
+    this.resource = resource;
+    this.where = where;
+    this.actions = actions;
+    this.pageSize = pageSize == null ? DEFAULT_PAGE_SIZE : pageSize;
+    this.concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+    this.maxRetries = maxRetries == null ? DEFAULT_MAX_RETRIES : maxRetries;
+    if (this.pageSize <= 0 || this.pageSize > DEFAULT_PAGE_SIZE) {
+      throw new IllegalArgumentException(
+          "Page size must be between 1 and " + DEFAULT_PAGE_SIZE + ", got " + this.pageSize);
+    }
+    if (this.concurrency <= 0 || this.maxRetries < 0) {
+      throw new IllegalArgumentException(
+          "Concurrency must be positive and max retries must not be negative");
+    }
+  }
+
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context) {
+    return apply(context, Checkpoint.NONE);
+  }
+
+  @Override
+  public CompletionStage<ChangeSet.Result> applyAsync(CommerceToolsContext context) {
+    return applyAsync(context, Checkpoint.NONE);
+  }
+
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context, Checkpoint checkpoint) {
+    try {
+      return applyAsync(context, checkpoint).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletionStage<ChangeSet.Result> applyAsync(
+      CommerceToolsContext context, Checkpoint checkpoint) {
+    Counters counters = new Counters();
+    CompletableFuture<List<R>> firstPage =
+        resource.fetchPage(
+            context.getApiRoot(), pageWhere(checkpoint.get().orElse(null)), pageSize);
+    return processPage(context, checkpoint, firstPage, counters)
+        .thenApply(
+            __ -> {
+              long failed = counters.failed.sum();
+              return new Result(
+                  getId(),
+                  failed == 0 ? Status.APPLIED : Status.FAILED,
+                  LocalDateTime.now(context.getClock()),
+                  counters.processed.sum(),
+                  counters.updated.sum(),
+                  failed);
+            });
+  }
+
+  @Override
+  public Status mutate(CommerceToolsContext context) {
+    return apply(context).getStatus();
+  }
+
+  @Override
+  public CompletionStage<Status> mutateAsync(CommerceToolsContext context) {
+    return applyAsync(context).thenApply(ChangeSet.Result::getStatus);
+  }
+
+  /**
+   * Updates the resources of the page, requesting the next page right away. The next page is
+   * processed once all updates of this page are completed and the checkpoint is saved.
+   */
+  private CompletableFuture<Void> processPage(
+      CommerceToolsContext context,
+      Checkpoint checkpoint,
+      CompletableFuture<List<R>> page,
+      Counters counters) {
+    return page.thenCompose(
+        resources -> {
+          if (resources.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+          String lastId = resource.getId(resources.get(resources.size() - 1));
+          CompletableFuture<List<R>> next =
+              resources.size() < pageSize || checkpoint.isCancelled()
+                  ? null
+                  : resource.fetchPage(context.getApiRoot(), pageWhere(lastId), pageSize);
+          Queue<R> queue = new ConcurrentLinkedQueue<>(resources);
+          CompletableFuture<?>[] workers =
+              new CompletableFuture<?>[Math.min(concurrency, resources.size())];
+          for (int i = 0; i < workers.length; i++) {
+            workers[i] = work(context, checkpoint, queue, counters);
+          }
+          return CompletableFuture.allOf(workers)
+              .thenCompose(
+                  __ -> {
+                    if (checkpoint.isCancelled()) {
+                      return CompletableFuture.<Void>failedFuture(
+                          new CancellationException("Change set " + getId() + " is cancelled"));
+                    }
+                    return counters.failed.sum() == 0
+                        ? checkpoint.saveAsync(lastId)
+                        : CompletableFuture.<Void>completedFuture(null);
+                  })
+              .thenCompose(
+                  __ ->
+                      next == null
+                          ? CompletableFuture.completedFuture(null)
+                          : processPage(context, checkpoint, next, counters));
+        });
+  }
+
+  /** Returns the predicate of the page following the given resource id, {@code null} first. */
+  private String pageWhere(String lastSeenId) {
+    if (lastSeenId == null) {
+      return where;
+    }
+    String cursor = "id > " + Predicates.quote(lastSeenId);
+    return where == null ? cursor : "(" + where + ") and " + cursor;
+  }
+
+  /** Takes resources from the queue one by one until it is empty or the checkpoint cancelled. */
+  private CompletableFuture<Void> work(
+      CommerceToolsContext context, Checkpoint checkpoint, Queue<R> queue, Counters counters) {
+    R next;
+    while (!checkpoint.isCancelled() && (next = queue.poll()) != null) {
+      counters.processed.increment();
+      List<A> nextActions;
+      try {
+        nextActions = actions.apply(next);
+      } catch (RuntimeException e) {
+        counters.failed.increment();
+        continue;
+      }
+      if (!nextActions.isEmpty()) {
+        return update(context, checkpoint, next, nextActions, 0, counters)
+            .thenCompose(__ -> work(context, checkpoint, queue, counters));
+      }
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private CompletableFuture<Void> update(
+      CommerceToolsContext context,
+      Checkpoint checkpoint,
+      R current,
+      List<A> currentActions,
+      int retry,
+      Counters counters) {
+    return resource
+        .update(context.getApiRoot(), current, currentActions)
+        .handle(
+            (updated, e) -> {
+              if (e == null) {
+                counters.updated.increment();
+                return CompletableFuture.<Void>completedFuture(null);
+              }
+              if (isConflict(e) && retry < maxRetries && !checkpoint.isCancelled()) {
+                return resource
+                    .fetch(context.getApiRoot(), resource.getId(current))
+                    .thenCompose(
+                        fresh -> {
+                          List<A> freshActions = actions.apply(fresh);
+                          return freshActions.isEmpty()
+                              ? CompletableFuture.<Void>completedFuture(null)
+                              : update(
+                                  context, checkpoint, fresh, freshActions, retry + 1, counters);
+                        })
+                    .exceptionally(
+                        fetchFailed -> {
+                          counters.failed.increment();
+                          return null;
+                        });
+              }
+              counters.failed.increment();
+              return CompletableFuture.<Void>completedFuture(null);
+            })
+        .thenCompose(Function.identity());
+  }
+
+  private static boolean isConflict(Throwable e) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    return cause instanceof ApiHttpException
+        && ((ApiHttpException) cause).getStatusCode() == CONFLICT;
+  }
+
+  private static final class Counters {
+    final LongAdder processed = new LongAdder();
+    final LongAdder updated = new LongAdder();
+    final LongAdder failed = new LongAdder();
+  }
+
+  /** The result of the bulk update with numbers of processed, updated and failed resources. */
+  @Getter
+  @ToString(callSuper = true)
+  @EqualsAndHashCode(callSuper = true)
+  public static class Result extends ChangeSet.Result {
+    private final long processed;
+    private final long updated;
+    private final long failed;
+
+    public Result(
+        String id,
+        Status status,
+        LocalDateTime executedAt,
+        long processed,
+        long updated,
+        long failed) {
+      super(id, status, executedAt);
+      this.processed = processed;
+      this.updated = updated;
+      this.failed = failed;
+    }
+  }
+}
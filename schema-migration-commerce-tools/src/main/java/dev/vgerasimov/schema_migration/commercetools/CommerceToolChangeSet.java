@@ -4,6 +4,8 @@ import dev.vgerasimov.schema_migration.ChangeSet;
 
 import java.io.*;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 
 public abstract class CommerceToolChangeSet extends ChangeSet<CommerceToolsContext>
@@ -11,7 +13,7 @@ public abstract class CommerceToolChangeSet extends ChangeSet<CommerceToolsConte
 
   private final transient String checksum;
 
-  private CommerceToolChangeSet(String id, String checksum) {
+  protected CommerceToolChangeSet(String id, String checksum) {
     super(id, checksum, checksum == null);
     this.checksum = checksum;
   }
@@ -26,6 +28,54 @@ public abstract class CommerceToolChangeSet extends ChangeSet<CommerceToolsConte
     };
   }
 
+  /**
+   * Creates a change set which belongs to the given lane, e.g. the key of the custom type it
+   * modifies. See {@link ChangeSet#getLane()}.
+   */
+  public static CommerceToolChangeSet of(
+      String id, String checksum, String lane, Function<CommerceToolsContext, Status> mutate) {
+    return new CommerceToolChangeSet(id, checksum) {
+      @Override
+      public Status mutate(CommerceToolsContext context) {
+        return mutate.apply(context);
+      }
+
+      @Override
+      public String getLane() {
+        return lane;
+      }
+    };
+  }
+
+  /**
+   * Creates a change set whose mutation is asynchronous, e.g. built on the SDK's {@code execute()}
+   * futures. {@link dev.vgerasimov.schema_migration.Schema#applyAsync} does not block any thread
+   * while the returned stage is not completed.
+   */
+  public static CommerceToolChangeSet ofAsync(
+      String id,
+      String checksum,
+      Function<CommerceToolsContext, CompletionStage<Status>> mutateAsync) {
+    return new CommerceToolChangeSet(id, checksum) {
+      @Override
+      public CompletionStage<Status> mutateAsync(CommerceToolsContext context) {
+        return mutateAsync.apply(context);
+      }
+
+      @Override
+      public Status mutate(CommerceToolsContext context) {
+        try {
+          return mutateAsync.apply(context).toCompletableFuture().join();
+        } catch (CompletionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw e;
+        }
+      }
+    };
+  }
+
   @Override
   public String getChecksum() {
     return checksum;
@@ -2,17 +2,37 @@ package dev.vgerasimov.schema_migration.commercetools;
 
 import com.commercetools.api.client.ProjectApiRoot;
 import dev.vgerasimov.schema_migration.Context;
-import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 
 import java.time.Clock;
 
-@RequiredArgsConstructor(access = AccessLevel.PUBLIC)
 public class CommerceToolsContext implements Context {
   private final Clock clock;
   @Getter private final ProjectApiRoot apiRoot;
 
+  /** The Import API client, {@code null} unless {@link ImportChangeSet}s are applied. */
+  @Getter private final com.commercetools.importapi.client.ProjectApiRoot importApiRoot;
+
+  /**
+   * Cache of the definitions read and written by the change sets, which lives as long as the
+   * context, so a context should be created for every run.
+   */
+  @Getter private final DefinitionCache definitions;
+
+  public CommerceToolsContext(Clock clock, ProjectApiRoot apiRoot) {
+    this(clock, apiRoot, null);
+  }
+
+  public CommerceToolsContext(
+      Clock clock,
+      ProjectApiRoot apiRoot,
+      com.commercetools.importapi.client.ProjectApiRoot importApiRoot) {
+    this.clock = clock;
+    this.apiRoot = apiRoot;
+    this.importApiRoot = importApiRoot;
+    this.definitions = new DefinitionCache(apiRoot);
+  }
+
   @Override
   public Clock getClock() {
     return clock;
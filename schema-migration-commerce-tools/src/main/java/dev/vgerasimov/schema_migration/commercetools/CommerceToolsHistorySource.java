@@ -1,88 +1,434 @@
 package dev.vgerasimov.schema_migration.commercetools;
 
 import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.custom_object.CustomObject;
 import com.commercetools.api.models.custom_object.CustomObjectPagedQueryResponse;
 import com.commercetools.api.models.graph_ql.GraphQLRequest;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import dev.vgerasimov.schema_migration.AsyncHistorySource;
 import dev.vgerasimov.schema_migration.HistoryRecord;
 import dev.vgerasimov.schema_migration.HistorySource;
-import lombok.AccessLevel;
+import io.vrap.rmf.base.client.ApiHttpResponse;
 import lombok.RequiredArgsConstructor;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-@RequiredArgsConstructor(access = AccessLevel.PUBLIC)
-public class CommerceToolsHistorySource implements HistorySource {
+/**
+ * {@link HistorySource} that stores history records as CommerceTools custom objects in the given
+ * container. The key of each custom object is the id of the history record.
+ *
+ * <p>Records are written with {@code createOrUpdateCustomObject} GraphQL mutations; several
+ * records passed to {@link #saveRecords(List)} are written in a single request, so wrapping this
+ * source into {@link dev.vgerasimov.schema_migration.BufferedHistorySource} turns a long series of
+ * saves into a handful of requests.
+ *
+ * <p>The history is loaded with key-ordered cursor pagination ({@code key > lastSeenKey}) instead
+ * of offset pagination, and the next page is requested as soon as the previous one arrives, so the
+ * consumer can verify records while the rest of the history is still being fetched.
+ *
+ * <p>The source also implements {@link AsyncHistorySource} on top of the SDK's {@code execute()}
+ * futures, so {@link dev.vgerasimov.schema_migration.Schema#applyAsync} does not block any thread
+ * while requests are in flight.
+ *
+ * <p>Records replaced by a baseline are moved to the container with the {@value #ARCHIVE_SUFFIX}
+ * suffix.
+ */
+public class CommerceToolsHistorySource implements HistorySource, AsyncHistorySource {
+
+  /** Maximum page size supported by the CommerceTools API. */
+  public static final int DEFAULT_PAGE_SIZE = 500;
+
+  /** Maximum number of aliased mutations sent in a single GraphQL request. */
+  public static final int MAX_MUTATIONS_PER_REQUEST = 100;
+
+  /** Suffix of the container which records replaced by a baseline are moved to. */
+  public static final String ARCHIVE_SUFFIX = "-archive";
+
+  private static final String HISTORY_PAGE_QUERY =
+      ""
+          + "query q($container: String!, $limit: Int, $where: String, $sort: [String!]) { "
+          + "    customObjects(container: $container, limit: $limit, where: $where, "
+          + "                  sort: $sort) { "
+          + "        results { "
+          + "            key "
+          + "            value "
+          + "        } "
+          + "    } "
+          + "} ";
+
+  private static final String REVISION_QUERY =
+      ""
+          + "query r($container: String!) { "
+          + "    customObjects(container: $container, limit: 1, "
+          + "                  sort: [\"lastModifiedAt desc\"]) { "
+          + "        total "
+          + "        results { "
+          + "            key "
+          + "            version "
+          + "            lastModifiedAt "
+          + "        } "
+          + "    } "
+          + "} ";
 
   private final ProjectApiRoot apiRoot;
   private final ObjectMapper objectMapper;
   private final String container;
+  private final int pageSize;
+
+  public CommerceToolsHistorySource(
+      ProjectApiRoot apiRoot, ObjectMapper objectMapper, String container) {
+    this(apiRoot, objectMapper, container, DEFAULT_PAGE_SIZE);
+  }
+
+  public CommerceToolsHistorySource(
+      ProjectApiRoot apiRoot, ObjectMapper objectMapper, String container, int pageSize) {
+    if (pageSize <= 0 || pageSize > DEFAULT_PAGE_SIZE) {
+      throw new IllegalArgumentException(
+          "Page size must be between 1 and " + DEFAULT_PAGE_SIZE + ", got " + pageSize);
+    }
+    this.apiRoot = apiRoot;
+    this.objectMapper = objectMapper;
+    this.container = container;
+    this.pageSize = pageSize;
+  }
 
   @Override
   public List<HistoryRecord> getHistory() {
+    try (Stream<HistoryRecord> history = streamHistory()) {
+      return history.collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public Stream<HistoryRecord> streamHistory() {
+    HistoryPageIterator iterator = new HistoryPageIterator();
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+            false)
+        .onClose(iterator::cancel);
+  }
+
+  /** Loads only the record with the greatest key. */
+  @Override
+  public Optional<HistoryRecord> getHead() {
+    return join(getHeadAsync());
+  }
+
+  /** Loads the history page by page, each page is requested when the previous one arrives. */
+  @Override
+  public CompletableFuture<List<HistoryRecord>> getHistoryAsync() {
+    return collectPages(fetchPage(null), new ArrayList<>());
+  }
+
+  private CompletableFuture<List<HistoryRecord>> collectPages(
+      CompletableFuture<Page> page, List<HistoryRecord> collected) {
+    return page.thenCompose(
+        current -> {
+          collected.addAll(current.records);
+          return current.nextKey == null
+              ? CompletableFuture.completedFuture(collected)
+              : collectPages(fetchPage(current.nextKey), collected);
+        });
+  }
+
+  /** Loads only the record with the greatest key. */
+  @Override
+  public CompletableFuture<Optional<HistoryRecord>> getHeadAsync() {
+    return fetchPage(null, "key desc", 1).thenApply(page -> page.records.stream().findFirst());
+  }
+
+  /**
+   * Returns the number of records together with the key, version and modification time of the
+   * most recently modified one. Any write into the container changes at least one of them.
+   */
+  @Override
+  public Optional<String> getRevision() {
+    GraphQLRequest request =
+        GraphQLRequest.builder()
+            .query(REVISION_QUERY)
+            .variables(builder -> builder.addValue("container", container))
+            .build();
+    CustomObjectPagedQueryResponse data =
+        join(queryAsync(request, CustomObjectPagedQueryResponse.class)).getData();
+    String lastModified =
+        data.getResults().stream()
+            .findFirst()
+            .map(co -> co.getKey() + ":" + co.getVersion() + ":" + co.getLastModifiedAt())
+            .orElse("");
+    return Optional.of(data.getTotal() + ":" + lastModified);
+  }
+
+  @Override
+  public void saveRecord(HistoryRecord historyRecord) {
+    saveRecords(List.of(historyRecord));
+  }
+
+  /**
+   * Saves the given records with as few requests as possible: each request is a single GraphQL
+   * mutation containing up to {@link #MAX_MUTATIONS_PER_REQUEST} aliased {@code
+   * createOrUpdateCustomObject} fields.
+   */
+  @Override
+  public void saveRecords(List<HistoryRecord> historyRecords) {
+    join(saveRecordsAsync(historyRecords));
+  }
+
+  @Override
+  public CompletableFuture<Void> saveRecordAsync(HistoryRecord historyRecord) {
+    return saveRecordsAsync(List.of(historyRecord));
+  }
+
+  /**
+   * Non-blocking variant of {@link #saveRecords(List)}. Requests for different batches are sent
+   * concurrently, as every record is a separate custom object.
+   */
+  @Override
+  public CompletableFuture<Void> saveRecordsAsync(List<HistoryRecord> historyRecords) {
+    return mutateAsync(historyRecords, batch -> saveRequest(container, batch), "save");
+  }
+
+  /**
+   * Copies the replaced records into the archive container, then saves the baseline and deletes
+   * the replaced records. If interrupted, the baseline is left among the replaced records, which
+   * {@link dev.vgerasimov.schema_migration.Schema} verifies all the same, and saving the baseline
+   * again completes the replacement.
+   */
+  @Override
+  public void saveBaseline(HistoryRecord baseline) {
+    List<HistoryRecord> replaced;
+    try (Stream<HistoryRecord> history = streamHistory()) {
+      replaced =
+          history
+              .takeWhile(record -> record.getId().compareTo(baseline.getId()) <= 0)
+              .collect(Collectors.toList());
+    }
+    join(mutateAsync(replaced, batch -> saveRequest(container + ARCHIVE_SUFFIX, batch), "archive"));
+    saveRecord(baseline);
+    List<HistoryRecord> obsolete =
+        replaced.stream()
+            .filter(record -> !record.getId().equals(baseline.getId()))
+            .collect(Collectors.toList());
+    join(mutateAsync(obsolete, this::deleteRequest, "delete"));
+  }
+
+  /**
+   * Sends the mutations built for the given records, up to {@link #MAX_MUTATIONS_PER_REQUEST}
+   * records per request. Requests for different batches are sent concurrently.
+   */
+  private CompletableFuture<Void> mutateAsync(
+      List<HistoryRecord> historyRecords,
+      Function<List<HistoryRecord>, GraphQLRequest> mutation,
+      String action) {
+    List<CompletableFuture<?>> requests = new ArrayList<>();
+    for (int from = 0; from < historyRecords.size(); from += MAX_MUTATIONS_PER_REQUEST) {
+      List<HistoryRecord> batch =
+          historyRecords.subList(
+              from, Math.min(from + MAX_MUTATIONS_PER_REQUEST, historyRecords.size()));
+      requests.add(
+          queryAsync(mutation.apply(batch), Object.class)
+              .thenAccept(
+                  response -> {
+                    if (response.getErrors() != null && !response.getErrors().isEmpty()) {
+                      throw new IllegalStateException(
+                          "Failed to " + action + " history records of container " + container
+                              + ": " + response.getErrors());
+                    }
+                  }));
+    }
+    return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new));
+  }
+
+  private GraphQLRequest deleteRequest(List<HistoryRecord> historyRecords) {
+    StringBuilder parameters = new StringBuilder("$container: String!");
+    StringBuilder fields = new StringBuilder();
+    for (int i = 0; i < historyRecords.size(); i++) {
+      parameters.append(", $k").append(i).append(": String!");
+      fields
+          .append("    r").append(i)
+          .append(": deleteCustomObject(container: $container, key: $k").append(i)
+          .append(") { key } ");
+    }
+    return GraphQLRequest.builder()
+        .query("mutation d(" + parameters + ") { " + fields + "} ")
+        .variables(
+            builder -> {
+              builder.addValue("container", container);
+              for (int i = 0; i < historyRecords.size(); i++) {
+                builder.addValue("k" + i, historyRecords.get(i).getId());
+              }
+              return builder;
+            })
+        .build();
+  }
+
+  private GraphQLRequest saveRequest(String container, List<HistoryRecord> historyRecords) {
+    StringBuilder parameters = new StringBuilder();
+    StringBuilder fields = new StringBuilder();
+    for (int i = 0; i < historyRecords.size(); i++) {
+      parameters.append(i == 0 ? "" : ", ").append("$d").append(i).append(": CustomObjectDraft!");
+      fields
+          .append("    r").append(i)
+          .append(": createOrUpdateCustomObject(draft: $d").append(i)
+          .append(") { key } ");
+    }
+    return GraphQLRequest.builder()
+        .query("mutation m(" + parameters + ") { " + fields + "} ")
+        .variables(
+            builder -> {
+              for (int i = 0; i < historyRecords.size(); i++) {
+                builder.addValue("d" + i, draft(container, historyRecords.get(i)));
+              }
+              return builder;
+            })
+        .build();
+  }
+
+  private Map<String, Object> draft(String container, HistoryRecord historyRecord) {
+    try {
+      return Map.of(
+          "container", container,
+          "key", historyRecord.getId(),
+          "value", objectMapper.writeValueAsString(historyRecord));
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Requests the page of history records whose keys are greater than the given one. {@code null}
+   * key means the first page.
+   */
+  private CompletableFuture<Page> fetchPage(String afterKey) {
+    return fetchPage(afterKey, "key asc", pageSize);
+  }
+
+  private CompletableFuture<Page> fetchPage(String afterKey, String sort, int limit) {
+    String where = afterKey == null ? null : "key > " + Predicates.quote(afterKey);
     GraphQLRequest request =
         GraphQLRequest.builder()
-            .query(
-                ""
-                    + "query q($container: String!, $limit: Int, $offset: Int) { "
-                    + "    customObjects(container: $container, limit: $limit, offset: $offset) { "
-                    + "        total "
-                    + "        results { "
-                    + "            container "
-                    + "            key "
-                    + "            id "
-                    + "            value "
-                    + "        } "
-                    + "    } "
-                    + "} ")
+            .query(HISTORY_PAGE_QUERY)
             .variables(
                 builder ->
                     builder
                         .addValue("container", container)
-                        .addValue("limit", 100)
-                        .addValue("offset", 0))
+                        .addValue("limit", limit)
+                        .addValue("where", where)
+                        .addValue("sort", List.of(sort)))
             .build();
-    CommonGraphResponse<CustomObjectPagedQueryResponse> response =
-        foo(request, CustomObjectPagedQueryResponse.class);
-    CustomObjectPagedQueryResponse data = response.getData();
-    return data.getResults().stream()
-        .map(
-            co -> {
-              try {
-                return objectMapper.readValue(co.getValue().toString(), HistoryRecord.class);
-              } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-              }
-            })
-        .collect(Collectors.toList());
+    return queryAsync(request, CustomObjectPagedQueryResponse.class)
+        .thenApply(response -> toPage(response.getData(), limit));
   }
 
-  @Override
-  public void saveRecord(HistoryRecord historyRecord) {}
+  private Page toPage(CustomObjectPagedQueryResponse data, int limit) {
+    List<CustomObject> results = data.getResults();
+    List<HistoryRecord> records =
+        results.stream()
+            // the value is bound by the SDK as a map, its toString() is not JSON
+            .map(co -> objectMapper.convertValue(co.getValue(), HistoryRecord.class))
+            .collect(Collectors.toList());
+    String lastKey = results.isEmpty() ? null : results.get(results.size() - 1).getKey();
+    return new Page(records, results.size() < limit ? null : lastKey);
+  }
 
-  private <T> CommonGraphResponse<T> foo(GraphQLRequest req, Class<T> responseClass) {
+  private <T> CompletableFuture<CommonGraphResponse<T>> queryAsync(
+      GraphQLRequest req, Class<T> responseClass) {
     return apiRoot
         .graphql()
         .post(req)
-        .executeBlocking(
-            new TypeReference<CommonGraphResponse<T>>() {
-              @Override
-              public Type getType() {
-                return TypeFactory.defaultInstance()
-                    .constructParametricType(
-                        CommonGraphResponse.class,
-                        TypeFactory.defaultInstance()
-                            .constructFromCanonical(responseClass.getCanonicalName()));
-              }
-            })
-        .getBody();
+        .execute(responseType(responseClass))
+        .thenApply(ApiHttpResponse::getBody);
+  }
+
+  private static <T> TypeReference<CommonGraphResponse<T>> responseType(Class<T> responseClass) {
+    return new TypeReference<CommonGraphResponse<T>>() {
+      @Override
+      public Type getType() {
+        return TypeFactory.defaultInstance()
+            .constructParametricType(
+                CommonGraphResponse.class,
+                TypeFactory.defaultInstance()
+                    .constructFromCanonical(responseClass.getCanonicalName()));
+      }
+    };
+  }
+
+  /** Unwraps the exception thrown by the SDK from {@link CompletionException}. */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * A single page of history records. {@code nextKey} is the cursor for the next page, or {@code
+   * null} if this page is the last one.
+   */
+  @RequiredArgsConstructor
+  private static final class Page {
+    private final List<HistoryRecord> records;
+    private final String nextKey;
+  }
+
+  /**
+   * Iterates over the history page by page. The request for the next page is sent as soon as the
+   * current page arrives, i.e. before the consumer starts iterating over the current page.
+   */
+  private final class HistoryPageIterator implements Iterator<HistoryRecord> {
+    private Iterator<HistoryRecord> current = Collections.emptyIterator();
+    private CompletableFuture<Page> next = fetchPage(null);
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (next == null) {
+          return false;
+        }
+        Page page = join(next);
+        next = page.nextKey == null ? null : fetchPage(page.nextKey);
+        current = page.records.iterator();
+      }
+      return true;
+    }
+
+    @Override
+    public HistoryRecord next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    private void cancel() {
+      if (next != null) {
+        next.cancel(false);
+        next = null;
+      }
+    }
   }
 
   public static class CommonGraphResponse<T> {
@@ -92,5 +438,9 @@ public class CommerceToolsHistorySource implements HistorySource {
     public T getData() {
       return data.values().stream().filter(Objects::nonNull).findFirst().orElse(null);
     }
+
+    public List<Object> getErrors() {
+      return errors;
+    }
   }
 }
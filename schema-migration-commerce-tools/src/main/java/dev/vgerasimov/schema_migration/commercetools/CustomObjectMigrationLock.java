@@ -0,0 +1,332 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.custom_object.CustomObject;
+import com.commercetools.api.models.custom_object.CustomObjectDraft;
+import dev.vgerasimov.schema_migration.MigrationLock;
+import io.vrap.rmf.base.client.ApiHttpException;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import lombok.Builder;
+
+/**
+ * {@link MigrationLock} stored as a CommerceTools custom object holding the owner of the lease and
+ * its expiry time. The custom object is only created or updated with the version it was read
+ * with, so when several instances race for the lock exactly one of them succeeds and the others
+ * get a version conflict (HTTP 409) and wait.
+ *
+ * <p>The holder renews the lease every {@code heartbeatInterval}. A lease which is not renewed
+ * within {@code leaseDuration}, e.g. because its holder crashed, expires and can be taken over by
+ * another instance. Releasing the lock deletes the custom object. Expiry is based on the clocks of
+ * the instances, so the lease duration should be well above their clock skew. A lease which was
+ * not renewed in time, or was taken over, is no longer {@link Lease#isValid() valid}, so the
+ * migration holding it fails before its next change set.
+ *
+ * <p>The container must not be the container of the {@link CommerceToolsHistorySource}, otherwise
+ * the lock would be read as a history record.
+ */
+public class CustomObjectMigrationLock implements MigrationLock, AutoCloseable {
+  public static final String DEFAULT_KEY = "migration-lock";
+
+  private static final int NOT_FOUND = 404;
+  private static final int CONFLICT = 409;
+  private static final String OWNER = "owner";
+  private static final String EXPIRES_AT = "expiresAt";
+
+  private final ProjectApiRoot apiRoot;
+  private final String container;
+  private final String key;
+  private final String owner;
+  private final Duration leaseDuration;
+  private final Duration heartbeatInterval;
+  private final Duration acquireTimeout;
+  private final Duration pollInterval;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param container the container of the lock custom object, not the history container
+   * @param owner identifies this instance in the lock, a random id by default
+   */
+  @Builder
+  private CustomObjectMigrationLock(
+      ProjectApiRoot apiRoot,
+      String container,
+      String key,
+      String owner,
+      Duration leaseDuration,
+      Duration heartbeatInterval,
+      Duration acquireTimeout,
+      Duration pollInterval,
+      Clock clock) {
+    if (apiRoot == null || container == null) {
+      throw new IllegalArgumentException("Api root and container must not be null");
+    }
+    this.apiRoot = apiRoot;
+    this.container = container;
+    this.key = key == null ? DEFAULT_KEY : key;
+    this.owner = owner == null ? UUID.randomUUID().toString() : owner;
+    this.leaseDuration = leaseDuration == null ? Duration.ofMinutes(1) : leaseDuration;
+    this.heartbeatInterval =
+        heartbeatInterval == null ? this.leaseDuration.dividedBy(3) : heartbeatInterval;
+    this.acquireTimeout = acquireTimeout == null ? Duration.ofMinutes(15) : acquireTimeout;
+    this.pollInterval = pollInterval == null ? Duration.ofSeconds(2) : pollInterval;
+    this.clock = clock == null ? Clock.systemUTC() : clock;
+    if (this.heartbeatInterval.isZero()
+        || this.heartbeatInterval.isNegative()
+        || this.heartbeatInterval.compareTo(this.leaseDuration) >= 0) {
+      throw new IllegalArgumentException(
+          "Heartbeat interval must be positive and shorter than the lease duration");
+    }
+    if (this.pollInterval.isZero() || this.pollInterval.isNegative()) {
+      throw new IllegalArgumentException("Poll interval must be positive");
+    }
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "commercetools-migration-lock");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public Lease acquire() {
+    return join(acquireAsync());
+  }
+
+  @Override
+  public CompletableFuture<Lease> acquireAsync() {
+    return acquire(System.nanoTime() + acquireTimeout.toNanos());
+  }
+
+  /** Stops the heartbeats of all held leases, they expire unless released. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  private CompletableFuture<Lease> acquire(long deadline) {
+    return attempt()
+        .thenCompose(
+            acquired -> {
+              if (acquired.isPresent()) {
+                return CompletableFuture.completedFuture(new CustomObjectLease(acquired.get()));
+              }
+              if (System.nanoTime() >= deadline) {
+                return CompletableFuture.failedFuture(
+                    new IllegalStateException(
+                        "Migration lock " + container + "/" + key + " was not acquired within "
+                            + acquireTimeout));
+              }
+              return delay().thenCompose(__ -> acquire(deadline));
+            });
+  }
+
+  /** Tries to take the lock once, returns the lock custom object if taken. */
+  private CompletableFuture<Optional<CustomObject>> attempt() {
+    return fetch()
+        .thenCompose(
+            current -> {
+              if (current.isPresent() && isHeld(current.get())) {
+                return CompletableFuture.completedFuture(Optional.empty());
+              }
+              // version 0 creates the custom object only if it does not exist yet
+              long version = current.map(CustomObject::getVersion).orElse(0L);
+              return write(version)
+                  .thenApply(Optional::of)
+                  .exceptionally(
+                      e -> {
+                        if (isStatus(e, CONFLICT)) {
+                          // another instance was faster
+                          return Optional.empty();
+                        }
+                        throw e instanceof CompletionException
+                            ? (CompletionException) e
+                            : new CompletionException(e);
+                      });
+            });
+  }
+
+  /** Returns whether the lock is held by another instance and its lease has not expired. */
+  private boolean isHeld(CustomObject lock) {
+    return lock.getValue() instanceof Map
+        && !owner.equals(((Map<?, ?>) lock.getValue()).get(OWNER))
+        && expiresAt(lock) > clock.millis();
+  }
+
+  /** Returns the expiry time of the lease in the lock custom object, {@code 0} if it is missing. */
+  private static long expiresAt(CustomObject lock) {
+    Object expiresAt =
+        lock.getValue() instanceof Map ? ((Map<?, ?>) lock.getValue()).get(EXPIRES_AT) : null;
+    return expiresAt instanceof Number ? ((Number) expiresAt).longValue() : 0;
+  }
+
+  private CompletableFuture<Optional<CustomObject>> fetch() {
+    return apiRoot
+        .customObjects()
+        .withContainerAndKey(container, key)
+        .get()
+        .execute()
+        .thenApply(response -> Optional.of(response.getBody()))
+        .exceptionally(
+            e -> {
+              if (isStatus(e, NOT_FOUND)) {
+                return Optional.empty();
+              }
+              throw e instanceof CompletionException
+                  ? (CompletionException) e
+                  : new CompletionException(e);
+            });
+  }
+
+  /** Writes the lease of this instance if the custom object has the given version. */
+  private CompletableFuture<CustomObject> write(long version) {
+    return apiRoot
+        .customObjects()
+        .post(
+            CustomObjectDraft.builder()
+                .container(container)
+                .key(key)
+                .value(Map.of(OWNER, owner, EXPIRES_AT, clock.millis() + leaseDuration.toMillis()))
+                .version(version)
+                .build())
+        .execute()
+        .thenApply(ApiHttpResponse::getBody);
+  }
+
+  /** Completes after the poll interval with up to 50% jitter, so waiting instances spread out. */
+  private CompletableFuture<Void> delay() {
+    long nanos = pollInterval.toNanos();
+    long jittered = nanos / 2 + ThreadLocalRandom.current().nextLong(nanos);
+    CompletableFuture<Void> delayed = new CompletableFuture<>();
+    scheduler.schedule(() -> delayed.complete(null), jittered, TimeUnit.NANOSECONDS);
+    return delayed;
+  }
+
+  private static boolean isStatus(Throwable e, int statusCode) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    return cause instanceof ApiHttpException
+        && ((ApiHttpException) cause).getStatusCode() == statusCode;
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The held lease, renewed by the heartbeat until it is released. Renewals are not awaited on the
+   * scheduler, which also completes the delays of instances waiting for the lock.
+   */
+  private final class CustomObjectLease implements Lease {
+    private final ScheduledFuture<?> heartbeat;
+    private long version;
+
+    /** The last renewal, never completed exceptionally; release waits for it. */
+    private CompletableFuture<Void> renewal = CompletableFuture.completedFuture(null);
+
+    // read by isValid without the monitor
+    private volatile boolean released;
+    private volatile boolean lost;
+    private volatile long expiresAt;
+
+    CustomObjectLease(CustomObject acquired) {
+      this.version = acquired.getVersion();
+      this.expiresAt = expiresAt(acquired);
+      long interval = heartbeatInterval.toNanos();
+      this.heartbeat =
+          scheduler.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /** Starts a renewal unless the previous one is still in flight. */
+    private synchronized void renew() {
+      if (released || !renewal.isDone()) {
+        return;
+      }
+      renewal =
+          write(version)
+              .thenAccept(
+                  renewed -> {
+                    synchronized (this) {
+                      version = renewed.getVersion();
+                      expiresAt = expiresAt(renewed);
+                    }
+                  })
+              .exceptionally(
+                  e -> {
+                    if (isStatus(e, CONFLICT)) {
+                      // the lease expired and was taken over, there is nothing to renew anymore
+                      lost = true;
+                      heartbeat.cancel(false);
+                    }
+                    // other failures are retried by the next heartbeat
+                    return null;
+                  });
+    }
+
+    @Override
+    public void release() {
+      join(releaseAsync());
+    }
+
+    /** Whether the lease is neither released, taken over nor expired as renewals failed. */
+    @Override
+    public boolean isValid() {
+      return !released && !lost && expiresAt > clock.millis();
+    }
+
+    /** Waits for the renewal in flight, so the lock is deleted with the version it wrote. */
+    @Override
+    public CompletableFuture<Void> releaseAsync() {
+      CompletableFuture<Void> lastRenewal;
+      synchronized (this) {
+        if (released) {
+          return CompletableFuture.completedFuture(null);
+        }
+        released = true;
+        heartbeat.cancel(false);
+        lastRenewal = renewal;
+      }
+      return lastRenewal
+          .thenCompose(__ -> delete())
+          .exceptionally(
+              e -> {
+                if (isStatus(e, CONFLICT) || isStatus(e, NOT_FOUND)) {
+                  // the lease expired and was taken over or released by its new holder
+                  return null;
+                }
+                throw e instanceof CompletionException
+                    ? (CompletionException) e
+                    : new CompletionException(e);
+              });
+    }
+
+    private synchronized CompletableFuture<Void> delete() {
+      return apiRoot
+          .customObjects()
+          .withContainerAndKey(container, key)
+          .delete()
+          .withVersion(version)
+          .execute()
+          .<Void>thenApply(__ -> null);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through cache of definition resources, e.g. Types, Product Types or Channels, shared by the
+ * change sets of a run through {@link CommerceToolsContext#getDefinitions()}. Consecutive change
+ * sets touching the same definitions then read each of them once, and update them with the
+ * version returned by the previous update instead of a stale one.
+ *
+ * <p>Resources are cached by key and by id. Concurrent reads of the same resource share a single
+ * request, and reads of several resources missing from the cache share a single query. Failed
+ * reads are not cached. Writes passed to {@link #track} replace the cached resource with the one
+ * returned by CommerceTools, or evict it if the write fails, e.g. with a version conflict.
+ *
+ * <p>The cache assumes that the definitions are modified only by the change sets of the run. It
+ * is not bounded, as a project has few definitions.
+ */
+public final class DefinitionCache {
+
+  /** Maximum number of resources read with a single query. */
+  public static final int MAX_VALUES_PER_QUERY = 500;
+
+  private static final String KEY = "key";
+  private static final String ID = "id";
+
+  private final ProjectApiRoot apiRoot;
+  private final Map<String, CompletableFuture<Optional<?>>> entries = new ConcurrentHashMap<>();
+
+  public DefinitionCache(ProjectApiRoot apiRoot) {
+    this.apiRoot = apiRoot;
+  }
+
+  /** Returns the resource with the given key, reading it if it is not cached. */
+  public <T> CompletableFuture<Optional<T>> get(DefinitionResource<T> resource, String key) {
+    return getAll(resource, KEY, List.of(key))
+        .thenApply(found -> Optional.ofNullable(found.get(key)));
+  }
+
+  /** Returns the resource with the given id, reading it if it is not cached. */
+  public <T> CompletableFuture<Optional<T>> getById(DefinitionResource<T> resource, String id) {
+    return getAll(resource, ID, List.of(id))
+        .thenApply(found -> Optional.ofNullable(found.get(id)));
+  }
+
+  /**
+   * Returns the existing resources with the given keys by key, reading the resources which are not
+   * cached with as few queries as possible.
+   */
+  public <T> CompletableFuture<Map<String, T>> getAll(
+      DefinitionResource<T> resource, Collection<String> keys) {
+    return getAll(resource, KEY, keys);
+  }
+
+  /**
+   * Caches the resource returned by the given write, e.g. a create or an update of the resource
+   * with the given key, or evicts the resource if the write fails. Returns the write.
+   */
+  public <T> CompletableFuture<T> track(
+      DefinitionResource<T> resource, String key, CompletableFuture<T> write) {
+    return write.whenComplete(
+        (written, e) -> {
+          if (e == null && written != null) {
+            put(resource, written);
+          } else {
+            evict(resource, key);
+          }
+        });
+  }
+
+  /** Caches the given state of the resource, e.g. one returned by a write. */
+  public <T> void put(DefinitionResource<T> resource, T written) {
+    CompletableFuture<Optional<?>> entry = CompletableFuture.completedFuture(Optional.of(written));
+    entries.put(entryKey(resource, ID, resource.getId(written)), entry);
+    if (resource.getKey(written) != null) {
+      entries.put(entryKey(resource, KEY, resource.getKey(written)), entry);
+    }
+  }
+
+  /** Removes the resource with the given key from the cache, so it is read again. */
+  public void evict(DefinitionResource<?> resource, String key) {
+    CompletableFuture<Optional<?>> entry = entries.remove(entryKey(resource, KEY, key));
+    if (entry != null && entry.isDone() && !entry.isCompletedExceptionally()) {
+      entry.join().ifPresent(cached -> evictId(resource, cached));
+    }
+  }
+
+  /** Removes all resources from the cache. */
+  public void clear() {
+    entries.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> void evictId(DefinitionResource<T> resource, Object cached) {
+    entries.remove(entryKey(resource, ID, resource.getId((T) cached)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<Map<String, T>> getAll(
+      DefinitionResource<T> resource, String field, Collection<String> values) {
+    Map<String, CompletableFuture<Optional<?>>> found = new LinkedHashMap<>();
+    List<String> missing = new ArrayList<>();
+    CompletableFuture<List<T>> query = new CompletableFuture<>();
+    for (String value : values) {
+      CompletableFuture<Optional<?>> created =
+          query.<Optional<?>>thenApply(
+              resources -> {
+                for (T candidate : resources) {
+                  if (value.equals(valueOf(resource, field, candidate))) {
+                    return Optional.of(candidate);
+                  }
+                }
+                return Optional.empty();
+              });
+      CompletableFuture<Optional<?>> existing =
+          entries.putIfAbsent(entryKey(resource, field, value), created);
+      if (existing == null) {
+        missing.add(value);
+        // failed reads are not cached
+        created.whenComplete(
+            (__, e) -> {
+              if (e != null) {
+                entries.remove(entryKey(resource, field, value), created);
+              }
+            });
+      }
+      found.put(value, existing == null ? created : existing);
+    }
+    read(resource, field, missing, query);
+
+    return CompletableFuture.allOf(found.values().toArray(CompletableFuture[]::new))
+        .thenApply(
+            __ -> {
+              Map<String, T> result = new LinkedHashMap<>();
+              for (Map.Entry<String, CompletableFuture<Optional<?>>> entry : found.entrySet()) {
+                entry.getValue().join().ifPresent(cached -> result.put(entry.getKey(), (T) cached));
+              }
+              return result;
+            });
+  }
+
+  /** Reads the given resources page by page, completes the query with all of them. */
+  private <T> void read(
+      DefinitionResource<T> resource,
+      String field,
+      List<String> values,
+      CompletableFuture<List<T>> query) {
+    if (values.isEmpty()) {
+      query.complete(List.of());
+      return;
+    }
+    List<CompletableFuture<List<T>>> pages = new ArrayList<>();
+    for (int from = 0; from < values.size(); from += MAX_VALUES_PER_QUERY) {
+      List<String> page =
+          values.subList(from, Math.min(from + MAX_VALUES_PER_QUERY, values.size()));
+      try {
+        pages.add(resource.fetch(apiRoot, field, page));
+      } catch (RuntimeException e) {
+        pages.add(CompletableFuture.failedFuture(e));
+      }
+    }
+    CompletableFuture.allOf(pages.toArray(CompletableFuture[]::new))
+        .whenComplete(
+            (__, e) -> {
+              if (e != null) {
+                query.completeExceptionally(e);
+                return;
+              }
+              List<T> resources = new ArrayList<>();
+              pages.forEach(page -> resources.addAll(page.join()));
+              // also cache the resources read by key under their ids and vice versa
+              String other = field.equals(ID) ? KEY : ID;
+              for (T read : resources) {
+                String value = valueOf(resource, other, read);
+                if (value != null) {
+                  entries.putIfAbsent(
+                      entryKey(resource, other, value),
+                      CompletableFuture.completedFuture(Optional.of(read)));
+                }
+              }
+              query.complete(resources);
+            });
+  }
+
+  private static <T> String valueOf(DefinitionResource<T> resource, String field, T value) {
+    return field.equals(ID) ? resource.getId(value) : resource.getKey(value);
+  }
+
+  private static String entryKey(DefinitionResource<?> resource, String field, String value) {
+    return resource.getName() + '/' + field + '=' + value;
+  }
+}
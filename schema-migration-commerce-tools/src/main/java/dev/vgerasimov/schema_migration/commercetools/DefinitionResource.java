@@ -0,0 +1,140 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.channel.Channel;
+import com.commercetools.api.models.channel.ChannelPagedQueryResponse;
+import com.commercetools.api.models.product_type.ProductType;
+import com.commercetools.api.models.product_type.ProductTypePagedQueryResponse;
+import com.commercetools.api.models.type.Type;
+import com.commercetools.api.models.type.TypePagedQueryResponse;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Access to a CommerceTools definition resource type, e.g. Types, for {@link DefinitionCache}. All
+ * methods are non-blocking and return the SDK's {@code execute()} futures.
+ *
+ * @param <T> the type of the resource, e.g. {@link Type}
+ */
+public interface DefinitionResource<T> {
+
+  /** The name of the resource type, unique among the resource types of a cache. */
+  String getName();
+
+  /**
+   * Requests the resources whose given field ({@code key} or {@code id}) is one of the given
+   * values, at most {@link DefinitionCache#MAX_VALUES_PER_QUERY} values per call.
+   */
+  CompletableFuture<List<T>> fetch(ProjectApiRoot apiRoot, String field, List<String> values);
+
+  String getId(T resource);
+
+  /** Returns the key of the resource, {@code null} if it has no key. */
+  String getKey(T resource);
+
+  static DefinitionResource<Type> types() {
+    return new DefinitionResource<>() {
+      @Override
+      public String getName() {
+        return "types";
+      }
+
+      @Override
+      public CompletableFuture<List<Type>> fetch(
+          ProjectApiRoot apiRoot, String field, List<String> values) {
+        return apiRoot
+            .types()
+            .get()
+            .withWhere(where(field, values))
+            .withLimit(values.size())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(TypePagedQueryResponse::getResults);
+      }
+
+      @Override
+      public String getId(Type type) {
+        return type.getId();
+      }
+
+      @Override
+      public String getKey(Type type) {
+        return type.getKey();
+      }
+    };
+  }
+
+  static DefinitionResource<ProductType> productTypes() {
+    return new DefinitionResource<>() {
+      @Override
+      public String getName() {
+        return "product-types";
+      }
+
+      @Override
+      public CompletableFuture<List<ProductType>> fetch(
+          ProjectApiRoot apiRoot, String field, List<String> values) {
+        return apiRoot
+            .productTypes()
+            .get()
+            .withWhere(where(field, values))
+            .withLimit(values.size())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(ProductTypePagedQueryResponse::getResults);
+      }
+
+      @Override
+      public String getId(ProductType productType) {
+        return productType.getId();
+      }
+
+      @Override
+      public String getKey(ProductType productType) {
+        return productType.getKey();
+      }
+    };
+  }
+
+  static DefinitionResource<Channel> channels() {
+    return new DefinitionResource<>() {
+      @Override
+      public String getName() {
+        return "channels";
+      }
+
+      @Override
+      public CompletableFuture<List<Channel>> fetch(
+          ProjectApiRoot apiRoot, String field, List<String> values) {
+        return apiRoot
+            .channels()
+            .get()
+            .withWhere(where(field, values))
+            .withLimit(values.size())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody)
+            .thenApply(ChannelPagedQueryResponse::getResults);
+      }
+
+      @Override
+      public String getId(Channel channel) {
+        return channel.getId();
+      }
+
+      @Override
+      public String getKey(Channel channel) {
+        return channel.getKey();
+      }
+    };
+  }
+
+  /** Builds the predicate matching the given values of the field. */
+  private static String where(String field, List<String> values) {
+    StringBuilder where = new StringBuilder(field).append(" in (");
+    for (int i = 0; i < values.size(); i++) {
+      where.append(i == 0 ? "" : ", ").append(Predicates.quote(values.get(i)));
+    }
+    return where.append(')').toString();
+  }
+}
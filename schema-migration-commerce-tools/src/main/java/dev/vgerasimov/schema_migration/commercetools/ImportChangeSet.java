@@ -0,0 +1,553 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.importapi.client.ProjectApiRoot;
+import com.commercetools.importapi.models.importcontainers.ImportContainerDraft;
+import com.commercetools.importapi.models.importsummaries.ImportSummary;
+import com.commercetools.importapi.models.importsummaries.OperationStates;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.Checkpoint;
+import io.vrap.rmf.base.client.ApiHttpException;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Change set which submits a large number of resources through the Import API, e.g. millions of
+ * product or customer updates, which are then imported asynchronously on the server side instead
+ * of being updated one by one as {@link BulkUpdateChangeSet} does. Requires the Import API client
+ * in the {@link CommerceToolsContext}.
+ *
+ * <p>Resources are read from the given stream and split into import containers of up to {@code
+ * containerSize} resources, each created for this application of the change set. Import requests
+ * of {@value ImportResource#MAX_RESOURCES_PER_REQUEST} resources are sent with at most {@code
+ * concurrency} requests in flight. Once a container is filled, the next one is filled while the
+ * import summary of the previous one is polled, starting at {@code pollInterval} and doubling up to
+ * {@code maxPollInterval}, so waiting costs a single request per container and interval.
+ *
+ * <p>An import request answered with 429 or 5xx is repeated up to {@code maxRetries} times after
+ * a backoff with full jitter, starting at {@code retryBackoff} and doubling per attempt. Resources
+ * of a request failing otherwise are counted as failed, and the first error is kept in {@link
+ * Result#getCause()}.
+ *
+ * <p>The change set is applied once every import operation is imported, and fails if any of them
+ * failed validation, was rejected, or is still pending after {@code timeout}; the numbers of
+ * operations are reported in {@link Result}. The containers are deleted once all resources are
+ * imported and kept for inspection otherwise. Whenever the leading containers are completely
+ * imported, the number of their resources is saved to the {@link Checkpoint}, and a failed change
+ * set skips as many resources of the stream when it is re-applied. The resources of the other
+ * containers are submitted again, so they must be safe to import more than once, and the stream
+ * must return the resources in the same order every time. Once the checkpoint is {@link
+ * Checkpoint#isCancelled() cancelled}, e.g. because the timeout of the change set passed, no
+ * further request is sent and the change set fails.
+ *
+ * <p>The change set never blocks while requests are in flight, so it is best applied with {@link
+ * dev.vgerasimov.schema_migration.Schema#applyAsync}.
+ *
+ * @param <T> the type of the import resource
+ */
+public final class ImportChangeSet<T> extends CommerceToolChangeSet {
+  public static final int DEFAULT_CONTAINER_SIZE = 100_000;
+  public static final int DEFAULT_CONCURRENCY = 16;
+  public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(5);
+  public static final Duration DEFAULT_MAX_POLL_INTERVAL = Duration.ofMinutes(1);
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofHours(2);
+  public static final int DEFAULT_MAX_RETRIES = 5;
+  public static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofSeconds(1);
+
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVER_ERROR = 500;
+  private static final long MAX_RETRY_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final transient ImportResource<T> resource;
+  private final transient Function<CommerceToolsContext, Stream<T>> resources;
+  private final int containerSize;
+  private final int concurrency;
+  private final Duration pollInterval;
+  private final Duration maxPollInterval;
+  private final Duration timeout;
+  private final int maxRetries;
+  private final Duration retryBackoff;
+  private final boolean keepContainers;
+
+  /**
+   * @param resource the resource type, e.g. {@link ImportResource#customers()}
+   * @param resources creates the stream of resources to import, which is closed once they are
+   *     submitted
+   * @param keepContainers whether the containers are kept even if all resources are imported
+   */
+  @Builder
+  private ImportChangeSet(
+      String id,
+      String checksum,
+      ImportResource<T> resource,
+      Function<CommerceToolsContext, Stream<T>> resources,
+      Integer containerSize,
+      Integer concurrency,
+      Duration pollInterval,
+      Duration maxPollInterval,
+      Duration timeout,
+      Integer maxRetries,
+      Duration retryBackoff,
+      boolean keepContainers) {
+    super(id, checksum);
+    if (resource == null || resources == null) {
+      throw new IllegalArgumentException("Resource and resources must not be null");
+    }
+    this.resource = resource;
+    this.resources = resources;
+    this.containerSize = containerSize == null ? DEFAULT_CONTAINER_SIZE : containerSize;
+    this.concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+    this.pollInterval = pollInterval == null ? DEFAULT_POLL_INTERVAL : pollInterval;
+    this.maxPollInterval = maxPollInterval == null ? DEFAULT_MAX_POLL_INTERVAL : maxPollInterval;
+    this.timeout = timeout == null ? DEFAULT_TIMEOUT : timeout;
+    this.maxRetries = maxRetries == null ? DEFAULT_MAX_RETRIES : maxRetries;
+    this.retryBackoff = retryBackoff == null ? DEFAULT_RETRY_BACKOFF : retryBackoff;
+    this.keepContainers = keepContainers;
+    if (this.containerSize <= 0 || this.concurrency <= 0) {
+      throw new IllegalArgumentException("Container size and concurrency must be positive");
+    }
+    if (this.pollInterval.isNegative()
+        || this.pollInterval.isZero()
+        || this.maxPollInterval.compareTo(this.pollInterval) < 0) {
+      throw new IllegalArgumentException(
+          "Poll interval must be positive and not greater than max poll interval");
+    }
+    if (this.maxRetries < 0 || this.retryBackoff.isNegative()) {
+      throw new IllegalArgumentException("Max retries and retry backoff must not be negative");
+    }
+  }
+
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context) {
+    return apply(context, Checkpoint.NONE);
+  }
+
+  @Override
+  public CompletionStage<ChangeSet.Result> applyAsync(CommerceToolsContext context) {
+    return applyAsync(context, Checkpoint.NONE);
+  }
+
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context, Checkpoint checkpoint) {
+    try {
+      return applyAsync(context, checkpoint).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletionStage<ChangeSet.Result> applyAsync(
+      CommerceToolsContext context, Checkpoint checkpoint) {
+    if (context.getImportApiRoot() == null) {
+      return CompletableFuture.failedFuture(
+          new IllegalStateException(
+              "Change set " + getId() + " requires the Import API client in the context"));
+    }
+    Stream<T> stream = resources.apply(context);
+    // resources of the containers imported by the previous application are not submitted again
+    long skipped = checkpoint.get().map(Long::parseLong).orElse(0L);
+    Iterator<T> iterator = stream.iterator();
+    for (long i = 0; i < skipped && iterator.hasNext(); i++) {
+      iterator.next();
+    }
+    ImportRun run =
+        new ImportRun(
+            context.getImportApiRoot(),
+            iterator,
+            skipped,
+            checkpoint,
+            // container keys are unique per application, so summaries of earlier ones do not count
+            getId().replaceAll("[^-_~.a-zA-Z0-9]", "-")
+                + "-"
+                + context.getClock().instant().getEpochSecond(),
+            System.nanoTime() + timeout.toNanos());
+    return submitContainers(run, 0)
+        .thenCompose(
+            __ -> CompletableFuture.allOf(run.imports.toArray(CompletableFuture[]::new)))
+        .whenComplete((result, e) -> stream.close())
+        .thenCompose(
+            __ -> {
+              if (checkpoint.isCancelled()) {
+                return CompletableFuture.<Boolean>failedFuture(
+                    new CancellationException("Change set " + getId() + " is cancelled"));
+              }
+              boolean imported = run.failed.sum() == 0 && run.pending.sum() == 0;
+              return imported && !keepContainers
+                  ? deleteContainers(run).thenApply(___ -> imported)
+                  : CompletableFuture.completedFuture(imported);
+            })
+        .thenApply(
+            imported ->
+                new Result(
+                    getId(),
+                    imported ? Status.APPLIED : Status.FAILED,
+                    LocalDateTime.now(context.getClock()),
+                    run.submitted.sum(),
+                    run.imported.sum(),
+                    run.failed.sum(),
+                    run.pending.sum(),
+                    run.containerKeys(),
+                    run.cause));
+  }
+
+  @Override
+  public Status mutate(CommerceToolsContext context) {
+    return apply(context).getStatus();
+  }
+
+  @Override
+  public CompletionStage<Status> mutateAsync(CommerceToolsContext context) {
+    return applyAsync(context).thenApply(ChangeSet.Result::getStatus);
+  }
+
+  /**
+   * Creates the container with the given index and fills it, then starts polling its import
+   * summary and continues with the next container, as long as there are resources left.
+   */
+  private CompletableFuture<Void> submitContainers(ImportRun run, int index) {
+    if (!run.hasNext() || run.checkpoint.isCancelled()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Container container = run.addContainer(run.keyPrefix + "-" + index);
+    return run.importApiRoot
+        .importContainers()
+        .post(
+            ImportContainerDraft.builder()
+                .key(container.key)
+                .resourceType(resource.getResourceType())
+                .build())
+        .execute()
+        .thenCompose(
+            __ -> {
+              CompletableFuture<?>[] workers = new CompletableFuture<?>[concurrency];
+              for (int i = 0; i < workers.length; i++) {
+                workers[i] = work(run, container);
+              }
+              return CompletableFuture.allOf(workers);
+            })
+        .thenCompose(
+            __ -> {
+              run.filled(container);
+              run.imports.add(awaitImport(run, container, pollInterval));
+              return submitContainers(run, index + 1);
+            });
+  }
+
+  /** Submits batches of resources into the container until it is full or no resources are left. */
+  private CompletableFuture<Void> work(ImportRun run, Container container) {
+    if (run.checkpoint.isCancelled()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<T> batch = run.nextBatch(container);
+    if (batch.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    run.submitted.add(batch.size());
+    return submit(run, container, batch, 0).thenCompose(__ -> work(run, container));
+  }
+
+  /** Submits the batch, repeating the request after a backoff if the API is throttling or down. */
+  private CompletableFuture<Void> submit(
+      ImportRun run, Container container, List<T> batch, int attempt) {
+    CompletableFuture<?> response;
+    try {
+      response = resource.submit(run.importApiRoot, container.key, batch);
+    } catch (RuntimeException e) {
+      response = CompletableFuture.failedFuture(e);
+    }
+    return response
+        .handle(
+            (result, e) -> {
+              if (e == null) {
+                container.accepted.add(batch.size());
+                return CompletableFuture.<Void>completedFuture(null);
+              }
+              if (isTransient(e) && attempt < maxRetries && !run.checkpoint.isCancelled()) {
+                return CompletableFuture.runAsync(
+                        () -> {},
+                        CompletableFuture.delayedExecutor(
+                            backoffNanos(attempt), TimeUnit.NANOSECONDS))
+                    .thenCompose(__ -> submit(run, container, batch, attempt + 1));
+              }
+              container.failed.add(batch.size());
+              run.fail(batch.size(), unwrap(e));
+              return CompletableFuture.<Void>completedFuture(null);
+            })
+        .thenCompose(Function.identity());
+  }
+
+  /** Returns a random delay between zero and the backoff of the attempt ("full jitter"). */
+  private long backoffNanos(int attempt) {
+    // saturates instead of overflowing for long backoffs and many attempts
+    long factor = 1L << Math.min(attempt, 62);
+    long base = retryBackoff.toNanos();
+    long cap =
+        base > MAX_RETRY_BACKOFF_NANOS / factor
+            ? MAX_RETRY_BACKOFF_NANOS
+            : Math.min(MAX_RETRY_BACKOFF_NANOS, base * factor);
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  /**
+   * Requests the import summary of the container until no operation is pending, the timeout is
+   * reached or the checkpoint is cancelled, then adds its numbers to the run.
+   */
+  private CompletableFuture<Void> awaitImport(
+      ImportRun run, Container container, Duration interval) {
+    return run.importApiRoot
+        .importContainers()
+        .withImportContainerKeyValue(container.key)
+        .importSummaries()
+        .get()
+        .execute()
+        .thenApply(ApiHttpResponse::getBody)
+        .thenCompose(
+            summary -> {
+              long pending = pending(summary, container.accepted.sum());
+              if (pending == 0
+                  || System.nanoTime() - run.deadline >= 0
+                  || run.checkpoint.isCancelled()) {
+                OperationStates states = summary.getStates();
+                long failed = count(states.getValidationFailed()) + count(states.getRejected());
+                run.imported.add(count(states.getImported()));
+                run.failed.add(failed);
+                run.pending.add(pending);
+                return failed == 0 && pending == 0 && container.failed.sum() == 0
+                    ? run.saveProgress(container)
+                    : CompletableFuture.<Void>completedFuture(null);
+              }
+              Duration next = interval.multipliedBy(2);
+              Duration nextInterval = next.compareTo(maxPollInterval) > 0 ? maxPollInterval : next;
+              return CompletableFuture.runAsync(
+                      () -> {},
+                      CompletableFuture.delayedExecutor(
+                          interval.toMillis(), TimeUnit.MILLISECONDS))
+                  .thenCompose(__ -> awaitImport(run, container, nextInterval));
+            });
+  }
+
+  /**
+   * Returns the number of operations not completed yet, including the accepted resources which
+   * the summary does not count yet.
+   */
+  private static long pending(ImportSummary summary, long accepted) {
+    OperationStates states = summary.getStates();
+    long pending =
+        count(states.getProcessing())
+            + count(states.getUnresolved())
+            + count(states.getWaitForMasterVariant());
+    return Math.max(pending, accepted - count(summary.getTotal()));
+  }
+
+  private static long count(Long value) {
+    return value == null ? 0 : value;
+  }
+
+  private static boolean isTransient(Throwable e) {
+    Throwable cause = unwrap(e);
+    if (!(cause instanceof ApiHttpException)) {
+      return false;
+    }
+    int statusCode = ((ApiHttpException) cause).getStatusCode();
+    return statusCode == TOO_MANY_REQUESTS || statusCode >= SERVER_ERROR;
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
+
+  /** Deletes the containers of the run, failing to delete one does not fail the change set. */
+  private static CompletableFuture<Void> deleteContainers(ImportRun run) {
+    List<CompletableFuture<?>> requests = new ArrayList<>();
+    for (String key : run.containerKeys()) {
+      requests.add(
+          run.importApiRoot
+              .importContainers()
+              .withImportContainerKeyValue(key)
+              .delete()
+              .execute()
+              .handle((response, e) -> null));
+    }
+    return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new));
+  }
+
+  /** The state of a single application of the change set. */
+  private final class ImportRun {
+    final ProjectApiRoot importApiRoot;
+    final Iterator<T> resources;
+    final Checkpoint checkpoint;
+    final String keyPrefix;
+    final long deadline;
+    final List<CompletableFuture<Void>> imports = new ArrayList<>();
+    final LongAdder submitted = new LongAdder();
+    final LongAdder imported = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder pending = new LongAdder();
+
+    /** The containers in the order of the stream, guarded by the run. */
+    private final List<Container> containers = new ArrayList<>();
+
+    /** The number of resources taken from the stream, including the skipped ones. */
+    private long taken;
+
+    /** The number of leading containers whose progress is saved. */
+    private int saved;
+
+    /** The first error of a failed import request, {@code null} if none failed. */
+    private volatile Throwable cause;
+
+    ImportRun(
+        ProjectApiRoot importApiRoot,
+        Iterator<T> resources,
+        long skipped,
+        Checkpoint checkpoint,
+        String keyPrefix,
+        long deadline) {
+      this.importApiRoot = importApiRoot;
+      this.resources = resources;
+      this.taken = skipped;
+      this.checkpoint = checkpoint;
+      this.keyPrefix = keyPrefix;
+      this.deadline = deadline;
+    }
+
+    synchronized boolean hasNext() {
+      return resources.hasNext();
+    }
+
+    synchronized Container addContainer(String key) {
+      Container container = new Container(key);
+      containers.add(container);
+      return container;
+    }
+
+    synchronized List<String> containerKeys() {
+      return containers.stream().map(container -> container.key).collect(Collectors.toList());
+    }
+
+    /** Called once all resources of the container are submitted. */
+    synchronized void filled(Container container) {
+      container.end = taken;
+    }
+
+    synchronized void fail(int count, Throwable e) {
+      failed.add(count);
+      if (cause == null) {
+        cause = e;
+      }
+    }
+
+    /**
+     * Marks the completely imported container and saves the position in the stream up to which
+     * the leading containers are imported, if it advanced.
+     */
+    CompletableFuture<Void> saveProgress(Container container) {
+      synchronized (this) {
+        container.imported = true;
+        long progress = -1;
+        while (saved < containers.size() && containers.get(saved).imported) {
+          progress = containers.get(saved).end;
+          saved++;
+        }
+        if (progress < 0) {
+          return CompletableFuture.completedFuture(null);
+        }
+        // saved under the lock, so the progress is saved in ascending order
+        return checkpoint.saveAsync(String.valueOf(progress)).toCompletableFuture();
+      }
+    }
+
+    /** Takes the next resources from the stream, as many as fit into a request and container. */
+    synchronized List<T> nextBatch(Container container) {
+      List<T> batch = new ArrayList<>(ImportResource.MAX_RESOURCES_PER_REQUEST);
+      while (batch.size() < ImportResource.MAX_RESOURCES_PER_REQUEST
+          && container.taken < containerSize
+          && resources.hasNext()) {
+        batch.add(resources.next());
+        container.taken++;
+        taken++;
+      }
+      return batch;
+    }
+  }
+
+  private static final class Container {
+    final String key;
+    final LongAdder accepted = new LongAdder();
+
+    /** The number of resources of failed import requests. */
+    final LongAdder failed = new LongAdder();
+
+    /** The number of resources taken from the stream, guarded by the run. */
+    int taken;
+
+    /** The position in the stream after the last resource of the container, guarded by the run. */
+    long end;
+
+    /** Whether all resources of the container are imported, guarded by the run. */
+    boolean imported;
+
+    Container(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * The result of the import with numbers of submitted resources and of import operations which
+   * were imported, failed, or were still pending, together with the keys of the import containers
+   * and the first error of a failed import request.
+   */
+  @Getter
+  @ToString(callSuper = true)
+  @EqualsAndHashCode(callSuper = true)
+  public static class Result extends ChangeSet.Result {
+    private final long submitted;
+    private final long imported;
+    private final long failed;
+    private final long pending;
+    private final List<String> containerKeys;
+
+    /** The first error of a failed import request, {@code null} if none failed. */
+    private final Throwable cause;
+
+    public Result(
+        String id,
+        Status status,
+        LocalDateTime executedAt,
+        long submitted,
+        long imported,
+        long failed,
+        long pending,
+        List<String> containerKeys,
+        Throwable cause) {
+      super(id, status, executedAt);
+      this.submitted = submitted;
+      this.imported = imported;
+      this.failed = failed;
+      this.pending = pending;
+      this.containerKeys = containerKeys;
+      this.cause = cause;
+    }
+  }
+}
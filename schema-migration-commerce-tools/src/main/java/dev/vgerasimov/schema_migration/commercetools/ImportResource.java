@@ -0,0 +1,98 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.importapi.client.ProjectApiRoot;
+import com.commercetools.importapi.models.common.ImportResourceType;
+import com.commercetools.importapi.models.customers.CustomerImport;
+import com.commercetools.importapi.models.importrequests.CustomerImportRequest;
+import com.commercetools.importapi.models.importrequests.ImportResponse;
+import com.commercetools.importapi.models.importrequests.ProductDraftImportRequest;
+import com.commercetools.importapi.models.importrequests.ProductImportRequest;
+import com.commercetools.importapi.models.productdrafts.ProductDraftImport;
+import com.commercetools.importapi.models.products.ProductImport;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Access to an Import API resource type for {@link ImportChangeSet}. All methods are non-blocking
+ * and return the SDK's {@code execute()} futures.
+ *
+ * @param <T> the type of the import resource, e.g. {@link CustomerImport}
+ */
+public interface ImportResource<T> {
+
+  /** Maximum number of resources in a single import request supported by the Import API. */
+  int MAX_RESOURCES_PER_REQUEST = 20;
+
+  /** The resource type of the import containers holding resources of this type. */
+  ImportResourceType getResourceType();
+
+  /**
+   * Submits up to {@link #MAX_RESOURCES_PER_REQUEST} resources into the given import container.
+   */
+  CompletableFuture<ImportResponse> submit(
+      ProjectApiRoot importApiRoot, String containerKey, List<T> resources);
+
+  static ImportResource<CustomerImport> customers() {
+    return new ImportResource<>() {
+      @Override
+      public ImportResourceType getResourceType() {
+        return ImportResourceType.CUSTOMER;
+      }
+
+      @Override
+      public CompletableFuture<ImportResponse> submit(
+          ProjectApiRoot importApiRoot, String containerKey, List<CustomerImport> resources) {
+        return importApiRoot
+            .customers()
+            .importContainers()
+            .withImportContainerKeyValue(containerKey)
+            .post(CustomerImportRequest.builder().resources(resources).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+    };
+  }
+
+  static ImportResource<ProductDraftImport> productDrafts() {
+    return new ImportResource<>() {
+      @Override
+      public ImportResourceType getResourceType() {
+        return ImportResourceType.PRODUCT_DRAFT;
+      }
+
+      @Override
+      public CompletableFuture<ImportResponse> submit(
+          ProjectApiRoot importApiRoot, String containerKey, List<ProductDraftImport> resources) {
+        return importApiRoot
+            .productDrafts()
+            .importContainers()
+            .withImportContainerKeyValue(containerKey)
+            .post(ProductDraftImportRequest.builder().resources(resources).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+    };
+  }
+
+  static ImportResource<ProductImport> products() {
+    return new ImportResource<>() {
+      @Override
+      public ImportResourceType getResourceType() {
+        return ImportResourceType.PRODUCT;
+      }
+
+      @Override
+      public CompletableFuture<ImportResponse> submit(
+          ProjectApiRoot importApiRoot, String containerKey, List<ProductImport> resources) {
+        return importApiRoot
+            .products()
+            .importContainers()
+            .withImportContainerKeyValue(containerKey)
+            .post(ProductImportRequest.builder().resources(resources).build())
+            .execute()
+            .thenApply(ApiHttpResponse::getBody);
+      }
+    };
+  }
+}
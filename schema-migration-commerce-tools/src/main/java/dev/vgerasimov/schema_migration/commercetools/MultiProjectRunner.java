@@ -0,0 +1,201 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import dev.vgerasimov.schema_migration.AsyncHistorySource;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.ChecksumManifest;
+import dev.vgerasimov.schema_migration.HistorySource;
+import dev.vgerasimov.schema_migration.MigrationListener;
+import dev.vgerasimov.schema_migration.MigrationLock;
+import dev.vgerasimov.schema_migration.MigrationResult;
+import dev.vgerasimov.schema_migration.Schema;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Applies one change set list to many CommerceTools projects, e.g. one per region or brand. Up to
+ * {@code maxConcurrentProjects} projects are migrated at once, each by its own {@link Schema} which
+ * applies up to {@code parallelism} change sets concurrently, so the overall number of change sets
+ * in flight is bounded by their product.
+ *
+ * <p>The schemas share the executor, the checksum manifest loaded once by the runner, and the
+ * change sets, which must therefore keep all project state in the context. Projects whose history
+ * source implements {@link AsyncHistorySource} are migrated with {@link Schema#applyAsync}, so no
+ * thread waits for a project's requests; sharing one HTTP client between the api roots of the
+ * contexts then bounds the number of connections as well.
+ *
+ * <p>A project whose migration fails or throws does not stop the other projects.
+ */
+public class MultiProjectRunner {
+  public static final int DEFAULT_MAX_CONCURRENT_PROJECTS = 8;
+
+  private final Function<CommerceToolsContext, HistorySource> historySource;
+  private final Function<CommerceToolsContext, MigrationLock> lock;
+  private final Function<String, MigrationListener> listener;
+  private final int parallelism;
+  private final int maxConcurrentProjects;
+  private final Executor executor;
+  private final ChecksumManifest checksumManifest;
+
+  /**
+   * @param historySource creates the history source of the project, e.g. a {@link
+   *     CommerceToolsHistorySource} on the api root of the context
+   * @param lock optionally creates the migration lock of the project
+   * @param listener optionally creates the listener of the project with the given key
+   * @param parallelism the parallelism of every project's schema
+   * @param executor the executor shared by all schemas, see {@link Schema}
+   * @param checksumManifest the checksum manifest, loaded from the classpath if not set
+   */
+  @Builder
+  private MultiProjectRunner(
+      Function<CommerceToolsContext, HistorySource> historySource,
+      Function<CommerceToolsContext, MigrationLock> lock,
+      Function<String, MigrationListener> listener,
+      int parallelism,
+      Integer maxConcurrentProjects,
+      Executor executor,
+      ChecksumManifest checksumManifest) {
+    if (historySource == null) {
+      throw new IllegalArgumentException("History source must not be null");
+    }
+    this.historySource = historySource;
+    this.lock = lock;
+    this.listener = listener;
+    this.parallelism = parallelism;
+    this.maxConcurrentProjects =
+        maxConcurrentProjects == null ? DEFAULT_MAX_CONCURRENT_PROJECTS : maxConcurrentProjects;
+    if (this.maxConcurrentProjects <= 0) {
+      throw new IllegalArgumentException("Max concurrent projects must be positive");
+    }
+    this.executor = executor;
+    this.checksumManifest =
+        checksumManifest == null
+            ? ChecksumManifest.load(MultiProjectRunner.class.getClassLoader())
+            : checksumManifest;
+  }
+
+  /** Migrates all projects, given by their keys, and waits for all of them. */
+  public Result apply(
+      Map<String, CommerceToolsContext> projects,
+      List<ChangeSet<CommerceToolsContext>> changeSets) {
+    try {
+      return applyAsync(projects, changeSets).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Non-blocking variant of {@link #apply(Map, List)}. */
+  public CompletableFuture<Result> applyAsync(
+      Map<String, CommerceToolsContext> projects,
+      List<ChangeSet<CommerceToolsContext>> changeSets) {
+    if (projects == null || changeSets == null) {
+      throw new IllegalArgumentException("Projects and change sets must not be null");
+    }
+    Queue<Map.Entry<String, CommerceToolsContext>> queue =
+        new ConcurrentLinkedQueue<>(projects.entrySet());
+    Map<String, MigrationResult> results = new ConcurrentHashMap<>();
+    Map<String, Throwable> errors = new ConcurrentHashMap<>();
+    CompletableFuture<?>[] workers =
+        new CompletableFuture<?>[Math.min(maxConcurrentProjects, projects.size())];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = work(queue, changeSets, results, errors);
+    }
+    return CompletableFuture.allOf(workers)
+        .thenApply(
+            __ -> {
+              // both maps follow the order of the projects
+              Map<String, MigrationResult> orderedResults = new LinkedHashMap<>();
+              Map<String, Throwable> orderedErrors = new LinkedHashMap<>();
+              for (String key : projects.keySet()) {
+                if (results.containsKey(key)) {
+                  orderedResults.put(key, results.get(key));
+                } else {
+                  orderedErrors.put(key, errors.get(key));
+                }
+              }
+              return new Result(orderedResults, orderedErrors);
+            });
+  }
+
+  /** Takes projects from the queue one by one until it is empty. */
+  private CompletableFuture<Void> work(
+      Queue<Map.Entry<String, CommerceToolsContext>> queue,
+      List<ChangeSet<CommerceToolsContext>> changeSets,
+      Map<String, MigrationResult> results,
+      Map<String, Throwable> errors) {
+    Map.Entry<String, CommerceToolsContext> project = queue.poll();
+    if (project == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return migrate(project.getKey(), project.getValue(), changeSets)
+        .handle(
+            (result, e) -> {
+              if (e == null) {
+                results.put(project.getKey(), result);
+              } else {
+                errors.put(
+                    project.getKey(),
+                    e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+              }
+              return null;
+            })
+        .thenCompose(__ -> work(queue, changeSets, results, errors));
+  }
+
+  private CompletableFuture<MigrationResult> migrate(
+      String key, CommerceToolsContext context, List<ChangeSet<CommerceToolsContext>> changeSets) {
+    try {
+      HistorySource projectHistorySource = historySource.apply(context);
+      Schema<CommerceToolsContext> schema =
+          Schema.<CommerceToolsContext>builder()
+              .historySource(projectHistorySource)
+              .lock(lock == null ? null : lock.apply(context))
+              .listener(listener == null ? null : listener.apply(key))
+              .parallelism(parallelism)
+              .executor(executor)
+              .checksumManifest(checksumManifest)
+              .build();
+      return projectHistorySource instanceof AsyncHistorySource
+          ? schema.applyAsync(context, changeSets)
+          : CompletableFuture.supplyAsync(
+              () -> schema.apply(context, changeSets),
+              executor == null ? ForkJoinPool.commonPool() : executor);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * The results of migrating every project by its key. A project whose migration threw an
+   * exception has the exception instead of a result.
+   */
+  @Getter
+  @ToString
+  @RequiredArgsConstructor
+  public static class Result {
+    private final Map<String, MigrationResult> results;
+    private final Map<String, Throwable> errors;
+
+    /** Returns whether every project is migrated successfully. */
+    public boolean isSuccess() {
+      return errors.isEmpty()
+          && results.values().stream().allMatch(MigrationResult.Success.class::isInstance);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+/** Helpers building query predicates ({@code where}) of the CommerceTools API. */
+final class Predicates {
+
+  private Predicates() {}
+
+  /**
+   * Returns the value as a string literal of a predicate. Backslashes and quotes are escaped, so
+   * a value cannot end the literal and change the predicate.
+   */
+  static String quote(String value) {
+    return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+}
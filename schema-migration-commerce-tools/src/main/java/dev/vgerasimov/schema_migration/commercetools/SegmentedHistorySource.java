@@ -0,0 +1,563 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ByProjectKeyCustomObjectsByContainerGet;
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.custom_object.CustomObjectDraft;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.vgerasimov.schema_migration.AsyncHistorySource;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import dev.vgerasimov.schema_migration.HistorySource;
+import io.vrap.rmf.base.client.ApiHttpException;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * {@link HistorySource} that packs history records into segment custom objects of up to {@code
+ * segmentSize} records each, instead of one custom object per record as {@link
+ * CommerceToolsHistorySource} does. Loading a history of thousands of records costs a single
+ * request per {@value #PAGE_SIZE} segments.
+ *
+ * <p>A segment stores records column by column: an array of ids, an array of checksums and so on,
+ * and a string with one character per status. Columns without any value are omitted. Segments
+ * are decoded straight from the JSON tree of the response.
+ *
+ * <p>New records are appended to the last segment, and a new segment is started when it is full;
+ * a saved record with an existing id replaces it in its segment. Every segment is written with
+ * the version it was read with, so concurrent writers never overwrite each other's records: a
+ * write rejected with a version conflict (HTTP 409) is repeated after reloading the segments.
+ *
+ * <p>The container must only hold segments, so it must not be shared with {@link
+ * CommerceToolsHistorySource}. An existing history is moved by saving all records of the old
+ * source with {@link #saveRecords(List)}.
+ *
+ * <p>Saving a baseline moves the replaced records into segments of the container with the {@value
+ * CommerceToolsHistorySource#ARCHIVE_SUFFIX} suffix and rewrites the segments starting with the
+ * baseline record. Records duplicated by an interrupted rewrite are loaded once: the copy in the
+ * later segment wins, as it is the one updated by the following saves.
+ */
+public class SegmentedHistorySource implements HistorySource, AsyncHistorySource {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 500;
+
+  /** Maximum number of segments loaded with a single request. */
+  public static final int PAGE_SIZE = 500;
+
+  private static final int CONFLICT = 409;
+  private static final int MAX_WRITE_ATTEMPTS = 5;
+  private static final String KEY_PREFIX = "segment-";
+
+  private static final String IDS = "id";
+  private static final String EXECUTED_AT = "executedAt";
+  private static final String EXECUTED_AT_NANOS = "executedAtNano";
+  private static final String STATUSES = "status";
+  private static final String CHECKSUMS = "checksum";
+  private static final String CHAIN_HASHES = "chainHash";
+  private static final String CHECKPOINTS = "checkpoint";
+
+  private final ProjectApiRoot apiRoot;
+  private final String container;
+  private final int segmentSize;
+
+  /** The segments as last loaded or written, {@code null} until loaded. */
+  private List<Segment> segments;
+
+  /** Writes are serialized, each of them starts from the segments left by the previous one. */
+  private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+  public SegmentedHistorySource(ProjectApiRoot apiRoot, String container) {
+    this(apiRoot, container, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public SegmentedHistorySource(ProjectApiRoot apiRoot, String container, int segmentSize) {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("Segment size must be positive, got " + segmentSize);
+    }
+    this.apiRoot = apiRoot;
+    this.container = container;
+    this.segmentSize = segmentSize;
+  }
+
+  @Override
+  public List<HistoryRecord> getHistory() {
+    return join(getHistoryAsync());
+  }
+
+  @Override
+  public Optional<HistoryRecord> getHead() {
+    return join(getHeadAsync());
+  }
+
+  /** Returns the number of segments together with the key and version of the last modified one. */
+  @Override
+  public Optional<String> getRevision() {
+    JsonNode response =
+        join(
+            apiRoot
+                .customObjects()
+                .withContainer(container)
+                .get()
+                .withSort("lastModifiedAt desc")
+                .withLimit(1)
+                .execute(JsonNode.class)
+                .thenApply(ApiHttpResponse::getBody));
+    JsonNode last = response.path("results").path(0);
+    String lastModified =
+        last.isMissingNode() ? "" : last.path("key").asText() + ":" + last.path("version").asLong();
+    return Optional.of(response.path("total").asLong() + ":" + lastModified);
+  }
+
+  @Override
+  public void saveRecord(HistoryRecord historyRecord) {
+    saveRecords(List.of(historyRecord));
+  }
+
+  @Override
+  public void saveRecords(List<HistoryRecord> historyRecords) {
+    join(saveRecordsAsync(historyRecords));
+  }
+
+  @Override
+  public CompletableFuture<List<HistoryRecord>> getHistoryAsync() {
+    return loadSegments()
+        .thenApply(
+            loaded -> {
+              List<HistoryRecord> history = new ArrayList<>();
+              loaded.forEach(segment -> history.addAll(segment.records));
+              // records are in the order of saving, which is almost always the order of ids; the
+              // sort is stable, so of duplicated records the one of the later segment comes last
+              history.sort(Comparator.comparing(HistoryRecord::getId));
+              List<HistoryRecord> unique = new ArrayList<>(history.size());
+              for (HistoryRecord record : history) {
+                int last = unique.size() - 1;
+                if (last >= 0 && unique.get(last).getId().equals(record.getId())) {
+                  unique.set(last, record);
+                } else {
+                  unique.add(record);
+                }
+              }
+              return unique;
+            });
+  }
+
+  /** Loads only the last segment. */
+  @Override
+  public CompletableFuture<Optional<HistoryRecord>> getHeadAsync() {
+    return fetchSegments(null, "key desc", 1)
+        .thenApply(
+            last ->
+                last.stream()
+                    .flatMap(segment -> segment.records.stream())
+                    .max(Comparator.comparing(HistoryRecord::getId)));
+  }
+
+  @Override
+  public CompletableFuture<Void> saveRecordAsync(HistoryRecord historyRecord) {
+    return saveRecordsAsync(List.of(historyRecord));
+  }
+
+  /** Writes every segment containing any of the records with a single request. */
+  @Override
+  public CompletableFuture<Void> saveRecordsAsync(List<HistoryRecord> historyRecords) {
+    if (historyRecords.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<HistoryRecord> records = List.copyOf(historyRecords);
+    return enqueueWrite(() -> writeSegments(loaded -> write(loaded, records), 1));
+  }
+
+  /**
+   * Archives the replaced records, then rewrites the segments so that they hold the baseline and
+   * the records following it, and deletes the segments left over.
+   */
+  @Override
+  public void saveBaseline(HistoryRecord baseline) {
+    join(
+        enqueueWrite(
+            () -> {
+              // segments written by others must not be missed, as they would be left over
+              setSegments(null);
+              return writeSegments(loaded -> rewrite(loaded, baseline), 1);
+            }));
+  }
+
+  private synchronized CompletableFuture<Void> enqueueWrite(
+      Supplier<CompletableFuture<Void>> write) {
+    // a failed write does not prevent the following ones
+    lastWrite = lastWrite.handle((result, e) -> null).thenCompose(__ -> write.get());
+    return lastWrite;
+  }
+
+  private CompletableFuture<Void> write(List<Segment> loaded, List<HistoryRecord> records) {
+    TreeSet<Integer> changed = new TreeSet<>();
+    List<Segment> merged = merge(loaded, records, changed);
+    List<CompletableFuture<Void>> requests = new ArrayList<>();
+    for (int index : changed) {
+      Segment segment = merged.get(index);
+      requests.add(
+          post(segment)
+              .thenAccept(version -> setSegment(merged, index, segment.withVersion(version))));
+    }
+    return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new))
+        .thenRun(() -> setSegments(merged));
+  }
+
+  private CompletableFuture<Void> rewrite(List<Segment> loaded, HistoryRecord baseline) {
+    List<HistoryRecord> replaced = new ArrayList<>();
+    List<HistoryRecord> kept = new ArrayList<>();
+    kept.add(baseline);
+    for (Segment segment : loaded) {
+      for (HistoryRecord record : segment.records) {
+        if (record.getId().compareTo(baseline.getId()) <= 0) {
+          replaced.add(record);
+        } else {
+          kept.add(record);
+        }
+      }
+    }
+    kept.sort(Comparator.comparing(HistoryRecord::getId));
+    SegmentedHistorySource archive =
+        new SegmentedHistorySource(
+            apiRoot, container + CommerceToolsHistorySource.ARCHIVE_SUFFIX, segmentSize);
+    return archive
+        .saveRecordsAsync(replaced)
+        .thenCompose(
+            __ -> {
+              List<CompletableFuture<?>> requests = new ArrayList<>();
+              int count = (kept.size() + segmentSize - 1) / segmentSize;
+              for (int index = 0; index < count; index++) {
+                int from = index * segmentSize;
+                List<HistoryRecord> records =
+                    List.copyOf(kept.subList(from, Math.min(from + segmentSize, kept.size())));
+                Segment segment =
+                    index < loaded.size()
+                        ? new Segment(loaded.get(index).key, loaded.get(index).version, records)
+                        : new Segment(segmentKey(index), 0, records);
+                requests.add(post(segment));
+              }
+              for (int index = count; index < loaded.size(); index++) {
+                requests.add(delete(loaded.get(index)));
+              }
+              return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new));
+            })
+        .thenRun(() -> setSegments(null));
+  }
+
+  /**
+   * Applies the update to the current segments, loaded first if needed. An update rejected with a
+   * version conflict is repeated on freshly loaded segments.
+   */
+  private CompletableFuture<Void> writeSegments(
+      Function<List<Segment>, CompletableFuture<Void>> update, int attempt) {
+    CompletableFuture<List<Segment>> current;
+    synchronized (this) {
+      current = segments == null ? loadSegments() : CompletableFuture.completedFuture(segments);
+    }
+    return current
+        .thenCompose(update)
+        .handle(
+            (result, e) -> {
+              if (e == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+              }
+              if (!isConflict(e)) {
+                return CompletableFuture.<Void>failedFuture(e);
+              }
+              if (attempt >= MAX_WRITE_ATTEMPTS) {
+                return CompletableFuture.<Void>failedFuture(
+                    new IllegalStateException(
+                        "Failed to save history records to container " + container + " after "
+                            + attempt + " version conflicts"));
+              }
+              // another instance wrote into the container, records are replaced by id, so
+              // repeating the write on fresh segments is safe
+              setSegments(null);
+              return writeSegments(update, attempt + 1);
+            })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Returns the segments with the records saved into them. A record replaces the one with the
+   * same id, in the later segment if it is duplicated, or is appended to the last segment, or to a
+   * new one if the last segment is full. Indexes of the modified segments are collected into
+   * {@code changed}.
+   */
+  private List<Segment> merge(
+      List<Segment> loaded, List<HistoryRecord> records, TreeSet<Integer> changed) {
+    List<Segment> merged = new ArrayList<>(loaded);
+    Map<String, Integer> segmentById = new HashMap<>();
+    for (int i = 0; i < merged.size(); i++) {
+      for (HistoryRecord record : merged.get(i).records) {
+        segmentById.put(record.getId(), i);
+      }
+    }
+    for (HistoryRecord record : records) {
+      Integer index = segmentById.get(record.getId());
+      if (index == null) {
+        index = merged.size() - 1;
+        if (merged.isEmpty() || merged.get(index).records.size() >= segmentSize) {
+          index = merged.size();
+          merged.add(new Segment(segmentKey(index), 0, List.of()));
+        }
+        segmentById.put(record.getId(), index);
+      }
+      merged.set(index, merged.get(index).with(record));
+      changed.add(index);
+    }
+    return merged;
+  }
+
+  private synchronized void setSegments(List<Segment> segments) {
+    this.segments = segments == null ? null : List.copyOf(segments);
+  }
+
+  private static void setSegment(List<Segment> segments, int index, Segment segment) {
+    synchronized (segments) {
+      segments.set(index, segment);
+    }
+  }
+
+  /** Writes the segment if its version matches, returns the new version. */
+  private CompletableFuture<Long> post(Segment segment) {
+    return apiRoot
+        .customObjects()
+        .post(
+            CustomObjectDraft.builder()
+                .container(container)
+                .key(segment.key)
+                .value(encode(segment.records))
+                // version 0 creates the segment only if it does not exist yet
+                .version(segment.version)
+                .build())
+        .execute()
+        .thenApply(response -> response.getBody().getVersion());
+  }
+
+  private CompletableFuture<Void> delete(Segment segment) {
+    return apiRoot
+        .customObjects()
+        .withContainerAndKey(container, segment.key)
+        .delete()
+        .withVersion(segment.version)
+        .execute()
+        .thenApply(response -> null);
+  }
+
+  private static String segmentKey(int index) {
+    return String.format("%s%08d", KEY_PREFIX, index);
+  }
+
+  /** Loads all segments and keeps them for the following writes. */
+  private CompletableFuture<List<Segment>> loadSegments() {
+    return collectPages(fetchSegments(null, "key asc", PAGE_SIZE), new ArrayList<>())
+        .thenApply(
+            loaded -> {
+              setSegments(loaded);
+              return loaded;
+            });
+  }
+
+  private CompletableFuture<List<Segment>> collectPages(
+      CompletableFuture<List<Segment>> page, List<Segment> collected) {
+    return page.thenCompose(
+        current -> {
+          collected.addAll(current);
+          return current.size() < PAGE_SIZE
+              ? CompletableFuture.completedFuture(collected)
+              : collectPages(
+                  fetchSegments(current.get(current.size() - 1).key, "key asc", PAGE_SIZE),
+                  collected);
+        });
+  }
+
+  /** Requests the segments whose keys are greater than the given one, all if it is null. */
+  private CompletableFuture<List<Segment>> fetchSegments(String afterKey, String sort, int limit) {
+    ByProjectKeyCustomObjectsByContainerGet request =
+        apiRoot.customObjects().withContainer(container).get().withSort(sort).withLimit(limit);
+    if (afterKey != null) {
+      request = request.withWhere("key > " + Predicates.quote(afterKey));
+    }
+    return request
+        .execute(JsonNode.class)
+        .thenApply(
+            response -> {
+              List<Segment> page = new ArrayList<>();
+              for (JsonNode customObject : response.getBody().path("results")) {
+                page.add(decode(customObject));
+              }
+              return page;
+            });
+  }
+
+  private static ObjectNode encode(List<HistoryRecord> records) {
+    JsonNodeFactory nodes = JsonNodeFactory.instance;
+    ObjectNode value = nodes.objectNode();
+    ArrayNode ids = value.putArray(IDS);
+    ArrayNode executedAt = nodes.arrayNode();
+    ArrayNode executedAtNanos = nodes.arrayNode();
+    StringBuilder statuses = new StringBuilder(records.size());
+    ArrayNode checksums = nodes.arrayNode();
+    ArrayNode chainHashes = nodes.arrayNode();
+    ArrayNode checkpoints = nodes.arrayNode();
+    boolean anyNanos = false;
+    boolean anyChainHash = false;
+    boolean anyCheckpoint = false;
+    for (HistoryRecord record : records) {
+      ids.add(record.getId());
+      LocalDateTime time = record.getExecutedAt();
+      if (time == null) {
+        executedAt.addNull();
+        executedAtNanos.addNull();
+      } else {
+        executedAt.add(time.toEpochSecond(ZoneOffset.UTC));
+        executedAtNanos.add(time.getNano());
+        anyNanos |= time.getNano() != 0;
+      }
+      statuses.append(encode(record.getStatus()));
+      checksums.add(record.getChecksum());
+      chainHashes.add(record.getChainHash());
+      checkpoints.add(record.getCheckpoint());
+      anyChainHash |= record.getChainHash() != null;
+      anyCheckpoint |= record.getCheckpoint() != null;
+    }
+    value.set(EXECUTED_AT, executedAt);
+    if (anyNanos) {
+      value.set(EXECUTED_AT_NANOS, executedAtNanos);
+    }
+    value.put(STATUSES, statuses.toString());
+    value.set(CHECKSUMS, checksums);
+    if (anyChainHash) {
+      value.set(CHAIN_HASHES, chainHashes);
+    }
+    if (anyCheckpoint) {
+      value.set(CHECKPOINTS, checkpoints);
+    }
+    return value;
+  }
+
+  private static Segment decode(JsonNode customObject) {
+    JsonNode value = customObject.path("value");
+    JsonNode ids = value.path(IDS);
+    String statuses = value.path(STATUSES).asText();
+    List<HistoryRecord> records = new ArrayList<>(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      JsonNode seconds = value.path(EXECUTED_AT).path(i);
+      LocalDateTime executedAt =
+          seconds.isNumber()
+              ? LocalDateTime.ofEpochSecond(
+                  seconds.asLong(), value.path(EXECUTED_AT_NANOS).path(i).asInt(), ZoneOffset.UTC)
+              : null;
+      records.add(
+          new HistoryRecord(
+              ids.get(i).asText(),
+              executedAt,
+              decode(statuses.charAt(i)),
+              text(value.path(CHECKSUMS), i),
+              text(value.path(CHAIN_HASHES), i),
+              text(value.path(CHECKPOINTS), i)));
+    }
+    return new Segment(
+        customObject.path("key").asText(), customObject.path("version").asLong(), records);
+  }
+
+  private static String text(JsonNode column, int index) {
+    JsonNode node = column.path(index);
+    return node.isTextual() ? node.asText() : null;
+  }
+
+  private static char encode(HistoryRecord.Status status) {
+    switch (status) {
+      case SUCCESS:
+        return 'S';
+      case FAILED:
+        return 'F';
+      case PENDING:
+        return 'P';
+      case IN_PROGRESS:
+        return 'I';
+      case BASELINE:
+        return 'B';
+      default:
+        throw new IllegalArgumentException("Unknown status " + status);
+    }
+  }
+
+  private static HistoryRecord.Status decode(char status) {
+    switch (status) {
+      case 'S':
+        return HistoryRecord.Status.SUCCESS;
+      case 'F':
+        return HistoryRecord.Status.FAILED;
+      case 'P':
+        return HistoryRecord.Status.PENDING;
+      case 'I':
+        return HistoryRecord.Status.IN_PROGRESS;
+      case 'B':
+        return HistoryRecord.Status.BASELINE;
+      default:
+        throw new IllegalStateException("Unknown status code " + status);
+    }
+  }
+
+  private static boolean isConflict(Throwable e) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    return cause instanceof ApiHttpException
+        && ((ApiHttpException) cause).getStatusCode() == CONFLICT;
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** A segment custom object with its version, {@code 0} if it is not created yet. */
+  @RequiredArgsConstructor
+  private static final class Segment {
+    private final String key;
+    private final long version;
+    private final List<HistoryRecord> records;
+
+    /** Returns the segment with the record replacing the one with the same id, or appended. */
+    Segment with(HistoryRecord record) {
+      List<HistoryRecord> updated = new ArrayList<>(records);
+      int existing = -1;
+      for (int i = 0; i < updated.size() && existing < 0; i++) {
+        if (updated.get(i).getId().equals(record.getId())) {
+          existing = i;
+        }
+      }
+      if (existing < 0) {
+        updated.add(record);
+      } else {
+        updated.set(existing, record);
+      }
+      return new Segment(key, version, updated);
+    }
+
+    Segment withVersion(long version) {
+      return new Segment(key, version, records);
+    }
+  }
+}
@@ -0,0 +1,686 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.custom_object.CustomObject;
+import com.commercetools.api.models.custom_object.CustomObjectDraft;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.Checkpoint;
+import io.vrap.rmf.base.client.ApiHttpException;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.Builder;
+
+/**
+ * Bulk update split into shards which any node may process, so the throughput of a large backfill
+ * grows with the number of replicas instead of being limited by the node running {@link
+ * dev.vgerasimov.schema_migration.Schema}. The id keyspace of the resources is split into ranges
+ * of the leading hex digits of their ids (CommerceTools ids are UUIDs), and every range is a work
+ * item stored as a custom object in {@code container}. Every shard is processed like a {@link
+ * BulkUpdateChangeSet} limited to its range, see there for the handling of pages, conflicts and
+ * failures.
+ *
+ * <p>A node claims a shard by writing its owner and lease expiry with the version it read the
+ * shard with, so exactly one node wins a race for it. While the shard is processed, its node
+ * renews the lease every third of its duration and saves the id of the last completed page, so a
+ * shard whose node crashed is taken over once its lease expires and continues after that page. The
+ * lease must therefore be well above the latency of a request, and the clock skew of the nodes.
+ *
+ * <p>The node applying the change set creates the shards, processes shards itself and waits until
+ * all of them are done; the change set is applied once every shard is done, and the shards are
+ * then deleted. It fails if any shard failed and the remaining ones are done; failed shards are
+ * resumed by the next application. As that node holds the migration lock, the other nodes take
+ * part by calling {@link #participate(CommerceToolsContext, Duration)}, e.g. on a background
+ * thread at startup before waiting for the migration. A shard which could not be processed because
+ * of an error is claimed again after {@code pollInterval}, so the wait should be bounded by a
+ * {@link ChangeSet#getTimeout() timeout}.
+ *
+ * @param <R> the type of the resource
+ * @param <A> the type of the update actions of the resource
+ */
+public final class ShardedChangeSet<R, A> extends CommerceToolChangeSet {
+  public static final int DEFAULT_SHARDS = 16;
+  public static final int MAX_SHARDS = 4096;
+  public static final String DEFAULT_CONTAINER = "migration-shards";
+
+  private static final int NOT_FOUND = 404;
+  private static final int CONFLICT = 409;
+  private static final int KEY_DIGITS = 3;
+  private static final String STATE = "state";
+  private static final String OWNER = "owner";
+  private static final String EXPIRES_AT = "expiresAt";
+  private static final String LAST_ID = "lastId";
+  private static final String PENDING = "pending";
+  private static final String DONE = "done";
+  private static final String FAILED = "failed";
+
+  private final transient BulkResource<R, A> resource;
+  private final transient String where;
+  private final transient Function<R, List<A>> actions;
+  private final Integer pageSize;
+  private final Integer concurrency;
+  private final Integer maxRetries;
+  private final int shards;
+  private final String container;
+  private final String owner;
+  private final Duration leaseDuration;
+  private final Duration pollInterval;
+  private final boolean background;
+
+  /**
+   * @param resource the resource type, e.g. {@link BulkResource#products()}
+   * @param where optional predicate limiting the updated resources
+   * @param actions builds update actions for the given resource, an empty list means no update
+   * @param shards the number of id ranges the resources are split into
+   * @param container the container of the shard custom objects, shared by all sharded change sets
+   *     and not the container of the history or the lock
+   * @param owner identifies this node in the claimed shards, a random id by default
+   * @param background whether the change set may be applied in the background, see {@link
+   *     ChangeSet#isBackground()}
+   */
+  @Builder
+  private ShardedChangeSet(
+      String id,
+      String checksum,
+      BulkResource<R, A> resource,
+      String where,
+      Function<R, List<A>> actions,
+      Integer pageSize,
+      Integer concurrency,
+      Integer maxRetries,
+      Integer shards,
+      String container,
+      String owner,
+      Duration leaseDuration,
+      Duration pollInterval,
+      boolean background) {
+    super(id, checksum);
+    if (resource == null || actions == null) {
+      throw new IllegalArgumentException("Resource and actions must not be null");
+    }
+    this.resource = resource;
+    this.where = where;
+    this.actions = actions;
+    this.pageSize = pageSize;
+    this.concurrency = concurrency;
+    this.maxRetries = maxRetries;
+    this.shards = shards == null ? DEFAULT_SHARDS : shards;
+    this.container = container == null ? DEFAULT_CONTAINER : container;
+    this.owner = owner == null ? UUID.randomUUID().toString() : owner;
+    this.leaseDuration = leaseDuration == null ? Duration.ofMinutes(5) : leaseDuration;
+    this.pollInterval = pollInterval == null ? Duration.ofSeconds(5) : pollInterval;
+    this.background = background;
+    if (this.shards <= 0 || this.shards > MAX_SHARDS) {
+      throw new IllegalArgumentException(
+          "Shards must be between 1 and " + MAX_SHARDS + ", got " + this.shards);
+    }
+    if (this.leaseDuration.isZero()
+        || this.leaseDuration.isNegative()
+        || this.pollInterval.isZero()
+        || this.pollInterval.isNegative()) {
+      throw new IllegalArgumentException("Lease duration and poll interval must be positive");
+    }
+    // fail fast on invalid settings of the shard updates
+    shardUpdate(0);
+  }
+
+  @Override
+  public boolean isBackground() {
+    return background;
+  }
+
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context) {
+    return apply(context, Checkpoint.NONE);
+  }
+
+  @Override
+  public CompletableFuture<ChangeSet.Result> applyAsync(CommerceToolsContext context) {
+    return applyAsync(context, Checkpoint.NONE);
+  }
+
+  /**
+   * Applies the change set; the checkpoint is only used as the cancellation signal, the progress
+   * is kept in the shards.
+   */
+  @Override
+  public ChangeSet.Result apply(CommerceToolsContext context, Checkpoint checkpoint) {
+    return join(applyAsync(context, checkpoint));
+  }
+
+  @Override
+  public CompletableFuture<ChangeSet.Result> applyAsync(
+      CommerceToolsContext context, Checkpoint checkpoint) {
+    return prepare(context.getApiRoot())
+        .thenCompose(__ -> awaitShards(context, checkpoint))
+        .thenCompose(
+            status ->
+                (status == Status.APPLIED
+                        ? deleteShards(context.getApiRoot())
+                        : CompletableFuture.<Void>completedFuture(null))
+                    .thenApply(
+                        __ ->
+                            new ChangeSet.Result(
+                                getId(), status, LocalDateTime.now(context.getClock()))));
+  }
+
+  @Override
+  public Status mutate(CommerceToolsContext context) {
+    return apply(context).getStatus();
+  }
+
+  @Override
+  public CompletionStage<Status> mutateAsync(CommerceToolsContext context) {
+    return applyAsync(context).thenApply(ChangeSet.Result::getStatus);
+  }
+
+  /**
+   * Claims and processes the pending shards of this change set one after another, starting at a
+   * random shard so that nodes joining at the same time spread out. Returns the number of shards
+   * processed by this node once no shard is left to claim.
+   *
+   * <p>Nodes usually start before the node holding the migration lock reaches this change set, so
+   * the shards are polled every {@code pollInterval} until they are created. As the shards of an
+   * applied change set are deleted, nothing is processed if they do not appear within {@code
+   * maxWait}, e.g. the time the migration takes to reach this change set.
+   */
+  public CompletableFuture<Integer> participate(CommerceToolsContext context, Duration maxWait) {
+    if (maxWait == null || maxWait.isNegative()) {
+      throw new IllegalArgumentException("Max wait must not be negative");
+    }
+    return awaitCreated(context.getApiRoot(), System.nanoTime() + maxWait.toNanos())
+        .thenCompose(
+            created ->
+                created
+                    ? participate(context, Checkpoint.NONE)
+                    : CompletableFuture.completedFuture(0));
+  }
+
+  /**
+   * Polls the first shard until it is created, the others are created along with it. Completes
+   * with {@code false} if it is not created before the deadline.
+   */
+  private CompletableFuture<Boolean> awaitCreated(ProjectApiRoot apiRoot, long deadline) {
+    return fetch(apiRoot, 0)
+        .thenCompose(
+            shard -> {
+              if (shard.isPresent()) {
+                return CompletableFuture.completedFuture(true);
+              }
+              if (System.nanoTime() - deadline >= 0) {
+                return CompletableFuture.completedFuture(false);
+              }
+              return delay().thenCompose(__ -> awaitCreated(apiRoot, deadline));
+            });
+  }
+
+  /** Takes part until no shard is left to claim, or the given checkpoint is cancelled. */
+  private CompletableFuture<Integer> participate(
+      CommerceToolsContext context, Checkpoint cancellation) {
+    int start = ThreadLocalRandom.current().nextInt(shards);
+    return participate(context, cancellation, start, 0, 0);
+  }
+
+  private CompletableFuture<Integer> participate(
+      CommerceToolsContext context,
+      Checkpoint cancellation,
+      int start,
+      int visited,
+      int processed) {
+    if (visited == shards || cancellation.isCancelled()) {
+      return CompletableFuture.completedFuture(processed);
+    }
+    int index = (start + visited) % shards;
+    return claim(context, index)
+        .thenCompose(
+            claimed ->
+                claimed
+                    .map(shard -> process(context, shard, cancellation))
+                    .orElse(CompletableFuture.completedFuture(false)))
+        // a shard which could not be processed, e.g. whose claim was lost, is left to others
+        .exceptionally(e -> false)
+        .thenCompose(
+            done ->
+                participate(
+                    context, cancellation, start, visited + 1, done ? processed + 1 : processed));
+  }
+
+  /** Creates the missing shards and makes the failed ones pending again, keeping their progress. */
+  private CompletableFuture<Void> prepare(ProjectApiRoot apiRoot) {
+    CompletableFuture<?>[] prepared = new CompletableFuture<?>[shards];
+    for (int i = 0; i < shards; i++) {
+      int index = i;
+      prepared[i] =
+          fetch(apiRoot, index)
+              .thenCompose(
+                  current -> {
+                    if (current.isPresent() && !FAILED.equals(current.get().state)) {
+                      return CompletableFuture.<CustomObject>completedFuture(null);
+                    }
+                    // version 0 creates the shard only if it does not exist yet
+                    long version = current.map(shard -> shard.version).orElse(0L);
+                    String lastId = current.map(shard -> shard.lastId).orElse(null);
+                    return write(apiRoot, index, version, value(PENDING, null, 0, lastId))
+                        .exceptionally(
+                            e -> {
+                              if (isStatus(e, CONFLICT)) {
+                                // another node prepared the shard concurrently
+                                return null;
+                              }
+                              throw asCompletionException(e);
+                            });
+                  });
+    }
+    return CompletableFuture.allOf(prepared);
+  }
+
+  /**
+   * Processes shards until none is left to claim, then waits for the shards claimed by other
+   * nodes. Completes with the status of the change set once every shard is done or failed, or
+   * fails once the checkpoint is cancelled.
+   */
+  private CompletableFuture<Status> awaitShards(
+      CommerceToolsContext context, Checkpoint cancellation) {
+    return participate(context, cancellation)
+        .thenCompose(
+            __ ->
+                cancellation.isCancelled()
+                    ? CompletableFuture.<List<Optional<Shard>>>failedFuture(
+                        new CancellationException("Change set " + getId() + " is cancelled"))
+                    : fetchAll(context.getApiRoot()))
+        .thenCompose(
+            all -> {
+              boolean pending = false;
+              boolean failed = false;
+              for (Optional<Shard> shard : all) {
+                String state = shard.map(current -> current.state).orElse(PENDING);
+                pending |= PENDING.equals(state);
+                failed |= FAILED.equals(state);
+              }
+              if (!pending) {
+                return CompletableFuture.completedFuture(failed ? Status.FAILED : Status.APPLIED);
+              }
+              return delay().thenCompose(__ -> awaitShards(context, cancellation));
+            });
+  }
+
+  /** Claims the shard unless it is done, failed, or held by another node whose lease is valid. */
+  private CompletableFuture<Optional<Shard>> claim(CommerceToolsContext context, int index) {
+    ProjectApiRoot apiRoot = context.getApiRoot();
+    return fetch(apiRoot, index)
+        .thenCompose(
+            current -> {
+              long now = context.getClock().millis();
+              if (current.isEmpty()
+                  || !PENDING.equals(current.get().state)
+                  || current.get().isHeldByOther(now)) {
+                return CompletableFuture.completedFuture(Optional.<Shard>empty());
+              }
+              Shard shard = current.get();
+              return write(
+                      apiRoot,
+                      index,
+                      shard.version,
+                      value(PENDING, owner, now + leaseDuration.toMillis(), shard.lastId))
+                  .thenApply(claimed -> Optional.of(new Shard(index, claimed)))
+                  .exceptionally(
+                      e -> {
+                        if (isStatus(e, CONFLICT)) {
+                          // another node was faster
+                          return Optional.empty();
+                        }
+                        throw asCompletionException(e);
+                      });
+            });
+  }
+
+  /**
+   * Updates the resources of the claimed shard and records its outcome. Returns whether the shard
+   * is done; fails if the claim was lost, in which case the outcome is left to the new owner.
+   */
+  private CompletableFuture<Boolean> process(
+      CommerceToolsContext context, Shard claimed, Checkpoint cancellation) {
+    ShardCheckpoint checkpoint = new ShardCheckpoint(context, claimed, cancellation);
+    checkpoint.startHeartbeat();
+    return shardUpdate(claimed.index)
+        .applyAsync(context, checkpoint)
+        .toCompletableFuture()
+        .thenCompose(
+            result -> {
+              boolean done = result.getStatus() == Status.APPLIED;
+              return checkpoint.finish(done ? DONE : FAILED).thenApply(__ -> done);
+            })
+        .whenComplete((done, e) -> checkpoint.stopHeartbeat());
+  }
+
+  /** Returns the bulk update of the resources whose ids fall into the range of the shard. */
+  private BulkUpdateChangeSet<R, A> shardUpdate(int index) {
+    return BulkUpdateChangeSet.<R, A>builder()
+        .id(getId() + "/" + index)
+        .resource(resource)
+        .where(shardWhere(index))
+        .actions(actions)
+        .pageSize(pageSize)
+        .concurrency(concurrency)
+        .maxRetries(maxRetries)
+        .build();
+  }
+
+  /**
+   * Returns the predicate of the resources of the shard, combined with the given predicate. The
+   * boundaries are hexadecimal, so they need no escaping.
+   */
+  private String shardWhere(int index) {
+    List<String> predicates = new ArrayList<>();
+    if (where != null) {
+      predicates.add("(" + where + ")");
+    }
+    if (index > 0) {
+      predicates.add("id >= \"" + boundary(index) + "\"");
+    }
+    if (index < shards - 1) {
+      predicates.add("id < \"" + boundary(index + 1) + "\"");
+    }
+    return predicates.isEmpty() ? null : String.join(" and ", predicates);
+  }
+
+  /** Returns the lowest id prefix of the shard with the given index. */
+  private String boundary(int index) {
+    long prefixes = 1L << (4 * KEY_DIGITS);
+    String hex = Long.toHexString(index * prefixes / shards);
+    return "0".repeat(KEY_DIGITS - hex.length()) + hex;
+  }
+
+  private CompletableFuture<List<Optional<Shard>>> fetchAll(ProjectApiRoot apiRoot) {
+    List<CompletableFuture<Optional<Shard>>> fetched = new ArrayList<>();
+    for (int i = 0; i < shards; i++) {
+      fetched.add(fetch(apiRoot, i));
+    }
+    return CompletableFuture.allOf(fetched.toArray(CompletableFuture[]::new))
+        .thenApply(
+            __ -> {
+              List<Optional<Shard>> all = new ArrayList<>();
+              fetched.forEach(shard -> all.add(shard.join()));
+              return all;
+            });
+  }
+
+  private CompletableFuture<Optional<Shard>> fetch(ProjectApiRoot apiRoot, int index) {
+    return apiRoot
+        .customObjects()
+        .withContainerAndKey(container, key(index))
+        .get()
+        .execute()
+        .thenApply(response -> Optional.of(new Shard(index, response.getBody())))
+        .exceptionally(
+            e -> {
+              if (isStatus(e, NOT_FOUND)) {
+                return Optional.empty();
+              }
+              throw asCompletionException(e);
+            });
+  }
+
+  /** Writes the shard if its custom object has the given version, {@code 0} if it is missing. */
+  private CompletableFuture<CustomObject> write(
+      ProjectApiRoot apiRoot, int index, long version, Map<String, Object> value) {
+    return apiRoot
+        .customObjects()
+        .post(
+            CustomObjectDraft.builder()
+                .container(container)
+                .key(key(index))
+                .value(value)
+                .version(version)
+                .build())
+        .execute()
+        .thenApply(ApiHttpResponse::getBody);
+  }
+
+  private CompletableFuture<Void> deleteShards(ProjectApiRoot apiRoot) {
+    CompletableFuture<?>[] deleted = new CompletableFuture<?>[shards];
+    for (int i = 0; i < shards; i++) {
+      deleted[i] =
+          apiRoot
+              .customObjects()
+              .withContainerAndKey(container, key(i))
+              .delete()
+              .execute()
+              .<Void>thenApply(__ -> null)
+              .exceptionally(
+                  e -> {
+                    if (isStatus(e, NOT_FOUND)) {
+                      return null;
+                    }
+                    throw asCompletionException(e);
+                  });
+    }
+    return CompletableFuture.allOf(deleted);
+  }
+
+  /** Returns the custom object key of the shard, the change set id made a valid key. */
+  private String key(int index) {
+    return getId().replaceAll("[^-_~.a-zA-Z0-9]", "_") + "-" + index;
+  }
+
+  private static Map<String, Object> value(
+      String state, String owner, long expiresAt, String lastId) {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put(STATE, state);
+    value.put(OWNER, owner);
+    value.put(EXPIRES_AT, expiresAt);
+    value.put(LAST_ID, lastId);
+    return value;
+  }
+
+  private CompletableFuture<Void> delay() {
+    return CompletableFuture.runAsync(
+        () -> {},
+        CompletableFuture.delayedExecutor(pollInterval.toNanos(), TimeUnit.NANOSECONDS));
+  }
+
+  private static boolean isStatus(Throwable e, int statusCode) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    return cause instanceof ApiHttpException
+        && ((ApiHttpException) cause).getStatusCode() == statusCode;
+  }
+
+  private static CompletionException asCompletionException(Throwable e) {
+    return e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** The state of a shard read from its custom object. */
+  private final class Shard {
+    final int index;
+    final long version;
+    final String state;
+    final String shardOwner;
+    final long expiresAt;
+    final String lastId;
+
+    Shard(int index, CustomObject customObject) {
+      this.index = index;
+      this.version = customObject.getVersion();
+      Map<?, ?> value =
+          customObject.getValue() instanceof Map ? (Map<?, ?>) customObject.getValue() : Map.of();
+      this.state = value.get(STATE) instanceof String ? (String) value.get(STATE) : PENDING;
+      this.shardOwner = value.get(OWNER) instanceof String ? (String) value.get(OWNER) : null;
+      Object expiry = value.get(EXPIRES_AT);
+      this.expiresAt = expiry instanceof Number ? ((Number) expiry).longValue() : 0;
+      this.lastId = value.get(LAST_ID) instanceof String ? (String) value.get(LAST_ID) : null;
+    }
+
+    boolean isHeldByOther(long now) {
+      return shardOwner != null && !owner.equals(shardOwner) && expiresAt > now;
+    }
+  }
+
+  /**
+   * Progress of a claimed shard: every save writes the id of the last completed page, and the
+   * heartbeat renews the lease every third of its duration independently of the progress, e.g.
+   * while resources are retried or after a failed one stopped the saves. Writes are chained, each
+   * with the version of the previous one, so a node whose claim was taken over notices it, and the
+   * checkpoint is then cancelled; it is also cancelled with the checkpoint of the change set.
+   */
+  private final class ShardCheckpoint implements Checkpoint {
+    private final CommerceToolsContext context;
+    private final Checkpoint cancellation;
+    private final int index;
+    private long version;
+    private String lastId;
+    private boolean finished;
+    private boolean lost;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+    ShardCheckpoint(CommerceToolsContext context, Shard claimed, Checkpoint cancellation) {
+      this.context = context;
+      this.cancellation = cancellation;
+      this.index = claimed.index;
+      this.version = claimed.version;
+      this.lastId = claimed.lastId;
+    }
+
+    @Override
+    public synchronized Optional<String> get() {
+      return Optional.ofNullable(lastId);
+    }
+
+    @Override
+    public void save(String progress) {
+      join(saveAsync(progress));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(String progress) {
+      if (progress == null) {
+        return CompletableFuture.failedFuture(
+            new IllegalArgumentException("Progress must not be null"));
+      }
+      return update(PENDING, progress);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (this) {
+        if (lost) {
+          return true;
+        }
+      }
+      return cancellation.isCancelled();
+    }
+
+    /** Renews the lease after a third of its duration, and again until the shard is finished. */
+    void startHeartbeat() {
+      CompletableFuture.runAsync(
+              () -> {},
+              CompletableFuture.delayedExecutor(
+                  leaseDuration.toNanos() / 3, TimeUnit.NANOSECONDS))
+          .thenCompose(__ -> isStopped() ? CompletableFuture.completedFuture(null) : renew())
+          // a failed renewal is retried by the next heartbeat, unless the claim was lost
+          .whenComplete(
+              (result, e) -> {
+                if (!isStopped()) {
+                  startHeartbeat();
+                }
+              });
+    }
+
+    /** Stops the heartbeat, e.g. if the shard could not be processed, so its lease expires. */
+    synchronized void stopHeartbeat() {
+      finished = true;
+    }
+
+    /** Records the final state of the shard and releases the claim. */
+    CompletableFuture<Void> finish(String state) {
+      stopHeartbeat();
+      return update(state, null);
+    }
+
+    private synchronized boolean isStopped() {
+      return finished || lost;
+    }
+
+    private CompletableFuture<Void> renew() {
+      return update(PENDING, null);
+    }
+
+    /**
+     * Chains the write of the shard with the given state and progress, {@code null} to keep the
+     * last one. A pending shard is written with this node as the owner and a renewed lease, unless
+     * the shard is finished by the time the write is due.
+     */
+    private synchronized CompletableFuture<Void> update(String state, String progress) {
+      lastWrite =
+          lastWrite.handle((result, e) -> null).thenCompose(__ -> writeShard(state, progress));
+      return lastWrite;
+    }
+
+    private CompletableFuture<Void> writeShard(String state, String progress) {
+      long expectedVersion;
+      String nextId;
+      synchronized (this) {
+        if (finished && PENDING.equals(state)) {
+          // a heartbeat which checked the shard before it was finished must not make it pending
+          return CompletableFuture.completedFuture(null);
+        }
+        if (lost) {
+          return CompletableFuture.failedFuture(takenOver());
+        }
+        expectedVersion = version;
+        nextId = progress == null ? lastId : progress;
+      }
+      long expiresAt = context.getClock().millis() + leaseDuration.toMillis();
+      Map<String, Object> value =
+          PENDING.equals(state)
+              ? value(PENDING, owner, expiresAt, nextId)
+              : value(state, null, 0, nextId);
+      return write(context.getApiRoot(), index, expectedVersion, value)
+          .thenAccept(
+              written -> {
+                synchronized (this) {
+                  version = written.getVersion();
+                  lastId = nextId;
+                }
+              })
+          .exceptionally(
+              e -> {
+                if (isStatus(e, CONFLICT)) {
+                  synchronized (this) {
+                    lost = true;
+                  }
+                  throw new CompletionException(takenOver());
+                }
+                throw asCompletionException(e);
+              });
+    }
+
+    private IllegalStateException takenOver() {
+      return new IllegalStateException(
+          "Claim of shard " + key(index) + " was taken over by another node");
+    }
+  }
+}
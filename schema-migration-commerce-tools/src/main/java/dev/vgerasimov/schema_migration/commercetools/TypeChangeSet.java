@@ -0,0 +1,123 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static java.util.stream.Collectors.toList;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.type.Type;
+import com.commercetools.api.models.type.TypeUpdate;
+import com.commercetools.api.models.type.TypeUpdateAction;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Change set bringing custom Types to the state declared by {@link TypeDefinition}s. All declared
+ * Types are fetched with a single query (per {@value #MAX_TYPES_PER_QUERY} Types), then every
+ * Type is either created, or updated with a single versioned request containing all actions
+ * computed by {@link TypeDiff}, or left untouched if it is up to date. Requests for different
+ * Types are sent concurrently, so re-applying unchanged definitions costs one query.
+ *
+ * <p>Types are read and written through the {@link CommerceToolsContext#getDefinitions()
+ * definition cache}, so change sets of the same run modifying the same Type read it once and
+ * update the version returned by the previous change set.
+ *
+ * <p>A change set declaring a single Type belongs to the lane of the Type key, see {@link
+ * dev.vgerasimov.schema_migration.ChangeSet#getLane()}.
+ */
+public final class TypeChangeSet extends CommerceToolChangeSet {
+
+  /** Maximum number of Types fetched with a single query. */
+  public static final int MAX_TYPES_PER_QUERY = DefinitionCache.MAX_VALUES_PER_QUERY;
+
+  private final transient List<TypeDefinition> definitions;
+
+  private TypeChangeSet(String id, String checksum, List<TypeDefinition> definitions) {
+    super(id, checksum);
+    Set<String> keys = new HashSet<>();
+    for (TypeDefinition definition : definitions) {
+      if (!keys.add(definition.getKey())) {
+        throw new IllegalArgumentException(
+            "Type " + definition.getKey() + " is declared twice in change set " + id);
+      }
+    }
+    this.definitions = List.copyOf(definitions);
+  }
+
+  public static TypeChangeSet of(String id, String checksum, TypeDefinition... definitions) {
+    return of(id, checksum, List.of(definitions));
+  }
+
+  public static TypeChangeSet of(String id, String checksum, List<TypeDefinition> definitions) {
+    return new TypeChangeSet(id, checksum, definitions);
+  }
+
+  @Override
+  public String getLane() {
+    return definitions.size() == 1 ? definitions.get(0).getKey() : null;
+  }
+
+  @Override
+  public Status mutate(CommerceToolsContext context) {
+    try {
+      return mutateAsync(context).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletionStage<Status> mutateAsync(CommerceToolsContext context) {
+    ProjectApiRoot apiRoot = context.getApiRoot();
+    DefinitionCache cache = context.getDefinitions();
+    DefinitionResource<Type> types = DefinitionResource.types();
+    List<String> keys = definitions.stream().map(TypeDefinition::getKey).collect(toList());
+    return cache
+        .getAll(types, keys)
+        .thenCompose(
+            live -> {
+              List<CompletableFuture<?>> requests = new ArrayList<>();
+              for (TypeDefinition definition : definitions) {
+                Type type = live.get(definition.getKey());
+                if (type == null) {
+                  requests.add(
+                      cache.track(
+                          types,
+                          definition.getKey(),
+                          apiRoot
+                              .types()
+                              .post(definition.toDraft())
+                              .execute()
+                              .thenApply(ApiHttpResponse::getBody)));
+                  continue;
+                }
+                List<TypeUpdateAction> actions = TypeDiff.diff(type, definition);
+                if (!actions.isEmpty()) {
+                  requests.add(
+                      cache.track(
+                          types,
+                          definition.getKey(),
+                          apiRoot
+                              .types()
+                              .withId(type.getId())
+                              .post(
+                                  TypeUpdate.builder()
+                                      .version(type.getVersion())
+                                      .actions(actions)
+                                      .build())
+                              .execute()
+                              .thenApply(ApiHttpResponse::getBody)));
+                }
+              }
+              return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new));
+            })
+        .thenApply(__ -> Status.APPLIED);
+  }
+}
@@ -0,0 +1,40 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.models.common.LocalizedString;
+import com.commercetools.api.models.type.FieldDefinition;
+import com.commercetools.api.models.type.ResourceTypeId;
+import com.commercetools.api.models.type.TypeDraft;
+import java.util.List;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Singular;
+import lombok.Value;
+
+/**
+ * Desired state of a CommerceTools custom Type. {@link TypeDiff} compares it with the live Type
+ * and produces the update actions needed to reach this state.
+ *
+ * <p>Fields of the live Type which are not declared here are kept, unless {@code
+ * removeUndeclaredFields} is set.
+ */
+@Value
+@Builder
+public class TypeDefinition {
+  @NonNull String key;
+  @NonNull LocalizedString name;
+  LocalizedString description;
+  @Singular List<ResourceTypeId> resourceTypeIds;
+  @Singular List<FieldDefinition> fieldDefinitions;
+  boolean removeUndeclaredFields;
+
+  /** Returns the draft creating the Type in this state. */
+  public TypeDraft toDraft() {
+    return TypeDraft.builder()
+        .key(key)
+        .name(name)
+        .description(description)
+        .resourceTypeIds(resourceTypeIds)
+        .fieldDefinitions(fieldDefinitions)
+        .build();
+  }
+}
@@ -0,0 +1,176 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.models.type.CustomFieldEnumType;
+import com.commercetools.api.models.type.CustomFieldEnumValue;
+import com.commercetools.api.models.type.CustomFieldLocalizedEnumType;
+import com.commercetools.api.models.type.CustomFieldLocalizedEnumValue;
+import com.commercetools.api.models.type.CustomFieldSetType;
+import com.commercetools.api.models.type.FieldDefinition;
+import com.commercetools.api.models.type.FieldType;
+import com.commercetools.api.models.type.Type;
+import com.commercetools.api.models.type.TypeAddEnumValueAction;
+import com.commercetools.api.models.type.TypeAddFieldDefinitionAction;
+import com.commercetools.api.models.type.TypeAddLocalizedEnumValueAction;
+import com.commercetools.api.models.type.TypeChangeEnumValueLabelAction;
+import com.commercetools.api.models.type.TypeChangeFieldDefinitionOrderAction;
+import com.commercetools.api.models.type.TypeChangeInputHintAction;
+import com.commercetools.api.models.type.TypeChangeLabelAction;
+import com.commercetools.api.models.type.TypeChangeLocalizedEnumValueLabelAction;
+import com.commercetools.api.models.type.TypeChangeNameAction;
+import com.commercetools.api.models.type.TypeRemoveFieldDefinitionAction;
+import com.commercetools.api.models.type.TypeSetDescriptionAction;
+import com.commercetools.api.models.type.TypeTextInputHint;
+import com.commercetools.api.models.type.TypeUpdateAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Computes the minimal list of update actions turning a live Type into the given {@link
+ * TypeDefinition}. An empty list means the Type is up to date.
+ *
+ * <p>Changes CommerceTools cannot apply in place (the resource types of the Type, the type or the
+ * {@code required} flag of a field) are rejected with {@link IllegalArgumentException}. Values
+ * of enum fields are only added or relabelled, never removed, as existing resources may still
+ * use them.
+ */
+public final class TypeDiff {
+
+  private TypeDiff() {}
+
+  public static List<TypeUpdateAction> diff(Type live, TypeDefinition desired) {
+    if (!new HashSet<>(live.getResourceTypeIds())
+        .equals(new HashSet<>(desired.getResourceTypeIds()))) {
+      throw new IllegalArgumentException(
+          "Resource types of type " + desired.getKey() + " cannot be changed");
+    }
+    List<TypeUpdateAction> actions = new ArrayList<>();
+    if (!Objects.equals(live.getName(), desired.getName())) {
+      actions.add(TypeChangeNameAction.builder().name(desired.getName()).build());
+    }
+    if (!Objects.equals(live.getDescription(), desired.getDescription())) {
+      actions.add(
+          TypeSetDescriptionAction.builder().description(desired.getDescription()).build());
+    }
+
+    Map<String, FieldDefinition> liveFields = byName(live.getFieldDefinitions());
+    Map<String, FieldDefinition> desiredFields = byName(desired.getFieldDefinitions());
+    List<String> order = new ArrayList<>();
+    for (FieldDefinition liveField : live.getFieldDefinitions()) {
+      if (desiredFields.containsKey(liveField.getName())) {
+        order.add(liveField.getName());
+      } else if (desired.isRemoveUndeclaredFields()) {
+        actions.add(
+            TypeRemoveFieldDefinitionAction.builder().fieldName(liveField.getName()).build());
+      } else {
+        order.add(liveField.getName());
+      }
+    }
+    for (FieldDefinition desiredField : desired.getFieldDefinitions()) {
+      FieldDefinition liveField = liveFields.get(desiredField.getName());
+      if (liveField == null) {
+        actions.add(TypeAddFieldDefinitionAction.builder().fieldDefinition(desiredField).build());
+        order.add(desiredField.getName());
+      } else {
+        diffField(desired.getKey(), liveField, desiredField, actions);
+      }
+    }
+
+    // the order can only be set when the Type ends up with exactly the declared fields
+    List<String> desiredOrder = new ArrayList<>(desiredFields.keySet());
+    if (order.size() == desiredOrder.size() && !order.equals(desiredOrder)) {
+      actions.add(TypeChangeFieldDefinitionOrderAction.builder().fieldNames(desiredOrder).build());
+    }
+    return actions;
+  }
+
+  private static void diffField(
+      String typeKey,
+      FieldDefinition live,
+      FieldDefinition desired,
+      List<TypeUpdateAction> actions) {
+    String name = desired.getName();
+    if (!Objects.equals(live.getRequired(), desired.getRequired())) {
+      throw new IllegalArgumentException(
+          "Required flag of field " + name + " of type " + typeKey + " cannot be changed");
+    }
+    if (!Objects.equals(live.getLabel(), desired.getLabel())) {
+      actions.add(
+          TypeChangeLabelAction.builder().fieldName(name).label(desired.getLabel()).build());
+    }
+    TypeTextInputHint desiredHint = desired.getInputHint();
+    if (desiredHint != null && !Objects.equals(live.getInputHint(), desiredHint)) {
+      actions.add(
+          TypeChangeInputHintAction.builder().fieldName(name).inputHint(desiredHint).build());
+    }
+    if (!Objects.equals(live.getType(), desired.getType())) {
+      diffFieldType(typeKey, name, live.getType(), desired.getType(), actions);
+    }
+  }
+
+  /** Only enum values can be changed in place, also when the field is a set of enums. */
+  private static void diffFieldType(
+      String typeKey,
+      String name,
+      FieldType live,
+      FieldType desired,
+      List<TypeUpdateAction> actions) {
+    if (live instanceof CustomFieldSetType && desired instanceof CustomFieldSetType) {
+      diffFieldType(
+          typeKey,
+          name,
+          ((CustomFieldSetType) live).getElementType(),
+          ((CustomFieldSetType) desired).getElementType(),
+          actions);
+    } else if (live instanceof CustomFieldEnumType && desired instanceof CustomFieldEnumType) {
+      Map<String, CustomFieldEnumValue> liveValues =
+          byKey(((CustomFieldEnumType) live).getValues(), CustomFieldEnumValue::getKey);
+      for (CustomFieldEnumValue value : ((CustomFieldEnumType) desired).getValues()) {
+        CustomFieldEnumValue liveValue = liveValues.get(value.getKey());
+        if (liveValue == null) {
+          actions.add(TypeAddEnumValueAction.builder().fieldName(name).value(value).build());
+        } else if (!Objects.equals(liveValue.getLabel(), value.getLabel())) {
+          actions.add(
+              TypeChangeEnumValueLabelAction.builder().fieldName(name).value(value).build());
+        }
+      }
+    } else if (live instanceof CustomFieldLocalizedEnumType
+        && desired instanceof CustomFieldLocalizedEnumType) {
+      Map<String, CustomFieldLocalizedEnumValue> liveValues =
+          byKey(
+              ((CustomFieldLocalizedEnumType) live).getValues(),
+              CustomFieldLocalizedEnumValue::getKey);
+      for (CustomFieldLocalizedEnumValue value :
+          ((CustomFieldLocalizedEnumType) desired).getValues()) {
+        CustomFieldLocalizedEnumValue liveValue = liveValues.get(value.getKey());
+        if (liveValue == null) {
+          actions.add(
+              TypeAddLocalizedEnumValueAction.builder().fieldName(name).value(value).build());
+        } else if (!Objects.equals(liveValue.getLabel(), value.getLabel())) {
+          actions.add(
+              TypeChangeLocalizedEnumValueLabelAction.builder()
+                  .fieldName(name)
+                  .value(value)
+                  .build());
+        }
+      }
+    } else {
+      throw new IllegalArgumentException(
+          "Type of field " + name + " of type " + typeKey + " cannot be changed");
+    }
+  }
+
+  private static Map<String, FieldDefinition> byName(List<FieldDefinition> fields) {
+    return byKey(fields, FieldDefinition::getName);
+  }
+
+  private static <T> Map<String, T> byKey(List<T> values, Function<T, String> key) {
+    return values.stream()
+        .collect(Collectors.toMap(key, Function.identity(), (a, b) -> a, LinkedHashMap::new));
+  }
+}
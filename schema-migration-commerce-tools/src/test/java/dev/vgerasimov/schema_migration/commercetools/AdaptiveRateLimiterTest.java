@@ -0,0 +1,161 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.vrap.rmf.base.client.ApiHttpHeaders;
+import io.vrap.rmf.base.client.ApiHttpRequest;
+import io.vrap.rmf.base.client.ApiHttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveRateLimiterTest {
+
+  /** Sent requests, completed by the tests. */
+  final List<CompletableFuture<ApiHttpResponse<byte[]>>> sent = new CopyOnWriteArrayList<>();
+
+  final Function<ApiHttpRequest, CompletableFuture<ApiHttpResponse<byte[]>>> next =
+      request -> {
+        CompletableFuture<ApiHttpResponse<byte[]>> response = new CompletableFuture<>();
+        sent.add(response);
+        return response;
+      };
+
+  @Test
+  void concurrencyLimited_decreasedOnThrottling_increasedPerRoundTrip() {
+    try (AdaptiveRateLimiter underTest =
+        AdaptiveRateLimiter.builder().initialConcurrency(4).maxRetries(0).build()) {
+      for (int i = 0; i < 10; i++) {
+        underTest.invoke(null, next);
+      }
+      assertEquals(4, sent.size());
+      assertEquals(6, underTest.getQueued());
+
+      sent.get(0).complete(response(429, new ApiHttpHeaders()));
+      // responses to requests sent before the decrease do not decrease the limit again
+      sent.get(1).complete(response(503, new ApiHttpHeaders()));
+
+      assertEquals(2, underTest.getConcurrencyLimit());
+      assertEquals(2, underTest.getInFlight());
+      assertEquals(4, sent.size());
+
+      // additive increase: one per round trip, i.e. 1 / limit per response
+      sent.get(2).complete(response(200, new ApiHttpHeaders()));
+      sent.get(3).complete(response(200, new ApiHttpHeaders()));
+      assertEquals(2, underTest.getConcurrencyLimit());
+      sent.get(4).complete(response(200, new ApiHttpHeaders()));
+
+      assertEquals(3, underTest.getConcurrencyLimit());
+      assertEquals(3, underTest.getInFlight());
+      assertEquals(8, sent.size());
+    }
+  }
+
+  @Test
+  void slowResponse_limitDecreased() throws Exception {
+    try (AdaptiveRateLimiter underTest =
+        AdaptiveRateLimiter.builder()
+            .initialConcurrency(4)
+            .latencyThreshold(Duration.ofMillis(20))
+            .build()) {
+      underTest.invoke(null, next);
+      Thread.sleep(50);
+      sent.get(0).complete(response(200, new ApiHttpHeaders()));
+
+      assertEquals(2, underTest.getConcurrencyLimit());
+    }
+  }
+
+  @Test
+  void retryAfter_retriedAfterRequestedDelay() throws Exception {
+    try (AdaptiveRateLimiter underTest = AdaptiveRateLimiter.builder().build()) {
+      CompletableFuture<ApiHttpResponse<byte[]>> result = underTest.invoke(null, next);
+      long start = System.nanoTime();
+      sent.get(0).complete(response(429, new ApiHttpHeaders().withHeader("Retry-After", "1")));
+
+      Thread.sleep(500);
+      assertEquals(1, sent.size());
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (sent.size() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+      sent.get(1).complete(response(200, new ApiHttpHeaders()));
+
+      assertEquals(200, result.get(1, TimeUnit.SECONDS).getStatusCode());
+    }
+  }
+
+  @Test
+  void longBackoffManyAttempts_saturatedAtMaxBackoff() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    try (AdaptiveRateLimiter underTest =
+        AdaptiveRateLimiter.builder()
+            .maxRetries(40)
+            .baseBackoff(Duration.ofSeconds(10))
+            .maxBackoff(Duration.ofMillis(1))
+            .build()) {
+      CompletableFuture<ApiHttpResponse<byte[]>> result =
+          underTest.invoke(
+              null,
+              request ->
+                  CompletableFuture.completedFuture(
+                      attempts.incrementAndGet() <= 40
+                          ? response(429, new ApiHttpHeaders())
+                          : response(200, new ApiHttpHeaders())));
+
+      assertEquals(200, result.get(10, TimeUnit.SECONDS).getStatusCode());
+      assertEquals(41, attempts.get());
+    }
+  }
+
+  @Test
+  void emptyBucket_requestsPacedByRefill() throws Exception {
+    try (AdaptiveRateLimiter underTest =
+        AdaptiveRateLimiter.builder().requestsPerSecond(100.0).burst(1).build()) {
+      long start = System.nanoTime();
+      List<CompletableFuture<ApiHttpResponse<byte[]>>> results = new ArrayList<>();
+      for (int i = 0; i < 11; i++) {
+        results.add(
+            underTest.invoke(
+                null,
+                request -> CompletableFuture.completedFuture(response(200, new ApiHttpHeaders()))));
+      }
+      CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+      // one request from the burst, then one per refilled token every 10 ms
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+  }
+
+  @Test
+  void cancelledWhileWaiting_permitNotLeaked() {
+    try (AdaptiveRateLimiter underTest =
+        AdaptiveRateLimiter.builder().initialConcurrency(1).minConcurrency(1).build()) {
+      underTest.invoke(null, next);
+      CompletableFuture<ApiHttpResponse<byte[]>> cancelled = underTest.invoke(null, next);
+      underTest.invoke(null, next);
+
+      cancelled.cancel(false);
+      assertEquals(1, underTest.getQueued());
+      sent.get(0).complete(response(200, new ApiHttpHeaders()));
+
+      // the third request is sent in place of the cancelled one
+      assertEquals(2, sent.size());
+      assertEquals(1, underTest.getInFlight());
+      sent.get(1).complete(response(200, new ApiHttpHeaders()));
+      assertEquals(0, underTest.getInFlight());
+    }
+  }
+
+  private static ApiHttpResponse<byte[]> response(int statusCode, ApiHttpHeaders headers) {
+    return new ApiHttpResponse<>(statusCode, headers, new byte[0]);
+  }
+}
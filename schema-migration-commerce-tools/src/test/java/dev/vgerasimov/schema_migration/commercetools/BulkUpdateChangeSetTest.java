@@ -0,0 +1,118 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.models.product.Product;
+import com.commercetools.api.models.product.ProductSetKeyAction;
+import com.commercetools.api.models.product.ProductUpdateAction;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.InMemoryHistorySource;
+import dev.vgerasimov.schema_migration.MigrationResult;
+import dev.vgerasimov.schema_migration.Schema;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BulkUpdateChangeSetTest {
+
+  CommerceToolsStandIn standIn;
+  BulkUpdateChangeSet<Product, ProductUpdateAction> underTest;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    underTest =
+        BulkUpdateChangeSet.<Product, ProductUpdateAction>builder()
+            .id("1")
+            .resource(BulkResource.products())
+            .actions(
+                product ->
+                    product.getKey() == null
+                        ? List.of(ProductSetKeyAction.builder().key("k-" + product.getId()).build())
+                        : List.of())
+            .pageSize(10)
+            .concurrency(4)
+            .build();
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void versionConflicts_retriedAndAllUpdated() throws Exception {
+    List<String> ids = standIn.addProducts(25);
+    standIn.injectConflicts(3);
+
+    var actual =
+        (BulkUpdateChangeSet.Result)
+            underTest
+                .applyAsync(new CommerceToolsContext(Clock.systemUTC(), standIn.apiRoot()))
+                .toCompletableFuture()
+                .get(10, TimeUnit.SECONDS);
+
+    assertEquals(ChangeSet.Status.APPLIED, actual.getStatus());
+    assertEquals(25, actual.getProcessed());
+    assertEquals(25, actual.getUpdated());
+    for (String id : ids) {
+      assertEquals("k-" + id, standIn.getProduct(id).path("key").asText());
+    }
+    // three pages, the last one not full, and a fetch after every conflict
+    assertEquals(6, standIn.getRequestCount("GET products"));
+  }
+
+  @Test
+  void tooManyRequests_retriedByRateLimiter() throws Exception {
+    standIn.addProducts(5);
+    standIn.injectTooManyRequests(4);
+    try (AdaptiveRateLimiter limiter =
+        AdaptiveRateLimiter.builder().baseBackoff(Duration.ofMillis(1)).build()) {
+      ProjectApiRoot apiRoot =
+          standIn.apiRootBuilder().addMiddleware(limiter).build(CommerceToolsStandIn.PROJECT_KEY);
+      var context = new CommerceToolsContext(Clock.systemUTC(), apiRoot);
+
+      var actual =
+          (BulkUpdateChangeSet.Result)
+              underTest.applyAsync(context).toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+      assertEquals(ChangeSet.Status.APPLIED, actual.getStatus());
+      assertEquals(5, actual.getUpdated());
+    }
+  }
+
+  @Test
+  void timeout_noRequestsSentAfterDeadline() throws Exception {
+    standIn.addProducts(500);
+    standIn.setLatency(Duration.ofMillis(5), Duration.ZERO);
+    Schema<CommerceToolsContext> schema =
+        Schema.<CommerceToolsContext>builder()
+            .historySource(new InMemoryHistorySource())
+            .changeSetTimeout(Duration.ofMillis(200))
+            .build();
+
+    MigrationResult actual =
+        schema
+            .applyAsync(
+                new CommerceToolsContext(Clock.systemUTC(), standIn.apiRoot()),
+                List.of(underTest))
+            .get(10, TimeUnit.SECONDS);
+    // requests in flight at the deadline still complete
+    Thread.sleep(100);
+    long sent = standIn.getRequestCount();
+    Thread.sleep(200);
+
+    assertEquals(
+        new MigrationResult.ApplicationFailed(
+            List.of(new ChangeSet.TimedOut("1", Duration.ofMillis(200)))),
+        actual);
+    assertEquals(sent, standIn.getRequestCount());
+    assertTrue(standIn.getRequestCount("POST products") < 500);
+  }
+}
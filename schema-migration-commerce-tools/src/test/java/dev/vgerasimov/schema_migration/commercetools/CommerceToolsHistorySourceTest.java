@@ -0,0 +1,84 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CommerceToolsHistorySourceTest {
+  static final String CONTAINER = "history";
+
+  CommerceToolsStandIn standIn;
+  CommerceToolsHistorySource underTest;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    underTest = new CommerceToolsHistorySource(standIn.apiRoot(), objectMapper, CONTAINER, 2);
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void savedRecords_loadedInOrderPageByPage() {
+    underTest.saveRecords(List.of(record("3"), record("1"), record("5"), record("2"), record("4")));
+    long before = standIn.getRequestCount("POST graphql");
+
+    List<HistoryRecord> history = underTest.getHistory();
+
+    assertEquals(List.of("1", "2", "3", "4", "5"), ids(history));
+    // three pages of two records
+    assertEquals(3, standIn.getRequestCount("POST graphql") - before);
+    try (Stream<HistoryRecord> stream = underTest.streamHistory()) {
+      assertEquals(history, stream.collect(toList()));
+    }
+    assertEquals(record("5"), underTest.getHead().orElseThrow());
+  }
+
+  @Test
+  void savedRecord_revisionChanged() {
+    underTest.saveRecord(record("1"));
+    String revision = underTest.getRevision().orElseThrow();
+
+    underTest.saveRecord(record("1").withChainHash("chain"));
+
+    assertNotEquals(revision, underTest.getRevision().orElseThrow());
+    assertEquals("chain", underTest.getHead().map(HistoryRecord::getChainHash).orElseThrow());
+  }
+
+  @Test
+  void baseline_recordsArchived() {
+    underTest.saveRecords(List.of(record("1"), record("2"), record("3")));
+    HistoryRecord baseline =
+        new HistoryRecord(
+            "2", LocalDateTime.of(2024, 1, 1, 0, 0), HistoryRecord.Status.BASELINE, "c", "c");
+
+    underTest.saveBaseline(baseline);
+
+    assertEquals(List.of(baseline, record("3")), underTest.getHistory());
+    assertEquals(
+        2, standIn.getCustomObjects(CONTAINER + CommerceToolsHistorySource.ARCHIVE_SUFFIX).size());
+  }
+
+  private static HistoryRecord record(String id) {
+    return new HistoryRecord(
+        id, LocalDateTime.of(2024, 1, 1, 0, 0), HistoryRecord.Status.SUCCESS, "checksum-" + id);
+  }
+
+  private static List<String> ids(List<HistoryRecord> records) {
+    return records.stream().map(HistoryRecord::getId).collect(toList());
+  }
+}
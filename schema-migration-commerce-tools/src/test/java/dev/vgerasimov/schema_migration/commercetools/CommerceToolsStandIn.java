@@ -0,0 +1,777 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import com.commercetools.api.client.ProjectApiRoot;
+import com.commercetools.api.defaultconfig.ApiRootBuilder;
+import com.commercetools.importapi.defaultconfig.ImportApiRootBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.vrap.rmf.base.client.oauth2.ClientCredentials;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-process stand-in for the subset of the CommerceTools API used by this module, served by the
+ * JDK's HTTP server on a random local port:
+ *
+ * <ul>
+ *   <li>the client credentials token endpoint, accepting any credentials;
+ *   <li>GraphQL {@code customObjects} queries and aliased {@code createOrUpdateCustomObject} and
+ *       {@code deleteCustomObject} mutations, as sent by {@link CommerceToolsHistorySource};
+ *   <li>custom objects: query by container, get, upsert with optional version check, delete;
+ *   <li>Types: query by {@code key in (...)}, create, and the update actions of {@link TypeDiff};
+ *   <li>products: paging by {@code id > "..."} sorted by id, limited to an id range by {@code id
+ *       >= "..."} and {@code id < "..."}, get, and update with version check. Update actions are
+ *       passed to the product updater, which only handles {@code setKey} by default; every other
+ *       predicate than the id cursor and range is ignored;
+ *   <li>Import API: import containers (create, delete, import summary) and customer imports,
+ *       whose resources are imported right away.
+ * </ul>
+ *
+ * <p>Every request is delayed by the configured latency plus a random jitter, and faults can be
+ * injected: the next requests may be answered with 429, the next versioned writes with a version
+ * conflict (409), and the next import requests with 503. Requests are counted by method and
+ * resource, e.g. {@code "POST graphql"}.
+ */
+class CommerceToolsStandIn implements AutoCloseable {
+  static final String PROJECT_KEY = "stand-in";
+
+  private static final Pattern WHERE_KEY_AFTER = Pattern.compile("key > \"([^\"]*)\"");
+  private static final Pattern WHERE_ID_AFTER = Pattern.compile("id > \"([^\"]*)\"");
+  private static final Pattern WHERE_ID_FROM = Pattern.compile("id >= \"([^\"]*)\"");
+  private static final Pattern WHERE_ID_BEFORE = Pattern.compile("id < \"([^\"]*)\"");
+  private static final Pattern WHERE_KEY_IN = Pattern.compile("key in \\(([^)]*)\\)");
+  private static final Pattern UPSERT =
+      Pattern.compile("(\\w+): createOrUpdateCustomObject\\(draft: \\$(\\w+)\\)");
+  private static final Pattern DELETE =
+      Pattern.compile("(\\w+): deleteCustomObject\\(container: \\$(\\w+), key: \\$(\\w+)\\)");
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /** Custom objects by container and key. */
+  private final Map<String, TreeMap<String, ObjectNode>> customObjects = new HashMap<>();
+
+  private final TreeMap<String, ObjectNode> types = new TreeMap<>();
+  private final TreeMap<String, ObjectNode> products = new TreeMap<>();
+
+  /** Numbers of imported resources by import container key. */
+  private final Map<String, Long> importContainers = new HashMap<>();
+
+  private final Map<ObjectNode, Long> modifiedAt = new IdentityHashMap<>();
+  private long modifications;
+
+  private volatile Duration latency = Duration.ZERO;
+  private volatile Duration jitter = Duration.ZERO;
+  private volatile BiConsumer<ObjectNode, JsonNode> productUpdater = CommerceToolsStandIn::setKey;
+  private final AtomicInteger tooManyRequests = new AtomicInteger();
+  private final AtomicInteger conflicts = new AtomicInteger();
+  private final AtomicInteger unavailableImports = new AtomicInteger();
+  private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+  CommerceToolsStandIn() {
+    try {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  URI getUri() {
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+  }
+
+  /** Returns a builder of api roots pointing at this server, e.g. to add middlewares. */
+  ApiRootBuilder apiRootBuilder() {
+    return ApiRootBuilder.of()
+        .defaultClient(
+            ClientCredentials.of().withClientId("client").withClientSecret("secret").build(),
+            getUri() + "/oauth/token",
+            getUri().toString());
+  }
+
+  ProjectApiRoot apiRoot() {
+    return apiRootBuilder().build(PROJECT_KEY);
+  }
+
+  com.commercetools.importapi.client.ProjectApiRoot importApiRoot() {
+    return ImportApiRootBuilder.of()
+        .defaultClient(
+            ClientCredentials.of().withClientId("client").withClientSecret("secret").build(),
+            getUri() + "/oauth/token",
+            getUri().toString())
+        .build(PROJECT_KEY);
+  }
+
+  /** Delays every response by the given latency plus a uniformly distributed jitter. */
+  void setLatency(Duration latency, Duration jitter) {
+    this.latency = latency;
+    this.jitter = jitter;
+  }
+
+  /** Answers the next given number of requests with 429, except for token requests. */
+  void injectTooManyRequests(int count) {
+    tooManyRequests.set(count);
+  }
+
+  /** Answers the next given number of versioned writes with a version conflict. */
+  void injectConflicts(int count) {
+    conflicts.set(count);
+  }
+
+  /** Answers the next given number of import requests with 503. */
+  void injectUnavailableImports(int count) {
+    unavailableImports.set(count);
+  }
+
+  /** Replaces the function applying a single product update action to the product. */
+  void setProductUpdater(BiConsumer<ObjectNode, JsonNode> productUpdater) {
+    this.productUpdater = productUpdater;
+  }
+
+  /** Adds products with random ids and returns their ids in ascending order. */
+  synchronized List<String> addProducts(int count) {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ObjectNode product = newResource(UUID.randomUUID().toString());
+      products.put(product.path("id").asText(), product);
+      ids.add(product.path("id").asText());
+    }
+    ids.sort(Comparator.naturalOrder());
+    return ids;
+  }
+
+  synchronized JsonNode getProduct(String id) {
+    return products.get(id);
+  }
+
+  /** Returns the keys of the existing import containers. */
+  synchronized List<String> getImportContainers() {
+    return importContainers.keySet().stream().sorted().collect(Collectors.toList());
+  }
+
+  synchronized List<JsonNode> getCustomObjects(String container) {
+    return new ArrayList<>(customObjects.getOrDefault(container, new TreeMap<>()).values());
+  }
+
+  /** Returns the number of requests by method and resource, e.g. {@code "GET products"}. */
+  long getRequestCount(String request) {
+    LongAdder count = requests.get(request);
+    return count == null ? 0 : count.sum();
+  }
+
+  long getRequestCount() {
+    return requests.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getRawPath();
+      String method = exchange.getRequestMethod();
+      if (path.equals("/oauth/token")) {
+        respond(exchange, 200, token());
+        return;
+      }
+      List<String> segments =
+          Stream.of(path.split("/"))
+              .filter(segment -> !segment.isEmpty())
+              .map(segment -> URLDecoder.decode(segment, StandardCharsets.UTF_8))
+              .collect(Collectors.toList());
+      if (segments.size() < 2 || !segments.get(0).equals(PROJECT_KEY)) {
+        respond(exchange, 404, error(404, "ResourceNotFound", "Unknown path " + path));
+        return;
+      }
+      requests.computeIfAbsent(method + " " + segments.get(1), __ -> new LongAdder()).increment();
+      delay();
+      if (tooManyRequests.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+        exchange.getResponseHeaders().add("Retry-After", "0");
+        respond(exchange, 429, error(429, "TooManyRequests", "Too many requests"));
+        return;
+      }
+      Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+      JsonNode body = method.equals("POST") ? read(exchange.getRequestBody()) : null;
+      Response response = route(method, segments.subList(1, segments.size()), query, body);
+      respond(exchange, response.status, response.body);
+    } catch (RuntimeException e) {
+      respond(exchange, 500, error(500, "General", String.valueOf(e)));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Response route(
+      String method, List<String> path, Map<String, String> query, JsonNode body) {
+    String resource = path.get(0);
+    switch (resource + " " + method + " " + path.size()) {
+      case "graphql POST 1":
+        return graphql(body);
+      case "custom-objects POST 1":
+        return upsertCustomObject(body, true);
+      case "custom-objects GET 2":
+        return queryCustomObjects(path.get(1), query);
+      case "custom-objects GET 3":
+        return getCustomObject(path.get(1), path.get(2));
+      case "custom-objects DELETE 3":
+        return deleteCustomObject(path.get(1), path.get(2), query.get("version"));
+      case "types GET 1":
+        return queryTypes(query);
+      case "types POST 1":
+        return createType(body);
+      case "types POST 2":
+        return updateType(path.get(1), body);
+      case "products GET 1":
+        return queryProducts(query);
+      case "products GET 2":
+        return getProduct(path.get(1), "product");
+      case "products POST 2":
+        return updateProduct(path.get(1), body);
+      case "import-containers POST 1":
+        return createImportContainer(body);
+      case "import-containers DELETE 2":
+        return deleteImportContainer(path.get(1));
+      case "import-containers GET 3":
+        return getImportSummary(path.get(1));
+      case "customers POST 3":
+        return importResources(path.get(2), body);
+      default:
+        return notFound("Unsupported request " + method + " " + String.join("/", path));
+    }
+  }
+
+  private synchronized Response graphql(JsonNode body) {
+    String query = body.path("query").asText();
+    JsonNode variables = body.path("variables");
+    ObjectNode data = mapper.createObjectNode();
+    ArrayNode errors = mapper.createArrayNode();
+    if (query.contains("customObjects(")) {
+      String where = variables.path("where").isTextual() ? variables.path("where").asText() : null;
+      List<ObjectNode> page =
+          page(
+              customObjects(variables.path("container").asText()),
+              where,
+              variables.path("sort").path(0).asText("key asc"),
+              variables.path("limit").asInt(20));
+      ObjectNode result = data.putObject("customObjects");
+      result.put("total", customObjects(variables.path("container").asText()).size());
+      page.forEach(result.putArray("results")::add);
+    }
+    Matcher upserts = UPSERT.matcher(query);
+    while (upserts.find()) {
+      ObjectNode draft = variables.path(upserts.group(2)).deepCopy();
+      // GraphQL drafts carry the value as a JSON string
+      draft.set("value", parse(draft.path("value").asText()));
+      Response response = upsertCustomObject(draft, false);
+      if (response.status == 200) {
+        data.set(upserts.group(1), response.body);
+      } else {
+        data.putNull(upserts.group(1));
+        errors.add(response.body);
+      }
+    }
+    Matcher deletes = DELETE.matcher(query);
+    while (deletes.find()) {
+      Response response =
+          deleteCustomObject(
+              variables.path(deletes.group(2)).asText(),
+              variables.path(deletes.group(3)).asText(),
+              null);
+      if (response.status == 200) {
+        data.set(deletes.group(1), response.body);
+      } else {
+        data.putNull(deletes.group(1));
+        errors.add(response.body);
+      }
+    }
+    ObjectNode response = mapper.createObjectNode();
+    response.set("data", data);
+    if (!errors.isEmpty()) {
+      response.set("errors", errors);
+    }
+    return new Response(200, response);
+  }
+
+  private synchronized Response upsertCustomObject(JsonNode draft, boolean versioned) {
+    String container = draft.path("container").asText();
+    String key = draft.path("key").asText();
+    ObjectNode existing = customObjects(container).get(key);
+    if (versioned && draft.hasNonNull("version")) {
+      long version = draft.path("version").asLong();
+      long current = existing == null ? 0 : existing.path("version").asLong();
+      if (version != current || injectConflict()) {
+        return conflict(current);
+      }
+    }
+    ObjectNode customObject =
+        existing == null ? newResource(UUID.randomUUID().toString()) : existing;
+    customObject.put("container", container);
+    customObject.put("key", key);
+    customObject.set("value", draft.path("value"));
+    if (existing != null) {
+      touch(customObject);
+    }
+    customObjects(container).put(key, customObject);
+    return new Response(200, customObject);
+  }
+
+  private synchronized Response queryCustomObjects(String container, Map<String, String> query) {
+    TreeMap<String, ObjectNode> objects = customObjects(container);
+    return pagedResponse(
+        page(
+            objects,
+            query.get("where"),
+            query.getOrDefault("sort", "key asc"),
+            Integer.parseInt(query.getOrDefault("limit", "20"))),
+        objects.size());
+  }
+
+  private synchronized Response getCustomObject(String container, String key) {
+    ObjectNode customObject = customObjects(container).get(key);
+    return customObject == null
+        ? notFound("Custom object " + container + "/" + key + " not found")
+        : new Response(200, customObject);
+  }
+
+  private synchronized Response deleteCustomObject(String container, String key, String version) {
+    ObjectNode customObject = customObjects(container).get(key);
+    if (customObject == null) {
+      return notFound("Custom object " + container + "/" + key + " not found");
+    }
+    long current = customObject.path("version").asLong();
+    if (version != null && (Long.parseLong(version) != current || injectConflict())) {
+      return conflict(current);
+    }
+    modifiedAt.remove(customObjects(container).remove(key));
+    modifications++;
+    return new Response(200, customObject);
+  }
+
+  private synchronized Response queryTypes(Map<String, String> query) {
+    List<ObjectNode> matching = new ArrayList<>();
+    Matcher keyIn = WHERE_KEY_IN.matcher(query.getOrDefault("where", ""));
+    if (keyIn.find()) {
+      for (String key : keyIn.group(1).split(",")) {
+        String unquoted = key.trim().replace("\"", "");
+        types.values().stream()
+            .filter(type -> type.path("key").asText().equals(unquoted))
+            .forEach(matching::add);
+      }
+    } else {
+      matching.addAll(types.values());
+    }
+    return pagedResponse(matching, matching.size());
+  }
+
+  private synchronized Response createType(JsonNode draft) {
+    String key = draft.path("key").asText();
+    if (types.values().stream().anyMatch(type -> type.path("key").asText().equals(key))) {
+      return new Response(
+          400, error(400, "DuplicateField", "A type with key '" + key + "' already exists"));
+    }
+    ObjectNode type = newResource(UUID.randomUUID().toString());
+    type.setAll((ObjectNode) draft.deepCopy());
+    if (!type.has("fieldDefinitions")) {
+      type.putArray("fieldDefinitions");
+    }
+    types.put(type.path("id").asText(), type);
+    return new Response(201, type);
+  }
+
+  private synchronized Response updateType(String id, JsonNode update) {
+    ObjectNode type = types.get(id);
+    if (type == null) {
+      return notFound("Type " + id + " not found");
+    }
+    Response conflict = checkVersion(type, update);
+    if (conflict != null) {
+      return conflict;
+    }
+    for (JsonNode action : update.path("actions")) {
+      String error = applyTypeAction(type, action);
+      if (error != null) {
+        return new Response(400, error(400, "InvalidOperation", error));
+      }
+    }
+    touch(type);
+    return new Response(200, type);
+  }
+
+  /** Applies the update action to the type, returns an error message if it is not supported. */
+  private String applyTypeAction(ObjectNode type, JsonNode action) {
+    ArrayNode fields = (ArrayNode) type.withArray("fieldDefinitions");
+    ObjectNode field = field(fields, action.path("fieldName").asText());
+    switch (action.path("action").asText()) {
+      case "changeName":
+        type.set("name", action.path("name"));
+        return null;
+      case "setDescription":
+        type.set("description", action.path("description"));
+        return null;
+      case "addFieldDefinition":
+        fields.add(action.path("fieldDefinition"));
+        return null;
+      case "removeFieldDefinition":
+        for (Iterator<JsonNode> i = fields.elements(); i.hasNext(); ) {
+          if (i.next() == field) {
+            i.remove();
+          }
+        }
+        return null;
+      case "changeFieldDefinitionOrder":
+        ArrayNode ordered = mapper.createArrayNode();
+        action.path("fieldNames").forEach(name -> ordered.add(field(fields, name.asText())));
+        type.set("fieldDefinitions", ordered);
+        return null;
+      case "changeLabel":
+        field.set("label", action.path("label"));
+        return null;
+      case "changeInputHint":
+        field.set("inputHint", action.path("inputHint"));
+        return null;
+      case "addEnumValue":
+      case "addLocalizedEnumValue":
+        ((ArrayNode) enumValues(field)).add(action.path("value"));
+        return null;
+      case "changeEnumValueLabel":
+      case "changeLocalizedEnumValueLabel":
+        JsonNode value = action.path("value");
+        for (JsonNode existing : enumValues(field)) {
+          if (existing.path("key").equals(value.path("key"))) {
+            ((ObjectNode) existing).set("label", value.path("label"));
+          }
+        }
+        return null;
+      default:
+        return "Unsupported update action " + action.path("action").asText();
+    }
+  }
+
+  private synchronized Response queryProducts(Map<String, String> query) {
+    String where = query.get("where");
+    NavigableMap<String, ObjectNode> range = products;
+    String from = cursor(WHERE_ID_FROM, where);
+    String before = cursor(WHERE_ID_BEFORE, where);
+    if (from != null) {
+      range = range.tailMap(from, true);
+    }
+    if (before != null) {
+      range = range.headMap(before, false);
+    }
+    return pagedResponse(
+        page(
+            range,
+            cursor(WHERE_ID_AFTER, where),
+            Integer.parseInt(query.getOrDefault("limit", "20"))),
+        products.size());
+  }
+
+  private synchronized Response getProduct(String id, String resource) {
+    ObjectNode product = products.get(id);
+    return product == null
+        ? notFound("The " + resource + " with ID '" + id + "' was not found.")
+        : new Response(200, product);
+  }
+
+  private synchronized Response updateProduct(String id, JsonNode update) {
+    ObjectNode product = products.get(id);
+    if (product == null) {
+      return getProduct(id, "product");
+    }
+    Response conflict = checkVersion(product, update);
+    if (conflict != null) {
+      return conflict;
+    }
+    update.path("actions").forEach(action -> productUpdater.accept(product, action));
+    touch(product);
+    return new Response(200, product);
+  }
+
+  private static void setKey(ObjectNode product, JsonNode action) {
+    if (action.path("action").asText().equals("setKey")) {
+      product.set("key", action.path("key"));
+    }
+  }
+
+  /**
+   * Returns the resources matching the {@code key > "..."} cursor of the predicate, sorted and
+   * limited.
+   */
+  private List<ObjectNode> page(
+      TreeMap<String, ObjectNode> resources, String where, String sort, int limit) {
+    Comparator<ObjectNode> order;
+    switch (sort) {
+      case "key desc":
+        order = Comparator.comparing((ObjectNode node) -> node.path("key").asText()).reversed();
+        break;
+      case "lastModifiedAt desc":
+        order = Comparator.comparing((ObjectNode node) -> modifiedAt.get(node)).reversed();
+        break;
+      default:
+        order = Comparator.comparing(node -> node.path("key").asText());
+    }
+    String after = cursor(WHERE_KEY_AFTER, where);
+    return resources.values().stream()
+        .filter(node -> after == null || node.path("key").asText().compareTo(after) > 0)
+        .sorted(order)
+        .limit(limit)
+        .collect(Collectors.toList());
+  }
+
+  /** Returns the resources whose ids follow the cursor, in the order of ids. */
+  private static List<ObjectNode> page(
+      NavigableMap<String, ObjectNode> resourcesById, String after, int limit) {
+    return (after == null ? resourcesById : resourcesById.tailMap(after, false))
+        .values().stream().limit(limit).collect(Collectors.toList());
+  }
+
+  private static String cursor(Pattern pattern, String where) {
+    if (where == null) {
+      return null;
+    }
+    Matcher matcher = pattern.matcher(where);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  private synchronized Response createImportContainer(JsonNode draft) {
+    String key = draft.path("key").asText();
+    if (importContainers.putIfAbsent(key, 0L) != null) {
+      return new Response(400, error(400, "DuplicateField", "Import container " + key + " exists"));
+    }
+    return new Response(200, importContainer(key));
+  }
+
+  private synchronized Response deleteImportContainer(String key) {
+    return importContainers.remove(key) == null
+        ? notFound("Import container " + key + " not found")
+        : new Response(200, importContainer(key));
+  }
+
+  private synchronized Response getImportSummary(String key) {
+    Long imported = importContainers.get(key);
+    if (imported == null) {
+      return notFound("Import container " + key + " not found");
+    }
+    ObjectNode summary = mapper.createObjectNode();
+    ObjectNode states = summary.putObject("states");
+    states.put("processing", 0);
+    states.put("validationFailed", 0);
+    states.put("unresolved", 0);
+    states.put("waitForMasterVariant", 0);
+    states.put("imported", imported);
+    states.put("rejected", 0);
+    summary.put("total", imported);
+    return new Response(200, summary);
+  }
+
+  private synchronized Response importResources(String key, JsonNode request) {
+    if (unavailableImports.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+      return new Response(503, error(503, "ServiceUnavailable", "Service unavailable"));
+    }
+    if (!importContainers.containsKey(key)) {
+      return notFound("Import container " + key + " not found");
+    }
+    importContainers.merge(key, (long) request.path("resources").size(), Long::sum);
+    ObjectNode response = mapper.createObjectNode();
+    response.putArray("operationStatus");
+    return new Response(201, response);
+  }
+
+  private ObjectNode importContainer(String key) {
+    ObjectNode container = mapper.createObjectNode();
+    container.put("key", key);
+    container.put("resourceType", "customer");
+    container.put("version", 1);
+    container.put("createdAt", Instant.now().toString());
+    container.put("lastModifiedAt", Instant.now().toString());
+    return container;
+  }
+
+  private Response pagedResponse(List<ObjectNode> results, int total) {
+    ObjectNode response = mapper.createObjectNode();
+    response.put("limit", results.size());
+    response.put("offset", 0);
+    response.put("count", results.size());
+    response.put("total", total);
+    results.forEach(response.putArray("results")::add);
+    return new Response(200, response);
+  }
+
+  private Response checkVersion(ObjectNode resource, JsonNode update) {
+    long current = resource.path("version").asLong();
+    return update.path("version").asLong() != current || injectConflict()
+        ? conflict(current)
+        : null;
+  }
+
+  private boolean injectConflict() {
+    return conflicts.getAndUpdate(n -> Math.max(n - 1, 0)) > 0;
+  }
+
+  private Response conflict(long currentVersion) {
+    ObjectNode error = error(409, "ConcurrentModification", "Version mismatch");
+    ((ObjectNode) error.path("errors").path(0)).put("currentVersion", currentVersion);
+    return new Response(409, error);
+  }
+
+  private Response notFound(String message) {
+    return new Response(404, error(404, "ResourceNotFound", message));
+  }
+
+  private ObjectNode error(int status, String code, String message) {
+    ObjectNode error = mapper.createObjectNode();
+    error.put("statusCode", status);
+    error.put("message", message);
+    ObjectNode detail = error.putArray("errors").addObject();
+    detail.put("code", code);
+    detail.put("message", message);
+    return error;
+  }
+
+  private ObjectNode token() {
+    ObjectNode token = mapper.createObjectNode();
+    token.put("access_token", UUID.randomUUID().toString());
+    token.put("token_type", "Bearer");
+    token.put("expires_in", 172800);
+    token.put("scope", "manage_project:" + PROJECT_KEY);
+    return token;
+  }
+
+  private ObjectNode newResource(String id) {
+    ObjectNode resource = mapper.createObjectNode();
+    resource.put("id", id);
+    resource.put("version", 0);
+    resource.put("createdAt", Instant.now().toString());
+    touch(resource);
+    return resource;
+  }
+
+  /** Increments the version and the modification counter used for {@code lastModifiedAt}. */
+  private void touch(ObjectNode resource) {
+    resource.put("version", resource.path("version").asLong() + 1);
+    resource.put("lastModifiedAt", Instant.now().toString());
+    modifiedAt.put(resource, ++modifications);
+  }
+
+  private TreeMap<String, ObjectNode> customObjects(String container) {
+    return customObjects.computeIfAbsent(container, __ -> new TreeMap<>());
+  }
+
+  private static ObjectNode field(ArrayNode fields, String name) {
+    for (JsonNode field : fields) {
+      if (Objects.equals(field.path("name").asText(), name)) {
+        return (ObjectNode) field;
+      }
+    }
+    return null;
+  }
+
+  private static JsonNode enumValues(ObjectNode field) {
+    JsonNode type = field.path("type");
+    return type.has("elementType")
+        ? ((ObjectNode) type.path("elementType")).withArray("values")
+        : ((ObjectNode) type).withArray("values");
+  }
+
+  private void delay() {
+    long nanos =
+        latency.toNanos()
+            + (jitter.isZero() ? 0 : ThreadLocalRandom.current().nextLong(jitter.toNanos()));
+    if (nanos > 0) {
+      try {
+        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private JsonNode read(InputStream in) throws IOException {
+    byte[] bytes = in.readAllBytes();
+    return bytes.length == 0 ? mapper.createObjectNode() : mapper.readTree(bytes);
+  }
+
+  private JsonNode parse(String json) {
+    try {
+      return mapper.readTree(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+    byte[] bytes = mapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static Map<String, String> query(String rawQuery) {
+    Map<String, String> parameters = new HashMap<>();
+    if (rawQuery == null) {
+      return parameters;
+    }
+    for (String parameter : rawQuery.split("&")) {
+      int separator = parameter.indexOf('=');
+      String name = separator < 0 ? parameter : parameter.substring(0, separator);
+      String value = separator < 0 ? "" : parameter.substring(separator + 1);
+      parameters.put(
+          URLDecoder.decode(name, StandardCharsets.UTF_8),
+          URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return parameters;
+  }
+
+  private static final class Response {
+    final int status;
+    final JsonNode body;
+
+    Response(int status, JsonNode body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+}
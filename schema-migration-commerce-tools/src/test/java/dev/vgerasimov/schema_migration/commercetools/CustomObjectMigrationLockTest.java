@@ -0,0 +1,110 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.vgerasimov.schema_migration.MigrationLock;
+import java.time.Clock;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CustomObjectMigrationLockTest {
+  private static final String CONTAINER = "migration-lock";
+
+  CommerceToolsStandIn standIn;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void heldByOther_notAcquiredUntilReleased() {
+    try (CustomObjectMigrationLock first = lock("a", Clock.systemUTC(), Duration.ofSeconds(5));
+        CustomObjectMigrationLock second = lock("b", Clock.systemUTC(), Duration.ofMillis(100))) {
+      MigrationLock.Lease lease = first.acquire();
+
+      assertThrows(IllegalStateException.class, second::acquire);
+
+      lease.release();
+      MigrationLock.Lease taken = second.acquire();
+      assertFalse(lease.isValid());
+      assertTrue(taken.isValid());
+      taken.release();
+      assertTrue(standIn.getCustomObjects(CONTAINER).isEmpty());
+    }
+  }
+
+  @Test
+  void renewedByHeartbeat_notTakenOverAfterLeaseDuration() throws Exception {
+    try (CustomObjectMigrationLock first = lock("a", Clock.systemUTC(), Duration.ofSeconds(5));
+        CustomObjectMigrationLock second = lock("b", Clock.systemUTC(), Duration.ofMillis(100))) {
+      MigrationLock.Lease lease = first.acquire();
+      Thread.sleep(600);
+
+      assertThrows(IllegalStateException.class, second::acquire);
+      assertTrue(lease.isValid());
+      lease.release();
+    }
+  }
+
+  @Test
+  void holderCrashed_takenOverAfterExpiry_leaseInvalid() {
+    try (CustomObjectMigrationLock first = lock("a", Clock.systemUTC(), Duration.ofSeconds(5));
+        CustomObjectMigrationLock second = lock("b", Clock.systemUTC(), Duration.ofSeconds(5))) {
+      MigrationLock.Lease lease = first.acquire();
+      // stops the heartbeat without releasing, as if the holder crashed
+      first.close();
+
+      MigrationLock.Lease taken = second.acquire();
+
+      assertFalse(lease.isValid());
+      assertTrue(taken.isValid());
+      taken.release();
+    }
+  }
+
+  @Test
+  void takenOverDueToClockSkew_heartbeatConflicts_leaseInvalid() throws Exception {
+    Clock skewed = Clock.offset(Clock.systemUTC(), Duration.ofHours(1));
+    try (CustomObjectMigrationLock first = lock("a", Clock.systemUTC(), Duration.ofSeconds(5));
+        CustomObjectMigrationLock second = lock("b", skewed, Duration.ofSeconds(5))) {
+      MigrationLock.Lease lease = first.acquire();
+
+      // the lease of the first instance looks expired to the second one
+      MigrationLock.Lease taken = second.acquire();
+
+      long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+      while (lease.isValid() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertFalse(lease.isValid());
+      assertTrue(taken.isValid());
+      // releasing the lost lease does not delete the lock of its new holder
+      lease.release();
+      assertEquals(1, standIn.getCustomObjects(CONTAINER).size());
+      taken.release();
+    }
+  }
+
+  private CustomObjectMigrationLock lock(String owner, Clock clock, Duration acquireTimeout) {
+    return CustomObjectMigrationLock.builder()
+        .apiRoot(standIn.apiRoot())
+        .container(CONTAINER)
+        .owner(owner)
+        .leaseDuration(Duration.ofMillis(300))
+        .acquireTimeout(acquireTimeout)
+        .pollInterval(Duration.ofMillis(20))
+        .clock(clock)
+        .build();
+  }
+}
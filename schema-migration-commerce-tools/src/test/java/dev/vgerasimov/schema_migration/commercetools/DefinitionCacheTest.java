@@ -0,0 +1,67 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.commercetools.api.models.common.LocalizedString;
+import com.commercetools.api.models.type.ResourceTypeId;
+import com.commercetools.api.models.type.Type;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DefinitionCacheTest {
+
+  CommerceToolsStandIn standIn;
+  CommerceToolsContext context;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    context = new CommerceToolsContext(Clock.systemUTC(), standIn.apiRoot());
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void concurrentReads_coalesced() {
+    DefinitionCache underTest = context.getDefinitions();
+
+    CompletableFuture<Optional<Type>> first = underTest.get(DefinitionResource.types(), "t");
+    CompletableFuture<Map<String, Type>> second =
+        underTest.getAll(DefinitionResource.types(), List.of("t", "u"));
+
+    assertEquals(Optional.empty(), first.join());
+    assertEquals(Map.of(), second.join());
+    // one query for "t", one for "u"
+    assertEquals(2, standIn.getRequestCount("GET types"));
+  }
+
+  @Test
+  void consecutiveTypeChangeSets_typeReadOnce() {
+    TypeChangeSet.of("1", "1", type("a")).mutate(context);
+    TypeChangeSet.of("2", "2", type("b")).mutate(context);
+    TypeChangeSet.of("3", "3", type("c")).mutate(context);
+
+    assertEquals(1, standIn.getRequestCount("GET types"));
+    assertEquals(3, standIn.getRequestCount("POST types"));
+    Type type = context.getDefinitions().get(DefinitionResource.types(), "t").join().orElseThrow();
+    assertEquals(LocalizedString.ofEnglish("c"), type.getName());
+    assertEquals(3L, type.getVersion());
+  }
+
+  private static TypeDefinition type(String name) {
+    return TypeDefinition.builder()
+        .key("t")
+        .name(LocalizedString.ofEnglish(name))
+        .resourceTypeId(ResourceTypeId.CUSTOMER)
+        .build();
+  }
+}
@@ -0,0 +1,175 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.commercetools.importapi.client.ProjectApiRoot;
+import com.commercetools.importapi.models.common.ImportResourceType;
+import com.commercetools.importapi.models.customers.CustomerImport;
+import com.commercetools.importapi.models.importrequests.ImportResponse;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.Checkpoint;
+import io.vrap.rmf.base.client.ApiHttpException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ImportChangeSetTest {
+
+  CommerceToolsStandIn standIn;
+  CommerceToolsContext context;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    context = context(Clock.systemUTC());
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void unavailable_requestsRetried_allImported() {
+    standIn.injectUnavailableImports(2);
+
+    var actual = (ImportChangeSet.Result) changeSet(30, ImportResource.customers()).apply(context);
+
+    assertEquals(ChangeSet.Status.APPLIED, actual.getStatus());
+    assertEquals(30, actual.getSubmitted());
+    assertEquals(30, actual.getImported());
+    assertEquals(0, actual.getFailed());
+    assertNull(actual.getCause());
+    // two requests of 20 and 10 resources, the first one sent three times
+    assertEquals(4, standIn.getRequestCount("POST customers"));
+    assertEquals(List.of(), standIn.getImportContainers());
+  }
+
+  @Test
+  void unavailableAfterRetries_failedWithCause() {
+    standIn.injectUnavailableImports(2);
+
+    var actual =
+        (ImportChangeSet.Result)
+            ImportChangeSet.<CustomerImport>builder()
+                .id("import")
+                .resource(ImportResource.customers())
+                .resources(__ -> customers(10).stream())
+                .concurrency(1)
+                .pollInterval(Duration.ofMillis(10))
+                .maxRetries(1)
+                .retryBackoff(Duration.ofMillis(1))
+                .build()
+                .apply(context);
+
+    assertEquals(ChangeSet.Status.FAILED, actual.getStatus());
+    assertEquals(10, actual.getFailed());
+    assertEquals(503, ((ApiHttpException) actual.getCause()).getStatusCode());
+    // failed containers are kept for inspection
+    assertEquals(actual.getContainerKeys(), standIn.getImportContainers());
+  }
+
+  @Test
+  void failedContainer_resumedAfterImportedContainers() {
+    AtomicBoolean rejecting = new AtomicBoolean(true);
+    ImportResource<CustomerImport> customers = ImportResource.customers();
+    ImportResource<CustomerImport> rejectingSecondContainer =
+        new ImportResource<>() {
+          @Override
+          public ImportResourceType getResourceType() {
+            return customers.getResourceType();
+          }
+
+          @Override
+          public CompletableFuture<ImportResponse> submit(
+              ProjectApiRoot importApiRoot, String containerKey, List<CustomerImport> resources) {
+            return rejecting.get() && containerKey.endsWith("-1")
+                ? CompletableFuture.failedFuture(new IllegalStateException("Rejected"))
+                : customers.submit(importApiRoot, containerKey, resources);
+          }
+        };
+    ImportChangeSet<CustomerImport> underTest = changeSet(50, rejectingSecondContainer);
+    RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+
+    var failed = (ImportChangeSet.Result) underTest.apply(context, checkpoint);
+    List<String> savedByFailed = List.copyOf(checkpoint.saved);
+    rejecting.set(false);
+    // containers of another application get other keys
+    var applied =
+        (ImportChangeSet.Result)
+            underTest.apply(
+                context(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(1))), checkpoint);
+
+    assertEquals(ChangeSet.Status.FAILED, failed.getStatus());
+    assertEquals(20, failed.getFailed());
+    assertEquals("Rejected", failed.getCause().getMessage());
+    // the third container is imported, but the second one is not
+    assertEquals(List.of("20"), savedByFailed);
+    assertEquals(ChangeSet.Status.APPLIED, applied.getStatus());
+    assertEquals(30, applied.getSubmitted());
+    assertEquals("50", checkpoint.get().orElseThrow());
+    assertTrue(standIn.getImportContainers().containsAll(failed.getContainerKeys()));
+  }
+
+  private ImportChangeSet<CustomerImport> changeSet(
+      int count, ImportResource<CustomerImport> resource) {
+    return ImportChangeSet.<CustomerImport>builder()
+        .id("import")
+        .resource(resource)
+        .resources(__ -> customers(count).stream())
+        .containerSize(20)
+        .concurrency(1)
+        .pollInterval(Duration.ofMillis(10))
+        .retryBackoff(Duration.ofMillis(1))
+        .build();
+  }
+
+  private CommerceToolsContext context(Clock clock) {
+    return new CommerceToolsContext(clock, standIn.apiRoot(), standIn.importApiRoot());
+  }
+
+  private static List<CustomerImport> customers(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(
+            i ->
+                CustomerImport.builder()
+                    .key("customer-" + i)
+                    .email("customer-" + i + "@example.com")
+                    .password("secret")
+                    .buildUnchecked())
+        .collect(Collectors.toList());
+  }
+
+  /** Checkpoint keeping every saved progress in memory. */
+  private static final class RecordingCheckpoint implements Checkpoint {
+    final List<String> saved = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Optional<String> get() {
+      return saved.isEmpty() ? Optional.empty() : Optional.of(saved.get(saved.size() - 1));
+    }
+
+    @Override
+    public void save(String progress) {
+      saved.add(progress);
+    }
+
+    @Override
+    public CompletionStage<Void> saveAsync(String progress) {
+      save(progress);
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import dev.vgerasimov.schema_migration.ChecksumManifest;
+import dev.vgerasimov.schema_migration.MigrationResult;
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MultiProjectRunnerTest {
+  static final String CONTAINER = "history";
+
+  CommerceToolsStandIn first;
+  CommerceToolsStandIn second;
+  ObjectMapper objectMapper;
+
+  @BeforeEach
+  void setUp() {
+    first = new CommerceToolsStandIn();
+    second = new CommerceToolsStandIn();
+    objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+  }
+
+  @AfterEach
+  void tearDown() {
+    first.close();
+    second.close();
+  }
+
+  @Test
+  void allProjects_migrated() {
+    MultiProjectRunner underTest =
+        MultiProjectRunner.builder()
+            .historySource(
+                context ->
+                    new CommerceToolsHistorySource(context.getApiRoot(), objectMapper, CONTAINER))
+            .maxConcurrentProjects(1)
+            .checksumManifest(ChecksumManifest.EMPTY)
+            .build();
+
+    MultiProjectRunner.Result actual = underTest.apply(projects(), List.of(noop("1"), noop("2")));
+
+    assertTrue(actual.isSuccess(), actual::toString);
+    assertEquals(List.of("first", "second"), List.copyOf(actual.getResults().keySet()));
+    assertEquals(2, first.getCustomObjects(CONTAINER).size());
+    assertEquals(2, second.getCustomObjects(CONTAINER).size());
+  }
+
+  @Test
+  void failedProject_otherProjectsMigrated() {
+    MultiProjectRunner underTest =
+        MultiProjectRunner.builder()
+            .historySource(
+                context -> {
+                  if (context.getApiRoot() == null) {
+                    throw new IllegalStateException("No api root");
+                  }
+                  return new CommerceToolsHistorySource(
+                      context.getApiRoot(), objectMapper, CONTAINER);
+                })
+            .checksumManifest(ChecksumManifest.EMPTY)
+            .build();
+    Map<String, CommerceToolsContext> projects = new LinkedHashMap<>(projects());
+    projects.put("broken", new CommerceToolsContext(Clock.systemUTC(), null));
+
+    MultiProjectRunner.Result actual = underTest.apply(projects, List.of(noop("1")));
+
+    assertFalse(actual.isSuccess());
+    assertInstanceOf(MigrationResult.Success.class, actual.getResults().get("first"));
+    assertInstanceOf(MigrationResult.Success.class, actual.getResults().get("second"));
+    assertInstanceOf(IllegalStateException.class, actual.getErrors().get("broken"));
+  }
+
+  private Map<String, CommerceToolsContext> projects() {
+    Map<String, CommerceToolsContext> projects = new LinkedHashMap<>();
+    projects.put("first", new CommerceToolsContext(Clock.systemUTC(), first.apiRoot()));
+    projects.put("second", new CommerceToolsContext(Clock.systemUTC(), second.apiRoot()));
+    return projects;
+  }
+
+  private static ChangeSet<CommerceToolsContext> noop(String id) {
+    return new ChangeSet<>(id, id, false) {
+      @Override
+      public Status mutate(CommerceToolsContext context) {
+        return Status.APPLIED;
+      }
+    };
+  }
+}
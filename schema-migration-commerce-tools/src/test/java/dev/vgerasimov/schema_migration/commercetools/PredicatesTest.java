@@ -0,0 +1,19 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class PredicatesTest {
+
+  @Test
+  void plainValue_quoted() {
+    assertEquals("\"segment-00000001\"", Predicates.quote("segment-00000001"));
+  }
+
+  @Test
+  void quotesAndBackslashes_escaped() {
+    assertEquals("\"a\\\" or key > \\\"\"", Predicates.quote("a\" or key > \""));
+    assertEquals("\"a\\\\\\\"\"", Predicates.quote("a\\\""));
+  }
+}
@@ -0,0 +1,133 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.commercetools.api.models.custom_object.CustomObjectDraft;
+import dev.vgerasimov.schema_migration.HistoryRecord;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SegmentedHistorySourceTest {
+  static final String CONTAINER = "history";
+  static final LocalDateTime EXECUTED_AT = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+  CommerceToolsStandIn standIn;
+  SegmentedHistorySource underTest;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    underTest = new SegmentedHistorySource(standIn.apiRoot(), CONTAINER, 2);
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void fullSegment_recordsRolledOverIntoNewSegments() {
+    underTest.saveRecords(List.of(record("1"), record("2"), record("3")));
+    underTest.saveRecords(List.of(record("4"), record("5")));
+    underTest.saveRecord(record("1", "updated"));
+
+    assertEquals(3, standIn.getCustomObjects(CONTAINER).size());
+    assertEquals(
+        List.of(record("1", "updated"), record("2"), record("3"), record("4"), record("5")),
+        underTest.getHistory());
+    assertEquals(record("5"), underTest.getHead().orElseThrow());
+  }
+
+  @Test
+  void concurrentWriter_conflictRetriedOnReloadedSegments() {
+    SegmentedHistorySource other = new SegmentedHistorySource(standIn.apiRoot(), CONTAINER, 2);
+    underTest.saveRecord(record("1"));
+    // appended to the segment the first source has loaded, so its next write conflicts
+    other.saveRecord(record("2"));
+
+    underTest.saveRecord(record("3"));
+
+    assertEquals(List.of(record("1"), record("2"), record("3")), underTest.getHistory());
+    assertEquals(List.of(record("1"), record("2"), record("3")), other.getHistory());
+  }
+
+  @Test
+  void injectedConflicts_retried() {
+    underTest.saveRecord(record("1"));
+    standIn.injectConflicts(2);
+
+    underTest.saveRecord(record("2"));
+
+    assertEquals(List.of(record("1"), record("2")), underTest.getHistory());
+  }
+
+  @Test
+  void baseline_segmentsRewritten_headIsLastRecord() {
+    underTest.saveRecords(List.of(record("1"), record("2"), record("3"), record("4"), record("5")));
+    HistoryRecord baseline =
+        new HistoryRecord("3", EXECUTED_AT, HistoryRecord.Status.BASELINE, "c", "c");
+
+    underTest.saveBaseline(baseline);
+
+    assertEquals(List.of(baseline, record("4"), record("5")), underTest.getHistory());
+    // the third segment is deleted, the head is read from the last remaining one
+    assertEquals(2, standIn.getCustomObjects(CONTAINER).size());
+    assertEquals(record("5"), underTest.getHead().orElseThrow());
+    assertEquals(
+        List.of("1", "2", "3"),
+        new SegmentedHistorySource(
+                standIn.apiRoot(), CONTAINER + CommerceToolsHistorySource.ARCHIVE_SUFFIX, 2)
+            .getHistory().stream().map(HistoryRecord::getId).collect(toList()));
+  }
+
+  @Test
+  void duplicatedByInterruptedRewrite_laterSegmentCopyLoadedAndUpdated() {
+    // the rewrite moved record 2 into the first segment but did not get to rewrite the second
+    // one, whose copy was updated afterwards
+    writeSegment("segment-00000000", List.of("1", "2"), "stale");
+    writeSegment("segment-00000001", List.of("2", "3"), "latest");
+
+    assertEquals(
+        List.of(record("1", "stale"), record("2", "latest"), record("3", "latest")),
+        underTest.getHistory());
+
+    underTest.saveRecord(record("2", "updated"));
+
+    assertEquals(
+        List.of(record("1", "stale"), record("2", "updated"), record("3", "latest")),
+        underTest.getHistory());
+  }
+
+  private void writeSegment(String key, List<String> ids, String checksum) {
+    long seconds = EXECUTED_AT.toEpochSecond(ZoneOffset.UTC);
+    standIn
+        .apiRoot()
+        .customObjects()
+        .post(
+            CustomObjectDraft.builder()
+                .container(CONTAINER)
+                .key(key)
+                .value(
+                    Map.of(
+                        "id", ids,
+                        "executedAt", ids.stream().map(__ -> seconds).collect(toList()),
+                        "status", "S".repeat(ids.size()),
+                        "checksum", ids.stream().map(id -> checksum).collect(toList())))
+                .build())
+        .executeBlocking();
+  }
+
+  private static HistoryRecord record(String id) {
+    return record(id, "checksum-" + id);
+  }
+
+  private static HistoryRecord record(String id, String checksum) {
+    return new HistoryRecord(id, EXECUTED_AT, HistoryRecord.Status.SUCCESS, checksum);
+  }
+}
@@ -0,0 +1,124 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.commercetools.api.models.product.Product;
+import com.commercetools.api.models.product.ProductSetKeyAction;
+import com.commercetools.api.models.product.ProductUpdateAction;
+import dev.vgerasimov.schema_migration.ChangeSet;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ShardedChangeSetTest {
+
+  CommerceToolsStandIn standIn;
+  CommerceToolsContext context;
+
+  @BeforeEach
+  void setUp() {
+    standIn = new CommerceToolsStandIn();
+    context = new CommerceToolsContext(Clock.systemUTC(), standIn.apiRoot());
+  }
+
+  @AfterEach
+  void tearDown() {
+    standIn.close();
+  }
+
+  @Test
+  void twoNodes_allShardsProcessedOnce_shardsDeleted() throws Exception {
+    List<String> ids = standIn.addProducts(60);
+    standIn.setLatency(Duration.ofMillis(1), Duration.ofMillis(2));
+    ShardedChangeSet<Product, ProductUpdateAction> applying =
+        changeSet("a", new AtomicReference<>()).build();
+    ShardedChangeSet<Product, ProductUpdateAction> participating =
+        changeSet("b", new AtomicReference<>()).build();
+
+    // the participating node starts first and waits for the shards to be created
+    CompletableFuture<Integer> participated =
+        participating.participate(context, Duration.ofSeconds(10));
+    CompletableFuture<ChangeSet.Result> applied = applying.applyAsync(context);
+
+    assertEquals(ChangeSet.Status.APPLIED, applied.get(10, TimeUnit.SECONDS).getStatus());
+    assertTrue(participated.get(10, TimeUnit.SECONDS) <= 8);
+    for (String id : ids) {
+      assertEquals("k-" + id, standIn.getProduct(id).path("key").asText());
+    }
+    // every product is updated once, however the shards were split between the nodes
+    assertEquals(60, standIn.getRequestCount("POST products"));
+    assertEquals(List.of(), standIn.getCustomObjects(ShardedChangeSet.DEFAULT_CONTAINER));
+  }
+
+  @Test
+  void failedShard_changeSetFailed_resumedByNextApplication() {
+    List<String> ids = standIn.addProducts(30);
+    AtomicReference<String> failing = new AtomicReference<>(ids.get(0));
+    ShardedChangeSet<Product, ProductUpdateAction> underTest = changeSet("a", failing).build();
+
+    ChangeSet.Result failed = underTest.apply(context);
+    failing.set(null);
+    ChangeSet.Result applied = underTest.apply(context);
+
+    assertEquals(ChangeSet.Status.FAILED, failed.getStatus());
+    assertEquals(ChangeSet.Status.APPLIED, applied.getStatus());
+    for (String id : ids) {
+      assertEquals("k-" + id, standIn.getProduct(id).path("key").asText());
+    }
+    assertEquals(List.of(), standIn.getCustomObjects(ShardedChangeSet.DEFAULT_CONTAINER));
+  }
+
+  @Test
+  void noProgressSaved_leaseRenewed_notTakenOver() throws Exception {
+    List<String> ids = standIn.addProducts(30);
+    standIn.setLatency(Duration.ofMillis(20), Duration.ZERO);
+    // the failed product stops the saves of progress, the whole shard takes about 600 ms
+    ShardedChangeSet<Product, ProductUpdateAction> applying =
+        changeSet("a", new AtomicReference<>(ids.get(0)))
+            .shards(1)
+            .concurrency(1)
+            .leaseDuration(Duration.ofMillis(150))
+            .build();
+    ShardedChangeSet<Product, ProductUpdateAction> participating =
+        changeSet("b", new AtomicReference<>()).shards(1).build();
+
+    CompletableFuture<ChangeSet.Result> applied = applying.applyAsync(context);
+    CompletableFuture<Integer> participated =
+        CompletableFuture.runAsync(
+                () -> {}, CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS))
+            .thenCompose(__ -> participating.participate(context, Duration.ZERO));
+
+    assertEquals(0, participated.get(10, TimeUnit.SECONDS));
+    assertEquals(ChangeSet.Status.FAILED, applied.get(10, TimeUnit.SECONDS).getStatus());
+    // no product was updated twice by a node taking the shard over
+    assertEquals(29, standIn.getRequestCount("POST products"));
+  }
+
+  /** Change set failing to build the actions of the product with the given id, if it is set. */
+  private ShardedChangeSet.ShardedChangeSetBuilder<Product, ProductUpdateAction> changeSet(
+      String owner, AtomicReference<String> failing) {
+    return ShardedChangeSet.<Product, ProductUpdateAction>builder()
+        .id("backfill")
+        .resource(BulkResource.products())
+        .actions(
+            product -> {
+              if (product.getId().equals(failing.get())) {
+                throw new IllegalStateException("Cannot build actions");
+              }
+              return product.getKey() == null
+                  ? List.of(ProductSetKeyAction.builder().key("k-" + product.getId()).build())
+                  : List.of();
+            })
+        .pageSize(5)
+        .shards(8)
+        .owner(owner)
+        .pollInterval(Duration.ofMillis(10));
+  }
+}
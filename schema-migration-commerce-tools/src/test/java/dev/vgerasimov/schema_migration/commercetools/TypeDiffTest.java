@@ -0,0 +1,211 @@
+package dev.vgerasimov.schema_migration.commercetools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.commercetools.api.models.common.LocalizedString;
+import com.commercetools.api.models.type.CustomFieldBooleanType;
+import com.commercetools.api.models.type.CustomFieldEnumType;
+import com.commercetools.api.models.type.CustomFieldEnumValue;
+import com.commercetools.api.models.type.CustomFieldSetType;
+import com.commercetools.api.models.type.CustomFieldStringType;
+import com.commercetools.api.models.type.FieldDefinition;
+import com.commercetools.api.models.type.FieldType;
+import com.commercetools.api.models.type.ResourceTypeId;
+import com.commercetools.api.models.type.Type;
+import com.commercetools.api.models.type.TypeAddEnumValueAction;
+import com.commercetools.api.models.type.TypeAddFieldDefinitionAction;
+import com.commercetools.api.models.type.TypeChangeEnumValueLabelAction;
+import com.commercetools.api.models.type.TypeChangeFieldDefinitionOrderAction;
+import com.commercetools.api.models.type.TypeRemoveFieldDefinitionAction;
+import java.time.ZonedDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TypeDiffTest {
+
+  @Test
+  void upToDate_noActions() {
+    TypeDefinition desired =
+        definition(false, field("a", string(), false), field("b", string(), true));
+
+    assertEquals(List.of(), TypeDiff.diff(live(desired.getFieldDefinitions()), desired));
+  }
+
+  @Test
+  void fieldAdded_addAction() {
+    FieldDefinition added = field("b", string(), false);
+    TypeDefinition desired = definition(false, field("a", string(), false), added);
+
+    assertEquals(
+        List.of(TypeAddFieldDefinitionAction.builder().fieldDefinition(added).build()),
+        TypeDiff.diff(live(List.of(field("a", string(), false))), desired));
+  }
+
+  @Test
+  void undeclaredField_keptUnlessRemoved() {
+    Type live = live(List.of(field("a", string(), false), field("b", string(), false)));
+
+    assertEquals(List.of(), TypeDiff.diff(live, definition(false, field("a", string(), false))));
+    assertEquals(
+        List.of(TypeRemoveFieldDefinitionAction.builder().fieldName("b").build()),
+        TypeDiff.diff(live, definition(true, field("a", string(), false))));
+  }
+
+  @Test
+  void fieldsReordered_orderAction() {
+    Type live = live(List.of(field("a", string(), false), field("b", string(), false)));
+
+    assertEquals(
+        List.of(TypeChangeFieldDefinitionOrderAction.builder().fieldNames("b", "a").build()),
+        TypeDiff.diff(
+            live, definition(false, field("b", string(), false), field("a", string(), false))));
+  }
+
+  @Test
+  void fieldAddedAfterUndeclaredField_notReordered() {
+    FieldDefinition added = field("c", string(), false);
+    Type live = live(List.of(field("a", string(), false), field("b", string(), false)));
+
+    // the order cannot be set while the undeclared field is kept
+    assertEquals(
+        List.of(TypeAddFieldDefinitionAction.builder().fieldDefinition(added).build()),
+        TypeDiff.diff(live, definition(false, added, field("a", string(), false))));
+  }
+
+  @Test
+  void enumValueAddedAndRelabelled_enumActions() {
+    Type live = live(List.of(field("e", enumType(value("x", "X"), value("y", "Y")), false)));
+
+    assertEquals(
+        List.of(
+            TypeChangeEnumValueLabelAction.builder()
+                .fieldName("e")
+                .value(value("y", "Why"))
+                .build(),
+            TypeAddEnumValueAction.builder().fieldName("e").value(value("z", "Z")).build()),
+        TypeDiff.diff(
+            live,
+            definition(
+                false,
+                field("e", enumType(value("x", "X"), value("y", "Why"), value("z", "Z")), false))));
+  }
+
+  @Test
+  void enumValueMissing_notRemoved() {
+    Type live = live(List.of(field("e", enumType(value("x", "X"), value("y", "Y")), false)));
+
+    assertEquals(
+        List.of(),
+        TypeDiff.diff(live, definition(false, field("e", enumType(value("x", "X")), false))));
+  }
+
+  @Test
+  void setOfEnumValueAdded_enumAction() {
+    Type live = live(List.of(field("s", set(enumType(value("x", "X"))), false)));
+
+    assertEquals(
+        List.of(TypeAddEnumValueAction.builder().fieldName("s").value(value("y", "Y")).build()),
+        TypeDiff.diff(
+            live,
+            definition(
+                false, field("s", set(enumType(value("x", "X"), value("y", "Y"))), false))));
+  }
+
+  @Test
+  void requiredChanged_rejected() {
+    Type live = live(List.of(field("a", string(), false)));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> TypeDiff.diff(live, definition(false, field("a", string(), true))));
+  }
+
+  @Test
+  void fieldTypeChanged_rejected() {
+    Type live = live(List.of(field("a", string(), false), field("s", set(string()), false)));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            TypeDiff.diff(
+                live,
+                definition(
+                    false,
+                    field("a", CustomFieldBooleanType.of(), false),
+                    field("s", set(string()), false))));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            TypeDiff.diff(
+                live,
+                definition(
+                    false,
+                    field("a", string(), false),
+                    field("s", set(enumType(value("x", "X"))), false))));
+  }
+
+  @Test
+  void resourceTypesChanged_rejected() {
+    Type live = live(List.of(field("a", string(), false)));
+    TypeDefinition desired =
+        TypeDefinition.builder()
+            .key("t")
+            .name(LocalizedString.ofEnglish("T"))
+            .resourceTypeId(ResourceTypeId.CATEGORY)
+            .resourceTypeId(ResourceTypeId.ORDER)
+            .fieldDefinition(field("a", string(), false))
+            .build();
+
+    assertThrows(IllegalArgumentException.class, () -> TypeDiff.diff(live, desired));
+  }
+
+  private static TypeDefinition definition(
+      boolean removeUndeclaredFields, FieldDefinition... fields) {
+    return TypeDefinition.builder()
+        .key("t")
+        .name(LocalizedString.ofEnglish("T"))
+        .resourceTypeId(ResourceTypeId.CATEGORY)
+        .fieldDefinitions(List.of(fields))
+        .removeUndeclaredFields(removeUndeclaredFields)
+        .build();
+  }
+
+  private static Type live(List<FieldDefinition> fields) {
+    return Type.builder()
+        .id("id")
+        .version(1L)
+        .createdAt(ZonedDateTime.now())
+        .lastModifiedAt(ZonedDateTime.now())
+        .key("t")
+        .name(LocalizedString.ofEnglish("T"))
+        .resourceTypeIds(ResourceTypeId.CATEGORY)
+        .fieldDefinitions(fields)
+        .build();
+  }
+
+  private static FieldDefinition field(String name, FieldType type, boolean required) {
+    return FieldDefinition.builder()
+        .name(name)
+        .type(type)
+        .label(LocalizedString.ofEnglish(name))
+        .required(required)
+        .build();
+  }
+
+  private static FieldType string() {
+    return CustomFieldStringType.of();
+  }
+
+  private static FieldType set(FieldType elementType) {
+    return CustomFieldSetType.builder().elementType(elementType).build();
+  }
+
+  private static FieldType enumType(CustomFieldEnumValue... values) {
+    return CustomFieldEnumType.builder().values(values).build();
+  }
+
+  private static CustomFieldEnumValue value(String key, String label) {
+    return CustomFieldEnumValue.builder().key(key).label(label).build();
+  }
+}
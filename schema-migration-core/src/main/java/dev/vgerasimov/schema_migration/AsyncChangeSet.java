@@ -0,0 +1,34 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Change set whose mutation is asynchronous, e.g. sends requests with a non-blocking HTTP client.
+ * {@link Schema#applyAsync} does not block any thread while the stage returned by {@link
+ * #mutateAsync(Context)} is not completed. The synchronous {@link Schema#apply} waits for it.
+ *
+ * @param <C> the type of the context
+ */
+public abstract class AsyncChangeSet<C extends Context> extends ChangeSet<C> {
+
+  protected AsyncChangeSet(String id, String checksum, boolean skipChecksumValidation) {
+    super(id, checksum, skipChecksumValidation);
+  }
+
+  @Override
+  public abstract CompletionStage<Status> mutateAsync(C context);
+
+  /** Waits for {@link #mutateAsync(Context)}. */
+  @Override
+  public Status mutate(C context) {
+    try {
+      return mutateAsync(context).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of {@link HistorySource}, used by {@link Schema#applyAsync}. Methods
+ * must not block the calling thread: implementations backed by a remote storage return stages
+ * completed by their I/O layer.
+ *
+ * <p>A history source may implement both interfaces, so the same instance can be used for
+ * synchronous and asynchronous migrations.
+ */
+public interface AsyncHistorySource {
+
+  /**
+   * Returns a list of all history records. The order is guaranteed to be ascending by {@link
+   * HistoryRecord#getId()}.
+   */
+  CompletionStage<List<HistoryRecord>> getHistoryAsync();
+
+  /** Returns the last history record, see {@link HistorySource#getHead()}. */
+  default CompletionStage<Optional<HistoryRecord>> getHeadAsync() {
+    return getHistoryAsync()
+        .thenApply(
+            history ->
+                history.isEmpty()
+                    ? Optional.empty()
+                    : Optional.of(history.get(history.size() - 1)));
+  }
+
+  /** Saves a new history record. */
+  CompletionStage<Void> saveRecordAsync(HistoryRecord historyRecord);
+
+  /**
+   * Saves the given history records. The default implementation saves them one after another,
+   * implementations which are able to save several records at once should override this method.
+   */
+  default CompletionStage<Void> saveRecordsAsync(List<HistoryRecord> historyRecords) {
+    CompletionStage<Void> saved = CompletableFuture.completedFuture(null);
+    for (HistoryRecord historyRecord : historyRecords) {
+      saved = saved.thenCompose(__ -> saveRecordAsync(historyRecord));
+    }
+    return saved;
+  }
+
+  /** Makes sure that all saved records are persisted, see {@link HistorySource#flush()}. */
+  default CompletionStage<Void> flushAsync() {
+    return CompletableFuture.completedFuture(null);
+  }
+}
@@ -0,0 +1,179 @@
+package dev.vgerasimov.schema_migration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Status of the background change sets of a migration started by {@link
+ * Schema#applyWithBackground}. The blocking change sets are already applied when it is returned;
+ * the change sets deferred by them are applied on the background executor, and their results can
+ * be polled through {@link #getResults()} or awaited through {@link #getOutcome()}.
+ */
+public final class BackgroundMigration {
+
+  public enum State {
+    /** Background change sets are not applied, as the blocking change sets were not applied. */
+    NOT_STARTED,
+    /** Background change sets are being applied, or wait for the background executor. */
+    RUNNING,
+    /** All change sets are applied. */
+    COMPLETED,
+    /** Applying the background change sets failed. */
+    FAILED
+  }
+
+  private final MigrationResult blockingResult;
+  private final List<String> deferredIds;
+  private final Set<String> deferred;
+  private final List<ChangeSet.Result> results = new ArrayList<>();
+  private final CompletableFuture<MigrationResult> outcome = new CompletableFuture<>();
+
+  BackgroundMigration(MigrationResult blockingResult, List<String> deferredIds) {
+    this.blockingResult = blockingResult;
+    this.deferredIds = List.copyOf(deferredIds);
+    this.deferred = new HashSet<>(deferredIds);
+  }
+
+  /** The result of applying the blocking change sets. */
+  public MigrationResult getBlockingResult() {
+    return blockingResult;
+  }
+
+  /** Whether the blocking change sets are applied, i.e. the application may signal readiness. */
+  public boolean isReady() {
+    return blockingResult instanceof MigrationResult.Success;
+  }
+
+  public State getState() {
+    if (!isReady()) {
+      return State.NOT_STARTED;
+    }
+    if (!outcome.isDone()) {
+      return State.RUNNING;
+    }
+    return !outcome.isCompletedExceptionally()
+            && outcome.join() instanceof MigrationResult.Success
+        ? State.COMPLETED
+        : State.FAILED;
+  }
+
+  /** Ids of the change sets deferred to the background, in the order of the change sets. */
+  public List<String> getDeferredIds() {
+    return deferredIds;
+  }
+
+  /** Results of the deferred change sets known so far, the progress of the background migration. */
+  public synchronized List<ChangeSet.Result> getResults() {
+    return List.copyOf(results);
+  }
+
+  /**
+   * Returns the stage completed with the result of the background migration, which carries the
+   * totals of all change sets rather than their results. It is completed with the blocking result
+   * if nothing was deferred or the blocking change sets were not applied.
+   */
+  public CompletionStage<MigrationResult> getOutcome() {
+    return outcome.copy();
+  }
+
+  synchronized void onResult(ChangeSet.Result result) {
+    if (deferred.contains(result.getId())) {
+      results.add(result);
+    }
+  }
+
+  void complete(MigrationResult result, Throwable e) {
+    if (e == null) {
+      outcome.complete(result);
+    } else {
+      outcome.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Returns the given change sets wrapped so that every background change set is skipped instead
+   * of applied, and saved as pending to be applied by the next migration. Whether a change set is
+   * a background one is only asked when it is about to be applied, so already applied change sets,
+   * e.g. lazily created ones, are not built for it. A {@link BaselineChangeSet} is kept as is, as
+   * {@link HistoryChain} tells it by its type.
+   */
+  static <C extends Context> List<ChangeSet<C>> defer(List<ChangeSet<C>> changeSets) {
+    List<ChangeSet<C>> deferring = new ArrayList<>(changeSets.size());
+    for (ChangeSet<C> changeSet : changeSets) {
+      deferring.add(
+          changeSet instanceof BaselineChangeSet ? changeSet : new Deferring<>(changeSet));
+    }
+    return deferring;
+  }
+
+  /** Change set skipped by the blocking migration if it is a background one, else delegated. */
+  private static final class Deferring<C extends Context> extends ChangeSet<C> {
+    private final ChangeSet<C> delegate;
+
+    Deferring(ChangeSet<C> delegate) {
+      super(delegate.getId(), delegate.getChecksum(), delegate.isSkipChecksumValidation());
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Status mutate(C context) {
+      return delegate.isBackground() ? Status.SKIPPED : delegate.mutate(context);
+    }
+
+    @Override
+    public CompletionStage<Status> mutateAsync(C context) {
+      return delegate.isBackground()
+          ? CompletableFuture.completedFuture(Status.SKIPPED)
+          : delegate.mutateAsync(context);
+    }
+
+    @Override
+    public Result apply(C context) {
+      return delegate.isBackground() ? new Pending(getId()) : delegate.apply(context);
+    }
+
+    @Override
+    public CompletionStage<Result> applyAsync(C context) {
+      return delegate.isBackground()
+          ? CompletableFuture.completedFuture(new Pending(getId()))
+          : delegate.applyAsync(context);
+    }
+
+    @Override
+    public Result apply(C context, Checkpoint checkpoint) {
+      return delegate.isBackground() ? new Pending(getId()) : delegate.apply(context, checkpoint);
+    }
+
+    @Override
+    public CompletionStage<Result> applyAsync(C context, Checkpoint checkpoint) {
+      return delegate.isBackground()
+          ? CompletableFuture.completedFuture(new Pending(getId()))
+          : delegate.applyAsync(context, checkpoint);
+    }
+
+    @Override
+    public Set<String> getDependencies() {
+      return delegate.getDependencies();
+    }
+
+    @Override
+    public String getLane() {
+      return delegate.getLane();
+    }
+
+    @Override
+    public Duration getTimeout() {
+      return delegate.getTimeout();
+    }
+
+    @Override
+    public boolean isBackground() {
+      return delegate.isBackground();
+    }
+  }
+}
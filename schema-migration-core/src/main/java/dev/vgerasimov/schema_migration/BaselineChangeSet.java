@@ -0,0 +1,40 @@
+package dev.vgerasimov.schema_migration;
+
+/**
+ * Change set standing in for all change sets up to and including its id, once they are squashed
+ * into a {@link HistoryRecord.Status#BASELINE baseline} record by {@link Schema#baseline} and
+ * removed from the code. It takes the place of the removed change sets at the beginning of the
+ * change set list, and its checksum is the checksum of the baseline record.
+ *
+ * <p>The baseline change set cannot be applied, so it only migrates storages whose history
+ * contains the baseline record.
+ *
+ * @param <C> the type of the context
+ */
+public final class BaselineChangeSet<C extends Context> extends ChangeSet<C> {
+
+  public BaselineChangeSet(String id, String checksum) {
+    super(id, checksum, false);
+    if (id == null || checksum == null) {
+      throw new IllegalArgumentException("Id and checksum must not be null");
+    }
+  }
+
+  /**
+   * Creates the change set standing in for the given baseline record.
+   *
+   * @throws IllegalArgumentException if the record is not a baseline record
+   */
+  public static <C extends Context> BaselineChangeSet<C> of(HistoryRecord baseline) {
+    if (baseline.getStatus() != HistoryRecord.Status.BASELINE) {
+      throw new IllegalArgumentException("Record " + baseline.getId() + " is not a baseline");
+    }
+    return new BaselineChangeSet<>(baseline.getId(), baseline.getChecksum());
+  }
+
+  @Override
+  public Status mutate(C context) {
+    throw new IllegalStateException(
+        "Baseline " + getId() + " cannot be applied, the history does not contain it");
+  }
+}
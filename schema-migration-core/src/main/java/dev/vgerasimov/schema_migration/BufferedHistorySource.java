@@ -0,0 +1,138 @@
+package dev.vgerasimov.schema_migration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write-behind decorator of {@link HistorySource}. Saved records are kept in a buffer and passed to
+ * {@link HistorySource#saveRecords(List)} of the delegate in batches, when either the buffer
+ * reaches the maximum batch size or the oldest buffered record is older than the maximum delay.
+ * Several records with the same id are coalesced into the latest one.
+ *
+ * <p>{@link Schema} flushes the history source before reporting a failed change set and at the end
+ * of the migration, so using this decorator does not change durability of the migration results.
+ * Reads flush the buffer before delegating, so they always see previously saved records.
+ */
+public class BufferedHistorySource implements HistorySource, AutoCloseable {
+  private final HistorySource delegate;
+  private final int maxBatchSize;
+  private final Duration maxDelay;
+  private final ScheduledExecutorService scheduler;
+
+  private final LinkedHashMap<String, HistoryRecord> buffer = new LinkedHashMap<>();
+  private ScheduledFuture<?> scheduledFlush;
+
+  public BufferedHistorySource(HistorySource delegate, int maxBatchSize, Duration maxDelay) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("Max batch size must be positive");
+    }
+    if (maxDelay == null || maxDelay.isNegative() || maxDelay.isZero()) {
+      throw new IllegalArgumentException("Max delay must be positive");
+    }
+    this.delegate = delegate;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = maxDelay;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "history-write-behind");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public List<HistoryRecord> getHistory() {
+    flush();
+    return delegate.getHistory();
+  }
+
+  @Override
+  public Stream<HistoryRecord> streamHistory() {
+    flush();
+    return delegate.streamHistory();
+  }
+
+  @Override
+  public Optional<HistoryRecord> getHead() {
+    flush();
+    return delegate.getHead();
+  }
+
+  @Override
+  public Optional<HistoryRecord> getCurrentHead() {
+    flush();
+    return delegate.getCurrentHead();
+  }
+
+  @Override
+  public Optional<String> getRevision() {
+    flush();
+    return delegate.getRevision();
+  }
+
+  @Override
+  public synchronized void saveRecord(HistoryRecord historyRecord) {
+    buffer.remove(historyRecord.getId());
+    buffer.put(historyRecord.getId(), historyRecord);
+    if (buffer.size() >= maxBatchSize) {
+      flush();
+    } else if (scheduledFlush == null) {
+      scheduledFlush =
+          scheduler.schedule(this::flushQuietly, maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Flushes the buffer, so the baseline also replaces the buffered records. */
+  @Override
+  public synchronized void saveBaseline(HistoryRecord baseline) {
+    flush();
+    delegate.saveBaseline(baseline);
+  }
+
+  /**
+   * Passes all buffered records to the delegate. If the delegate fails, the records are kept in the
+   * buffer, so they are retried with the next flush.
+   */
+  @Override
+  public synchronized void flush() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    if (buffer.isEmpty()) {
+      return;
+    }
+    List<HistoryRecord> batch = new ArrayList<>(buffer.values());
+    delegate.saveRecords(batch);
+    delegate.flush();
+    batch.forEach(record -> buffer.remove(record.getId(), record));
+  }
+
+  /** Flushes remaining records and stops the background flushing. */
+  @Override
+  public void close() {
+    try {
+      flush();
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      // the records stay in the buffer and will be flushed by the next explicit flush, which
+      // reports the failure to its caller
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package dev.vgerasimov.schema_migration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Caching decorator of {@link HistorySource}. The history is loaded from the delegate once and then
+ * served from memory. When the cached history is older than the given TTL, it is revalidated with
+ * {@link HistorySource#getRevision()} of the delegate (or, if the delegate does not support
+ * revisions, with its {@link HistorySource#getHead() head record}), and loaded again only if the
+ * delegate has changed.
+ *
+ * <p>Saved records are passed to the delegate and put into the cache, so writes done through this
+ * source do not invalidate the cache. Writes done by others are noticed on the next revalidation,
+ * and before the first write following a revalidation or flush, as the revision read on the flush
+ * would hide them. Writes done by others between that write and the flush are not noticed, which
+ * {@link Schema} rules out by writing only while holding the {@link MigrationLock}; {@link
+ * #getCurrentHead()} always revalidates the cache.
+ *
+ * <p>Optionally, the cache is persisted to a snapshot file, so a new JVM starts with the cached
+ * history and only needs to revalidate it. The snapshot is a plain data file rather than a
+ * serialized object, so reading it runs no code. A snapshot which cannot be written is deleted
+ * rather than failing the read or write of the history, and one which cannot be read is ignored.
+ */
+public class CachingHistorySource implements HistorySource {
+  /** Written first to the snapshot file, so snapshots of another format are ignored. */
+  private static final int SNAPSHOT_FORMAT = 0x48534e01;
+
+  private final HistorySource delegate;
+  private final long ttlNanos;
+  private final Path snapshotFile;
+
+  private TreeMap<String, HistoryRecord> records;
+  private String revision;
+  private HistoryRecord head;
+  private long validatedAt;
+  private boolean modified;
+
+  public CachingHistorySource(HistorySource delegate, Duration ttl) {
+    this(delegate, ttl, null);
+  }
+
+  public CachingHistorySource(HistorySource delegate, Duration ttl, Path snapshotFile) {
+    if (ttl == null || ttl.isNegative()) {
+      throw new IllegalArgumentException("TTL must not be negative");
+    }
+    this.delegate = delegate;
+    this.ttlNanos = ttl.toNanos();
+    this.snapshotFile = snapshotFile;
+    readSnapshot();
+  }
+
+  @Override
+  public synchronized List<HistoryRecord> getHistory() {
+    return new ArrayList<>(validCache().values());
+  }
+
+  @Override
+  public Stream<HistoryRecord> streamHistory() {
+    return getHistory().stream();
+  }
+
+  /**
+   * Returns the head from the cache if the history is cached. Otherwise, the head is requested from
+   * the delegate without loading the whole history.
+   */
+  @Override
+  public synchronized Optional<HistoryRecord> getHead() {
+    if (records == null) {
+      return delegate.getHead();
+    }
+    TreeMap<String, HistoryRecord> cache = validCache();
+    return cache.isEmpty() ? Optional.empty() : Optional.of(cache.lastEntry().getValue());
+  }
+
+  /** Revalidates the cache regardless of the TTL and returns the head from it. */
+  @Override
+  public synchronized Optional<HistoryRecord> getCurrentHead() {
+    if (records == null) {
+      return delegate.getCurrentHead();
+    }
+    TreeMap<String, HistoryRecord> cache = revalidate();
+    return cache.isEmpty() ? Optional.empty() : Optional.of(cache.lastEntry().getValue());
+  }
+
+  @Override
+  public synchronized Optional<String> getRevision() {
+    validCache();
+    return Optional.ofNullable(revision);
+  }
+
+  @Override
+  public synchronized void saveRecord(HistoryRecord historyRecord) {
+    checkUnchangedBeforeWrite();
+    delegate.saveRecord(historyRecord);
+    putIntoCache(historyRecord);
+  }
+
+  @Override
+  public synchronized void saveRecords(List<HistoryRecord> historyRecords) {
+    checkUnchangedBeforeWrite();
+    delegate.saveRecords(historyRecords);
+    historyRecords.forEach(this::putIntoCache);
+  }
+
+  /** Passes the baseline to the delegate and drops the cached history. */
+  @Override
+  public synchronized void saveBaseline(HistoryRecord baseline) {
+    delegate.saveBaseline(baseline);
+    invalidate();
+  }
+
+  /**
+   * Flushes the delegate and refreshes the revision of the cache, so that records saved through
+   * this source are not mistaken for changes done by others.
+   */
+  @Override
+  public synchronized void flush() {
+    delegate.flush();
+    if (modified && records != null) {
+      modified = false;
+      revision = delegate.getRevision().orElse(null);
+      head = records.isEmpty() ? null : records.lastEntry().getValue();
+      writeSnapshot();
+    }
+  }
+
+  /** Drops the cached history, so the next read loads it from the delegate. */
+  public synchronized void invalidate() {
+    records = null;
+    revision = null;
+    head = null;
+    modified = false;
+  }
+
+  /**
+   * Drops the cache if the delegate was changed by others since the cache was validated or
+   * flushed, checked before the first write only, as later the revision also reflects own writes.
+   */
+  private void checkUnchangedBeforeWrite() {
+    if (records != null && !modified && !isUnchanged()) {
+      invalidate();
+    }
+  }
+
+  private void putIntoCache(HistoryRecord historyRecord) {
+    if (records != null) {
+      records.put(historyRecord.getId(), historyRecord);
+      modified = true;
+    }
+  }
+
+  private TreeMap<String, HistoryRecord> validCache() {
+    if (records != null && System.nanoTime() - validatedAt < ttlNanos) {
+      return records;
+    }
+    return revalidate();
+  }
+
+  private TreeMap<String, HistoryRecord> revalidate() {
+    flush();
+    if (records != null && isUnchanged()) {
+      validatedAt = System.nanoTime();
+      return records;
+    }
+    load();
+    return records;
+  }
+
+  private boolean isUnchanged() {
+    Optional<String> currentRevision = delegate.getRevision();
+    if (currentRevision.isPresent()) {
+      return currentRevision.get().equals(revision);
+    }
+    HistoryRecord currentHead = delegate.getCurrentHead().orElse(null);
+    return Objects.equals(currentHead, head)
+        && Objects.equals(
+            currentHead == null ? null : currentHead.getChainHash(),
+            head == null ? null : head.getChainHash());
+  }
+
+  private void load() {
+    // the revision is read before the history, so a concurrent write causes one more reload
+    // rather than a stale cache
+    String currentRevision = delegate.getRevision().orElse(null);
+    TreeMap<String, HistoryRecord> loaded = new TreeMap<>();
+    delegate.getHistory().forEach(record -> loaded.put(record.getId(), record));
+    records = loaded;
+    revision = currentRevision;
+    head = loaded.isEmpty() ? null : loaded.lastEntry().getValue();
+    validatedAt = System.nanoTime();
+    modified = false;
+    writeSnapshot();
+  }
+
+  private void readSnapshot() {
+    if (snapshotFile == null || !Files.exists(snapshotFile)) {
+      return;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+      if (in.readInt() != SNAPSHOT_FORMAT) {
+        return;
+      }
+      String snapshotRevision = readString(in);
+      int count = in.readInt();
+      TreeMap<String, HistoryRecord> loaded = new TreeMap<>();
+      for (int i = 0; i < count; i++) {
+        String id = readString(in);
+        String executedAt = readString(in);
+        String status = readString(in);
+        loaded.put(
+            id,
+            new HistoryRecord(
+                id,
+                executedAt == null ? null : LocalDateTime.parse(executedAt),
+                status == null ? null : HistoryRecord.Status.valueOf(status),
+                readString(in),
+                readString(in),
+                readString(in)));
+      }
+      records = loaded;
+      revision = snapshotRevision;
+      head = records.isEmpty() ? null : records.lastEntry().getValue();
+      // the snapshot is revalidated before the first use
+      validatedAt = System.nanoTime() - ttlNanos - 1;
+    } catch (IOException | RuntimeException e) {
+      // a broken or incompatible snapshot is the same as no snapshot
+      invalidate();
+    }
+  }
+
+  private void writeSnapshot() {
+    if (snapshotFile == null) {
+      return;
+    }
+    Path temp = null;
+    try {
+      Path directory = snapshotFile.toAbsolutePath().getParent();
+      temp = Files.createTempFile(directory, "history", ".tmp");
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(SNAPSHOT_FORMAT);
+        writeString(out, revision);
+        out.writeInt(records.size());
+        for (HistoryRecord record : records.values()) {
+          writeString(out, record.getId());
+          writeString(
+              out, record.getExecutedAt() == null ? null : record.getExecutedAt().toString());
+          writeString(out, record.getStatus() == null ? null : record.getStatus().name());
+          writeString(out, record.getChecksum());
+          writeString(out, record.getChainHash());
+          writeString(out, record.getCheckpoint());
+        }
+      }
+      Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // the snapshot only saves loading the history, it is dropped rather than failing the caller
+      deleteIfExists(snapshotFile);
+    } finally {
+      if (temp != null) {
+        deleteIfExists(temp);
+      }
+    }
+  }
+
+  private static void deleteIfExists(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // an outdated snapshot is revalidated before the first use anyway
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = in.readNBytes(length);
+    if (bytes.length < length) {
+      throw new EOFException();
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
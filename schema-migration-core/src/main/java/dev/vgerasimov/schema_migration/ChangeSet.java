@@ -1,10 +1,15 @@
 package dev.vgerasimov.schema_migration;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
@@ -19,6 +24,61 @@ public abstract class ChangeSet<C extends Context>
 
   public abstract Status mutate(C context);
 
+  /**
+   * Non-blocking variant of {@link #mutate(Context)}, used by {@link Schema#applyAsync}. The
+   * default implementation calls {@link #mutate(Context)} on the calling thread, which is one of
+   * the schema's executor threads. Change sets doing I/O should override this method (or extend
+   * {@link AsyncChangeSet}) to return a stage completed by the I/O layer instead.
+   */
+  public CompletionStage<Status> mutateAsync(C context) {
+    try {
+      return CompletableFuture.completedFuture(mutate(context));
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Returns ids of change sets which must be applied before this one. Only taken into account when
+   * {@link Schema} applies change sets in parallel.
+   *
+   * <p>A change set that declares neither dependencies nor a {@link #getLane() lane} is a barrier:
+   * it is applied after all change sets preceding it and before all change sets following it.
+   * Dependencies must point to change sets that precede this one in the change set list.
+   */
+  public Set<String> getDependencies() {
+    return Set.of();
+  }
+
+  /**
+   * Returns the lane of this change set, e.g. the name of the resource it modifies, or {@code
+   * null} if the change set does not belong to any lane. Change sets within the same lane are
+   * applied in the order of the change set list, change sets of different lanes may be applied
+   * concurrently. Only taken into account when {@link Schema} applies change sets in parallel.
+   */
+  public String getLane() {
+    return null;
+  }
+
+  /**
+   * Returns the time the application of this change set may take, or {@code null} to use the
+   * change set timeout of the {@link Schema}. When it passes, the change set is {@link TimedOut
+   * timed out}: the thread applying it is interrupted, or the stage returned by {@link
+   * #applyAsync(Context, Checkpoint)} is cancelled, and its progress can no longer be saved.
+   */
+  public Duration getTimeout() {
+    return null;
+  }
+
+  /**
+   * Returns whether this change set may be applied in the background, after the application is
+   * ready, e.g. a large backfill nothing at startup depends on. Only taken into account by {@link
+   * Schema#applyWithBackground}, other migrations apply background change sets like any other.
+   */
+  public boolean isBackground() {
+    return false;
+  }
+
   @Override
   public Result apply(C context) {
     Status status = mutate(context);
@@ -26,6 +86,28 @@ public abstract class ChangeSet<C extends Context>
     return new Result(id, status, now);
   }
 
+  /** Non-blocking variant of {@link #apply(Context)}. */
+  public CompletionStage<Result> applyAsync(C context) {
+    return mutateAsync(context)
+        .thenApply(status -> new Result(id, status, LocalDateTime.now(context.getClock())));
+  }
+
+  /**
+   * Applies the change set, which may resume from the progress saved by its previous application,
+   * see {@link Checkpoint}. This is the method called by {@link Schema}. The default implementation
+   * ignores the checkpoint and calls {@link #apply(Context)}; change sets able to resume, e.g.
+   * those processing many resources, override this method and {@link #applyAsync(Context,
+   * Checkpoint)}.
+   */
+  public Result apply(C context, Checkpoint checkpoint) {
+    return apply(context);
+  }
+
+  /** Non-blocking variant of {@link #apply(Context, Checkpoint)}. */
+  public CompletionStage<Result> applyAsync(C context, Checkpoint checkpoint) {
+    return applyAsync(context);
+  }
+
   @Data
   public static class Result {
     private final String id;
@@ -33,6 +115,37 @@ public abstract class ChangeSet<C extends Context>
     private final LocalDateTime executedAt;
   }
 
+  /**
+   * Result of a change set which did not complete in time, either within its own timeout or
+   * before the deadline of the migration. It is {@link Status#FAILED failed}, so the change set is
+   * applied again by the next migration.
+   */
+  @Getter
+  @ToString(callSuper = true)
+  @EqualsAndHashCode(callSuper = true)
+  public static class TimedOut extends Result {
+    /** The timeout which passed. */
+    private final Duration timeout;
+
+    public TimedOut(String id, Duration timeout) {
+      super(id, Status.FAILED, null);
+      this.timeout = timeout;
+    }
+  }
+
+  /**
+   * Result of a change set which the migration did not apply, e.g. because a change set it depends
+   * on failed, or because it was deferred to the background. It is {@link Status#SKIPPED skipped}
+   * and recorded as {@link HistoryRecord.Status#PENDING pending}, so the next migration applies
+   * it. A change set returning {@link Status#SKIPPED} itself is recorded as applied instead.
+   */
+  @ToString(callSuper = true)
+  public static class Pending extends Result {
+    public Pending(String id) {
+      super(id, Status.SKIPPED, null);
+    }
+  }
+
   public enum Status {
     ALREADY_APPLIED,
     APPLIED,
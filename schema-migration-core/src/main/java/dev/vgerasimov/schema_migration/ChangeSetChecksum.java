@@ -0,0 +1,23 @@
+package dev.vgerasimov.schema_migration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the declaration of a change set: a change set class, or a method or field creating the
+ * change set. The {@code schema-migration-processor} annotation processor hashes the source of the
+ * declaration at build time and writes the checksum into the {@link ChecksumManifest}, which
+ * {@link Schema} uses for change sets created without a checksum.
+ *
+ * <p>The source is hashed after parsing, so formatting and comments do not change the checksum.
+ * Only the annotated declaration is hashed, code it calls is not.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})
+public @interface ChangeSetChecksum {
+
+  /** The id of the change set. */
+  String value();
+}
@@ -0,0 +1,80 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The id and checksum of a change set together with a factory creating it. {@link Schema}
+ * compares descriptors with the history and only creates the change sets which have to be
+ * applied, see {@link ChangeSetProvider}.
+ *
+ * @param <C> the type of the context
+ */
+@Getter
+@ToString(onlyExplicitlyIncluded = true)
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ChangeSetDescriptor<C extends Context> {
+  @ToString.Include private final String id;
+  @ToString.Include private final String checksum;
+  private final boolean skipChecksumValidation;
+
+  /** Whether the descriptor stands for a {@link BaselineChangeSet}, see {@link #baseline}. */
+  private final boolean baseline;
+
+  @Getter(AccessLevel.NONE)
+  private final Supplier<? extends ChangeSet<C>> factory;
+
+  /**
+   * Creates a descriptor whose checksum is validated unless it is {@code null}, in which case the
+   * checksum may also come from the {@link ChecksumManifest}.
+   */
+  public static <C extends Context> ChangeSetDescriptor<C> of(
+      String id, String checksum, Supplier<? extends ChangeSet<C>> factory) {
+    return of(id, checksum, checksum == null, factory);
+  }
+
+  public static <C extends Context> ChangeSetDescriptor<C> of(
+      String id,
+      String checksum,
+      boolean skipChecksumValidation,
+      Supplier<? extends ChangeSet<C>> factory) {
+    if (id == null || factory == null) {
+      throw new IllegalArgumentException("Id and factory must not be null");
+    }
+    return new ChangeSetDescriptor<>(id, checksum, skipChecksumValidation, false, factory);
+  }
+
+  /**
+   * Creates the descriptor of the {@link BaselineChangeSet} standing in for the given baseline
+   * record. {@link ChangeSetProvider#getChangeSets()} returns the baseline change set itself rather
+   * than a lazy one, as {@link HistoryChain} tells it by its type.
+   *
+   * @throws IllegalArgumentException if the record is not a baseline record
+   */
+  public static <C extends Context> ChangeSetDescriptor<C> baseline(HistoryRecord baseline) {
+    BaselineChangeSet<C> changeSet = BaselineChangeSet.of(baseline);
+    return new ChangeSetDescriptor<>(
+        changeSet.getId(), changeSet.getChecksum(), false, true, () -> changeSet);
+  }
+
+  /**
+   * Creates the change set.
+   *
+   * @throws IllegalStateException if the id or the checksum of the created change set differ from
+   *     the descriptor
+   */
+  public ChangeSet<C> create() {
+    ChangeSet<C> changeSet = factory.get();
+    if (changeSet == null
+        || !id.equals(changeSet.getId())
+        || !Objects.equals(checksum, changeSet.getChecksum())) {
+      throw new IllegalStateException(
+          "Change set created for descriptor " + this + " does not match it: " + changeSet);
+    }
+    return changeSet;
+  }
+}
@@ -0,0 +1,71 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Source of {@link ChangeSetDescriptor}s, an alternative to creating all change sets upfront. The
+ * change sets returned by {@link #getChangeSets()} only carry the ids and checksums, which is all
+ * {@link Schema} needs to compare them with the history; the actual change sets are created when
+ * they are applied, so already applied change sets are never created, and neither is any state
+ * they capture.
+ *
+ * <p>Implementations may be registered in {@code
+ * META-INF/services/dev.vgerasimov.schema_migration.ChangeSetProvider} and found with {@link
+ * #load(ClassLoader)}, e.g. one provider per module owning change sets.
+ *
+ * @param <C> the type of the context
+ */
+@FunctionalInterface
+public interface ChangeSetProvider<C extends Context> {
+
+  /** Returns the descriptors of all change sets, in the order they are applied. */
+  List<ChangeSetDescriptor<C>> getDescriptors();
+
+  /**
+   * Returns change sets standing in for the descriptors, to be passed to {@link Schema}. A change
+   * set is created by its descriptor when it is applied or asked for its dependencies or lane,
+   * except for {@link ChangeSetDescriptor#baseline baseline} change sets, created at once.
+   */
+  default List<ChangeSet<C>> getChangeSets() {
+    List<ChangeSet<C>> changeSets = new ArrayList<>();
+    for (ChangeSetDescriptor<C> descriptor : getDescriptors()) {
+      changeSets.add(
+          descriptor.isBaseline() ? descriptor.create() : new LazyChangeSet<>(descriptor));
+    }
+    return changeSets;
+  }
+
+  /**
+   * Returns a provider of the given descriptors sorted by id, i.e. in the order of the history.
+   *
+   * @throws IllegalStateException if several descriptors have the same id
+   */
+  static <C extends Context> ChangeSetProvider<C> of(List<ChangeSetDescriptor<C>> descriptors) {
+    List<ChangeSetDescriptor<C>> sorted = new ArrayList<>(descriptors);
+    sorted.sort(Comparator.comparing(ChangeSetDescriptor::getId));
+    for (int i = 1; i < sorted.size(); i++) {
+      if (sorted.get(i).getId().equals(sorted.get(i - 1).getId())) {
+        throw new IllegalStateException(
+            "Change set " + sorted.get(i).getId() + " is provided more than once");
+      }
+    }
+    List<ChangeSetDescriptor<C>> result = List.copyOf(sorted);
+    return () -> result;
+  }
+
+  /**
+   * Loads all providers registered for the {@link ServiceLoader} and merges their descriptors,
+   * see {@link #of(List)}. Only the providers are instantiated, not the change sets.
+   */
+  @SuppressWarnings("unchecked")
+  static <C extends Context> ChangeSetProvider<C> load(ClassLoader classLoader) {
+    List<ChangeSetDescriptor<C>> descriptors = new ArrayList<>();
+    for (ChangeSetProvider<?> provider : ServiceLoader.load(ChangeSetProvider.class, classLoader)) {
+      descriptors.addAll(((ChangeSetProvider<C>) provider).getDescriptors());
+    }
+    return of(descriptors);
+  }
+}
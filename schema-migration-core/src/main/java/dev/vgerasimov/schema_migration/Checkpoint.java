@@ -0,0 +1,58 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The progress of a change set, persisted in its history record, so that a change set which
+ * failed or was interrupted resumes where it stopped instead of starting over. The progress is an
+ * opaque string, e.g. the id of the last processed resource or a counter.
+ *
+ * <p>{@link Schema} passes a checkpoint to {@link ChangeSet#apply(Context, Checkpoint)}. Every save
+ * writes the history record of the change set with status {@link
+ * HistoryRecord.Status#IN_PROGRESS} and flushes the history source, so progress should be saved
+ * after a meaningful amount of work, e.g. a page of resources, rather than after every item. The
+ * progress is kept in the record when the change set fails, and dropped once it is applied.
+ */
+public interface Checkpoint {
+
+  /** Checkpoint without saved progress which does not persist anything. */
+  Checkpoint NONE =
+      new Checkpoint() {
+        @Override
+        public Optional<String> get() {
+          return Optional.empty();
+        }
+
+        @Override
+        public void save(String progress) {}
+
+        @Override
+        public CompletionStage<Void> saveAsync(String progress) {
+          return CompletableFuture.completedFuture(null);
+        }
+      };
+
+  /**
+   * Returns the last saved progress: saved during this application of the change set, or during
+   * the previous one if nothing is saved yet.
+   */
+  Optional<String> get();
+
+  /** Saves the progress, returns once it is persisted. Saves are applied in the order of calls. */
+  void save(String progress);
+
+  /** Non-blocking variant of {@link #save(String)}. */
+  CompletionStage<Void> saveAsync(String progress);
+
+  /**
+   * Returns whether the application of the change set is cancelled, e.g. because its timeout
+   * passed. Neither an interrupt nor a cancelled stage reaches work the change set started itself,
+   * such as requests in flight, so change sets doing many units of work should check it before
+   * each of them and stop once it is cancelled.
+   */
+  default boolean isCancelled() {
+    return false;
+  }
+}
@@ -0,0 +1,185 @@
+package dev.vgerasimov.schema_migration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Checksums of change sets computed at build time by the {@code schema-migration-processor}
+ * annotation processor, see {@link ChangeSetChecksum}. The manifest is a classpath resource {@value
+ * #RESOURCE} with a line {@code <checksum> <id>} per change set; every jar may contain its own.
+ *
+ * <p>{@link Schema} loads the manifest once, when it is created, and uses its checksums for change
+ * sets created without a checksum, so no change set is hashed at runtime. A change set applied
+ * before its checksum was added to the manifest has no checksum in the history, which matches the
+ * manifest checksum.
+ */
+public final class ChecksumManifest {
+
+  /** The classpath location of the manifest. */
+  public static final String RESOURCE = "META-INF/schema-migration/checksums";
+
+  /** Manifest without checksums. */
+  public static final ChecksumManifest EMPTY = new ChecksumManifest(Map.of());
+
+  private final Map<String, String> checksums;
+
+  private ChecksumManifest(Map<String, String> checksums) {
+    this.checksums = checksums;
+  }
+
+  /**
+   * Loads and merges all manifests visible to the given class loader.
+   *
+   * @throws IllegalStateException if two manifests contain different checksums for the same id
+   */
+  public static ChecksumManifest load(ClassLoader classLoader) {
+    Map<String, String> checksums = new HashMap<>();
+    try {
+      Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+      for (URL resource : Collections.list(resources)) {
+        try (InputStream in = resource.openStream()) {
+          parse(new InputStreamReader(in, StandardCharsets.UTF_8), checksums, resource.toString());
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read checksum manifest " + RESOURCE, e);
+    }
+    return checksums.isEmpty() ? EMPTY : new ChecksumManifest(Map.copyOf(checksums));
+  }
+
+  /** Reads the manifest from the given reader. */
+  public static ChecksumManifest read(Reader reader) throws IOException {
+    Map<String, String> checksums = new HashMap<>();
+    parse(reader, checksums, "manifest");
+    return new ChecksumManifest(Map.copyOf(checksums));
+  }
+
+  private static void parse(Reader reader, Map<String, String> checksums, String source)
+      throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      int separator = line.indexOf(' ');
+      if (separator <= 0) {
+        throw new IllegalStateException("Malformed line in " + source + ": " + line);
+      }
+      String checksum = line.substring(0, separator);
+      String id = line.substring(separator + 1);
+      String previous = checksums.putIfAbsent(id, checksum);
+      if (previous != null && !previous.equals(checksum)) {
+        throw new IllegalStateException(
+            "Conflicting checksums of change set " + id + " in " + source);
+      }
+    }
+  }
+
+  /** Returns the checksum of the change set with the given id. */
+  public Optional<String> getChecksum(String id) {
+    return Optional.ofNullable(checksums.get(id));
+  }
+
+  public Set<String> getIds() {
+    return checksums.keySet();
+  }
+
+  /**
+   * Returns the given change sets where every change set without a checksum, but with a checksum
+   * in the manifest, is replaced with a change set validated against the manifest checksum. A
+   * {@link BaselineChangeSet} always has a checksum, so it is never replaced.
+   */
+  <C extends Context> List<ChangeSet<C>> resolve(List<ChangeSet<C>> changeSets) {
+    if (checksums.isEmpty()) {
+      return changeSets;
+    }
+    List<ChangeSet<C>> resolved = new ArrayList<>(changeSets.size());
+    for (ChangeSet<C> changeSet : changeSets) {
+      String checksum = changeSet.getChecksum() == null ? checksums.get(changeSet.getId()) : null;
+      resolved.add(checksum == null ? changeSet : new Resolved<>(changeSet, checksum));
+    }
+    return resolved;
+  }
+
+  /** Returns whether the checksum of the change set comes from the manifest. */
+  static boolean isResolved(ChangeSet<?> changeSet) {
+    return changeSet instanceof Resolved;
+  }
+
+  /** Change set with the checksum from the manifest, everything else is delegated. */
+  private static final class Resolved<C extends Context> extends ChangeSet<C> {
+    private final ChangeSet<C> delegate;
+
+    Resolved(ChangeSet<C> delegate, String checksum) {
+      super(delegate.getId(), checksum, false);
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Status mutate(C context) {
+      return delegate.mutate(context);
+    }
+
+    @Override
+    public CompletionStage<Status> mutateAsync(C context) {
+      return delegate.mutateAsync(context);
+    }
+
+    @Override
+    public Result apply(C context) {
+      return delegate.apply(context);
+    }
+
+    @Override
+    public CompletionStage<Result> applyAsync(C context) {
+      return delegate.applyAsync(context);
+    }
+
+    @Override
+    public Result apply(C context, Checkpoint checkpoint) {
+      return delegate.apply(context, checkpoint);
+    }
+
+    @Override
+    public CompletionStage<Result> applyAsync(C context, Checkpoint checkpoint) {
+      return delegate.applyAsync(context, checkpoint);
+    }
+
+    @Override
+    public Set<String> getDependencies() {
+      return delegate.getDependencies();
+    }
+
+    @Override
+    public String getLane() {
+      return delegate.getLane();
+    }
+
+    @Override
+    public Duration getTimeout() {
+      return delegate.getTimeout();
+    }
+
+    @Override
+    public boolean isBackground() {
+      return delegate.isBackground();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package dev.vgerasimov.schema_migration;
+
+import java.time.Duration;
+
+/**
+ * The point in time by which a migration or a change set must be completed, together with the
+ * timeout it was computed from. Based on {@link System#nanoTime()}, so it is not affected by the
+ * clock of the context.
+ */
+final class Deadline {
+
+  /** Deadline which never passes. */
+  static final Deadline NONE = new Deadline(null, Long.MAX_VALUE);
+
+  private final Duration timeout;
+  private final long nanoTime;
+
+  private Deadline(Duration timeout, long nanoTime) {
+    this.timeout = timeout;
+    this.nanoTime = nanoTime;
+  }
+
+  /** Returns the deadline passing after the given timeout from now, no deadline if it is null. */
+  static Deadline after(Duration timeout) {
+    if (timeout == null) {
+      return NONE;
+    }
+    if (timeout.isNegative()) {
+      throw new IllegalArgumentException("Timeout must not be negative, got " + timeout);
+    }
+    return new Deadline(timeout, System.nanoTime() + timeout.toNanos());
+  }
+
+  /** Returns the earlier of this deadline and the one passing after the given timeout. */
+  Deadline min(Duration timeout) {
+    Deadline other = after(timeout);
+    return !isSet() || (other.isSet() && other.nanoTime - nanoTime < 0) ? other : this;
+  }
+
+  boolean isSet() {
+    return timeout != null;
+  }
+
+  boolean isPassed() {
+    return isSet() && remainingNanos() <= 0;
+  }
+
+  long remainingNanos() {
+    return isSet() ? nanoTime - System.nanoTime() : Long.MAX_VALUE;
+  }
+
+  /** The timeout this deadline was computed from, {@code null} if it is not set. */
+  Duration getTimeout() {
+    return timeout;
+  }
+}
@@ -0,0 +1,71 @@
+package dev.vgerasimov.schema_migration;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Rolling hash chain over change set ids and checksums. The chain value for the change set at
+ * index {@code i} is the SHA-256 of the chain value at index {@code i - 1} and the id and checksum
+ * of the change set, so comparing the last chain values of two lists of change sets is enough to
+ * tell whether the lists are equal.
+ *
+ * <p>Checksums of change sets that skip checksum validation are not included into the chain, as
+ * they are not compared by {@link Schema} either. The checksum of a {@link BaselineChangeSet} is
+ * the chain value of the change sets it stands in for, so it replaces the chain value preceding it.
+ */
+public final class HistoryChain {
+
+  /** The chain value preceding the first change set. */
+  public static final String EMPTY = "";
+
+  private HistoryChain() {}
+
+  /** Returns the chain value following the given one for the given change set. */
+  public static String next(String previous, ChangeSet<?> changeSet) {
+    if (changeSet instanceof BaselineChangeSet) {
+      return changeSet.getChecksum();
+    }
+    return next(
+        previous,
+        changeSet.getId(),
+        changeSet.isSkipChecksumValidation() ? null : changeSet.getChecksum());
+  }
+
+  /** Returns the chain value following the given one for the given id and checksum. */
+  public static String next(String previous, String id, String checksum) {
+    MessageDigest digest = sha256();
+    digest.update(previous.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) '\n');
+    digest.update(id.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) '\n');
+    if (checksum != null) {
+      digest.update(checksum.getBytes(StandardCharsets.UTF_8));
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /** Returns chain values for every change set of the given list. */
+  public static String[] of(List<? extends ChangeSet<?>> changeSets) {
+    String[] chain = new String[changeSets.size()];
+    String previous = EMPTY;
+    for (int i = 0; i < chain.length; i++) {
+      previous = next(previous, changeSets.get(i));
+      chain[i] = previous;
+    }
+    return chain;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package dev.vgerasimov.schema_migration;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * {@link Checkpoint} saving the progress as the history record of the change set. Asynchronous
+ * saves are chained, so they reach the history source in the order of calls, and the final record
+ * of the change set must only be saved after {@link #saved()} is completed, otherwise a late
+ * progress record could overwrite it.
+ */
+final class HistoryCheckpoint implements Checkpoint {
+  private final ChangeSet<?> changeSet;
+  private final Clock clock;
+  private final HistorySource historySource;
+
+  /** The history source of an asynchronous migration, {@code null} for a synchronous one. */
+  private final AsyncHistorySource asyncHistorySource;
+
+  /** Guards the synchronous history source, which is shared by change sets applied in parallel. */
+  private final Object historyLock;
+
+  private String progress;
+  private boolean closed;
+  private CompletableFuture<Void> lastSave = CompletableFuture.completedFuture(null);
+
+  HistoryCheckpoint(
+      ChangeSet<?> changeSet,
+      String progress,
+      Clock clock,
+      HistorySource historySource,
+      AsyncHistorySource asyncHistorySource,
+      Object historyLock) {
+    this.changeSet = changeSet;
+    this.progress = progress;
+    this.clock = clock;
+    this.historySource = historySource;
+    this.asyncHistorySource = asyncHistorySource;
+    this.historyLock = historyLock;
+  }
+
+  @Override
+  public synchronized Optional<String> get() {
+    return Optional.ofNullable(progress);
+  }
+
+  /** Returns the progress to keep in the final record of the change set. */
+  synchronized String getProgress() {
+    return progress;
+  }
+
+  @Override
+  public void save(String progress) {
+    checkNotClosed();
+    if (asyncHistorySource != null) {
+      try {
+        saveAsync(progress).toCompletableFuture().join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+      return;
+    }
+    HistoryRecord historyRecord = toHistoryRecord(progress);
+    synchronized (historyLock) {
+      // checked again under the lock, so no save is in flight once the checkpoint is closed
+      checkNotClosed();
+      historySource.saveRecord(historyRecord);
+      historySource.flush();
+    }
+    setProgress(progress);
+  }
+
+  @Override
+  public CompletionStage<Void> saveAsync(String progress) {
+    if (asyncHistorySource == null) {
+      try {
+        save(progress);
+        return CompletableFuture.completedFuture(null);
+      } catch (RuntimeException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+    HistoryRecord historyRecord;
+    try {
+      checkNotClosed();
+      historyRecord = toHistoryRecord(progress);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    synchronized (this) {
+      // a failed save does not prevent the following ones
+      lastSave =
+          lastSave
+              .handle((result, e) -> null)
+              .thenCompose(__ -> asyncHistorySource.saveRecordAsync(historyRecord))
+              .thenCompose(__ -> asyncHistorySource.flushAsync())
+              .thenRun(() -> setProgress(progress));
+      return lastSave;
+    }
+  }
+
+  /** Returns a future completed once all saves are completed, successfully or not. */
+  synchronized CompletableFuture<Void> saved() {
+    return lastSave.handle((result, e) -> null);
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return closed;
+  }
+
+  /**
+   * Cancels the application, and rejects all following saves, e.g. of a change set which timed out
+   * but is still running, so they cannot overwrite its final record.
+   */
+  void close() {
+    synchronized (historyLock) {
+      synchronized (this) {
+        closed = true;
+      }
+    }
+  }
+
+  private synchronized void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException(
+          "Change set " + changeSet.getId() + " is completed, its progress cannot be saved");
+    }
+  }
+
+  private synchronized void setProgress(String progress) {
+    this.progress = progress;
+  }
+
+  private HistoryRecord toHistoryRecord(String progress) {
+    if (progress == null) {
+      throw new IllegalArgumentException("Progress must not be null");
+    }
+    return new HistoryRecord(
+        changeSet.getId(),
+        LocalDateTime.now(clock),
+        HistoryRecord.Status.IN_PROGRESS,
+        changeSet.getChecksum(),
+        null,
+        progress);
+  }
+}
@@ -1,19 +1,63 @@
 package dev.vgerasimov.schema_migration;
 
 import java.time.LocalDateTime;
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.With;
 
 /** The history record of the migration process. */
 @Data
+@AllArgsConstructor
 public class HistoryRecord {
   private final String id;
   private final LocalDateTime executedAt;
   private final Status status;
   private final String checksum;
 
+  /**
+   * The {@link HistoryChain} value of all change sets up to and including this one, if all of them
+   * were applied successfully, {@code null} otherwise. Only the chain value of the last record is
+   * used, to verify the whole history without loading it.
+   */
+  @With @EqualsAndHashCode.Exclude private final String chainHash;
+
+  /**
+   * The progress saved by the change set through its {@link Checkpoint}, {@code null} if none was
+   * saved or the change set was applied successfully. Handed back to the change set when it is
+   * applied again.
+   */
+  @EqualsAndHashCode.Exclude private final String checkpoint;
+
+  public HistoryRecord(String id, LocalDateTime executedAt, Status status, String checksum) {
+    this(id, executedAt, status, checksum, null, null);
+  }
+
+  public HistoryRecord(
+      String id, LocalDateTime executedAt, Status status, String checksum, String chainHash) {
+    this(id, executedAt, status, checksum, chainHash, null);
+  }
+
   /** The status of the migration process. */
   public enum Status {
     SUCCESS,
-    FAILED
+    FAILED,
+    /**
+     * The change set was not applied because a change set it depends on failed, but change sets
+     * following it were. Such change sets are applied during the next migration.
+     */
+    PENDING,
+    /**
+     * The change set saved its progress through a {@link Checkpoint} and is still being applied, or
+     * the migration was interrupted. Such change sets are applied again during the next migration,
+     * resuming from the saved progress.
+     */
+    IN_PROGRESS,
+    /**
+     * The record stands in for all change sets up to and including its id, whose records were
+     * archived by {@link Schema#baseline}. Its checksum and chain value are the
+     * {@link HistoryChain} value of these change sets.
+     */
+    BASELINE
   }
 }
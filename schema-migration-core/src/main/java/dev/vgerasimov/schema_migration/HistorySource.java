@@ -1,6 +1,8 @@
 package dev.vgerasimov.schema_migration;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * The source of the history records. It is used to get the history of the migration process and to
@@ -14,6 +16,73 @@ public interface HistorySource {
    */
   List<HistoryRecord> getHistory();
 
+  /**
+   * Returns all history records as a lazily populated stream, in the same order as {@link
+   * #getHistory()}. Implementations backed by a remote storage should override this method to load
+   * records page by page, so that the consumer can start processing the first records while the
+   * rest are still being fetched. The returned stream must be closed by the caller.
+   */
+  default Stream<HistoryRecord> streamHistory() {
+    return getHistory().stream();
+  }
+
+  /**
+   * Returns the last history record, i.e. the one with the greatest id. Implementations backed by
+   * a remote storage should override this method to load only this record, as it is requested on
+   * every migration.
+   */
+  default Optional<HistoryRecord> getHead() {
+    List<HistoryRecord> history = getHistory();
+    return history.isEmpty() ? Optional.empty() : Optional.of(history.get(history.size() - 1));
+  }
+
+  /**
+   * Returns the last history record as currently stored, including all writes completed before the
+   * call, also those of other instances. {@link Schema} requests it once the migration lock is
+   * acquired, as another instance may have migrated the storage in the meantime. The default
+   * implementation returns {@link #getHead()}; decorators which may serve an older head, e.g. from
+   * a cache, must override this method.
+   */
+  default Optional<HistoryRecord> getCurrentHead() {
+    return getHead();
+  }
+
+  /**
+   * Returns a token that changes whenever any history record is saved, e.g. a modification counter
+   * or a last modification timestamp, or an empty optional if the implementation does not support
+   * it. Used by {@link CachingHistorySource} to revalidate cached history without loading it.
+   */
+  default Optional<String> getRevision() {
+    return Optional.empty();
+  }
+
   /** Saves a new history record. */
   void saveRecord(HistoryRecord historyRecord);
+
+  /**
+   * Saves the given history records. Implementations which are able to save several records at
+   * once (e.g. in a single request) should override this method.
+   */
+  default void saveRecords(List<HistoryRecord> historyRecords) {
+    historyRecords.forEach(this::saveRecord);
+  }
+
+  /**
+   * Replaces the records with ids less than or equal to the id of the given {@link
+   * HistoryRecord.Status#BASELINE baseline} record with it. The replaced records are moved to an
+   * archive rather than deleted, where the implementation supports it. Used by {@link
+   * Schema#baseline}.
+   *
+   * @throws IllegalStateException if the implementation does not support baselines
+   */
+  default void saveBaseline(HistoryRecord baseline) {
+    throw new IllegalStateException(
+        "History source " + getClass().getName() + " does not support baselines");
+  }
+
+  /**
+   * Makes sure that all previously saved records are persisted. Only needed for implementations
+   * which buffer records, e.g. {@link BufferedHistorySource}.
+   */
+  default void flush() {}
 }
@@ -2,22 +2,69 @@ package dev.vgerasimov.schema_migration;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Simple implementation of {@link HistorySource} that stores all records in memory. Useful for
  * testing only.
  */
-public class InMemoryHistorySource implements HistorySource {
+public class InMemoryHistorySource implements HistorySource, AsyncHistorySource {
   private final TreeMap<String, HistoryRecord> records = new TreeMap<>();
+  private final List<HistoryRecord> archive = new ArrayList<>();
+  private long modifications = 0;
 
   @Override
-  public List<HistoryRecord> getHistory() {
+  public synchronized List<HistoryRecord> getHistory() {
     return new ArrayList<>(records.values());
   }
 
   @Override
-  public void saveRecord(HistoryRecord historyRecord) {
+  public synchronized Optional<HistoryRecord> getHead() {
+    return records.isEmpty() ? Optional.empty() : Optional.of(records.lastEntry().getValue());
+  }
+
+  @Override
+  public synchronized Optional<String> getRevision() {
+    return Optional.of(String.valueOf(modifications));
+  }
+
+  @Override
+  public synchronized void saveRecord(HistoryRecord historyRecord) {
     records.put(historyRecord.getId(), historyRecord);
+    modifications++;
+  }
+
+  @Override
+  public synchronized void saveBaseline(HistoryRecord baseline) {
+    SortedMap<String, HistoryRecord> replaced = records.headMap(baseline.getId(), true);
+    archive.addAll(replaced.values());
+    replaced.clear();
+    records.put(baseline.getId(), baseline);
+    modifications++;
+  }
+
+  /** Returns the records replaced by baselines, in the order they were archived. */
+  public synchronized List<HistoryRecord> getArchive() {
+    return new ArrayList<>(archive);
+  }
+
+  @Override
+  public CompletionStage<List<HistoryRecord>> getHistoryAsync() {
+    return CompletableFuture.completedFuture(getHistory());
+  }
+
+  @Override
+  public CompletionStage<Optional<HistoryRecord>> getHeadAsync() {
+    return CompletableFuture.completedFuture(getHead());
+  }
+
+  @Override
+  public CompletionStage<Void> saveRecordAsync(HistoryRecord historyRecord) {
+    saveRecord(historyRecord);
+    return CompletableFuture.completedFuture(null);
   }
 }
@@ -0,0 +1,82 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets: a value {@code v} is counted in the
+ * bucket {@code 64 - numberOfLeadingZeros(v)}. Recording is a couple of atomic increments, so it
+ * is cheap enough to be done for every change set. Percentiles are approximated with the upper
+ * bound of the bucket, i.e. they are accurate within a factor of two.
+ */
+public final class LatencyHistogram {
+  private static final int BUCKETS = 65;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records the given value in nanoseconds. Negative values are recorded as zero. */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+    count.increment();
+    total.add(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotalNanos() {
+    return total.sum();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  public long getMeanNanos() {
+    long n = getCount();
+    return n == 0 ? 0 : getTotalNanos() / n;
+  }
+
+  /**
+   * Returns the approximate value below which the given fraction of recorded values falls, e.g.
+   * {@code getPercentileNanos(0.99)}. Returns zero if nothing is recorded.
+   */
+  public long getPercentileNanos(double fraction) {
+    if (fraction < 0 || fraction > 1) {
+      throw new IllegalArgumentException("Fraction must be between 0 and 1");
+    }
+    long n = getCount();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return i == 0 ? 0 : Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  @Override
+  public String toString() {
+    return "LatencyHistogram(count="
+        + getCount()
+        + ", meanNanos="
+        + getMeanNanos()
+        + ", p99Nanos="
+        + getPercentileNanos(0.99)
+        + ", maxNanos="
+        + getMaxNanos()
+        + ")";
+  }
+}
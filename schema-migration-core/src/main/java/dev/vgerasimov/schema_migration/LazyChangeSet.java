@@ -0,0 +1,84 @@
+package dev.vgerasimov.schema_migration;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Change set standing in for a {@link ChangeSetDescriptor}: the id and the checksum are known
+ * upfront, the actual change set is created on the first call of any other method, i.e. when the
+ * change set is about to be applied.
+ */
+final class LazyChangeSet<C extends Context> extends ChangeSet<C> {
+  private final transient ChangeSetDescriptor<C> descriptor;
+  private transient volatile ChangeSet<C> changeSet;
+
+  LazyChangeSet(ChangeSetDescriptor<C> descriptor) {
+    super(descriptor.getId(), descriptor.getChecksum(), descriptor.isSkipChecksumValidation());
+    this.descriptor = descriptor;
+  }
+
+  private ChangeSet<C> changeSet() {
+    ChangeSet<C> created = changeSet;
+    if (created == null) {
+      synchronized (this) {
+        created = changeSet;
+        if (created == null) {
+          created = descriptor.create();
+          changeSet = created;
+        }
+      }
+    }
+    return created;
+  }
+
+  @Override
+  public Status mutate(C context) {
+    return changeSet().mutate(context);
+  }
+
+  @Override
+  public CompletionStage<Status> mutateAsync(C context) {
+    return changeSet().mutateAsync(context);
+  }
+
+  @Override
+  public Result apply(C context) {
+    return changeSet().apply(context);
+  }
+
+  @Override
+  public CompletionStage<Result> applyAsync(C context) {
+    return changeSet().applyAsync(context);
+  }
+
+  @Override
+  public Result apply(C context, Checkpoint checkpoint) {
+    return changeSet().apply(context, checkpoint);
+  }
+
+  @Override
+  public CompletionStage<Result> applyAsync(C context, Checkpoint checkpoint) {
+    return changeSet().applyAsync(context, checkpoint);
+  }
+
+  @Override
+  public Set<String> getDependencies() {
+    return changeSet().getDependencies();
+  }
+
+  @Override
+  public String getLane() {
+    return changeSet().getLane();
+  }
+
+  @Override
+  public Duration getTimeout() {
+    return changeSet().getTimeout();
+  }
+
+  @Override
+  public boolean isBackground() {
+    return changeSet().isBackground();
+  }
+}
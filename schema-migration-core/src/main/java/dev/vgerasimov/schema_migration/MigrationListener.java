@@ -0,0 +1,75 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.List;
+
+/**
+ * Listener of the migration process. {@link Schema} invokes it around every phase of the migration
+ * and every change set, passing the time spent in nanoseconds. Useful to find out whether the time
+ * is spent loading the history, applying change sets or saving records.
+ *
+ * <p>When change sets are applied in parallel, the listener is invoked from several threads, so
+ * implementations must be thread-safe. Implementations must not throw exceptions.
+ */
+public interface MigrationListener {
+
+  /** Listener that does nothing. */
+  MigrationListener NONE = new MigrationListener() {};
+
+  /**
+   * Invoked when the phase is completed. {@link Phase#HISTORY_LOAD} and {@link
+   * Phase#VERIFICATION} are interleaved, as the history is verified while it is being loaded, so
+   * the time spent waiting for the history source is reported separately from the verification.
+   */
+  default void onPhase(Phase phase, long nanos) {}
+
+  /** Invoked after the change set is applied, including failed ones. */
+  default void onChangeSetApplied(ChangeSet.Result result, long nanos) {}
+
+  /** Invoked after the history record is saved. */
+  default void onRecordSaved(HistoryRecord historyRecord, long nanos) {}
+
+  /** Invoked when the migration is completed, with the total time of the migration. */
+  default void onCompleted(MigrationResult result, long nanos) {}
+
+  /** Returns a listener that invokes all given listeners in order. */
+  static MigrationListener composite(MigrationListener... listeners) {
+    List<MigrationListener> all = List.of(listeners);
+    return new MigrationListener() {
+      @Override
+      public void onPhase(Phase phase, long nanos) {
+        all.forEach(listener -> listener.onPhase(phase, nanos));
+      }
+
+      @Override
+      public void onChangeSetApplied(ChangeSet.Result result, long nanos) {
+        all.forEach(listener -> listener.onChangeSetApplied(result, nanos));
+      }
+
+      @Override
+      public void onRecordSaved(HistoryRecord historyRecord, long nanos) {
+        all.forEach(listener -> listener.onRecordSaved(historyRecord, nanos));
+      }
+
+      @Override
+      public void onCompleted(MigrationResult result, long nanos) {
+        all.forEach(listener -> listener.onCompleted(result, nanos));
+      }
+    };
+  }
+
+  /** Phases of the migration. */
+  enum Phase {
+    /** Reading of the last history record to check whether everything is already applied. */
+    HEAD_CHECK,
+    /** Waiting for the {@link MigrationLock}, only when the head shows changes to apply. */
+    LOCK,
+    /** Waiting for the history source while the whole history is loaded. */
+    HISTORY_LOAD,
+    /** Comparing history records with change sets. */
+    VERIFICATION,
+    /** Applying change sets and saving their records. */
+    APPLICATION,
+    /** Flushing the history source at the end of the migration. */
+    FLUSH
+  }
+}
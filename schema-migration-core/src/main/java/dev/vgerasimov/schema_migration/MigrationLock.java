@@ -0,0 +1,78 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Lock preventing several instances of an application from migrating the same storage at the
+ * same time, e.g. replicas started by a rolling deployment.
+ *
+ * <p>{@link Schema} only takes the lock when the last history record shows that there is
+ * something to apply, so instances started against an up-to-date storage never wait for each
+ * other. Once the lock is taken, the last record is checked again, as another instance may have
+ * completed the migration in the meantime.
+ */
+public interface MigrationLock {
+
+  /** Lock which is always available, used when only one instance migrates the storage. */
+  MigrationLock NONE =
+      new MigrationLock() {
+        private final Lease lease =
+            new Lease() {
+              @Override
+              public void release() {}
+
+              @Override
+              public CompletionStage<Void> releaseAsync() {
+                return CompletableFuture.completedFuture(null);
+              }
+            };
+
+        @Override
+        public Lease acquire() {
+          return lease;
+        }
+
+        @Override
+        public CompletionStage<Lease> acquireAsync() {
+          return CompletableFuture.completedFuture(lease);
+        }
+      };
+
+  /**
+   * Acquires the lock, waiting while it is held by another instance.
+   *
+   * @throws IllegalStateException if the lock could not be acquired in time
+   */
+  Lease acquire();
+
+  /**
+   * Non-blocking variant of {@link #acquire()}. The returned stage fails with {@link
+   * IllegalStateException} if the lock could not be acquired in time.
+   */
+  CompletionStage<Lease> acquireAsync();
+
+  /** The acquired lock, held until it is released. */
+  interface Lease extends AutoCloseable {
+
+    /** Releases the lock. */
+    void release();
+
+    /** Non-blocking variant of {@link #release()}. */
+    CompletionStage<Void> releaseAsync();
+
+    /**
+     * Returns whether the lock is still held, {@code false} e.g. once the lease expired or was
+     * taken over by another instance. {@link Schema} checks it before every change set and fails
+     * the migration once the lease is lost.
+     */
+    default boolean isValid() {
+      return true;
+    }
+
+    @Override
+    default void close() {
+      release();
+    }
+  }
+}
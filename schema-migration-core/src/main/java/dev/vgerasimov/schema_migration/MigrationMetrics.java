@@ -0,0 +1,114 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built-in {@link MigrationListener} that records latency histograms per phase, per change set
+ * application and per record saving, timings of every applied change set, and counters of change
+ * set statuses. All recording is lock-free.
+ *
+ * <p>{@link Schema} creates a new instance for every migration when metrics recording is enabled
+ * and attaches it to the {@link MigrationResult}, see {@link MigrationResult#getMetrics()}.
+ */
+public final class MigrationMetrics implements MigrationListener {
+  private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+  private final Map<ChangeSet.Status, LongAdder> statuses = new EnumMap<>(ChangeSet.Status.class);
+  private final LatencyHistogram applyLatency = new LatencyHistogram();
+  private final LatencyHistogram saveLatency = new LatencyHistogram();
+  private final Map<String, Long> applyNanos = new ConcurrentHashMap<>();
+  private final Map<String, Long> saveNanos = new ConcurrentHashMap<>();
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  public MigrationMetrics() {
+    // maps are filled upfront and never modified afterwards, so they can be read concurrently
+    for (Phase phase : Phase.values()) {
+      phases.put(phase, new LatencyHistogram());
+    }
+    for (ChangeSet.Status status : ChangeSet.Status.values()) {
+      statuses.put(status, new LongAdder());
+    }
+  }
+
+  @Override
+  public void onPhase(Phase phase, long nanos) {
+    phases.get(phase).record(nanos);
+  }
+
+  @Override
+  public void onChangeSetApplied(ChangeSet.Result result, long nanos) {
+    applyLatency.record(nanos);
+    applyNanos.put(result.getId(), nanos);
+  }
+
+  @Override
+  public void onRecordSaved(HistoryRecord historyRecord, long nanos) {
+    saveLatency.record(nanos);
+    saveNanos.merge(historyRecord.getId(), nanos, Long::sum);
+  }
+
+  @Override
+  public void onCompleted(MigrationResult result, long nanos) {
+    totalNanos.set(nanos);
+    // totals rather than change set results, which are empty if the results are streamed
+    result.getTotals().forEach((status, count) -> statuses.get(status).add(count));
+  }
+
+  /** Returns the histogram of the given phase. */
+  public LatencyHistogram getPhase(Phase phase) {
+    return phases.get(phase);
+  }
+
+  /** Returns the histogram of change set application times. */
+  public LatencyHistogram getApplyLatency() {
+    return applyLatency;
+  }
+
+  /** Returns the histogram of history record saving times. */
+  public LatencyHistogram getSaveLatency() {
+    return saveLatency;
+  }
+
+  /** Returns application times in nanoseconds by change set id. */
+  public Map<String, Long> getApplyNanos() {
+    return Collections.unmodifiableMap(applyNanos);
+  }
+
+  /** Returns history record saving times in nanoseconds by change set id. */
+  public Map<String, Long> getSaveNanos() {
+    return Collections.unmodifiableMap(saveNanos);
+  }
+
+  /** Returns the number of change sets with the given status. */
+  public long getStatusCount(ChangeSet.Status status) {
+    return statuses.get(status).sum();
+  }
+
+  /** Returns the total time of the migration in nanoseconds. */
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  /** Returns the number of applied change sets per second of the application phase. */
+  public double getChangeSetsPerSecond() {
+    long nanos = phases.get(Phase.APPLICATION).getTotalNanos();
+    return nanos == 0 ? 0 : applyLatency.getCount() * 1e9 / nanos;
+  }
+
+  @Override
+  public String toString() {
+    return "MigrationMetrics(totalNanos="
+        + getTotalNanos()
+        + ", phases="
+        + phases
+        + ", apply="
+        + applyLatency
+        + ", save="
+        + saveLatency
+        + ")";
+  }
+}
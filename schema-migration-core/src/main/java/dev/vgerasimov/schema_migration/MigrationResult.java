@@ -6,7 +6,11 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * Represents the result of the schema migration.
@@ -18,6 +22,52 @@ import java.util.List;
 @EqualsAndHashCode
 public abstract class MigrationResult {
 
+  /** Metrics of the migration, only recorded if enabled in {@link Schema}. */
+  @EqualsAndHashCode.Exclude private MigrationMetrics metrics;
+
+  /** Number of change sets per status, only set if the results are streamed. */
+  @EqualsAndHashCode.Exclude private Map<ChangeSet.Status, Long> totals;
+
+  /**
+   * Returns results of all change sets, in the order of the change sets. Empty if the migration
+   * failed before applying change sets, e.g. because of checksum mismatch, or if the results are
+   * streamed by {@link Schema#applyStreaming}.
+   */
+  public List<ChangeSet.Result> getChangeSetResults() {
+    return List.of();
+  }
+
+  /** Returns the metrics of the migration if their recording is enabled in {@link Schema}. */
+  public Optional<MigrationMetrics> getMetrics() {
+    return Optional.ofNullable(metrics);
+  }
+
+  /**
+   * Returns the number of change sets per status, including the statuses no change set has. When
+   * the results are streamed, these are the totals of the streamed results.
+   */
+  public Map<ChangeSet.Status, Long> getTotals() {
+    if (totals != null) {
+      return totals;
+    }
+    Map<ChangeSet.Status, Long> byStatus = new EnumMap<>(ChangeSet.Status.class);
+    for (ChangeSet.Status status : ChangeSet.Status.values()) {
+      byStatus.put(status, 0L);
+    }
+    getChangeSetResults().forEach(result -> byStatus.merge(result.getStatus(), 1L, Long::sum));
+    return Collections.unmodifiableMap(byStatus);
+  }
+
+  MigrationResult withMetrics(MigrationMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  MigrationResult withTotals(Map<ChangeSet.Status, Long> totals) {
+    this.totals = totals;
+    return this;
+  }
+
   /** Represents a successful migration. */
   @RequiredArgsConstructor(access = AccessLevel.PUBLIC)
   @ToString
@@ -0,0 +1,386 @@
+package dev.vgerasimov.schema_migration;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+/**
+ * Applies change sets of a single migration concurrently. The change sets form a DAG built from
+ * their {@link ChangeSet#getDependencies() dependencies} and {@link ChangeSet#getLane() lanes}, see
+ * {@link ChangeSet#getDependencies()} for the rules. A change set is started as soon as all its
+ * dependencies are applied, and is skipped if any of them failed or was skipped.
+ *
+ * <p>As change sets are saved in the order they complete, change sets without a history record
+ * are saved as {@link HistoryRecord.Status#PENDING pending} in the order of the list before any of
+ * them is started, so the history has no gap if the migration is interrupted.
+ *
+ * @param <C> the type of the context
+ */
+final class ParallelApplier<C extends Context> {
+  private final Schema<C> schema;
+  private final C context;
+  private final List<ChangeSet<C>> changeSetsToApply;
+  private final List<String> progress;
+  private final int placeholdersFrom;
+  private final MigrationListener listener;
+  private final ResultCollector results;
+  private final MigrationLock.Lease lease;
+  private final Deadline deadline;
+  private final Set<String> allIds = new HashSet<>();
+  private final Object saveLock = new Object();
+
+  ParallelApplier(
+      Schema<C> schema,
+      C context,
+      List<ChangeSet<C>> allChangeSets,
+      List<ChangeSet<C>> changeSetsToApply,
+      List<String> progress,
+      int recorded,
+      MigrationListener listener,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
+    this.schema = schema;
+    this.context = context;
+    this.changeSetsToApply = changeSetsToApply;
+    this.progress = progress;
+    // a single change set without a record cannot leave a gap
+    this.placeholdersFrom =
+        changeSetsToApply.size() - recorded > 1 ? recorded : changeSetsToApply.size();
+    this.listener = listener;
+    this.results = results;
+    this.lease = lease;
+    this.deadline = deadline;
+    allChangeSets.forEach(changeSet -> allIds.add(changeSet.getId()));
+  }
+
+  /**
+   * Applies the change sets and passes their results to the collector: as soon as they are known
+   * if the results are streamed, in the order of the change sets otherwise. Returns whether all
+   * change sets were applied successfully.
+   */
+  boolean apply() {
+    try {
+      List<HistoryRecord> placeholders = placeholders();
+      if (!placeholders.isEmpty()) {
+        Schema.checkLease(lease, changeSetsToApply.get(placeholdersFrom));
+        synchronized (saveLock) {
+          schema.getHistorySource().saveRecords(placeholders);
+        }
+      }
+      return run(
+              checkpoints(null),
+              (changeSet, checkpoint) ->
+                  CompletableFuture.completedFuture(
+                      schema.applyChangeSet(
+                          context, changeSet, checkpoint, listener, lease, deadline)),
+              (changeSet, checkpoint, result) -> {
+                synchronized (saveLock) {
+                  // preceding change sets may be still running or failed, the head is repaired by
+                  // the schema
+                  schema.saveResult(changeSet, result, null, checkpoint, listener);
+                }
+                return CompletableFuture.completedFuture(null);
+              },
+              false)
+          .join();
+    } catch (CompletionException e) {
+      // e.g. the history source failed to save a record
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Non-blocking variant of {@link #apply()}. */
+  CompletableFuture<Boolean> applyAsync(
+      AsyncHistorySource asyncHistorySource) {
+    List<HistoryRecord> placeholders = placeholders();
+    CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+    if (!placeholders.isEmpty()) {
+      Schema.checkLease(lease, changeSetsToApply.get(placeholdersFrom));
+      saved = asyncHistorySource.saveRecordsAsync(placeholders).toCompletableFuture();
+    }
+    return saved.thenCompose(
+        __ ->
+            run(
+                checkpoints(asyncHistorySource),
+                (changeSet, checkpoint) ->
+                    schema.applyChangeSetAsync(
+                        context, changeSet, checkpoint, listener, lease, deadline),
+                (changeSet, checkpoint, result) ->
+                    schema.saveResultAsync(
+                        asyncHistorySource, changeSet, result, null, checkpoint, listener),
+                true));
+  }
+
+  /** Returns the pending records saved for the change sets without a history record. */
+  private List<HistoryRecord> placeholders() {
+    List<HistoryRecord> placeholders = new ArrayList<>();
+    for (int i = placeholdersFrom; i < changeSetsToApply.size(); i++) {
+      ChangeSet<C> changeSet = changeSetsToApply.get(i);
+      placeholders.add(
+          new HistoryRecord(
+              changeSet.getId(), null, HistoryRecord.Status.PENDING, changeSet.getChecksum()));
+    }
+    return placeholders;
+  }
+
+  /** Creates checkpoints of all change sets, all of them share the lock of the history source. */
+  private List<HistoryCheckpoint> checkpoints(AsyncHistorySource asyncHistorySource) {
+    List<HistoryCheckpoint> checkpoints = new ArrayList<>(changeSetsToApply.size());
+    for (int i = 0; i < changeSetsToApply.size(); i++) {
+      checkpoints.add(
+          schema.newCheckpoint(
+              context, changeSetsToApply.get(i), progress.get(i), asyncHistorySource, saveLock));
+    }
+    return checkpoints;
+  }
+
+  private CompletableFuture<Boolean> run(
+      List<HistoryCheckpoint> checkpoints,
+      BiFunction<ChangeSet<C>, HistoryCheckpoint, CompletableFuture<ChangeSet.Result>> applyStep,
+      SaveStep<C> saveStep,
+      boolean async) {
+    List<int[]> dependencies = buildGraph();
+    ExecutorService ownExecutor =
+        schema.getExecutor() == null && !async ? newExecutor(schema.getParallelism()) : null;
+    Executor executor = ownExecutor == null ? schema.getAsyncExecutor() : ownExecutor;
+    Permits permits = new Permits(schema.getParallelism());
+
+    List<CompletableFuture<ChangeSet.Result>> futures = new ArrayList<>();
+    for (int i = 0; i < changeSetsToApply.size(); i++) {
+      ChangeSet<C> changeSet = changeSetsToApply.get(i);
+      HistoryCheckpoint checkpoint = checkpoints.get(i);
+      CompletableFuture<?>[] dependencyFutures =
+          Arrays.stream(dependencies.get(i))
+              .mapToObj(futures::get)
+              .toArray(CompletableFuture[]::new);
+      futures.add(
+          CompletableFuture.allOf(dependencyFutures)
+              .thenCompose(
+                  __ -> {
+                    boolean dependencyNotApplied =
+                        Arrays.stream(dependencyFutures)
+                            .map(future -> (ChangeSet.Result) future.join())
+                            .anyMatch(
+                                result ->
+                                    result.getStatus() == ChangeSet.Status.FAILED
+                                        || result instanceof ChangeSet.Pending);
+                    if (dependencyNotApplied) {
+                      return CompletableFuture.completedFuture(
+                          new ChangeSet.Pending(changeSet.getId()));
+                    }
+                    // the change set is started on the executor, not on the thread which released
+                    // the permit
+                    return permits
+                        .acquire()
+                        .thenComposeAsync(
+                            permit -> {
+                              CompletableFuture<ChangeSet.Result> applied;
+                              try {
+                                applied = applyStep.apply(changeSet, checkpoint);
+                              } catch (RuntimeException e) {
+                                // e.g. the lock was lost, the permit must be released anyway
+                                applied = CompletableFuture.failedFuture(e);
+                              }
+                              return applied.whenComplete((result, e) -> permits.release());
+                            },
+                            executor)
+                        .thenCompose(
+                            result ->
+                                saveStep
+                                    .save(changeSet, checkpoint, result)
+                                    .thenApply(saved -> result));
+                  })
+              .thenApply(
+                  result -> {
+                    if (results.isStreaming()) {
+                      results.add(result);
+                    }
+                    return result;
+                  }));
+    }
+
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenCompose(
+            __ -> {
+              List<ChangeSet.Result> applied = new ArrayList<>();
+              futures.forEach(future -> applied.add(future.join()));
+              boolean failed =
+                  applied.stream()
+                      .anyMatch(result -> result.getStatus() == ChangeSet.Status.FAILED);
+              return savePendingRecords(applied, checkpoints, saveStep)
+                  .thenApply(
+                      saved -> {
+                        if (!results.isStreaming()) {
+                          applied.forEach(results::add);
+                        }
+                        return !failed;
+                      });
+            })
+        .whenComplete(
+            (result, e) -> {
+              if (ownExecutor != null) {
+                ownExecutor.shutdown();
+              }
+            });
+  }
+
+  /**
+   * Saves skipped change sets which precede an applied or failed change set as pending, unless
+   * they are saved as pending already, otherwise the history would have a gap and the next
+   * migration would report a missing change set.
+   */
+  private CompletableFuture<Void> savePendingRecords(
+      List<ChangeSet.Result> results,
+      List<HistoryCheckpoint> checkpoints,
+      SaveStep<C> saveStep) {
+    int lastExecuted = -1;
+    for (int i = 0; i < results.size(); i++) {
+      if (!(results.get(i) instanceof ChangeSet.Pending)) {
+        lastExecuted = i;
+      }
+    }
+    CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+    for (int i = 0; i < Math.min(lastExecuted, placeholdersFrom); i++) {
+      if (results.get(i) instanceof ChangeSet.Pending) {
+        ChangeSet<C> changeSet = changeSetsToApply.get(i);
+        HistoryCheckpoint checkpoint = checkpoints.get(i);
+        ChangeSet.Result result = results.get(i);
+        saved = saved.thenCompose(__ -> saveStep.save(changeSet, checkpoint, result));
+      }
+    }
+    return saved;
+  }
+
+  /**
+   * Returns indexes of the direct dependencies for every change set to apply. Dependencies on
+   * change sets which are not going to be applied (i.e. already applied ones) are dropped.
+   */
+  private List<int[]> buildGraph() {
+    List<int[]> graph = new ArrayList<>();
+    Set<String> idsToApply = new HashSet<>();
+    changeSetsToApply.forEach(changeSet -> idsToApply.add(changeSet.getId()));
+    Map<String, Integer> indexById = new HashMap<>();
+    Map<String, Integer> lastInLane = new HashMap<>();
+    List<Integer> sinceLastBarrier = new ArrayList<>();
+    Integer lastBarrier = null;
+
+    for (int i = 0; i < changeSetsToApply.size(); i++) {
+      ChangeSet<C> changeSet = changeSetsToApply.get(i);
+      Set<String> declared = changeSet.getDependencies();
+      String lane = changeSet.getLane();
+      Set<Integer> dependencies = new HashSet<>();
+
+      if (declared.isEmpty() && lane == null) {
+        dependencies.addAll(sinceLastBarrier);
+        if (lastBarrier != null) {
+          dependencies.add(lastBarrier);
+        }
+        lastBarrier = i;
+        sinceLastBarrier.clear();
+      } else {
+        for (String dependencyId : declared) {
+          if (!allIds.contains(dependencyId)) {
+            throw new IllegalArgumentException(
+                "Change set " + changeSet.getId()
+                    + " depends on unknown change set " + dependencyId);
+          }
+          Integer dependency = indexById.get(dependencyId);
+          if (dependency != null) {
+            dependencies.add(dependency);
+          } else if (idsToApply.contains(dependencyId)) {
+            throw new IllegalArgumentException(
+                "Change set " + changeSet.getId() + " depends on change set " + dependencyId
+                    + " which follows it");
+          }
+        }
+        if (lane != null && lastInLane.containsKey(lane)) {
+          dependencies.add(lastInLane.get(lane));
+        }
+        if (lastBarrier != null) {
+          dependencies.add(lastBarrier);
+        }
+        sinceLastBarrier.add(i);
+      }
+
+      if (lane != null) {
+        lastInLane.put(lane, i);
+      }
+      indexById.put(changeSet.getId(), i);
+      graph.add(dependencies.stream().mapToInt(Integer::intValue).toArray());
+    }
+    return graph;
+  }
+
+  /** Creates a virtual thread per task executor if available, a fixed thread pool otherwise. */
+  private static ExecutorService newExecutor(int parallelism) {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(
+          parallelism,
+          runnable -> {
+            Thread thread = new Thread(runnable, "schema-migration");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  /** Saves the history record for the result of the change set. */
+  private interface SaveStep<C extends Context> {
+    CompletableFuture<Void> save(
+        ChangeSet<C> changeSet, HistoryCheckpoint checkpoint, ChangeSet.Result result);
+  }
+
+  /**
+   * Non-blocking counterpart of {@link java.util.concurrent.Semaphore}: a permit which is not
+   * available right away is handed over when another change set releases its permit.
+   */
+  private static final class Permits {
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private int available;
+
+    Permits(int available) {
+      this.available = available;
+    }
+
+    synchronized CompletableFuture<Void> acquire() {
+      if (available > 0) {
+        available--;
+        return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> permit = new CompletableFuture<>();
+      waiting.add(permit);
+      return permit;
+    }
+
+    void release() {
+      CompletableFuture<Void> next;
+      synchronized (this) {
+        next = waiting.poll();
+        if (next == null) {
+          available++;
+          return;
+        }
+      }
+      next.complete(null);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package dev.vgerasimov.schema_migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Receives the results of change sets during a migration. It either collects them for the {@link
+ * MigrationResult}, or passes every result to the consumer given to {@link Schema#applyStreaming}
+ * and keeps only the totals per status.
+ */
+final class ResultCollector {
+  private final List<ChangeSet.Result> results;
+  private final Consumer<ChangeSet.Result> consumer;
+  private final long[] totals = new long[ChangeSet.Status.values().length];
+  private long pending;
+
+  private ResultCollector(List<ChangeSet.Result> results, Consumer<ChangeSet.Result> consumer) {
+    this.results = results;
+    this.consumer = consumer;
+  }
+
+  static ResultCollector collecting() {
+    return new ResultCollector(new ArrayList<>(), null);
+  }
+
+  static ResultCollector streaming(Consumer<ChangeSet.Result> consumer) {
+    return new ResultCollector(null, consumer);
+  }
+
+  /** Whether results are passed to a consumer as soon as they are known. */
+  boolean isStreaming() {
+    return results == null;
+  }
+
+  synchronized void add(ChangeSet.Result result) {
+    totals[result.getStatus().ordinal()]++;
+    if (result instanceof ChangeSet.Pending) {
+      pending++;
+    }
+    if (results != null) {
+      results.add(result);
+    } else {
+      consumer.accept(result);
+    }
+  }
+
+  /** Returns the number of {@link ChangeSet.Pending pending} results added so far. */
+  synchronized long countPending() {
+    return pending;
+  }
+
+  /** Adds the result of the change set whose history record is verified. */
+  void addVerified(HistoryRecord historyRecord) {
+    add(
+        new ChangeSet.Result(
+            historyRecord.getId(),
+            ChangeSet.Status.ALREADY_APPLIED,
+            historyRecord.getExecutedAt()));
+  }
+
+  /** Creates the result of the migration which verified and applied all change sets. */
+  MigrationResult toMigrationResult(boolean succeeded) {
+    List<ChangeSet.Result> changeSetResults = results == null ? List.of() : results;
+    return succeeded
+        ? new MigrationResult.Success(changeSetResults)
+        : new MigrationResult.ApplicationFailed(changeSetResults);
+  }
+
+  /**
+   * Attaches the totals to the result of the migration if the results are streamed, otherwise the
+   * totals are computed from the collected results.
+   */
+  synchronized MigrationResult complete(MigrationResult result) {
+    if (results != null) {
+      return result;
+    }
+    Map<ChangeSet.Status, Long> byStatus = new EnumMap<>(ChangeSet.Status.class);
+    for (ChangeSet.Status status : ChangeSet.Status.values()) {
+      byStatus.put(status, totals[status.ordinal()]);
+    }
+    return result.withTotals(Collections.unmodifiableMap(byStatus));
+  }
+}
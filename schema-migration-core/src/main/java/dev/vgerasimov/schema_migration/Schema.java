@@ -1,14 +1,26 @@
 package dev.vgerasimov.schema_migration;
 
-import static java.util.stream.Collectors.toList;
-
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
-import lombok.AccessLevel;
-import lombok.RequiredArgsConstructor;
+import lombok.Builder;
 
 /**
  * A schema migration tool. It applies change sets to the database and saves the history of applied
@@ -19,125 +31,1224 @@ import lombok.RequiredArgsConstructor;
  * sets. The context is an object that contains everything that is needed to apply change sets. The
  * return type of the function is a {@link MigrationResult} containing the results of applying change sets.
  *
+ * <p>By default, change sets are applied one after another and the first failure skips all the
+ * following change sets. When {@code parallelism} is greater than one, change sets are applied
+ * according to their {@link ChangeSet#getDependencies() dependencies} and {@link
+ * ChangeSet#getLane() lanes}: independent change sets run concurrently, and a failure skips only
+ * the change sets depending on the failed one. In this mode the context must be safe to use from
+ * several threads.
+ *
+ * <p>Every history record carries a {@link HistoryChain} value of the change sets up to it. If the
+ * chain value of the last record matches the chain value computed from the change set list, the
+ * migration is completed without loading the rest of the history. Otherwise, the whole history is
+ * compared with the change sets one by one. A {@link MigrationLock}, if set, is only taken in the
+ * latter case, so instances started against an up-to-date storage do not wait for each other.
+ *
+ * <p>Long-running change sets may save their progress through the {@link Checkpoint} passed to
+ * {@link ChangeSet#apply(Context, Checkpoint)}. A change set which failed or was interrupted gets
+ * its last saved progress back when it is applied by the next migration.
+ *
+ * <p>The history records of old change sets may be squashed into a single baseline record with
+ * {@link #baseline(List, String)}, so they are neither loaded nor compared one by one.
+ *
+ * <p>Change sets may be given a timeout, and the whole migration a deadline. A change set which
+ * does not complete in time is interrupted (or its stage cancelled), its {@link
+ * Checkpoint#isCancelled() checkpoint} is cancelled, and it is recorded as failed with a {@link
+ * ChangeSet.TimedOut} result, so a hanging backend cannot block the application startup
+ * indefinitely. A change set ignoring the cancellation keeps running in the background, but can no
+ * longer save its progress.
+ *
+ * <p>{@link #applyWithBackground} applies only the blocking change sets before returning, and
+ * leaves the {@link ChangeSet#isBackground() background} ones, e.g. large backfills, to a
+ * low-priority executor once the application is ready.
+ *
  * @param <C> the type of the context
  */
-@RequiredArgsConstructor(access = AccessLevel.PUBLIC)
 public class Schema<C extends Context> implements BiFunction<C, List<ChangeSet<C>>, MigrationResult> {
 
   private final HistorySource historySource;
 
+  /** Maximum number of change sets applied concurrently. {@code 1} means sequential execution. */
+  private final int parallelism;
+
+  /**
+   * The executor used for parallel execution. If {@code null}, an executor is created for each
+   * migration: virtual threads when they are available, a fixed thread pool otherwise.
+   */
+  private final Executor executor;
+
+  /** The listener invoked around every phase of the migration and every change set. */
+  private final MigrationListener listener;
+
+  /**
+   * Whether {@link MigrationMetrics} are recorded for every migration and attached to its result.
+   */
+  private final boolean recordMetrics;
+
+  /**
+   * Checksums of change sets created without a checksum. If not set, the manifest is loaded from
+   * the classpath, see {@link ChecksumManifest#load(ClassLoader)}.
+   */
+  private final ChecksumManifest checksumManifest;
+
+  /**
+   * The lock taken for the migration unless the last history record shows that all change sets
+   * are already applied. Not taken if not set.
+   */
+  private final MigrationLock lock;
+
+  /**
+   * The time every change set may take, unless it declares its own {@link ChangeSet#getTimeout()
+   * timeout}. Not limited if not set.
+   */
+  private final Duration changeSetTimeout;
+
+  /**
+   * The time a migration may take, measured from its start. Change sets still running when it
+   * passes are timed out, and change sets not started yet are not applied. Not limited if not set.
+   */
+  private final Duration migrationTimeout;
+
+  /**
+   * The executor applying the background change sets of {@link #applyWithBackground}. If {@code
+   * null}, a daemon thread with the minimum priority is started for each migration.
+   */
+  private final Executor backgroundExecutor;
+
+  public Schema(HistorySource historySource) {
+    this(historySource, 1, null, null, false, null, null, null, null, null);
+  }
+
+  @Builder
+  private Schema(
+      HistorySource historySource,
+      int parallelism,
+      Executor executor,
+      MigrationListener listener,
+      boolean recordMetrics,
+      ChecksumManifest checksumManifest,
+      MigrationLock lock,
+      Duration changeSetTimeout,
+      Duration migrationTimeout,
+      Executor backgroundExecutor) {
+    if (historySource == null) {
+      throw new IllegalArgumentException("History source must not be null");
+    }
+    if ((changeSetTimeout != null && changeSetTimeout.isNegative())
+        || (migrationTimeout != null && migrationTimeout.isNegative())) {
+      throw new IllegalArgumentException("Timeouts must not be negative");
+    }
+    this.historySource = historySource;
+    this.parallelism = Math.max(parallelism, 1);
+    this.executor = executor;
+    this.listener = listener == null ? MigrationListener.NONE : listener;
+    this.recordMetrics = recordMetrics;
+    this.checksumManifest =
+        checksumManifest == null ? ChecksumManifest.load(classLoader()) : checksumManifest;
+    this.lock = lock == null ? MigrationLock.NONE : lock;
+    this.changeSetTimeout = changeSetTimeout;
+    this.migrationTimeout = migrationTimeout;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
   @Override
   public MigrationResult apply(C context, List<ChangeSet<C>> changeSets) {
+    return apply(context, changeSets, ResultCollector.collecting(), false);
+  }
+
+  /**
+   * Streaming variant of {@link #apply(Context, List)} for very long change set lists. Every
+   * change set result is passed to the consumer as soon as it is known instead of being collected,
+   * and history records are not retained once verified, so the memory used by the migration does
+   * not grow with the number of results. The returned result carries no change set results, only
+   * their {@link MigrationResult#getTotals() totals}.
+   *
+   * <p>Results of already applied change sets are passed while the history is verified, so they
+   * may precede a {@link MigrationResult.MissingChangeSet} or {@link
+   * MigrationResult.ChecksumMismatch} result. When change sets are applied in parallel, their
+   * results are passed in the order they complete. The consumer is never invoked concurrently and
+   * must not throw exceptions.
+   */
+  public MigrationResult applyStreaming(
+      C context, List<ChangeSet<C>> changeSets, Consumer<ChangeSet.Result> consumer) {
+    if (consumer == null) {
+      throw new IllegalArgumentException("Consumer must not be null");
+    }
+    return apply(context, changeSets, ResultCollector.streaming(consumer), false);
+  }
+
+  /**
+   * Applies the blocking change sets and returns once they are applied, so the application may
+   * signal readiness, while the {@link ChangeSet#isBackground() background} change sets are applied
+   * afterwards on the background executor. The returned handle exposes the progress and the
+   * outcome of the background change sets.
+   *
+   * <p>Background change sets are saved as {@link HistoryRecord.Status#PENDING pending} by the
+   * blocking migration, so blocking change sets may follow them, and a background change set
+   * interrupted e.g. by a restart is applied by the next migration. Blocking change sets depending
+   * on a background one are deferred as well. When change sets are applied in parallel, background
+   * change sets should have a {@link ChangeSet#getLane() lane}, otherwise they are barriers and
+   * all change sets following them are deferred.
+   *
+   * <p>The background migration verifies the history again and takes the lock, so it is safe to
+   * start it from every instance of the application; instances finding the change sets applied
+   * complete at once. An instance started while another one applies the background change sets,
+   * holding the lock, does not wait for it to become ready: if only background change sets are
+   * left to apply, its blocking migration verifies the history without the lock. Its background
+   * migration waits for the lock, and fails if the lock is not acquired in time, leaving the
+   * change sets to the next migration.
+   */
+  public BackgroundMigration applyWithBackground(C context, List<ChangeSet<C>> changeSets) {
     if (changeSets == null) {
       throw new IllegalArgumentException("Change sets list must not be null");
     }
+    MigrationResult blockingResult =
+        apply(
+            context, BackgroundMigration.defer(changeSets), ResultCollector.collecting(), true);
+    List<String> deferredIds = new ArrayList<>();
+    for (ChangeSet.Result result : blockingResult.getChangeSetResults()) {
+      if (result instanceof ChangeSet.Pending) {
+        deferredIds.add(result.getId());
+      }
+    }
+    BackgroundMigration migration = new BackgroundMigration(blockingResult, deferredIds);
+    if (!migration.isReady() || deferredIds.isEmpty()) {
+      migration.complete(blockingResult, null);
+      return migration;
+    }
+    Runnable background =
+        () -> {
+          try {
+            migration.complete(applyStreaming(context, changeSets, migration::onResult), null);
+          } catch (RuntimeException e) {
+            migration.complete(null, e);
+          }
+        };
+    try {
+      if (backgroundExecutor != null) {
+        backgroundExecutor.execute(background);
+      } else {
+        Thread thread = new Thread(background, "schema-migration-background");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+      }
+    } catch (RejectedExecutionException e) {
+      migration.complete(null, e);
+    }
+    return migration;
+  }
+
+  /**
+   * @param blocking whether only the blocking change sets are applied, see {@link
+   *     #applyWithBackground}
+   */
+  private MigrationResult apply(
+      C context, List<ChangeSet<C>> changeSets, ResultCollector results, boolean blocking) {
+    if (changeSets == null) {
+      throw new IllegalArgumentException("Change sets list must not be null");
+    }
+    MigrationMetrics metrics = recordMetrics ? new MigrationMetrics() : null;
+    MigrationListener runListener =
+        metrics == null ? listener : MigrationListener.composite(metrics, listener);
+
+    long start = System.nanoTime();
+    MigrationResult result =
+        results.complete(
+            migrate(
+                context,
+                checksumManifest.resolve(changeSets),
+                runListener,
+                results,
+                Deadline.after(migrationTimeout),
+                blocking));
+    runListener.onCompleted(result, System.nanoTime() - start);
+    return metrics == null ? result : result.withMetrics(metrics);
+  }
+
+  /**
+   * Non-blocking variant of {@link #apply(Context, List)}. The history source must implement
+   * {@link AsyncHistorySource}, and change sets are applied with {@link
+   * ChangeSet#applyAsync(Context)}, so no thread waits for the history source or for change sets
+   * which override {@link ChangeSet#mutateAsync(Context)}. Change sets are started on the schema's
+   * executor (or the common pool if it is not set), never on the thread which completed the
+   * previous stage, e.g. an event loop of the HTTP client.
+   *
+   * <p>As the whole history is requested at once, the history is loaded the same way as {@link
+   * HistorySource#getHistory()} rather than streamed.
+   *
+   * @throws IllegalStateException if the history source does not implement {@link
+   *     AsyncHistorySource}
+   */
+  public CompletableFuture<MigrationResult> applyAsync(C context, List<ChangeSet<C>> changeSets) {
+    if (changeSets == null) {
+      throw new IllegalArgumentException("Change sets list must not be null");
+    }
+    if (!(historySource instanceof AsyncHistorySource)) {
+      throw new IllegalStateException(
+          "History source " + historySource.getClass().getName()
+              + " does not support asynchronous access");
+    }
+    AsyncHistorySource asyncHistorySource = (AsyncHistorySource) historySource;
+    MigrationMetrics metrics = recordMetrics ? new MigrationMetrics() : null;
+    MigrationListener runListener =
+        metrics == null ? listener : MigrationListener.composite(metrics, listener);
+
+    long start = System.nanoTime();
+    return migrateAsync(
+            context,
+            checksumManifest.resolve(changeSets),
+            runListener,
+            asyncHistorySource,
+            ResultCollector.collecting(),
+            Deadline.after(migrationTimeout))
+        .thenApply(
+            result -> {
+              runListener.onCompleted(result, System.nanoTime() - start);
+              return metrics == null ? result : result.withMetrics(metrics);
+            });
+  }
+
+  /**
+   * Squashes the history records of all change sets up to and including the one with the given id
+   * into a single {@link HistoryRecord.Status#BASELINE baseline} record, whose checksum is the
+   * {@link HistoryChain} value of these change sets. The squashed records are archived by {@link
+   * HistorySource#saveBaseline(HistoryRecord)}. The lock is held while the history is replaced.
+   *
+   * <p>Migrations verify the baseline record against the change sets at once. Afterwards, the
+   * squashed change sets may be removed from the code and replaced by the {@link
+   * BaselineChangeSet} created from the returned record.
+   *
+   * @return the baseline record
+   * @throws IllegalArgumentException if no change set has the given id
+   * @throws IllegalStateException if the history does not match the change sets, any of the
+   *     change sets up to the given one is not applied successfully, or the lock was lost before
+   *     the history is replaced
+   */
+  public HistoryRecord baseline(List<ChangeSet<C>> changeSets, String id) {
+    if (changeSets == null) {
+      throw new IllegalArgumentException("Change sets list must not be null");
+    }
+    List<ChangeSet<C>> resolved = checksumManifest.resolve(changeSets);
+    int last = indexOf(resolved, id, 0);
+    if (last < 0) {
+      throw new IllegalArgumentException("Unknown change set " + id);
+    }
+    String[] chain = HistoryChain.of(resolved);
+
+    try (MigrationLock.Lease lease = lock.acquire()) {
+      List<HistoryRecord> verified = new ArrayList<>();
+      Verification<C> verification;
+      try (Stream<HistoryRecord> historyStream = historySource.streamHistory()) {
+        verification = verify(resolved, chain, historyStream.iterator(), verified::add);
+      }
+      if (verification.failure != null) {
+        throw new IllegalStateException(
+            "History does not match the change sets: " + verification.failure);
+      }
+      for (ChangeSet<C> notApplied : verification.toApply) {
+        if (indexOf(resolved, notApplied.getId(), 0) <= last) {
+          throw new IllegalStateException(
+              "Change set " + notApplied.getId() + " is not applied, it cannot be squashed");
+        }
+      }
+      HistoryRecord squashed =
+          verified.stream()
+              .filter(record -> record.getId().equals(id))
+              .findFirst()
+              .orElseThrow();
+      if (squashed.getStatus() == HistoryRecord.Status.BASELINE) {
+        return squashed;
+      }
+      HistoryRecord baseline =
+          new HistoryRecord(
+              id,
+              squashed.getExecutedAt(),
+              HistoryRecord.Status.BASELINE,
+              chain[last],
+              chain[last]);
+      historySource.flush();
+      if (!lease.isValid()) {
+        throw new IllegalStateException(
+            "Migration lock was lost before baseline " + id + " was saved");
+      }
+      historySource.saveBaseline(baseline);
+      return baseline;
+    }
+  }
+
+  private MigrationResult migrate(
+      C context,
+      List<ChangeSet<C>> changeSets,
+      MigrationListener listener,
+      ResultCollector results,
+      Deadline deadline,
+      boolean blocking) {
+    String[] chain = HistoryChain.of(changeSets);
+    long headCheckStart = System.nanoTime();
+    MigrationResult upToDate =
+        changeSets.isEmpty()
+            ? null
+            : verifyHead(changeSets, chain, historySource.getHead().orElse(null), results);
+    listener.onPhase(MigrationListener.Phase.HEAD_CHECK, System.nanoTime() - headCheckStart);
+    if (upToDate != null) {
+      return upToDate;
+    }
+    if (changeSets.isEmpty()) {
+      return loadAndApply(
+          context, changeSets, chain, listener, results, MigrationLock.NONE.acquire(), deadline);
+    }
+    if (blocking && lock != MigrationLock.NONE) {
+      // the lock may be held by the background migration of another instance for long
+      MigrationResult deferred = verifyOnlyBackgroundLeft(changeSets, chain, listener, results);
+      if (deferred != null) {
+        return deferred;
+      }
+    }
+
+    long lockStart = System.nanoTime();
+    try (MigrationLock.Lease lease = lock.acquire()) {
+      listener.onPhase(MigrationListener.Phase.LOCK, System.nanoTime() - lockStart);
+      if (lock != MigrationLock.NONE) {
+        // another instance may have applied the change sets while this one was waiting
+        upToDate =
+            verifyHead(changeSets, chain, historySource.getCurrentHead().orElse(null), results);
+        if (upToDate != null) {
+          return upToDate;
+        }
+      }
+      return loadAndApply(context, changeSets, chain, listener, results, lease, deadline);
+    }
+  }
+
+  /** Verifies the whole history and applies the change sets which are not applied yet. */
+  private MigrationResult loadAndApply(
+      C context,
+      List<ChangeSet<C>> changeSets,
+      String[] chain,
+      MigrationListener listener,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
+    // history is consumed lazily, so a paging history source can fetch the next page while the
+    // current one is being verified
+    long verificationStart = System.nanoTime();
+    Verification<C> verification;
+    try (Stream<HistoryRecord> historyStream = historySource.streamHistory()) {
+      verification = verify(changeSets, chain, historyStream.iterator(), results::addVerified);
+    }
+    listener.onPhase(MigrationListener.Phase.HISTORY_LOAD, verification.historyLoadNanos);
+    listener.onPhase(
+        MigrationListener.Phase.VERIFICATION,
+        System.nanoTime() - verificationStart - verification.historyLoadNanos);
+    if (verification.failure != null) {
+      return verification.failure;
+    }
+
+    long applicationStart = System.nanoTime();
+    boolean succeeded;
+    if (parallelism > 1) {
+      succeeded =
+          new ParallelApplier<>(
+                  this,
+                  context,
+                  changeSets,
+                  verification.toApply,
+                  verification.toApplyProgress,
+                  verification.toApplyRecorded,
+                  listener,
+                  results,
+                  lease,
+                  deadline)
+              .apply();
+    } else {
+      succeeded =
+          applyAndSaveRecords(
+              context,
+              verification.toApply,
+              verification.toApplyChain,
+              verification.toApplyProgress,
+              listener,
+              results,
+              lease,
+              deadline);
+    }
+    listener.onPhase(
+        MigrationListener.Phase.APPLICATION, System.nanoTime() - applicationStart);
 
-    List<HistoryRecord> history = historySource.getHistory();
+    long flushStart = System.nanoTime();
+    historySource.flush();
+    if (succeeded && isComplete(changeSets, results)) {
+      repairHead(changeSets.get(changeSets.size() - 1), chain[chain.length - 1]);
+    }
+    listener.onPhase(MigrationListener.Phase.FLUSH, System.nanoTime() - flushStart);
+    return results.toMigrationResult(succeeded);
+  }
+
+  private CompletableFuture<MigrationResult> migrateAsync(
+      C context,
+      List<ChangeSet<C>> changeSets,
+      MigrationListener listener,
+      AsyncHistorySource asyncHistorySource,
+      ResultCollector results,
+      Deadline deadline) {
+    String[] chain = HistoryChain.of(changeSets);
+    long headCheckStart = System.nanoTime();
+    CompletableFuture<Optional<HistoryRecord>> head =
+        changeSets.isEmpty()
+            ? CompletableFuture.completedFuture(Optional.empty())
+            : asyncHistorySource.getHeadAsync().toCompletableFuture();
+    return head.thenCompose(
+        headRecord -> {
+          listener.onPhase(
+              MigrationListener.Phase.HEAD_CHECK, System.nanoTime() - headCheckStart);
+          MigrationResult upToDate =
+              headRecord
+                  .map(record -> verifyHead(changeSets, chain, record, results))
+                  .orElse(null);
+          if (upToDate != null) {
+            return CompletableFuture.completedFuture(upToDate);
+          }
+          if (changeSets.isEmpty()) {
+            return loadAndApplyAsync(
+                context,
+                changeSets,
+                chain,
+                listener,
+                asyncHistorySource,
+                results,
+                MigrationLock.NONE.acquire(),
+                deadline);
+          }
+
+          long lockStart = System.nanoTime();
+          return lock.acquireAsync()
+              .toCompletableFuture()
+              .thenCompose(
+                  lease -> {
+                    listener.onPhase(
+                        MigrationListener.Phase.LOCK, System.nanoTime() - lockStart);
+                    CompletableFuture<MigrationResult> migration =
+                        lock == MigrationLock.NONE
+                            ? loadAndApplyAsync(
+                                context,
+                                changeSets,
+                                chain,
+                                listener,
+                                asyncHistorySource,
+                                results,
+                                lease,
+                                deadline)
+                            : asyncHistorySource
+                                .getHeadAsync()
+                                .toCompletableFuture()
+                                .thenCompose(
+                                    lockedHead ->
+                                        lockedHead
+                                            .map(
+                                                record ->
+                                                    verifyHead(
+                                                        changeSets, chain, record, results))
+                                            .map(CompletableFuture::completedFuture)
+                                            .orElseGet(
+                                                () ->
+                                                    loadAndApplyAsync(
+                                                        context,
+                                                        changeSets,
+                                                        chain,
+                                                        listener,
+                                                        asyncHistorySource,
+                                                        results,
+                                                        lease,
+                                                        deadline)));
+                    return releaseAfter(lease, migration);
+                  });
+        });
+  }
+
+  /** Non-blocking variant of {@link #loadAndApply}. */
+  private CompletableFuture<MigrationResult> loadAndApplyAsync(
+      C context,
+      List<ChangeSet<C>> changeSets,
+      String[] chain,
+      MigrationListener listener,
+      AsyncHistorySource asyncHistorySource,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
+    long historyLoadStart = System.nanoTime();
+    return asyncHistorySource
+        .getHistoryAsync()
+        .toCompletableFuture()
+        .thenCompose(
+            history -> {
+              listener.onPhase(
+                  MigrationListener.Phase.HISTORY_LOAD, System.nanoTime() - historyLoadStart);
+              long verificationStart = System.nanoTime();
+              Verification<C> verification =
+                  verify(changeSets, chain, history.iterator(), results::addVerified);
+              listener.onPhase(
+                  MigrationListener.Phase.VERIFICATION, System.nanoTime() - verificationStart);
+              if (verification.failure != null) {
+                return CompletableFuture.completedFuture(verification.failure);
+              }
+              return applyVerifiedAsync(
+                  context,
+                  changeSets,
+                  chain,
+                  verification,
+                  listener,
+                  asyncHistorySource,
+                  results,
+                  lease,
+                  deadline);
+            });
+  }
 
-    ArrayList<HistoryRecord> verified = new ArrayList<>();
-    ArrayList<ChangeSet<C>> toApply = new ArrayList<>();
+  /** Releases the lease once the migration is completed, successfully or not. */
+  private static CompletableFuture<MigrationResult> releaseAfter(
+      MigrationLock.Lease lease, CompletableFuture<MigrationResult> migration) {
+    return migration
+        .handle(
+            (result, e) ->
+                lease
+                    .releaseAsync()
+                    .toCompletableFuture()
+                    .thenCompose(
+                        __ ->
+                            e == null
+                                ? CompletableFuture.completedFuture(result)
+                                : CompletableFuture.<MigrationResult>failedFuture(e)))
+        .thenCompose(Function.identity());
+  }
+
+  private CompletableFuture<MigrationResult> applyVerifiedAsync(
+      C context,
+      List<ChangeSet<C>> changeSets,
+      String[] chain,
+      Verification<C> verification,
+      MigrationListener listener,
+      AsyncHistorySource asyncHistorySource,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
+    long applicationStart = System.nanoTime();
+    CompletableFuture<Boolean> application =
+        parallelism > 1
+            ? new ParallelApplier<>(
+                    this,
+                    context,
+                    changeSets,
+                    verification.toApply,
+                    verification.toApplyProgress,
+                    verification.toApplyRecorded,
+                    listener,
+                    results,
+                    lease,
+                    deadline)
+                .applyAsync(asyncHistorySource)
+            : applyAndSaveRecordsAsync(
+                context,
+                verification.toApply,
+                verification.toApplyChain,
+                verification.toApplyProgress,
+                listener,
+                asyncHistorySource,
+                results,
+                lease,
+                deadline);
+    return application.thenCompose(
+        succeeded -> {
+          listener.onPhase(
+              MigrationListener.Phase.APPLICATION, System.nanoTime() - applicationStart);
+          long flushStart = System.nanoTime();
+          CompletionStage<Void> flushed = asyncHistorySource.flushAsync();
+          if (succeeded && isComplete(changeSets, results)) {
+            flushed =
+                flushed.thenCompose(
+                    __ ->
+                        repairHeadAsync(
+                            asyncHistorySource,
+                            changeSets.get(changeSets.size() - 1),
+                            chain[chain.length - 1]));
+          }
+          return flushed.thenApply(
+              __ -> {
+                listener.onPhase(
+                    MigrationListener.Phase.FLUSH, System.nanoTime() - flushStart);
+                return results.toMigrationResult(succeeded);
+              });
+        });
+  }
 
-    for (int i = 0; i < Math.max(history.size(), changeSets.size()); i++) {
-      HistoryRecord historyRecord = i >= history.size() ? null : history.get(i);
+  /**
+   * Compares the history with the change sets one by one and collects the change sets which are
+   * not applied yet. Verified records are passed to the given consumer rather than retained. The
+   * time spent waiting for the next history record is measured separately.
+   */
+  private Verification<C> verify(
+      List<ChangeSet<C>> changeSets,
+      String[] chain,
+      Iterator<HistoryRecord> history,
+      Consumer<HistoryRecord> verified) {
+    Verification<C> verification = new Verification<>();
+    for (int i = 0; ; i++) {
+      long loadStart = System.nanoTime();
+      HistoryRecord historyRecord = history.hasNext() ? history.next() : null;
+      verification.historyLoadNanos += System.nanoTime() - loadStart;
+      if (historyRecord == null && i >= changeSets.size()) {
+        return verification;
+      }
       ChangeSet<C> changeSet = i >= changeSets.size() ? null : changeSets.get(i);
 
       if (historyRecord == null) {
-        toApply.add(changeSet);
+        verification.toApply.add(changeSet);
+        verification.toApplyChain.add(chain[i]);
+        verification.toApplyProgress.add(null);
         continue;
       }
 
       if (changeSet == null) {
-        return new MigrationResult.MissingChangeSet(
-            historyRecord.getId(), historyRecord.getChecksum(), null, null);
+        verification.failure =
+            new MigrationResult.MissingChangeSet(
+                historyRecord.getId(), historyRecord.getChecksum(), null, null);
+        return verification;
+      }
+
+      if (historyRecord.getStatus() == HistoryRecord.Status.BASELINE) {
+        // the baseline is verified at once, whether the change sets it stands in for are still
+        // in the list or replaced by a baseline change set
+        int last = indexOf(changeSets, historyRecord.getId(), i);
+        if (last < 0) {
+          verification.failure =
+              new MigrationResult.MissingChangeSet(
+                  historyRecord.getId(),
+                  historyRecord.getChecksum(),
+                  changeSet.getId(),
+                  changeSet.getChecksum());
+          return verification;
+        }
+        if (!Objects.equals(historyRecord.getChecksum(), chain[last])) {
+          verification.failure =
+              new MigrationResult.ChecksumMismatch(
+                  historyRecord.getId(),
+                  chain[last],
+                  changeSets.get(last).getId(),
+                  historyRecord.getChecksum());
+          return verification;
+        }
+        for (; i < last; i++) {
+          ChangeSet<C> squashed = changeSets.get(i);
+          verified.accept(
+              new HistoryRecord(
+                  squashed.getId(), null, HistoryRecord.Status.SUCCESS, squashed.getChecksum()));
+        }
+        verified.accept(historyRecord);
+        continue;
       }
 
       if (!Objects.equals(historyRecord.getId(), changeSet.getId())) {
-        return new MigrationResult.MissingChangeSet(
-            historyRecord.getId(),
-            historyRecord.getChecksum(),
-            changeSet.getId(),
-            changeSet.getChecksum());
+        verification.failure =
+            new MigrationResult.MissingChangeSet(
+                historyRecord.getId(),
+                historyRecord.getChecksum(),
+                changeSet.getId(),
+                changeSet.getChecksum());
+        return verification;
       }
 
+      // a change set applied before its checksum was added to the manifest has none in the history
       if (!changeSet.isSkipChecksumValidation()
-          && !Objects.equals(historyRecord.getChecksum(), changeSet.getChecksum())) {
-        return new MigrationResult.ChecksumMismatch(
-            historyRecord.getId(),
-            changeSet.getChecksum(),
-            changeSet.getId(),
-            historyRecord.getChecksum());
+          && !Objects.equals(historyRecord.getChecksum(), changeSet.getChecksum())
+          && !(historyRecord.getChecksum() == null && ChecksumManifest.isResolved(changeSet))) {
+        verification.failure =
+            new MigrationResult.ChecksumMismatch(
+                historyRecord.getId(),
+                changeSet.getChecksum(),
+                changeSet.getId(),
+                historyRecord.getChecksum());
+        return verification;
       }
 
-      if (historyRecord.getStatus() == HistoryRecord.Status.FAILED) {
-        toApply.add(changeSet);
+      if (historyRecord.getStatus() != HistoryRecord.Status.SUCCESS) {
+        verification.toApply.add(changeSet);
+        verification.toApplyChain.add(chain[i]);
+        verification.toApplyProgress.add(historyRecord.getCheckpoint());
+        verification.toApplyRecorded++;
         continue;
       }
 
-      verified.add(historyRecord);
+      verified.accept(historyRecord);
     }
+  }
+
+  private static int indexOf(List<? extends ChangeSet<?>> changeSets, String id, int from) {
+    for (int i = from; i < changeSets.size(); i++) {
+      if (changeSets.get(i).getId().equals(id)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Verifies the change sets against the last history record only. Returns the successful result
+   * if the chain value of the last record matches the chain value of the change sets, i.e. all
+   * change sets are already applied, {@code null} otherwise. As the rest of the history is not
+   * loaded, results of the change sets except the last one have no execution time.
+   */
+  private MigrationResult verifyHead(
+      List<ChangeSet<C>> changeSets, String[] chain, HistoryRecord head, ResultCollector results) {
+    if (head == null
+        || (head.getStatus() != HistoryRecord.Status.SUCCESS
+            && head.getStatus() != HistoryRecord.Status.BASELINE)
+        || !Objects.equals(head.getId(), changeSets.get(changeSets.size() - 1).getId())
+        || !Objects.equals(head.getChainHash(), chain[chain.length - 1])) {
+      return null;
+    }
+    for (int i = 0; i < changeSets.size() - 1; i++) {
+      results.add(
+          new ChangeSet.Result(changeSets.get(i).getId(), ChangeSet.Status.ALREADY_APPLIED, null));
+    }
+    results.add(
+        new ChangeSet.Result(head.getId(), ChangeSet.Status.ALREADY_APPLIED, head.getExecutedAt()));
+    return results.toMigrationResult(true);
+  }
 
-    var applicationResult = applyAndSaveRecords(context, toApply);
-    List<ChangeSet.Result> results =
-        Stream.concat(
-                verified.stream()
+  /**
+   * Verifies the whole history without taking the lock. Returns the successful result if only
+   * background change sets are left to apply, which are then {@link ChangeSet.Pending pending},
+   * {@code null} otherwise, so the blocking migration takes the lock and verifies the history
+   * again.
+   */
+  private MigrationResult verifyOnlyBackgroundLeft(
+      List<ChangeSet<C>> changeSets,
+      String[] chain,
+      MigrationListener listener,
+      ResultCollector results) {
+    long verificationStart = System.nanoTime();
+    List<HistoryRecord> verified = new ArrayList<>();
+    Verification<C> verification;
+    try (Stream<HistoryRecord> historyStream = historySource.streamHistory()) {
+      verification = verify(changeSets, chain, historyStream.iterator(), verified::add);
+    }
+    if (verification.failure != null
+        || !verification.toApply.stream().allMatch(ChangeSet::isBackground)) {
+      return null;
+    }
+    listener.onPhase(MigrationListener.Phase.HISTORY_LOAD, verification.historyLoadNanos);
+    listener.onPhase(
+        MigrationListener.Phase.VERIFICATION,
+        System.nanoTime() - verificationStart - verification.historyLoadNanos);
+    verified.forEach(results::addVerified);
+    for (ChangeSet<C> changeSet : verification.toApply) {
+      results.add(new ChangeSet.Pending(changeSet.getId()));
+    }
+    return results.toMigrationResult(true);
+  }
+
+  /**
+   * Returns whether all change sets are applied after a successful migration, i.e. none of them
+   * is {@link ChangeSet.Pending pending}, e.g. deferred to the background by {@link
+   * #applyWithBackground}.
+   */
+  private static boolean isComplete(List<?> changeSets, ResultCollector results) {
+    return !changeSets.isEmpty() && results.countPending() == 0;
+  }
+
+  /**
+   * Makes sure that the last history record carries the chain value of all change sets, so the
+   * next migration can be verified by {@link #verifyHead(List, String[], HistoryRecord)}. It is
+   * not the case e.g. when the history was written before chain values were introduced, or when
+   * earlier change sets were re-applied after a failure.
+   */
+  private void repairHead(ChangeSet<C> last, String expectedChainHash) {
+    historySource
+        .getHead()
+        .filter(head -> Objects.equals(head.getId(), last.getId()))
+        .filter(head -> !Objects.equals(head.getChainHash(), expectedChainHash))
+        .ifPresent(
+            head -> {
+              historySource.saveRecord(head.withChainHash(expectedChainHash));
+              historySource.flush();
+            });
+  }
+
+  /** Non-blocking variant of {@link #repairHead(ChangeSet, String)}. */
+  private CompletionStage<Void> repairHeadAsync(
+      AsyncHistorySource asyncHistorySource, ChangeSet<C> last, String expectedChainHash) {
+    return asyncHistorySource
+        .getHeadAsync()
+        .thenCompose(
+            head ->
+                head.filter(record -> Objects.equals(record.getId(), last.getId()))
+                    .filter(record -> !Objects.equals(record.getChainHash(), expectedChainHash))
                     .map(
-                        changeSet ->
-                            new ChangeSet.Result(
-                                changeSet.getId(),
-                                ChangeSet.Status.ALREADY_APPLIED,
-                                changeSet.getExecutedAt())),
-                applicationResult.second.stream())
-            .collect(toList());
-    return applicationResult.first
-        ? new MigrationResult.Success(results)
-        : new MigrationResult.ApplicationFailed(results);
+                        record ->
+                            asyncHistorySource
+                                .saveRecordAsync(record.withChainHash(expectedChainHash))
+                                .thenCompose(__ -> asyncHistorySource.flushAsync()))
+                    .orElse(CompletableFuture.completedFuture(null)));
   }
 
   /**
-   * Returns a pair of boolean and list of change set results. The boolean value indicates whether
-   * all change sets were applied successfully.
+   * Applies the change sets one after another and passes their results to the collector. Returns
+   * whether all change sets were applied successfully.
    */
-  private Pair<Boolean, List<ChangeSet.Result>> applyAndSaveRecords(
-      C context, ArrayList<ChangeSet<C>> changeSetsToApply) {
-    ArrayList<ChangeSet.Result> applicationResults = new ArrayList<>();
+  private boolean applyAndSaveRecords(
+      C context,
+      List<ChangeSet<C>> changeSetsToApply,
+      List<String> chain,
+      List<String> progress,
+      MigrationListener listener,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
     boolean failed = false;
-    for (ChangeSet<C> changeSet : changeSetsToApply) {
+    boolean pending = false;
+    for (int i = 0; i < changeSetsToApply.size(); i++) {
+      ChangeSet<C> changeSet = changeSetsToApply.get(i);
       if (failed) {
-        applicationResults.add(
-            new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.SKIPPED, null));
+        results.add(new ChangeSet.Pending(changeSet.getId()));
         continue;
       }
-      ChangeSet.Result changeSetApplicationResult;
+      HistoryCheckpoint checkpoint =
+          newCheckpoint(context, changeSet, progress.get(i), null, historySource);
+      ChangeSet.Result changeSetApplicationResult =
+          applyChangeSet(context, changeSet, checkpoint, listener, lease, deadline);
+      failed = changeSetApplicationResult.getStatus() == ChangeSet.Status.FAILED;
+      // change sets are applied in order and stop at the first failure, so the chain value is
+      // valid unless a preceding change set is pending, e.g. deferred to the background
+      saveResult(
+          changeSet,
+          changeSetApplicationResult,
+          pending ? null : chain.get(i),
+          checkpoint,
+          listener);
+      pending |= changeSetApplicationResult instanceof ChangeSet.Pending;
+      results.add(changeSetApplicationResult);
+    }
+    return !failed;
+  }
+
+  /**
+   * Non-blocking variant of {@link #applyAndSaveRecords}. The whole chain of stages is built
+   * upfront, so a long list of change sets completing synchronously does not grow the stack.
+   */
+  private CompletableFuture<Boolean> applyAndSaveRecordsAsync(
+      C context,
+      List<ChangeSet<C>> changeSetsToApply,
+      List<String> chain,
+      List<String> progress,
+      MigrationListener listener,
+      AsyncHistorySource asyncHistorySource,
+      ResultCollector results,
+      MigrationLock.Lease lease,
+      Deadline deadline) {
+    // stages run one after another, the flag is only used for visibility
+    AtomicBoolean pending = new AtomicBoolean();
+    CompletableFuture<Boolean> applied = CompletableFuture.completedFuture(true);
+    for (int i = 0; i < changeSetsToApply.size(); i++) {
+      ChangeSet<C> changeSet = changeSetsToApply.get(i);
+      String chainHash = chain.get(i);
+      String previousProgress = progress.get(i);
+      applied =
+          applied.thenComposeAsync(
+              succeeded -> {
+                if (!succeeded) {
+                  results.add(new ChangeSet.Pending(changeSet.getId()));
+                  return CompletableFuture.completedFuture(false);
+                }
+                HistoryCheckpoint checkpoint =
+                    newCheckpoint(
+                        context, changeSet, previousProgress, asyncHistorySource, historySource);
+                return applyChangeSetAsync(
+                        context, changeSet, checkpoint, listener, lease, deadline)
+                    .thenCompose(
+                        result -> {
+                          results.add(result);
+                          boolean chainValid = !pending.get();
+                          if (result instanceof ChangeSet.Pending) {
+                            pending.set(true);
+                          }
+                          return saveResultAsync(
+                                  asyncHistorySource,
+                                  changeSet,
+                                  result,
+                                  chainValid ? chainHash : null,
+                                  checkpoint,
+                                  listener)
+                              .thenApply(__ -> result.getStatus() != ChangeSet.Status.FAILED);
+                        });
+              },
+              getAsyncExecutor());
+    }
+    return applied;
+  }
+
+  /**
+   * Applies the given change set, any exception thrown by the change set means failure. If a
+   * timeout applies to the change set, it is applied on a separate thread under the supervision of
+   * the calling one, which interrupts it once the deadline passes.
+   *
+   * @throws IllegalStateException if the lease of the migration lock is no longer valid
+   */
+  ChangeSet.Result applyChangeSet(
+      C context,
+      ChangeSet<C> changeSet,
+      HistoryCheckpoint checkpoint,
+      MigrationListener listener,
+      MigrationLock.Lease lease,
+      Deadline runDeadline) {
+    checkLease(lease, changeSet);
+    long start = System.nanoTime();
+    Deadline deadline = runDeadline.min(timeoutOf(changeSet));
+    ChangeSet.Result result;
+    if (!deadline.isSet()) {
       try {
-        changeSetApplicationResult = changeSet.apply(context);
+        result = changeSet.apply(context, checkpoint);
       } catch (Exception e) {
-        changeSetApplicationResult =
-            new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.FAILED, null);
+        result = new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.FAILED, null);
       }
-      failed = changeSetApplicationResult.getStatus() == ChangeSet.Status.FAILED;
-      historySource.saveRecord(
-          new HistoryRecord(
-              changeSet.getId(),
-              changeSetApplicationResult.getExecutedAt(),
-              changeSetApplicationResult.getStatus() == ChangeSet.Status.FAILED
-                  ? HistoryRecord.Status.FAILED
-                  : HistoryRecord.Status.SUCCESS,
-              changeSet.getChecksum()));
-      applicationResults.add(changeSetApplicationResult);
+    } else {
+      result = applySupervised(context, changeSet, checkpoint, deadline);
+    }
+    listener.onChangeSetApplied(result, System.nanoTime() - start);
+    return result;
+  }
+
+  private ChangeSet.Result applySupervised(
+      C context, ChangeSet<C> changeSet, HistoryCheckpoint checkpoint, Deadline deadline) {
+    if (deadline.isPassed()) {
+      checkpoint.close();
+      return new ChangeSet.TimedOut(changeSet.getId(), deadline.getTimeout());
+    }
+    FutureTask<ChangeSet.Result> task =
+        new FutureTask<>(() -> changeSet.apply(context, checkpoint));
+    // a dedicated thread, as waiting for a task of a bounded executor on one of its own threads
+    // could deadlock; daemon, so a change set ignoring the interruption does not keep the JVM
+    Thread thread = new Thread(task, "schema-migration-" + changeSet.getId());
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      return task.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      task.cancel(true);
+      checkpoint.close();
+      return new ChangeSet.TimedOut(changeSet.getId(), deadline.getTimeout());
+    } catch (ExecutionException e) {
+      return new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.FAILED, null);
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      checkpoint.close();
+      Thread.currentThread().interrupt();
+      return new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.FAILED, null);
     }
-    return new Pair<>(!failed, applicationResults);
   }
 
   /**
-   * A pair of two values.
-   *
-   * @param <T> the type of the first value
-   * @param <S> the type of the second value
-   */
-  // Who needs popular utilities like Pair from Apache Commons?
-  @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
-  private static final class Pair<T, S> {
-    private final T first;
-    private final S second;
+   * Non-blocking variant of {@link #applyChangeSet}, a failed stage means failure. Once the
+   * deadline passes, the stage returned by the change set is cancelled. The returned stage fails
+   * with {@link IllegalStateException} if the lease of the migration lock is no longer valid.
+   */
+  CompletableFuture<ChangeSet.Result> applyChangeSetAsync(
+      C context,
+      ChangeSet<C> changeSet,
+      HistoryCheckpoint checkpoint,
+      MigrationListener listener,
+      MigrationLock.Lease lease,
+      Deadline runDeadline) {
+    try {
+      checkLease(lease, changeSet);
+    } catch (IllegalStateException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    long start = System.nanoTime();
+    Deadline deadline = runDeadline.min(timeoutOf(changeSet));
+    if (deadline.isPassed()) {
+      checkpoint.close();
+      ChangeSet.Result timedOut = new ChangeSet.TimedOut(changeSet.getId(), deadline.getTimeout());
+      listener.onChangeSetApplied(timedOut, System.nanoTime() - start);
+      return CompletableFuture.completedFuture(timedOut);
+    }
+    CompletableFuture<ChangeSet.Result> application;
+    try {
+      application = changeSet.applyAsync(context, checkpoint).toCompletableFuture();
+    } catch (Exception e) {
+      application = CompletableFuture.failedFuture(e);
+    }
+    if (deadline.isSet()) {
+      cancelAfter(application, checkpoint, deadline);
+    }
+    CompletableFuture<ChangeSet.Result> applied = application;
+    return applied.handle(
+        (result, e) -> {
+          ChangeSet.Result actual;
+          if (e == null) {
+            actual = result;
+          } else if (applied.isCancelled() && deadline.isPassed()) {
+            actual = new ChangeSet.TimedOut(changeSet.getId(), deadline.getTimeout());
+          } else {
+            actual = new ChangeSet.Result(changeSet.getId(), ChangeSet.Status.FAILED, null);
+          }
+          listener.onChangeSetApplied(actual, System.nanoTime() - start);
+          return actual;
+        });
+  }
+
+  /** Cancels the application of the change set unless it is completed before the deadline. */
+  private static void cancelAfter(
+      CompletableFuture<ChangeSet.Result> application,
+      HistoryCheckpoint checkpoint,
+      Deadline deadline) {
+    CompletableFuture.delayedExecutor(deadline.remainingNanos(), TimeUnit.NANOSECONDS)
+        .execute(
+            () -> {
+              if (!application.isDone()) {
+                checkpoint.close();
+                application.cancel(true);
+              }
+            });
+  }
+
+  /**
+   * Fails the migration before the change set is applied if the lease of the lock was lost, e.g.
+   * expired while the storage of the lock was unreachable, as another instance may be migrating
+   * the storage by now and the history must not be written concurrently.
+   */
+  static void checkLease(MigrationLock.Lease lease, ChangeSet<?> changeSet) {
+    if (!lease.isValid()) {
+      throw new IllegalStateException(
+          "Migration lock was lost before change set " + changeSet.getId() + " was applied");
+    }
+  }
+
+  /** Returns the timeout of the change set, or the change set timeout of the schema. */
+  private Duration timeoutOf(ChangeSet<C> changeSet) {
+    Duration timeout = changeSet.getTimeout();
+    return timeout == null ? changeSetTimeout : timeout;
+  }
+
+  /**
+   * Saves the history record for the given result of applying the change set. {@link
+   * ChangeSet.Pending Pending} results are saved as {@link HistoryRecord.Status#PENDING}. The
+   * chain value is only saved for successfully applied change sets and must be {@code null} unless
+   * all preceding change sets are applied. The progress of the checkpoint is kept unless the change
+   * set is applied.
+   */
+  void saveResult(
+      ChangeSet<C> changeSet,
+      ChangeSet.Result result,
+      String chainHash,
+      HistoryCheckpoint checkpoint,
+      MigrationListener listener) {
+    HistoryRecord historyRecord =
+        toHistoryRecord(changeSet, result, chainHash, checkpoint.getProgress());
+    long start = System.nanoTime();
+    historySource.saveRecord(historyRecord);
+    if (historyRecord.getStatus() == HistoryRecord.Status.FAILED) {
+      // a buffering history source must persist everything before the failure is reported
+      historySource.flush();
+    }
+    listener.onRecordSaved(historyRecord, System.nanoTime() - start);
+  }
+
+  /** Non-blocking variant of {@link #saveResult}. */
+  CompletableFuture<Void> saveResultAsync(
+      AsyncHistorySource asyncHistorySource,
+      ChangeSet<C> changeSet,
+      ChangeSet.Result result,
+      String chainHash,
+      HistoryCheckpoint checkpoint,
+      MigrationListener listener) {
+    // progress saved by the change set must not overwrite its final record
+    return checkpoint
+        .saved()
+        .thenCompose(
+            __ -> {
+              HistoryRecord historyRecord =
+                  toHistoryRecord(changeSet, result, chainHash, checkpoint.getProgress());
+              long start = System.nanoTime();
+              CompletionStage<Void> saved = asyncHistorySource.saveRecordAsync(historyRecord);
+              if (historyRecord.getStatus() == HistoryRecord.Status.FAILED) {
+                saved = saved.thenCompose(___ -> asyncHistorySource.flushAsync());
+              }
+              return saved.thenRun(
+                  () -> listener.onRecordSaved(historyRecord, System.nanoTime() - start));
+            });
+  }
+
+  /**
+   * Creates the checkpoint of the change set starting from the progress saved in its history
+   * record. The asynchronous history source is {@code null} for synchronous migrations, the lock
+   * guards the synchronous history source.
+   */
+  HistoryCheckpoint newCheckpoint(
+      C context,
+      ChangeSet<C> changeSet,
+      String progress,
+      AsyncHistorySource asyncHistorySource,
+      Object historyLock) {
+    return new HistoryCheckpoint(
+        changeSet, progress, context.getClock(), historySource, asyncHistorySource, historyLock);
+  }
+
+  private static HistoryRecord toHistoryRecord(
+      ChangeSet<?> changeSet, ChangeSet.Result result, String chainHash, String progress) {
+    // a change set returning SKIPPED itself is done, only the migration's own skips are pending
+    HistoryRecord.Status status;
+    if (result.getStatus() == ChangeSet.Status.FAILED) {
+      status = HistoryRecord.Status.FAILED;
+    } else if (result instanceof ChangeSet.Pending) {
+      status = HistoryRecord.Status.PENDING;
+    } else {
+      status = HistoryRecord.Status.SUCCESS;
+    }
+    return new HistoryRecord(
+        changeSet.getId(),
+        result.getExecutedAt(),
+        status,
+        changeSet.getChecksum(),
+        status == HistoryRecord.Status.SUCCESS ? chainHash : null,
+        status == HistoryRecord.Status.SUCCESS ? null : progress);
+  }
+
+  HistorySource getHistorySource() {
+    return historySource;
+  }
+
+  int getParallelism() {
+    return parallelism;
+  }
+
+  Executor getExecutor() {
+    return executor;
+  }
+
+  private static ClassLoader classLoader() {
+    ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    return contextClassLoader == null ? Schema.class.getClassLoader() : contextClassLoader;
+  }
+
+  /** Returns the executor which starts change sets applied asynchronously. */
+  Executor getAsyncExecutor() {
+    return executor == null ? ForkJoinPool.commonPool() : executor;
+  }
+
+  /** The outcome of comparing the history with the change sets. */
+  private static final class Verification<C extends Context> {
+    final List<ChangeSet<C>> toApply = new ArrayList<>();
+    final List<String> toApplyChain = new ArrayList<>();
+
+    /** The progress saved by every change set to apply, see {@link Checkpoint}. */
+    final List<String> toApplyProgress = new ArrayList<>();
+
+    /** The number of leading change sets to apply which already have a history record. */
+    int toApplyRecorded;
+
+    long historyLoadNanos;
+
+    /** The failed result if the history does not match the change sets, {@code null} otherwise. */
+    MigrationResult failure;
   }
 }
@@ -0,0 +1,105 @@
+package dev.vgerasimov.schema_migration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BufferedHistorySourceTest {
+
+  RecordingHistorySource delegate;
+
+  BufferedHistorySource underTest;
+
+  @BeforeEach
+  void setUp() {
+    delegate = new RecordingHistorySource();
+    underTest = new BufferedHistorySource(delegate, 3, Duration.ofHours(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    underTest.close();
+  }
+
+  @Test
+  void batchSizeReached_flushedInOneBatch() {
+    underTest.saveRecord(record("1", HistoryRecord.Status.SUCCESS));
+    underTest.saveRecord(record("2", HistoryRecord.Status.SUCCESS));
+    assertEquals(List.of(), delegate.batches);
+
+    underTest.saveRecord(record("3", HistoryRecord.Status.SUCCESS));
+
+    assertEquals(List.of(3), delegate.batches);
+  }
+
+  @Test
+  void sameIdSavedTwice_coalesced() {
+    underTest.saveRecord(record("1", HistoryRecord.Status.FAILED));
+    underTest.saveRecord(record("1", HistoryRecord.Status.SUCCESS));
+    underTest.flush();
+
+    assertEquals(List.of(1), delegate.batches);
+    assertIterableEquals(
+        List.of(record("1", HistoryRecord.Status.SUCCESS)), delegate.getHistory());
+  }
+
+  @Test
+  void getHistory_flushesBuffer() {
+    underTest.saveRecord(record("1", HistoryRecord.Status.SUCCESS));
+
+    assertIterableEquals(
+        List.of(record("1", HistoryRecord.Status.SUCCESS)), underTest.getHistory());
+  }
+
+  @Test
+  void maxDelayPassed_flushedInBackground() throws InterruptedException {
+    underTest = new BufferedHistorySource(delegate, 100, Duration.ofMillis(10));
+
+    underTest.saveRecord(record("1", HistoryRecord.Status.SUCCESS));
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (delegate.batches.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(List.of(1), delegate.batches);
+  }
+
+  @Test
+  void delegateFails_recordsKeptForNextFlush() {
+    underTest.saveRecord(record("1", HistoryRecord.Status.SUCCESS));
+    delegate.failing = true;
+    assertThrows(IllegalStateException.class, () -> underTest.flush());
+
+    delegate.failing = false;
+    underTest.flush();
+
+    assertIterableEquals(
+        List.of(record("1", HistoryRecord.Status.SUCCESS)), delegate.getHistory());
+  }
+
+  private static HistoryRecord record(String id, HistoryRecord.Status status) {
+    return new HistoryRecord(id, null, status, id);
+  }
+
+  private static class RecordingHistorySource extends InMemoryHistorySource {
+    final List<Integer> batches = new CopyOnWriteArrayList<>();
+    volatile boolean failing;
+
+    @Override
+    public synchronized void saveRecords(List<HistoryRecord> historyRecords) {
+      if (failing) {
+        throw new IllegalStateException("failing");
+      }
+      batches.add(historyRecords.size());
+      super.saveRecords(historyRecords);
+    }
+  }
+}
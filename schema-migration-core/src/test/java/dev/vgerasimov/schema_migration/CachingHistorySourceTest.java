@@ -0,0 +1,171 @@
+package dev.vgerasimov.schema_migration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CachingHistorySourceTest {
+
+  CountingHistorySource delegate;
+
+  @BeforeEach
+  void setUp() {
+    delegate = new CountingHistorySource();
+    delegate.saveRecord(record("1"));
+  }
+
+  @Test
+  void withinTtl_servedFromMemory() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ofHours(1));
+
+    underTest.getHistory();
+    underTest.getHistory();
+
+    assertEquals(1, delegate.loads);
+  }
+
+  @Test
+  void ttlExpired_unchanged_notReloaded() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ZERO);
+
+    underTest.getHistory();
+    underTest.getHistory();
+
+    assertEquals(1, delegate.loads);
+  }
+
+  @Test
+  void ttlExpired_changedByOthers_reloaded() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ZERO);
+    underTest.getHistory();
+
+    delegate.saveRecord(record("2"));
+
+    assertIterableEquals(List.of(record("1"), record("2")), underTest.getHistory());
+    assertEquals(2, delegate.loads);
+  }
+
+  @Test
+  void savedThroughCache_cacheUpdatedInPlace() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ZERO);
+    underTest.getHistory();
+
+    underTest.saveRecord(record("2"));
+    underTest.flush();
+
+    assertIterableEquals(List.of(record("1"), record("2")), underTest.getHistory());
+    assertEquals(1, delegate.loads);
+    assertIterableEquals(List.of(record("1"), record("2")), delegate.getHistory());
+  }
+
+  @Test
+  void changedByOthersBeforeOwnWrite_notHiddenByFlush() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ofHours(1));
+    underTest.getHistory();
+
+    delegate.saveRecord(record("2"));
+    underTest.saveRecord(record("3"));
+    underTest.flush();
+
+    assertIterableEquals(List.of(record("1"), record("2"), record("3")), underTest.getHistory());
+    assertEquals(2, delegate.loads);
+  }
+
+  @Test
+  void currentHead_changedByOthersWithinTtl_revalidated() {
+    CachingHistorySource underTest = new CachingHistorySource(delegate, Duration.ofHours(1));
+    underTest.getHistory();
+
+    delegate.saveRecord(record("2"));
+
+    assertEquals(Optional.of(record("1")), underTest.getHead());
+    assertEquals(Optional.of(record("2")), underTest.getCurrentHead());
+  }
+
+  @Test
+  void snapshot_unchanged_newInstanceNotLoading(@TempDir Path dir) {
+    Path snapshot = dir.resolve("history.snapshot");
+    new CachingHistorySource(delegate, Duration.ofHours(1), snapshot).getHistory();
+
+    CachingHistorySource underTest =
+        new CachingHistorySource(delegate, Duration.ofHours(1), snapshot);
+
+    assertIterableEquals(List.of(record("1")), underTest.getHistory());
+    assertEquals(1, delegate.loads);
+  }
+
+  @Test
+  void snapshot_allFieldsRestored(@TempDir Path dir) {
+    Path snapshot = dir.resolve("history.snapshot");
+    HistoryRecord failed =
+        new HistoryRecord(
+            "2", LocalDateTime.of(2024, 1, 1, 0, 0), HistoryRecord.Status.FAILED, "2", null, "p");
+    HistoryRecord chained = record("3").withChainHash("chain");
+    CachingHistorySource writer = new CachingHistorySource(delegate, Duration.ofHours(1), snapshot);
+    writer.getHistory();
+    writer.saveRecords(List.of(failed, chained));
+    writer.flush();
+
+    List<HistoryRecord> actual =
+        new CachingHistorySource(delegate, Duration.ofHours(1), snapshot).getHistory();
+
+    assertIterableEquals(List.of(record("1"), failed, chained), actual);
+    assertEquals("p", actual.get(1).getCheckpoint());
+    assertEquals("chain", actual.get(2).getChainHash());
+    assertEquals(1, delegate.loads);
+  }
+
+  @Test
+  void snapshot_unreadable_loadedFromDelegate(@TempDir Path dir) throws IOException {
+    Path snapshot = dir.resolve("history.snapshot");
+    Files.write(snapshot, new byte[] {1, 2, 3});
+
+    CachingHistorySource underTest =
+        new CachingHistorySource(delegate, Duration.ofHours(1), snapshot);
+
+    assertIterableEquals(List.of(record("1")), underTest.getHistory());
+    assertEquals(1, delegate.loads);
+  }
+
+  @Test
+  void snapshot_notWritten_historyServedAndTempFileDeleted(@TempDir Path dir) throws IOException {
+    // a non-empty directory cannot be replaced by the snapshot
+    Path snapshot = Files.createDirectory(dir.resolve("history.snapshot"));
+    Files.createFile(snapshot.resolve("file"));
+    CachingHistorySource underTest =
+        new CachingHistorySource(delegate, Duration.ofHours(1), snapshot);
+
+    underTest.saveRecord(record("2"));
+
+    assertIterableEquals(List.of(record("1"), record("2")), underTest.getHistory());
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(List.of(snapshot), files.collect(Collectors.toList()));
+    }
+  }
+
+  private static HistoryRecord record(String id) {
+    return new HistoryRecord(id, null, HistoryRecord.Status.SUCCESS, id);
+  }
+
+  private static class CountingHistorySource extends InMemoryHistorySource {
+    int loads;
+
+    @Override
+    public List<HistoryRecord> getHistory() {
+      loads++;
+      return super.getHistory();
+    }
+  }
+}
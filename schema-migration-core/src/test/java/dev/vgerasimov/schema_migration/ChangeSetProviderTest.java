@@ -0,0 +1,144 @@
+package dev.vgerasimov.schema_migration;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ChangeSetProviderTest {
+
+  @Test
+  void schema_onlyChangeSetsToApplyCreated() {
+    InMemoryHistorySource historySource = new InMemoryHistorySource();
+    Schema<Context> schema =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .checksumManifest(ChecksumManifest.EMPTY)
+            .build();
+    Map<String, AtomicInteger> created = new ConcurrentHashMap<>();
+    List<ChangeSetDescriptor<Context>> descriptors = new ArrayList<>();
+    for (String id : List.of("1", "2", "3")) {
+      descriptors.add(
+          ChangeSetDescriptor.of(
+              id,
+              "c" + id,
+              () -> {
+                created.computeIfAbsent(id, __ -> new AtomicInteger()).incrementAndGet();
+                return changeSet(id, "c" + id);
+              }));
+    }
+    schema.apply(
+        Context.basic(Clock.systemUTC()),
+        ChangeSetProvider.of(descriptors.subList(0, 2)).getChangeSets());
+    created.clear();
+
+    MigrationResult actual =
+        schema.apply(
+            Context.basic(Clock.systemUTC()), ChangeSetProvider.of(descriptors).getChangeSets());
+
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.APPLIED),
+        actual.getChangeSetResults().stream().map(ChangeSet.Result::getStatus).collect(toList()));
+    assertEquals(Map.of("3", 1), toCounts(created));
+  }
+
+  @Test
+  void schema_baselineDescriptor_verifiedAgainstBaseline() {
+    InMemoryHistorySource historySource = new InMemoryHistorySource();
+    Schema<Context> schema =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .checksumManifest(ChecksumManifest.EMPTY)
+            .build();
+    List<ChangeSetDescriptor<Context>> descriptors = new ArrayList<>();
+    for (String id : List.of("1", "2")) {
+      descriptors.add(ChangeSetDescriptor.of(id, "c" + id, () -> changeSet(id, "c" + id)));
+    }
+    List<ChangeSet<Context>> changeSets = ChangeSetProvider.of(descriptors).getChangeSets();
+    schema.apply(Context.basic(Clock.systemUTC()), changeSets);
+    HistoryRecord baseline = schema.baseline(changeSets, "2");
+
+    MigrationResult actual =
+        schema.apply(
+            Context.basic(Clock.systemUTC()),
+            ChangeSetProvider.of(
+                    List.of(
+                        ChangeSetDescriptor.<Context>baseline(baseline),
+                        ChangeSetDescriptor.of("3", "c3", () -> changeSet("3", "c3"))))
+                .getChangeSets());
+
+    assertEquals(
+        List.of(ChangeSet.Status.ALREADY_APPLIED, ChangeSet.Status.APPLIED),
+        actual.getChangeSetResults().stream().map(ChangeSet.Result::getStatus).collect(toList()));
+  }
+
+  @Test
+  void of_sortedById_duplicatesRejected() {
+    ChangeSetDescriptor<Context> first = ChangeSetDescriptor.of("1", "a", () -> null);
+    ChangeSetDescriptor<Context> second = ChangeSetDescriptor.of("2", "b", () -> null);
+
+    assertEquals(
+        List.of(first, second), ChangeSetProvider.of(List.of(second, first)).getDescriptors());
+    assertThrows(
+        IllegalStateException.class, () -> ChangeSetProvider.of(List.of(first, second, first)));
+  }
+
+  @Test
+  void load_registeredProvidersMerged() {
+    ChangeSetProvider<Context> actual = ChangeSetProvider.load(getClass().getClassLoader());
+
+    assertEquals(
+        List.of("1", "2", "3"),
+        actual.getDescriptors().stream().map(ChangeSetDescriptor::getId).collect(toList()));
+  }
+
+  @Test
+  void create_differentId_exception() {
+    ChangeSetDescriptor<Context> descriptor =
+        ChangeSetDescriptor.of("1", "a", () -> changeSet("2", "a"));
+
+    assertThrows(IllegalStateException.class, descriptor::create);
+  }
+
+  private static Map<String, Integer> toCounts(Map<String, AtomicInteger> counters) {
+    Map<String, Integer> counts = new HashMap<>();
+    counters.forEach((id, count) -> counts.put(id, count.get()));
+    return counts;
+  }
+
+  private static ChangeSet<Context> changeSet(String id, String checksum) {
+    return new ChangeSet<>(id, checksum, false) {
+      @Override
+      public Status mutate(Context context) {
+        return Status.APPLIED;
+      }
+    };
+  }
+
+  public static class FirstProvider implements ChangeSetProvider<Context> {
+    @Override
+    public List<ChangeSetDescriptor<Context>> getDescriptors() {
+      return List.of(
+          ChangeSetDescriptor.of("1", "a", () -> changeSet("1", "a")),
+          ChangeSetDescriptor.of("3", "c", () -> changeSet("3", "c")));
+    }
+  }
+
+  public static class SecondProvider implements ChangeSetProvider<Context> {
+    @Override
+    public List<ChangeSetDescriptor<Context>> getDescriptors() {
+      return List.of(ChangeSetDescriptor.of("2", "b", () -> changeSet("2", "b")));
+    }
+  }
+}
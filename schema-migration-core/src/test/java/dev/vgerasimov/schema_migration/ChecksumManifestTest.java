@@ -0,0 +1,99 @@
+package dev.vgerasimov.schema_migration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Clock;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class ChecksumManifestTest {
+
+  @Test
+  void read_linesParsed() throws IOException {
+    ChecksumManifest actual = read("# comment\nabc 001 add field\n\ndef 002\n");
+
+    assertEquals(Optional.of("abc"), actual.getChecksum("001 add field"));
+    assertEquals(Optional.of("def"), actual.getChecksum("002"));
+  }
+
+  @Test
+  void read_conflictingChecksums_exception() {
+    assertThrows(IllegalStateException.class, () -> read("abc 001\ndef 001\n"));
+  }
+
+  @Test
+  void resolve_onlyChangeSetsWithoutChecksumReplaced() throws IOException {
+    ChecksumManifest manifest = read("abc 001\ndef 002\n");
+    ChangeSet<Context> withoutChecksum = changeSet("001", null);
+    ChangeSet<Context> withChecksum = changeSet("002", "own");
+
+    List<ChangeSet<Context>> actual = manifest.resolve(List.of(withoutChecksum, withChecksum));
+
+    assertEquals("abc", actual.get(0).getChecksum());
+    assertEquals(false, actual.get(0).isSkipChecksumValidation());
+    assertSame(withChecksum, actual.get(1));
+  }
+
+  @Test
+  void schema_manifestChecksumChanged_mismatchReported() throws IOException {
+    InMemoryHistorySource historySource = new InMemoryHistorySource();
+    Context context = Context.basic(Clock.systemUTC());
+    List<ChangeSet<Context>> changeSets = List.of(changeSet("001", null));
+    Schema.<Context>builder()
+        .historySource(historySource)
+        .checksumManifest(read("abc 001\n"))
+        .build()
+        .apply(context, changeSets);
+
+    MigrationResult actual =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .checksumManifest(read("changed 001\n"))
+            .build()
+            .apply(context, changeSets);
+
+    assertEquals(new MigrationResult.ChecksumMismatch("001", "changed", "001", "abc"), actual);
+  }
+
+  @Test
+  void schema_appliedBeforeAnnotated_nullChecksumMatches() throws IOException {
+    InMemoryHistorySource historySource = new InMemoryHistorySource();
+    Context context = Context.basic(Clock.systemUTC());
+    List<ChangeSet<Context>> changeSets = List.of(changeSet("001", null));
+    Schema.<Context>builder()
+        .historySource(historySource)
+        .checksumManifest(ChecksumManifest.EMPTY)
+        .build()
+        .apply(context, changeSets);
+
+    MigrationResult actual =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .checksumManifest(read("abc 001\n"))
+            .build()
+            .apply(context, changeSets);
+
+    assertTrue(actual instanceof MigrationResult.Success);
+    assertEquals(
+        ChangeSet.Status.ALREADY_APPLIED, actual.getChangeSetResults().get(0).getStatus());
+  }
+
+  private static ChecksumManifest read(String manifest) throws IOException {
+    return ChecksumManifest.read(new StringReader(manifest));
+  }
+
+  private static ChangeSet<Context> changeSet(String id, String checksum) {
+    return new ChangeSet<>(id, checksum, checksum == null) {
+      @Override
+      public Status mutate(Context context) {
+        return Status.APPLIED;
+      }
+    };
+  }
+}
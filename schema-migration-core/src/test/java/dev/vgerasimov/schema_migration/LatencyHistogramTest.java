@@ -0,0 +1,34 @@
+package dev.vgerasimov.schema_migration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+  @Test
+  void empty_zeros() {
+    LatencyHistogram underTest = new LatencyHistogram();
+
+    assertEquals(0, underTest.getCount());
+    assertEquals(0, underTest.getMeanNanos());
+    assertEquals(0, underTest.getPercentileNanos(0.99));
+  }
+
+  @Test
+  void recorded_percentilesWithinPowerOfTwo() {
+    LatencyHistogram underTest = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      underTest.record(i * 1000L);
+    }
+
+    assertEquals(100, underTest.getCount());
+    assertEquals(100_000, underTest.getMaxNanos());
+    assertEquals(5050 * 1000L, underTest.getTotalNanos());
+    long median = underTest.getPercentileNanos(0.5);
+    assertTrue(median >= 50_000 && median < 100_000, String.valueOf(median));
+    long p99 = underTest.getPercentileNanos(0.99);
+    assertTrue(p99 >= 99_000 && p99 <= 100_000 * 2, String.valueOf(p99));
+  }
+}
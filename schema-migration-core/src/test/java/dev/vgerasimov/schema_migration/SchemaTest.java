@@ -1,15 +1,31 @@
 package dev.vgerasimov.schema_migration;
 
+import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -207,6 +223,1323 @@ class SchemaTest {
         new HistoryRecord("3", dateTime(timeStart + 1), HistoryRecord.Status.SUCCESS, "3"));
   }
 
+  @Test
+  void historyStream_closedAfterVerification() {
+    saveHistory(new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    AtomicBoolean closed = new AtomicBoolean();
+    HistorySource streaming =
+        new HistorySource() {
+          @Override
+          public List<HistoryRecord> getHistory() {
+            return historySource.getHistory();
+          }
+
+          @Override
+          public Stream<HistoryRecord> streamHistory() {
+            return historySource.getHistory().stream().onClose(() -> closed.set(true));
+          }
+
+          @Override
+          public void saveRecord(HistoryRecord historyRecord) {
+            historySource.saveRecord(historyRecord);
+          }
+        };
+
+    MigrationResult actual =
+        new Schema<>(streaming)
+            .apply(
+                Context.basic(clock),
+                List.of(
+                    changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                    changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(
+        new MigrationResult.Success(
+            List.of(
+                new ChangeSet.Result("1", ChangeSet.Status.ALREADY_APPLIED, dateTime(timeStart - 9)),
+                new ChangeSet.Result("2", ChangeSet.Status.APPLIED, dateTime(timeStart + 0)))),
+        actual);
+    assertTrue(closed.get());
+  }
+
+  @Test
+  void parallel_failedChangeSet_onlyDependentsSkipped() {
+    Clock fixedClock = Clock.fixed(Instant.ofEpochSecond(timeStart), ZoneId.of("UTC"));
+    Schema<Context> parallel = Schema.builder().historySource(historySource).parallelism(4).build();
+
+    MigrationResult actual =
+        parallel.apply(
+            Context.basic(fixedClock),
+            List.of(
+                changeSet("1", "1", "a", Set.of(), __ -> ChangeSet.Status.FAILED),
+                changeSet("2", "2", "b", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                changeSet("3", "3", "a", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                changeSet("4", "4", null, Set.of("2"), __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(
+        new MigrationResult.ApplicationFailed(
+            List.of(
+                new ChangeSet.Result("1", ChangeSet.Status.FAILED, dateTime(timeStart)),
+                new ChangeSet.Result("2", ChangeSet.Status.APPLIED, dateTime(timeStart)),
+                new ChangeSet.Result("3", ChangeSet.Status.SKIPPED, null),
+                new ChangeSet.Result("4", ChangeSet.Status.APPLIED, dateTime(timeStart)))),
+        actual);
+    assertHistory(
+        new HistoryRecord("1", dateTime(timeStart), HistoryRecord.Status.FAILED, "1"),
+        new HistoryRecord("2", dateTime(timeStart), HistoryRecord.Status.SUCCESS, "2"),
+        new HistoryRecord("3", null, HistoryRecord.Status.PENDING, "3"),
+        new HistoryRecord("4", dateTime(timeStart), HistoryRecord.Status.SUCCESS, "4"));
+  }
+
+  @Test
+  void parallel_interruptedAfterOutOfOrderSave_noGapInHistory() {
+    Clock fixedClock = Clock.fixed(Instant.ofEpochSecond(timeStart), ZoneId.of("UTC"));
+    CountDownLatch secondSaved = new CountDownLatch(1);
+    HistorySource crashing =
+        new HistorySource() {
+          @Override
+          public List<HistoryRecord> getHistory() {
+            return historySource.getHistory();
+          }
+
+          @Override
+          public void saveRecord(HistoryRecord historyRecord) {
+            boolean result = historyRecord.getStatus() != HistoryRecord.Status.PENDING;
+            if (result && historyRecord.getId().equals("1")) {
+              throw new IllegalStateException("Crashed");
+            }
+            historySource.saveRecord(historyRecord);
+            if (result && historyRecord.getId().equals("2")) {
+              secondSaved.countDown();
+            }
+          }
+        };
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet(
+                "1",
+                "1",
+                "a",
+                Set.of(),
+                __ -> {
+                  try {
+                    return secondSaved.await(5, TimeUnit.SECONDS)
+                        ? ChangeSet.Status.APPLIED
+                        : ChangeSet.Status.FAILED;
+                  } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                  }
+                }),
+            changeSet("2", "2", "b", Set.of(), __ -> ChangeSet.Status.APPLIED));
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            Schema.builder()
+                .historySource(crashing)
+                .parallelism(2)
+                .build()
+                .apply(Context.basic(fixedClock), changeSets));
+    assertHistory(
+        new HistoryRecord("1", null, HistoryRecord.Status.PENDING, "1"),
+        new HistoryRecord("2", dateTime(timeStart), HistoryRecord.Status.SUCCESS, "2"));
+
+    MigrationResult actual =
+        Schema.builder()
+            .historySource(historySource)
+            .parallelism(2)
+            .build()
+            .apply(Context.basic(fixedClock), changeSets);
+
+    assertEquals(
+        new MigrationResult.Success(
+            List.of(
+                new ChangeSet.Result("2", ChangeSet.Status.ALREADY_APPLIED, dateTime(timeStart)),
+                new ChangeSet.Result("1", ChangeSet.Status.APPLIED, dateTime(timeStart)))),
+        actual);
+  }
+
+  @Test
+  void pendingInHistory_reapplied() {
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.FAILED, "1"),
+        new HistoryRecord("2", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "2"),
+        new HistoryRecord("3", null, HistoryRecord.Status.PENDING, "3"));
+
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED),
+                changeSet("3", "3", __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(
+        new MigrationResult.Success(
+            List.of(
+                new ChangeSet.Result("2", ChangeSet.Status.ALREADY_APPLIED, dateTime(timeStart - 9)),
+                new ChangeSet.Result("1", ChangeSet.Status.APPLIED, dateTime(timeStart + 0)),
+                new ChangeSet.Result("3", ChangeSet.Status.APPLIED, dateTime(timeStart + 1)))),
+        actual);
+  }
+
+  @Test
+  void changeSetReturnsSkipped_recordedAsApplied_notReapplied() {
+    AtomicInteger applications = new AtomicInteger();
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet(
+                "1",
+                "1",
+                __ -> {
+                  applications.incrementAndGet();
+                  return ChangeSet.Status.SKIPPED;
+                }),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+
+    underTest.apply(Context.basic(clock), changeSets);
+    MigrationResult actual = underTest.apply(Context.basic(clock), changeSets);
+
+    assertEquals(1, applications.get());
+    assertEquals(HistoryRecord.Status.SUCCESS, historySource.getHistory().get(0).getStatus());
+    // the chain value of the last record is kept, so the second migration only reads the head
+    assertEquals(
+        HistoryChain.of(changeSets)[1], historySource.getHistory().get(1).getChainHash());
+    assertEquals(
+        List.of(ChangeSet.Status.ALREADY_APPLIED, ChangeSet.Status.ALREADY_APPLIED),
+        statuses(actual.getChangeSetResults()));
+  }
+
+  @Test
+  void parallel_independentLanes_appliedConcurrently() {
+    Clock fixedClock = Clock.fixed(Instant.ofEpochSecond(timeStart), ZoneId.of("UTC"));
+    Schema<Context> parallel = Schema.builder().historySource(historySource).parallelism(2).build();
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    Function<Context, ChangeSet.Status> awaitOther =
+        __ -> {
+          bothStarted.countDown();
+          try {
+            return bothStarted.await(5, TimeUnit.SECONDS)
+                ? ChangeSet.Status.APPLIED
+                : ChangeSet.Status.FAILED;
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        };
+
+    MigrationResult actual =
+        parallel.apply(
+            Context.basic(fixedClock),
+            List.of(
+                changeSet("1", "1", "a", Set.of(), awaitOther),
+                changeSet("2", "2", "b", Set.of(), awaitOther)));
+
+    assertEquals(
+        new MigrationResult.Success(
+            List.of(
+                new ChangeSet.Result("1", ChangeSet.Status.APPLIED, dateTime(timeStart)),
+                new ChangeSet.Result("2", ChangeSet.Status.APPLIED, dateTime(timeStart)))),
+        actual);
+  }
+
+  @Test
+  void parallel_dependencyOnFollowingChangeSet_exception() {
+    Schema<Context> parallel = Schema.builder().historySource(historySource).parallelism(2).build();
+
+    IllegalArgumentException exception =
+        assertThrows(
+            IllegalArgumentException.class,
+            () ->
+                parallel.apply(
+                    Context.basic(clock),
+                    List.of(
+                        changeSet("1", "1", null, Set.of("2"), __ -> ChangeSet.Status.APPLIED),
+                        changeSet("2", "2", "a", Set.of(), __ -> ChangeSet.Status.APPLIED))));
+    assertEquals("Change set 1 depends on change set 2 which follows it", exception.getMessage());
+  }
+
+  @Test
+  void chainedHistory_upToDate_historyNotLoaded() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+    underTest.apply(Context.basic(clock), changeSets);
+    HistorySource headOnly =
+        new HistorySource() {
+          @Override
+          public List<HistoryRecord> getHistory() {
+            throw new AssertionError("history must not be loaded");
+          }
+
+          @Override
+          public Optional<HistoryRecord> getHead() {
+            return historySource.getHead();
+          }
+
+          @Override
+          public void saveRecord(HistoryRecord historyRecord) {
+            throw new AssertionError("history must not be modified");
+          }
+        };
+
+    MigrationResult actual = new Schema<>(headOnly).apply(Context.basic(clock), changeSets);
+
+    assertEquals(
+        new MigrationResult.Success(
+            List.of(
+                new ChangeSet.Result("1", ChangeSet.Status.ALREADY_APPLIED, null),
+                new ChangeSet.Result(
+                    "2", ChangeSet.Status.ALREADY_APPLIED, dateTime(timeStart + 1)))),
+        actual);
+  }
+
+  @Test
+  void chainedHistory_checksumChanged_mismatchReported() {
+    underTest.apply(
+        Context.basic(clock),
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)));
+
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "changed", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(new MigrationResult.ChecksumMismatch("1", "changed", "1", "1"), actual);
+  }
+
+  @Test
+  void historyWithoutChain_allApplied_headRepaired() {
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"),
+        new HistoryRecord("2", dateTime(timeStart - 8), HistoryRecord.Status.SUCCESS, "2"));
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+
+    underTest.apply(Context.basic(clock), changeSets);
+
+    assertEquals(
+        HistoryChain.of(changeSets)[1],
+        historySource.getHead().map(HistoryRecord::getChainHash).orElse(null));
+  }
+
+  @Test
+  void recordMetrics_phasesAndChangeSetsMeasured() {
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    List<ChangeSet.Result> applied = new ArrayList<>();
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .recordMetrics(true)
+            .listener(
+                new MigrationListener() {
+                  @Override
+                  public void onChangeSetApplied(ChangeSet.Result result, long nanos) {
+                    applied.add(result);
+                  }
+                })
+            .build();
+
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED),
+                changeSet("3", "3", __ -> ChangeSet.Status.FAILED)));
+
+    MigrationMetrics metrics = actual.getMetrics().orElseThrow();
+    for (MigrationListener.Phase phase : MigrationListener.Phase.values()) {
+      assertEquals(1, metrics.getPhase(phase).getCount(), phase.name());
+    }
+    assertEquals(2, metrics.getApplyLatency().getCount());
+    assertEquals(2, metrics.getSaveLatency().getCount());
+    assertEquals(Set.of("2", "3"), metrics.getApplyNanos().keySet());
+    assertEquals(1, metrics.getStatusCount(ChangeSet.Status.ALREADY_APPLIED));
+    assertEquals(1, metrics.getStatusCount(ChangeSet.Status.APPLIED));
+    assertEquals(1, metrics.getStatusCount(ChangeSet.Status.FAILED));
+    assertEquals(2, applied.size());
+  }
+
+  @Test
+  void metricsNotRecorded_resultWithoutMetrics() {
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock), List.of(changeSet("1", "1", __ -> ChangeSet.Status.APPLIED)));
+
+    assertTrue(actual.getMetrics().isEmpty());
+  }
+
+  @Test
+  void async_stageCompletedLater_followingChangeSetWaits() throws Exception {
+    CompletableFuture<ChangeSet.Status> first = new CompletableFuture<>();
+    AtomicBoolean secondStarted = new AtomicBoolean();
+
+    CompletableFuture<MigrationResult> actual =
+        underTest.applyAsync(
+            Context.basic(clock),
+            List.of(
+                asyncChangeSet("1", __ -> first),
+                asyncChangeSet(
+                    "2",
+                    __ -> {
+                      secondStarted.set(true);
+                      return CompletableFuture.completedFuture(ChangeSet.Status.APPLIED);
+                    })));
+
+    assertFalse(actual.isDone());
+    assertFalse(secondStarted.get());
+    first.complete(ChangeSet.Status.APPLIED);
+
+    MigrationResult result = actual.get(5, TimeUnit.SECONDS);
+    assertTrue(result instanceof MigrationResult.Success);
+    assertEquals(
+        List.of(ChangeSet.Status.APPLIED, ChangeSet.Status.APPLIED),
+        statuses(result.getChangeSetResults()));
+    assertEquals(
+        List.of(HistoryRecord.Status.SUCCESS, HistoryRecord.Status.SUCCESS),
+        historySource.getHistory().stream().map(HistoryRecord::getStatus).collect(toList()));
+  }
+
+  @Test
+  void async_failedStage_failedSavedAndRestSkipped() throws Exception {
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+
+    MigrationResult actual =
+        underTest
+            .applyAsync(
+                Context.basic(clock),
+                List.of(
+                    changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                    asyncChangeSet(
+                        "2", __ -> CompletableFuture.failedFuture(new RuntimeException("boom"))),
+                    changeSet("3", __ -> ChangeSet.Status.APPLIED)))
+            .get(5, TimeUnit.SECONDS);
+
+    assertTrue(actual instanceof MigrationResult.ApplicationFailed);
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED, ChangeSet.Status.FAILED, ChangeSet.Status.SKIPPED),
+        statuses(actual.getChangeSetResults()));
+    assertEquals(
+        HistoryRecord.Status.FAILED,
+        historySource.getHead().map(HistoryRecord::getStatus).orElse(null));
+  }
+
+  @Test
+  void async_parallel_failedChangeSet_onlyDependentsSkipped() throws Exception {
+    underTest = Schema.<Context>builder().historySource(historySource).parallelism(4).build();
+
+    MigrationResult actual =
+        underTest
+            .applyAsync(
+                Context.basic(clock),
+                List.of(
+                    changeSet("1", null, "a", Set.of(), __ -> ChangeSet.Status.FAILED),
+                    changeSet("2", null, "b", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                    changeSet("3", null, "a", Set.of(), __ -> ChangeSet.Status.APPLIED)))
+            .get(5, TimeUnit.SECONDS);
+
+    assertEquals(
+        List.of(ChangeSet.Status.FAILED, ChangeSet.Status.APPLIED, ChangeSet.Status.SKIPPED),
+        statuses(actual.getChangeSetResults()));
+  }
+
+  @Test
+  void async_synchronousHistorySource_exception() {
+    underTest = new Schema<>(new BufferedHistorySource(historySource, 10, Duration.ofSeconds(1)));
+
+    assertThrows(
+        IllegalStateException.class, () -> underTest.applyAsync(Context.basic(clock), List.of()));
+  }
+
+  @Test
+  void checkpoint_failedChangeSet_resumedFromSavedProgress() {
+    List<Integer> processed = new ArrayList<>();
+    AtomicBoolean fail = new AtomicBoolean(true);
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            resumableChangeSet(
+                "1",
+                (context, checkpoint) -> {
+                  int start = checkpoint.get().map(Integer::parseInt).orElse(0);
+                  for (int item = start; item < 5; item++) {
+                    if (item == 3 && fail.getAndSet(false)) {
+                      return ChangeSet.Status.FAILED;
+                    }
+                    processed.add(item);
+                    checkpoint.save(String.valueOf(item + 1));
+                  }
+                  return ChangeSet.Status.APPLIED;
+                }));
+
+    var failed = underTest.apply(Context.basic(clock), changeSets);
+
+    assertTrue(failed instanceof MigrationResult.ApplicationFailed);
+    HistoryRecord failedRecord = historySource.getHead().orElseThrow();
+    assertEquals(HistoryRecord.Status.FAILED, failedRecord.getStatus());
+    assertEquals("3", failedRecord.getCheckpoint());
+
+    var resumed = underTest.apply(Context.basic(clock), changeSets);
+
+    assertTrue(resumed instanceof MigrationResult.Success);
+    assertEquals(List.of(0, 1, 2, 3, 4), processed);
+    HistoryRecord appliedRecord = historySource.getHead().orElseThrow();
+    assertEquals(HistoryRecord.Status.SUCCESS, appliedRecord.getStatus());
+    assertNull(appliedRecord.getCheckpoint());
+  }
+
+  @Test
+  void checkpoint_interruptedChangeSet_progressHandedBackAndSavedInProgress() {
+    saveHistory(
+        new HistoryRecord(
+            "1", dateTime(timeStart - 9), HistoryRecord.Status.IN_PROGRESS, null, null, "7"));
+    List<HistoryRecord> savedDuringApplication = new ArrayList<>();
+
+    var actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                resumableChangeSet(
+                    "1",
+                    (context, checkpoint) -> {
+                      assertEquals(Optional.of("7"), checkpoint.get());
+                      checkpoint.save("8");
+                      savedDuringApplication.add(historySource.getHead().orElseThrow());
+                      return ChangeSet.Status.APPLIED;
+                    })));
+
+    assertTrue(actual instanceof MigrationResult.Success);
+    assertEquals(HistoryRecord.Status.IN_PROGRESS, savedDuringApplication.get(0).getStatus());
+    assertEquals("8", savedDuringApplication.get(0).getCheckpoint());
+    assertEquals(
+        HistoryRecord.Status.SUCCESS,
+        historySource.getHead().map(HistoryRecord::getStatus).orElse(null));
+  }
+
+  @Test
+  void checkpoint_async_failedStage_progressKept() throws Exception {
+    MigrationResult actual =
+        underTest
+            .applyAsync(
+                Context.basic(clock),
+                List.of(
+                    new AsyncChangeSet<>("1", null, true) {
+                      @Override
+                      public CompletionStage<Status> mutateAsync(Context context) {
+                        return applyAsync(context, Checkpoint.NONE).thenApply(Result::getStatus);
+                      }
+
+                      @Override
+                      public CompletionStage<Result> applyAsync(
+                          Context context, Checkpoint checkpoint) {
+                        return checkpoint
+                            .saveAsync("page-2")
+                            .thenCompose(
+                                __ -> CompletableFuture.failedFuture(new RuntimeException()));
+                      }
+                    }))
+            .get(5, TimeUnit.SECONDS);
+
+    assertTrue(actual instanceof MigrationResult.ApplicationFailed);
+    HistoryRecord failedRecord = historySource.getHead().orElseThrow();
+    assertEquals(HistoryRecord.Status.FAILED, failedRecord.getStatus());
+    assertEquals("page-2", failedRecord.getCheckpoint());
+  }
+
+  @Test
+  void checkpoint_parallel_skippedChangeSet_progressKept() {
+    underTest = Schema.<Context>builder().historySource(historySource).parallelism(4).build();
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.FAILED, null),
+        new HistoryRecord(
+            "2", dateTime(timeStart - 8), HistoryRecord.Status.IN_PROGRESS, null, null, "5"));
+
+    underTest.apply(
+        Context.basic(clock),
+        List.of(
+            changeSet("1", null, "a", Set.of(), __ -> ChangeSet.Status.FAILED),
+            changeSet("2", null, "a", Set.of(), __ -> ChangeSet.Status.APPLIED),
+            changeSet("3", null, "b", Set.of(), __ -> ChangeSet.Status.APPLIED)));
+
+    HistoryRecord skipped = historySource.getHistory().get(1);
+    assertEquals(HistoryRecord.Status.PENDING, skipped.getStatus());
+    assertEquals("5", skipped.getCheckpoint());
+  }
+
+  @Test
+  void lock_upToDate_lockNotTaken() {
+    CountingLock lock = new CountingLock();
+    underTest = Schema.<Context>builder().historySource(historySource).lock(lock).build();
+    List<ChangeSet<Context>> changeSets =
+        List.of(changeSet("1", "1", __ -> ChangeSet.Status.APPLIED));
+
+    underTest.apply(Context.basic(clock), changeSets);
+    var actual = underTest.apply(Context.basic(clock), changeSets);
+
+    assertTrue(actual instanceof MigrationResult.Success);
+    assertEquals(1, lock.acquired.get());
+    assertEquals(1, lock.released.get());
+  }
+
+  @Test
+  void lock_appliedByAnotherInstanceWhileWaiting_notApplied() {
+    CountingLock lock = new CountingLock();
+    underTest = Schema.<Context>builder().historySource(historySource).lock(lock).build();
+    List<ChangeSet<Context>> changeSets =
+        List.of(changeSet("1", "1", __ -> ChangeSet.Status.APPLIED));
+    lock.onAcquire =
+        () ->
+            saveHistory(
+                new HistoryRecord(
+                    "1",
+                    dateTime(timeStart - 9),
+                    HistoryRecord.Status.SUCCESS,
+                    "1",
+                    HistoryChain.of(changeSets)[0]));
+    AtomicBoolean applied = new AtomicBoolean();
+
+    var actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet(
+                    "1",
+                    "1",
+                    __ -> {
+                      applied.set(true);
+                      return ChangeSet.Status.APPLIED;
+                    })));
+
+    assertEquals(
+        List.of(ChangeSet.Status.ALREADY_APPLIED), statuses(actual.getChangeSetResults()));
+    assertFalse(applied.get());
+    assertEquals(1, lock.released.get());
+  }
+
+  @Test
+  void lock_async_failedChangeSet_lockReleased() throws Exception {
+    CountingLock lock = new CountingLock();
+    underTest = Schema.<Context>builder().historySource(historySource).lock(lock).build();
+
+    MigrationResult actual =
+        underTest
+            .applyAsync(
+                Context.basic(clock),
+                List.of(
+                    asyncChangeSet(
+                        "1", __ -> CompletableFuture.failedFuture(new RuntimeException()))))
+            .get(5, TimeUnit.SECONDS);
+
+    assertTrue(actual instanceof MigrationResult.ApplicationFailed);
+    assertEquals(1, lock.acquired.get());
+    assertEquals(1, lock.released.get());
+  }
+
+  @Test
+  void lock_notAcquired_exception() {
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .lock(
+                new CountingLock() {
+                  @Override
+                  public Lease acquire() {
+                    throw new IllegalStateException("Timed out");
+                  }
+                })
+            .build();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            underTest.apply(
+                Context.basic(clock), List.of(changeSet("1", __ -> ChangeSet.Status.APPLIED))));
+    assertHistory();
+  }
+
+  @Test
+  void baseline_recordsSquashedAndArchived_baselineVerifiedAtOnce() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED),
+            changeSet("3", "3", __ -> ChangeSet.Status.APPLIED));
+    underTest.apply(Context.basic(clock), changeSets);
+    String chainHash = HistoryChain.of(changeSets)[1];
+
+    HistoryRecord baseline = underTest.baseline(changeSets, "2");
+
+    assertEquals(
+        new HistoryRecord(
+            "2", dateTime(timeStart + 1), HistoryRecord.Status.BASELINE, chainHash, chainHash),
+        baseline);
+    assertEquals(List.of("2", "3"), ids(historySource.getHistory()));
+    assertEquals(List.of("1", "2"), ids(((InMemoryHistorySource) historySource).getArchive()));
+
+    List<ChangeSet<Context>> withNew = new ArrayList<>(changeSets);
+    withNew.add(changeSet("4", "4", __ -> ChangeSet.Status.APPLIED));
+    var actual = underTest.apply(Context.basic(clock), withNew);
+
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.APPLIED),
+        statuses(actual.getChangeSetResults()));
+  }
+
+  @Test
+  void baseline_squashedChangeSetsRemoved_baselineChangeSetVerified() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED),
+            changeSet("3", "3", __ -> ChangeSet.Status.APPLIED));
+    underTest.apply(Context.basic(clock), changeSets);
+    HistoryRecord baseline = underTest.baseline(changeSets, "2");
+    List<ChangeSet<Context>> remaining =
+        List.of(
+            BaselineChangeSet.of(baseline),
+            changeSets.get(2),
+            changeSet("4", "4", __ -> ChangeSet.Status.APPLIED));
+
+    var actual = underTest.apply(Context.basic(clock), remaining);
+
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.APPLIED),
+        statuses(actual.getChangeSetResults()));
+    // the chain continues from the baseline, so the head matches the full change set list too
+    assertEquals(
+        HistoryChain.of(remaining)[2],
+        historySource.getHead().map(HistoryRecord::getChainHash).orElse(null));
+  }
+
+  @Test
+  void baseline_squashedChangeSetChanged_mismatchReported() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+    underTest.apply(Context.basic(clock), changeSets);
+    underTest.baseline(changeSets, "1");
+
+    var actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "changed", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED),
+                changeSet("3", "3", __ -> ChangeSet.Status.APPLIED)));
+
+    assertTrue(actual instanceof MigrationResult.ChecksumMismatch);
+  }
+
+  @Test
+  void baseline_changeSetNotApplied_exception() {
+    saveHistory(
+        new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"),
+        new HistoryRecord("2", dateTime(timeStart - 8), HistoryRecord.Status.FAILED, "2"));
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+
+    IllegalStateException exception =
+        assertThrows(IllegalStateException.class, () -> underTest.baseline(changeSets, "2"));
+
+    assertEquals("Change set 2 is not applied, it cannot be squashed", exception.getMessage());
+    assertEquals(List.of("1", "2"), ids(historySource.getHistory()));
+  }
+
+  @Test
+  void baseline_leaseLost_historyNotReplaced() {
+    saveHistory(new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    CountingLock lock = new CountingLock();
+    lock.valid.set(false);
+    underTest = Schema.<Context>builder().historySource(historySource).lock(lock).build();
+
+    IllegalStateException exception =
+        assertThrows(
+            IllegalStateException.class,
+            () ->
+                underTest.baseline(
+                    List.of(changeSet("1", "1", __ -> ChangeSet.Status.APPLIED)), "1"));
+
+    assertEquals("Migration lock was lost before baseline 1 was saved", exception.getMessage());
+    assertEquals(HistoryRecord.Status.SUCCESS, historySource.getHistory().get(0).getStatus());
+    assertEquals(1, lock.released.get());
+  }
+
+  @Test
+  void lock_leaseLost_migrationFailsBeforeNextChangeSet() {
+    CountingLock lock = new CountingLock();
+    underTest = Schema.<Context>builder().historySource(historySource).lock(lock).build();
+    AtomicBoolean applied = new AtomicBoolean();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            underTest.apply(
+                Context.basic(clock),
+                List.of(
+                    changeSet(
+                        "1",
+                        "1",
+                        __ -> {
+                          lock.valid.set(false);
+                          return ChangeSet.Status.APPLIED;
+                        }),
+                    changeSet(
+                        "2",
+                        "2",
+                        __ -> {
+                          applied.set(true);
+                          return ChangeSet.Status.APPLIED;
+                        }))));
+
+    assertFalse(applied.get());
+    assertEquals(List.of("1"), ids(historySource.getHistory()));
+    assertEquals(1, lock.released.get());
+  }
+
+  @Test
+  void lock_leaseLost_parallel_remainingChangeSetsNotApplied() {
+    CountingLock lock = new CountingLock();
+    lock.valid.set(false);
+    underTest =
+        Schema.<Context>builder().historySource(historySource).lock(lock).parallelism(2).build();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            underTest.apply(
+                Context.basic(clock),
+                List.of(
+                    changeSet("1", "1", "a", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                    changeSet("2", "2", "b", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                    changeSet("3", "3", "c", Set.of(), __ -> ChangeSet.Status.APPLIED))));
+
+    assertEquals(List.of(), historySource.getHistory());
+  }
+
+  @Test
+  void timeout_hangingChangeSet_interruptedAndFailed() throws Exception {
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .changeSetTimeout(Duration.ofMillis(50))
+            .build();
+    CountDownLatch interrupted = new CountDownLatch(1);
+
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet(
+                    "1",
+                    "1",
+                    __ -> {
+                      try {
+                        new CountDownLatch(1).await();
+                      } catch (InterruptedException e) {
+                        interrupted.countDown();
+                      }
+                      return ChangeSet.Status.APPLIED;
+                    }),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(
+        new MigrationResult.ApplicationFailed(
+            List.of(
+                new ChangeSet.TimedOut("1", Duration.ofMillis(50)),
+                new ChangeSet.Result("2", ChangeSet.Status.SKIPPED, null))),
+        actual);
+    assertHistory(new HistoryRecord("1", null, HistoryRecord.Status.FAILED, "1"));
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void timeout_migrationDeadlinePassed_runningTimedOutAndDependentsSkipped() {
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .parallelism(2)
+            .migrationTimeout(Duration.ofMillis(50))
+            .build();
+
+    MigrationResult actual =
+        underTest.apply(
+            Context.basic(clock),
+            List.of(
+                changeSet(
+                    "1",
+                    "1",
+                    "a",
+                    Set.of(),
+                    __ -> {
+                      try {
+                        Thread.sleep(10_000);
+                      } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                      }
+                      return ChangeSet.Status.APPLIED;
+                    }),
+                changeSet("2", "2", "a", Set.of(), __ -> ChangeSet.Status.APPLIED),
+                changeSet("3", "3", "b", Set.of("1"), __ -> ChangeSet.Status.APPLIED)));
+
+    assertTrue(actual instanceof MigrationResult.ApplicationFailed);
+    assertEquals(
+        new ChangeSet.TimedOut("1", Duration.ofMillis(50)), actual.getChangeSetResults().get(0));
+    assertEquals(
+        List.of(ChangeSet.Status.FAILED, ChangeSet.Status.SKIPPED, ChangeSet.Status.SKIPPED),
+        statuses(actual.getChangeSetResults()));
+  }
+
+  @Test
+  void timeout_async_ownTimeout_stageCancelled() throws Exception {
+    CompletableFuture<ChangeSet.Result> never = new CompletableFuture<>();
+    ChangeSet<Context> hanging =
+        new ChangeSet<>("1", null, true) {
+          @Override
+          public Status mutate(Context context) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public CompletionStage<Result> applyAsync(Context context, Checkpoint checkpoint) {
+            return never;
+          }
+
+          @Override
+          public Duration getTimeout() {
+            return Duration.ofMillis(50);
+          }
+        };
+
+    MigrationResult actual =
+        underTest.applyAsync(Context.basic(clock), List.of(hanging)).get(5, TimeUnit.SECONDS);
+
+    assertEquals(
+        new MigrationResult.ApplicationFailed(
+            List.of(new ChangeSet.TimedOut("1", Duration.ofMillis(50)))),
+        actual);
+    assertTrue(never.isCancelled());
+  }
+
+  @Test
+  void timeout_async_checkpointCancelled_noWorkStartedAfterDeadline() throws Exception {
+    AtomicInteger started = new AtomicInteger();
+    CompletableFuture<Void> stopped = new CompletableFuture<>();
+    ChangeSet<Context> looping =
+        new ChangeSet<>("1", null, true) {
+          @Override
+          public Status mutate(Context context) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public CompletionStage<Result> applyAsync(Context context, Checkpoint checkpoint) {
+            return work(checkpoint).thenApply(__ -> new Result(getId(), Status.APPLIED, null));
+          }
+
+          /** Starts units of work one after another, like requests of a bulk update. */
+          private CompletableFuture<Void> work(Checkpoint checkpoint) {
+            if (checkpoint.isCancelled()) {
+              stopped.complete(null);
+              return CompletableFuture.completedFuture(null);
+            }
+            started.incrementAndGet();
+            return CompletableFuture.runAsync(
+                    () -> {}, CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS))
+                .thenCompose(__ -> work(checkpoint));
+          }
+
+          @Override
+          public Duration getTimeout() {
+            return Duration.ofMillis(50);
+          }
+        };
+
+    MigrationResult actual =
+        underTest.applyAsync(Context.basic(clock), List.of(looping)).get(5, TimeUnit.SECONDS);
+    stopped.get(5, TimeUnit.SECONDS);
+    int startedWhenStopped = started.get();
+    Thread.sleep(20);
+
+    assertEquals(
+        new MigrationResult.ApplicationFailed(
+            List.of(new ChangeSet.TimedOut("1", Duration.ofMillis(50)))),
+        actual);
+    assertEquals(startedWhenStopped, started.get());
+  }
+
+  @Test
+  void streaming_resultsPassedInOrder_onlyTotalsReturned() {
+    saveHistory(new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    List<ChangeSet.Result> streamed = new ArrayList<>();
+
+    MigrationResult actual =
+        underTest.applyStreaming(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.FAILED),
+                changeSet("3", "3", __ -> ChangeSet.Status.APPLIED)),
+            streamed::add);
+
+    assertEquals(
+        List.of(
+            new ChangeSet.Result("1", ChangeSet.Status.ALREADY_APPLIED, dateTime(timeStart - 9)),
+            new ChangeSet.Result("2", ChangeSet.Status.FAILED, dateTime(timeStart + 0)),
+            new ChangeSet.Result("3", ChangeSet.Status.SKIPPED, null)),
+        streamed);
+    assertEquals(new MigrationResult.ApplicationFailed(List.of()), actual);
+    assertEquals(1L, actual.getTotals().get(ChangeSet.Status.ALREADY_APPLIED));
+    assertEquals(0L, actual.getTotals().get(ChangeSet.Status.APPLIED));
+    assertEquals(1L, actual.getTotals().get(ChangeSet.Status.FAILED));
+    assertEquals(1L, actual.getTotals().get(ChangeSet.Status.SKIPPED));
+  }
+
+  @Test
+  void streaming_upToDate_totalsMatchCollectedResults() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+    MigrationResult collected = underTest.apply(Context.basic(clock), changeSets);
+    List<ChangeSet.Result> streamed = new ArrayList<>();
+
+    MigrationResult actual =
+        underTest.applyStreaming(Context.basic(clock), changeSets, streamed::add);
+
+    assertEquals(
+        List.of("1", "2"), streamed.stream().map(ChangeSet.Result::getId).collect(toList()));
+    assertEquals(new MigrationResult.Success(List.of()), actual);
+    assertEquals(2L, actual.getTotals().get(ChangeSet.Status.ALREADY_APPLIED));
+    assertEquals(2L, collected.getTotals().get(ChangeSet.Status.APPLIED));
+  }
+
+  @Test
+  void background_deferredUntilReady_thenAppliedOnBackgroundExecutor() {
+    List<Runnable> background = new ArrayList<>();
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .backgroundExecutor(background::add)
+            .build();
+    AtomicInteger backfills = new AtomicInteger();
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            backgroundChangeSet(
+                "2",
+                __ -> {
+                  backfills.incrementAndGet();
+                  return ChangeSet.Status.APPLIED;
+                }),
+            changeSet("3", "3", __ -> ChangeSet.Status.APPLIED));
+
+    BackgroundMigration actual = underTest.applyWithBackground(Context.basic(clock), changeSets);
+
+    assertTrue(actual.isReady());
+    assertEquals(BackgroundMigration.State.RUNNING, actual.getState());
+    assertEquals(List.of("2"), actual.getDeferredIds());
+    assertEquals(
+        List.of(ChangeSet.Status.APPLIED, ChangeSet.Status.SKIPPED, ChangeSet.Status.APPLIED),
+        statuses(actual.getBlockingResult().getChangeSetResults()));
+    assertEquals(HistoryRecord.Status.PENDING, historySource.getHistory().get(1).getStatus());
+    // the chain value of the last record must not claim the pending change set applied
+    assertNull(historySource.getHistory().get(2).getChainHash());
+    assertEquals(0, backfills.get());
+
+    background.forEach(Runnable::run);
+
+    assertEquals(BackgroundMigration.State.COMPLETED, actual.getState());
+    assertEquals(1, backfills.get());
+    assertEquals(List.of(ChangeSet.Status.APPLIED), statuses(actual.getResults()));
+    assertTrue(
+        actual.getOutcome().toCompletableFuture().join() instanceof MigrationResult.Success);
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED),
+        statuses(underTest.apply(Context.basic(clock), changeSets).getChangeSetResults()));
+    assertEquals(1, backfills.get());
+  }
+
+  @Test
+  void background_baselineChangeSet_verifiedAgainstBaseline() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            changeSet("2", "2", __ -> ChangeSet.Status.APPLIED));
+    underTest.apply(Context.basic(clock), changeSets);
+    HistoryRecord baseline = underTest.baseline(changeSets, "2");
+
+    BackgroundMigration actual =
+        underTest.applyWithBackground(
+            Context.basic(clock),
+            List.of(
+                BaselineChangeSet.of(baseline),
+                changeSet("3", "3", __ -> ChangeSet.Status.APPLIED)));
+
+    assertTrue(actual.getBlockingResult() instanceof MigrationResult.Success);
+    assertEquals(
+        List.of(ChangeSet.Status.ALREADY_APPLIED, ChangeSet.Status.APPLIED),
+        statuses(actual.getBlockingResult().getChangeSetResults()));
+  }
+
+  @Test
+  void background_blockingFailed_backgroundNotStarted() {
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .backgroundExecutor(
+                __ -> {
+                  throw new AssertionError("Background must not be started");
+                })
+            .build();
+
+    BackgroundMigration actual =
+        underTest.applyWithBackground(
+            Context.basic(clock),
+            List.of(
+                backgroundChangeSet("1", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.FAILED)));
+
+    assertFalse(actual.isReady());
+    assertEquals(BackgroundMigration.State.NOT_STARTED, actual.getState());
+    assertTrue(
+        actual.getOutcome().toCompletableFuture().join()
+            instanceof MigrationResult.ApplicationFailed);
+  }
+
+  @Test
+  void background_anotherInstanceHoldsLockForBackfill_readyWithoutLock() {
+    List<ChangeSet<Context>> changeSets =
+        List.of(
+            changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+            backgroundChangeSet("2", __ -> ChangeSet.Status.APPLIED),
+            changeSet("3", "3", __ -> ChangeSet.Status.APPLIED));
+    // the first instance applied the blocking change sets, its backfill holds the lock
+    Schema.<Context>builder()
+        .historySource(historySource)
+        .backgroundExecutor(__ -> {})
+        .build()
+        .applyWithBackground(Context.basic(clock), changeSets);
+    CountingLock lock = new CountingLock();
+    lock.onAcquire =
+        () -> {
+          throw new IllegalStateException("Lock is held");
+        };
+    List<Runnable> background = new ArrayList<>();
+    underTest =
+        Schema.<Context>builder()
+            .historySource(historySource)
+            .lock(lock)
+            .backgroundExecutor(background::add)
+            .build();
+
+    BackgroundMigration actual = underTest.applyWithBackground(Context.basic(clock), changeSets);
+
+    assertTrue(actual.isReady());
+    assertEquals(List.of("2"), actual.getDeferredIds());
+    assertEquals(
+        List.of(
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.ALREADY_APPLIED,
+            ChangeSet.Status.SKIPPED),
+        statuses(actual.getBlockingResult().getChangeSetResults()));
+    assertEquals(0, lock.acquired.get());
+
+    background.forEach(Runnable::run);
+
+    // the background migration waits for the lock, here it fails to acquire it
+    assertEquals(1, lock.acquired.get());
+    assertEquals(BackgroundMigration.State.FAILED, actual.getState());
+  }
+
+  @Test
+  void background_alreadyApplied_notAskedWhetherBackground() {
+    saveHistory(new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    underTest = Schema.<Context>builder().historySource(historySource).build();
+    ChangeSet<Context> applied =
+        new ChangeSet<>("1", "1", false) {
+          @Override
+          public Status mutate(Context context) {
+            throw new AssertionError("Change set must not be applied");
+          }
+
+          @Override
+          public boolean isBackground() {
+            throw new AssertionError("Change set must not be asked");
+          }
+        };
+
+    BackgroundMigration actual =
+        underTest.applyWithBackground(
+            Context.basic(clock),
+            List.of(applied, changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)));
+
+    assertEquals(BackgroundMigration.State.COMPLETED, actual.getState());
+    assertEquals(
+        List.of(ChangeSet.Status.ALREADY_APPLIED, ChangeSet.Status.APPLIED),
+        statuses(actual.getBlockingResult().getChangeSetResults()));
+  }
+
+  @Test
+  void streaming_recordMetrics_statusesCountedFromTotals() {
+    saveHistory(new HistoryRecord("1", dateTime(timeStart - 9), HistoryRecord.Status.SUCCESS, "1"));
+    underTest = Schema.<Context>builder().historySource(historySource).recordMetrics(true).build();
+
+    MigrationResult actual =
+        underTest.applyStreaming(
+            Context.basic(clock),
+            List.of(
+                changeSet("1", "1", __ -> ChangeSet.Status.APPLIED),
+                changeSet("2", "2", __ -> ChangeSet.Status.APPLIED)),
+            __ -> {});
+
+    MigrationMetrics metrics = actual.getMetrics().orElseThrow();
+    assertEquals(1, metrics.getStatusCount(ChangeSet.Status.ALREADY_APPLIED));
+    assertEquals(1, metrics.getStatusCount(ChangeSet.Status.APPLIED));
+  }
+
+  @Test
+  void streaming_parallel_resultPassedBeforeOtherChangeSetsComplete() {
+    underTest = Schema.<Context>builder().historySource(historySource).parallelism(2).build();
+    CountDownLatch secondStreamed = new CountDownLatch(1);
+    List<String> streamed = new ArrayList<>();
+
+    MigrationResult actual =
+        underTest.applyStreaming(
+            Context.basic(clock),
+            List.of(
+                changeSet(
+                    "1",
+                    "1",
+                    "a",
+                    Set.of(),
+                    __ -> {
+                      try {
+                        return secondStreamed.await(5, TimeUnit.SECONDS)
+                            ? ChangeSet.Status.APPLIED
+                            : ChangeSet.Status.FAILED;
+                      } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                      }
+                    }),
+                changeSet("2", "2", "b", Set.of(), __ -> ChangeSet.Status.APPLIED)),
+            result -> {
+              streamed.add(result.getId());
+              if (result.getId().equals("2")) {
+                secondStreamed.countDown();
+              }
+            });
+
+    assertTrue(actual instanceof MigrationResult.Success);
+    assertEquals(List.of("2", "1"), streamed);
+  }
+
+  private static List<String> ids(List<HistoryRecord> records) {
+    return records.stream().map(HistoryRecord::getId).collect(toList());
+  }
+
+  private static List<ChangeSet.Status> statuses(List<ChangeSet.Result> results) {
+    return results.stream().map(ChangeSet.Result::getStatus).collect(toList());
+  }
+
+  private static <C extends Context> ChangeSet<C> asyncChangeSet(
+      String id, Function<C, CompletionStage<ChangeSet.Status>> mutate) {
+    return new AsyncChangeSet<>(id, null, true) {
+      @Override
+      public CompletionStage<Status> mutateAsync(C context) {
+        return mutate.apply(context);
+      }
+    };
+  }
+
+  private static <C extends Context> ChangeSet<C> resumableChangeSet(
+      String id, BiFunction<C, Checkpoint, ChangeSet.Status> mutate) {
+    return new ChangeSet<>(id, null, true) {
+      @Override
+      public Status mutate(C context) {
+        return mutate.apply(context, Checkpoint.NONE);
+      }
+
+      @Override
+      public Result apply(C context, Checkpoint checkpoint) {
+        return new Result(
+            getId(), mutate.apply(context, checkpoint), LocalDateTime.now(context.getClock()));
+      }
+    };
+  }
+
+  private static <C extends Context> ChangeSet<C> backgroundChangeSet(
+      String id, Function<C, ChangeSet.Status> mutate) {
+    return new ChangeSet<>(id, id, false) {
+      @Override
+      public Status mutate(C context) {
+        return mutate.apply(context);
+      }
+
+      @Override
+      public boolean isBackground() {
+        return true;
+      }
+    };
+  }
+
+  /** Lock counting acquisitions and releases, which runs the given action once acquired. */
+  private static class CountingLock implements MigrationLock {
+    final AtomicInteger acquired = new AtomicInteger();
+    final AtomicInteger released = new AtomicInteger();
+    final AtomicBoolean valid = new AtomicBoolean(true);
+    Runnable onAcquire = () -> {};
+
+    @Override
+    public Lease acquire() {
+      acquired.incrementAndGet();
+      onAcquire.run();
+      return new Lease() {
+        @Override
+        public void release() {
+          released.incrementAndGet();
+        }
+
+        @Override
+        public CompletionStage<Void> releaseAsync() {
+          release();
+          return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public boolean isValid() {
+          return valid.get();
+        }
+      };
+    }
+
+    @Override
+    public CompletionStage<Lease> acquireAsync() {
+      return CompletableFuture.completedFuture(acquire());
+    }
+  }
+
   private void saveHistory(HistoryRecord... records) {
     for (HistoryRecord record : records) {
       historySource.saveRecord(record);
@@ -232,6 +1565,30 @@ class SchemaTest {
     };
   }
 
+  private static <C extends Context> ChangeSet<C> changeSet(
+      String id,
+      String checksum,
+      String lane,
+      Set<String> dependencies,
+      Function<C, ChangeSet.Status> mutate) {
+    return new ChangeSet<>(id, checksum, checksum == null) {
+      @Override
+      public Status mutate(C context) {
+        return mutate.apply(context);
+      }
+
+      @Override
+      public Set<String> getDependencies() {
+        return dependencies;
+      }
+
+      @Override
+      public String getLane() {
+        return lane;
+      }
+    };
+  }
+
   private LocalDateTime dateTime(long time) {
     return LocalDateTime.ofInstant(Instant.ofEpochSecond(time), ZoneId.of("UTC"));
   }
@@ -0,0 +1,212 @@
+package dev.vgerasimov.schema_migration.processor;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+import dev.vgerasimov.schema_migration.ChangeSetChecksum;
+import dev.vgerasimov.schema_migration.ChecksumManifest;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor computing checksums of declarations annotated with {@link
+ * ChangeSetChecksum} and writing them into the {@link ChecksumManifest#RESOURCE manifest}.
+ *
+ * <p>The checksum is the SHA-256 of the normalized source of the declaration: comments are
+ * removed and whitespace is only kept where it separates two words, so reformatting the code or
+ * editing comments does not change the checksum, while any change of the code does. The source is
+ * taken as written rather than as printed by the compiler, so the checksum does not depend on the
+ * JDK version. Requires javac.
+ */
+@SupportedAnnotationTypes("dev.vgerasimov.schema_migration.ChangeSetChecksum")
+public class ChecksumProcessor extends AbstractProcessor {
+  private final Map<String, String> checksums = new TreeMap<>();
+  private final Map<String, Element> declarations = new HashMap<>();
+  private Trees trees;
+
+  @Override
+  public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    try {
+      trees = Trees.instance(processingEnv);
+    } catch (IllegalArgumentException e) {
+      // not javac, reported for every annotated declaration
+      trees = null;
+    }
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(ChangeSetChecksum.class)) {
+      String id = element.getAnnotation(ChangeSetChecksum.class).value();
+      if (id.isBlank() || id.contains("\n") || id.contains("\r")) {
+        error(element, "Change set id must not be blank or contain line breaks");
+        continue;
+      }
+      String source = source(element);
+      if (source == null) {
+        continue;
+      }
+      Element previous = declarations.putIfAbsent(id, element);
+      if (previous != null) {
+        error(element, "Change set " + id + " is already declared by " + previous);
+        continue;
+      }
+      checksums.put(id, sha256(normalize(source)));
+    }
+    if (roundEnv.processingOver() && !checksums.isEmpty()) {
+      writeManifest();
+    }
+    return true;
+  }
+
+  private String source(Element element) {
+    TreePath path = trees == null ? null : trees.getPath(element);
+    if (path == null) {
+      error(element, "Source of the declaration is not available, the processor requires javac");
+      return null;
+    }
+    CompilationUnitTree unit = path.getCompilationUnit();
+    SourcePositions positions = trees.getSourcePositions();
+    long start = positions.getStartPosition(unit, path.getLeaf());
+    long end = positions.getEndPosition(unit, path.getLeaf());
+    try {
+      CharSequence content = unit.getSourceFile().getCharContent(true);
+      return content.subSequence((int) start, (int) end).toString();
+    } catch (IOException e) {
+      error(element, "Failed to read the source of the declaration: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void writeManifest() {
+    try {
+      FileObject manifest =
+          processingEnv
+              .getFiler()
+              .createResource(StandardLocation.CLASS_OUTPUT, "", ChecksumManifest.RESOURCE);
+      try (Writer writer = manifest.openWriter()) {
+        for (Map.Entry<String, String> entry : checksums.entrySet()) {
+          writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+        }
+      }
+    } catch (IOException e) {
+      processingEnv
+          .getMessager()
+          .printMessage(Diagnostic.Kind.ERROR, "Failed to write checksum manifest: " + e);
+    }
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  /**
+   * Removes comments and whitespace from the source. Whitespace between two word characters is
+   * replaced with a single space, string and character literals are kept as they are.
+   */
+  static String normalize(String source) {
+    StringBuilder normalized = new StringBuilder(source.length());
+    boolean pendingSpace = false;
+    int i = 0;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (source.startsWith("//", i)) {
+        int lineEnd = source.indexOf('\n', i);
+        i = lineEnd < 0 ? source.length() : lineEnd;
+        pendingSpace = true;
+      } else if (source.startsWith("/*", i)) {
+        int commentEnd = source.indexOf("*/", i + 2);
+        i = commentEnd < 0 ? source.length() : commentEnd + 2;
+        pendingSpace = true;
+      } else if (Character.isWhitespace(c)) {
+        i++;
+        pendingSpace = true;
+      } else if (c == '"' || c == '\'') {
+        int literalEnd = literalEnd(source, i);
+        appendToken(normalized, source.substring(i, literalEnd), pendingSpace);
+        pendingSpace = false;
+        i = literalEnd;
+      } else {
+        int tokenEnd = i + 1;
+        if (isWordPart(c)) {
+          while (tokenEnd < source.length() && isWordPart(source.charAt(tokenEnd))) {
+            tokenEnd++;
+          }
+        }
+        appendToken(normalized, source.substring(i, tokenEnd), pendingSpace);
+        pendingSpace = false;
+        i = tokenEnd;
+      }
+    }
+    return normalized.toString();
+  }
+
+  private static void appendToken(StringBuilder normalized, String token, boolean pendingSpace) {
+    int length = normalized.length();
+    if (pendingSpace
+        && length > 0
+        && isWordPart(normalized.charAt(length - 1))
+        && isWordPart(token.charAt(0))) {
+      normalized.append(' ');
+    }
+    normalized.append(token);
+  }
+
+  /** Returns the index following the string, text block or character literal starting at i. */
+  private static int literalEnd(String source, int i) {
+    if (source.startsWith("\"\"\"", i)) {
+      int end = source.indexOf("\"\"\"", i + 3);
+      while (end > 0 && source.charAt(end - 1) == '\\') {
+        end = source.indexOf("\"\"\"", end + 1);
+      }
+      return end < 0 ? source.length() : end + 3;
+    }
+    char quote = source.charAt(i);
+    int j = i + 1;
+    while (j < source.length() && source.charAt(j) != quote) {
+      j += source.charAt(j) == '\\' ? 2 : 1;
+    }
+    return Math.min(j + 1, source.length());
+  }
+
+  private static boolean isWordPart(char c) {
+    return Character.isJavaIdentifierPart(c);
+  }
+
+  private static String sha256(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder(64);
+      for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+}
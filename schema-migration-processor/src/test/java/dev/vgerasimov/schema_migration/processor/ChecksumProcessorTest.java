@@ -0,0 +1,108 @@
+package dev.vgerasimov.schema_migration.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import dev.vgerasimov.schema_migration.ChecksumManifest;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChecksumProcessorTest {
+
+  @TempDir Path dir;
+
+  @Test
+  void formattingAndComments_checksumUnchanged() throws IOException {
+    String original =
+        "class ChangeSets {\n"
+            + "  @ChangeSetChecksum(\"001\")\n"
+            + "  static int first() { return 1 + 2; }\n"
+            + "}\n";
+    String reformatted =
+        "class ChangeSets {\n"
+            + "  /** Adds the field. */\n"
+            + "  @ChangeSetChecksum( \"001\" )\n"
+            + "  static int first() {\n"
+            + "    // the sum\n"
+            + "    return 1+2;\n"
+            + "  }\n"
+            + "}\n";
+
+    assertEquals(checksum(original, "001"), checksum(reformatted, "001"));
+  }
+
+  @Test
+  void codeChanged_checksumChanged() throws IOException {
+    String original =
+        "class ChangeSets {\n"
+            + "  @ChangeSetChecksum(\"001\")\n"
+            + "  static String first() { return \"a  b\"; }\n"
+            + "}\n";
+    String changed =
+        "class ChangeSets {\n"
+            + "  @ChangeSetChecksum(\"001\")\n"
+            + "  static String first() { return \"a b\"; }\n"
+            + "}\n";
+
+    assertNotEquals(checksum(original, "001"), checksum(changed, "001"));
+  }
+
+  @Test
+  void duplicateId_compilationFails() {
+    String source =
+        "class ChangeSets {\n"
+            + "  @ChangeSetChecksum(\"001\") static final int FIRST = 1;\n"
+            + "  @ChangeSetChecksum(\"001\") static final int SECOND = 2;\n"
+            + "}\n";
+
+    assertFalse(compile(source));
+  }
+
+  @Test
+  void normalize_wordsSeparatedBySingleSpace() {
+    assertEquals(
+        "static int x=a+b;", ChecksumProcessor.normalize("static   int\n x = a /* c */ + b;"));
+  }
+
+  private String checksum(String source, String id) throws IOException {
+    assertTrue(compile(source));
+    try (Reader reader = Files.newBufferedReader(dir.resolve(ChecksumManifest.RESOURCE))) {
+      return ChecksumManifest.read(reader).getChecksum(id).orElseThrow();
+    }
+  }
+
+  private boolean compile(String source) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    JavaFileObject file =
+        new SimpleJavaFileObject(
+            URI.create("string:///ChangeSets.java"), JavaFileObject.Kind.SOURCE) {
+          @Override
+          public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return "import dev.vgerasimov.schema_migration.ChangeSetChecksum;\n" + source;
+          }
+        };
+    JavaCompiler.CompilationTask task =
+        compiler.getTask(
+            null,
+            null,
+            new DiagnosticCollector<>(),
+            List.of("-d", dir.toString(), "-classpath", System.getProperty("java.class.path")),
+            null,
+            List.of(file));
+    task.setProcessors(List.of(new ChecksumProcessor()));
+    return task.call();
+  }
+}